@@ -24,11 +24,16 @@
 package opendial;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import opendial.bn.BNetwork;
@@ -45,12 +50,14 @@ import opendial.bn.nodes.ChanceNode;
 import opendial.bn.nodes.UtilityNode;
 import opendial.bn.values.ValueFactory;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.SymbolTable;
 import opendial.datastructs.ValueRange;
 import opendial.domains.rules.Rule;
 import opendial.domains.rules.distribs.AnchoredRule;
 import opendial.domains.rules.distribs.EquivalenceDistribution;
 import opendial.domains.rules.distribs.OutputDistribution;
 import opendial.inference.SwitchingAlgorithm;
+import opendial.inference.approximate.ParticleFilter;
 import opendial.inference.approximate.SamplingAlgorithm;
 import opendial.modules.StatePruner;
 import opendial.templates.Template;
@@ -80,12 +87,33 @@ public class DialogueState extends BNetwork {
 	// evidence values for state variables
 	Assignment evidence;
 
+	// modification stamp for the evidence
+	long evidenceStamp;
+
 	/** Subset of variables that denote parameters */
 	Set<String> parameterVars;
 
 	/** Subset of variables that are currently incrementally constructed */
 	Set<String> incrementalVars;
 
+	/** Maximum number of query results cached for a given version of the state */
+	public static int MAX_CACHED_QUERIES = 100;
+
+	// cached query results, indexed by query type, variables and evidence
+	Map<List<Object>, Object> queryCache = new LinkedHashMap<List<Object>, Object>(
+			16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> e) {
+			return size() > MAX_CACHED_QUERIES;
+		}
+	};
+
+	// version of the dialogue state for which the cached results are valid
+	long cacheVersion = -1;
+
+	// persistent particles over the state variables (in particle filter mode)
+	ParticleFilter particleFilter;
+
 	// ===================================
 	// DIALOGUE STATE CONSTRUCTION
 	// ===================================
@@ -155,6 +183,7 @@ public class DialogueState extends BNetwork {
 		if (network instanceof DialogueState) {
 			evidence.addAssignment(((DialogueState) network).getEvidence());
 		}
+		setEvidenceModified();
 	}
 
 	/**
@@ -164,6 +193,7 @@ public class DialogueState extends BNetwork {
 	 */
 	public void clearEvidence(Collection<String> variables) {
 		evidence.removePairs(variables);
+		setEvidenceModified();
 	}
 
 	/**
@@ -173,6 +203,7 @@ public class DialogueState extends BNetwork {
 	 */
 	public void addEvidence(Assignment assignment) {
 		evidence.addAssignment(assignment);
+		setEvidenceModified();
 	}
 
 	/**
@@ -283,6 +314,7 @@ public class DialogueState extends BNetwork {
 	public synchronized void addToState(DialogueState newState) {
 		addToState((BNetwork) newState);
 		evidence.addAssignment(newState.getEvidence().addPrimes());
+		setEvidenceModified();
 	}
 
 	/**
@@ -367,6 +399,17 @@ public class DialogueState extends BNetwork {
 		return new Assignment(evidence);
 	}
 
+	/**
+	 * Returns the current version of the dialogue state, which changes every time
+	 * the network or the evidence is modified.
+	 * 
+	 * @return the version of the dialogue state
+	 */
+	@Override
+	public long getVersion() {
+		return Math.max(super.getVersion(), evidenceStamp);
+	}
+
 	/**
 	 * Returns the probability distribution corresponding to the values of the state
 	 * variable provided as argument.
@@ -395,17 +438,26 @@ public class DialogueState extends BNetwork {
 
 			// if the distribution can be retrieved without inference, we simply
 			// return it
-			if (cn.getDistrib() instanceof IndependentDistribution && Collections
+			if (cn.peekDistrib() instanceof IndependentDistribution && Collections
 					.disjoint(cn.getClique(), evidence.getVariables())) {
 				return (IndependentDistribution) cn.getDistrib();
 			}
 
 			else {
+				long version = getVersion();
+				Assignment queryEvidence = (includeEvidence)
+						? new Assignment(evidence) : new Assignment();
+				List<Object> key = Arrays.asList("prob",
+						Collections.singleton(variable), queryEvidence);
+				IndependentDistribution cached = getCached(key, version);
+				if (cached != null) {
+					return cached.copy();
+				}
 				try {
-					Assignment queryEvidence =
-							(includeEvidence) ? evidence : new Assignment();
-					return new SwitchingAlgorithm().queryProb(this, variable,
-							queryEvidence);
+					IndependentDistribution result = new SwitchingAlgorithm()
+							.queryProb(this, variable, queryEvidence);
+					addCached(key, version, result.copy());
+					return result;
 				}
 				catch (RuntimeException e) {
 					log.warning("Error querying variable " + variable + " : " + e);
@@ -421,6 +473,89 @@ public class DialogueState extends BNetwork {
 		}
 	}
 
+	/**
+	 * Returns the marginal probability distributions of the state variables provided
+	 * as argument (including the evidence in the dialogue state). All marginals that
+	 * require inference are computed together, in a single inference operation.
+	 * 
+	 * @param variables the variable labels to query
+	 * @return the marginal distribution of each variable
+	 */
+	public Map<String, IndependentDistribution> queryMarginals(
+			Collection<String> variables) {
+		return queryMarginals(variables, true);
+	}
+
+	/**
+	 * Returns the marginal probability distributions of the state variables provided
+	 * as argument. All marginals that require inference are computed together, in a
+	 * single inference operation.
+	 * 
+	 * @param variables the variable labels to query
+	 * @param includeEvidence whether to include or ignore the evidence in the
+	 *            dialogue state
+	 * @return the marginal distribution of each variable
+	 */
+	public Map<String, IndependentDistribution> queryMarginals(
+			Collection<String> variables, boolean includeEvidence) {
+
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		List<String> toInfer = new ArrayList<String>();
+		long version = getVersion();
+		Assignment queryEvidence =
+				(includeEvidence) ? new Assignment(evidence) : new Assignment();
+		for (String variable : variables) {
+			if (!hasChanceNode(variable)) {
+				log.warning("Variable " + variable
+						+ " not included in the dialogue state");
+				marginals.put(variable,
+						new SingleValueDistribution(variable, ValueFactory.none()));
+				continue;
+			}
+			ChanceNode cn = getChanceNode(variable);
+
+			// if the distribution can be retrieved without inference, we simply
+			// return it
+			if (cn.peekDistrib() instanceof IndependentDistribution && Collections
+					.disjoint(cn.getClique(), evidence.getVariables())) {
+				marginals.put(variable, (IndependentDistribution) cn.getDistrib());
+				continue;
+			}
+			IndependentDistribution cached = getCached(Arrays.asList("prob",
+					Collections.singleton(variable), queryEvidence), version);
+			if (cached != null) {
+				marginals.put(variable, cached.copy());
+			}
+			else {
+				marginals.put(variable, null);
+				toInfer.add(variable);
+			}
+		}
+
+		// else, perform the inference operation on all remaining variables
+		if (!toInfer.isEmpty()) {
+			try {
+				Map<String, IndependentDistribution> results =
+						new SwitchingAlgorithm().queryMarginals(this, toInfer,
+								queryEvidence);
+				for (String variable : results.keySet()) {
+					addCached(Arrays.asList("prob", Collections.singleton(variable),
+							queryEvidence), version, results.get(variable).copy());
+				}
+				marginals.putAll(results);
+			}
+			catch (RuntimeException e) {
+				log.warning("Error querying variables " + toInfer + " : " + e);
+				for (String variable : toInfer) {
+					marginals.put(variable, new SingleValueDistribution(variable,
+							ValueFactory.none()));
+				}
+			}
+		}
+		return marginals;
+	}
+
 	/**
 	 * Returns the probability distribution corresponding to the values of the state
 	 * variables provided as argument.
@@ -433,9 +568,20 @@ public class DialogueState extends BNetwork {
 		if (!getNodeIds().containsAll(variables)) {
 			log.warning(variables + " not contained in " + getNodeIds());
 		}
+		long version = getVersion();
+		List<Object> key = Arrays.asList("joint",
+				new HashSet<String>(variables), evidence.copy());
+		MultivariateDistribution cached = getCached(key, version);
+		if (cached != null) {
+			return cached.copy();
+		}
+
 		// else, perform the inference operation
 		try {
-			return new SwitchingAlgorithm().queryProb(this, variables, evidence);
+			MultivariateDistribution result =
+					new SwitchingAlgorithm().queryProb(this, variables, evidence);
+			addCached(key, version, result.copy());
+			return result;
 		}
 
 		// if everything fails, returns an empty table
@@ -454,8 +600,18 @@ public class DialogueState extends BNetwork {
 	 * @return the corresponding utility table
 	 */
 	public UtilityTable queryUtil(Collection<String> variables) {
+		long version = getVersion();
+		List<Object> key = Arrays.asList("util",
+				new HashSet<String>(variables), evidence.copy());
+		UtilityTable cached = getCached(key, version);
+		if (cached != null) {
+			return cached.copy();
+		}
 		try {
-			return new SwitchingAlgorithm().queryUtil(this, variables, evidence);
+			UtilityTable result =
+					new SwitchingAlgorithm().queryUtil(this, variables, evidence);
+			addCached(key, version, result.copy());
+			return result;
 		}
 		catch (Exception e) {
 			log.warning("cannot perform inference: " + e);
@@ -470,8 +626,17 @@ public class DialogueState extends BNetwork {
 	 * @return the total utility
 	 */
 	public double queryUtil() {
+		long version = getVersion();
+		List<Object> key =
+				Arrays.asList("util", Collections.emptySet(), new Assignment());
+		Double cached = getCached(key, version);
+		if (cached != null) {
+			return cached;
+		}
 		try {
-			return (new SamplingAlgorithm()).queryUtil(this);
+			double result = (new SamplingAlgorithm()).queryUtil(this);
+			addCached(key, version, result);
+			return result;
 		}
 		catch (Exception e) {
 			log.warning("cannot perform inference: " + e);
@@ -509,6 +674,20 @@ public class DialogueState extends BNetwork {
 		return parameterVars;
 	}
 
+	/**
+	 * Returns the particle filter that maintains a persistent set of particles over
+	 * the state variables across turns (used when Settings.particleFilter is set).
+	 * The particles are not shared with the copies of the dialogue state.
+	 * 
+	 * @return the particle filter of the dialogue state
+	 */
+	public synchronized ParticleFilter getParticleFilter() {
+		if (particleFilter == null) {
+			particleFilter = new ParticleFilter();
+		}
+		return particleFilter;
+	}
+
 	/**
 	 * Returns a sample of all the variables in the dialogue state
 	 * 
@@ -527,8 +706,8 @@ public class DialogueState extends BNetwork {
 	public synchronized Set<String> getNewVariables() {
 		Set<String> newVars = new HashSet<String>();
 		for (String var : getChanceNodeIds()) {
-			if (var.endsWith("'")) {
-				newVars.add(var.substring(0, var.length() - 1));
+			if (SymbolTable.isPrimed(var)) {
+				newVars.add(SymbolTable.removePrime(var));
 			}
 		}
 		return newVars;
@@ -543,8 +722,8 @@ public class DialogueState extends BNetwork {
 	public synchronized Set<String> getNewActionVariables() {
 		Set<String> newVars = new HashSet<String>();
 		for (String var : getActionNodeIds()) {
-			if (var.endsWith("'")) {
-				newVars.add(var.substring(0, var.length() - 1));
+			if (SymbolTable.isPrimed(var)) {
+				newVars.add(SymbolTable.removePrime(var));
 			}
 		}
 		return newVars;
@@ -638,12 +817,12 @@ public class DialogueState extends BNetwork {
 	public Element generateXML(Document doc, Collection<String> varsToRecord) {
 
 		Element root = doc.createElement("state");
-		for (String nodeId : varsToRecord) {
-			if (getChanceNodeIds().contains(nodeId)) {
-				IndependentDistribution distrib = queryProb(nodeId);
-				Node var = distrib.generateXML(doc);
-				root.appendChild(var);
-			}
+		List<String> recorded = varsToRecord.stream()
+				.filter(v -> getChanceNodeIds().contains(v))
+				.collect(Collectors.toList());
+		for (IndependentDistribution distrib : queryMarginals(recorded).values()) {
+			Node var = distrib.generateXML(doc);
+			root.appendChild(var);
 		}
 		return root;
 	}
@@ -690,7 +869,8 @@ public class DialogueState extends BNetwork {
 			// else, simply add an additional edge
 			else {
 				outputNode = getChanceNode(updatedVar);
-				outputDistrib = (OutputDistribution) outputNode.getDistrib();
+				outputDistrib =
+						(OutputDistribution) outputNode.getDistrib();
 			}
 			outputNode.addInputNode(ruleNode);
 			outputDistrib.addAnchoredRule(arule);
@@ -737,6 +917,50 @@ public class DialogueState extends BNetwork {
 		}
 	}
 
+	/**
+	 * Renews the modification stamp of the evidence.
+	 */
+	private void setEvidenceModified() {
+		evidenceStamp = BNode.nextStamp();
+	}
+
+	/**
+	 * Returns the cached result for the query key, if the cache is valid for the
+	 * given version of the dialogue state. The cache is emptied if the version
+	 * differs from the one of the cached results.
+	 * 
+	 * @param key the query key
+	 * @param version the current version of the dialogue state
+	 * @return the cached result, or null if no such result is available
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T getCached(List<Object> key, long version) {
+		synchronized (queryCache) {
+			if (version != cacheVersion) {
+				queryCache.clear();
+				cacheVersion = version;
+				return null;
+			}
+			return (T) queryCache.get(key);
+		}
+	}
+
+	/**
+	 * Caches the result of the query, provided the cache is still valid for the
+	 * version of the dialogue state on which the query was run.
+	 * 
+	 * @param key the query key
+	 * @param version the version of the dialogue state used for the query
+	 * @param result the query result
+	 */
+	private void addCached(List<Object> key, long version, Object result) {
+		synchronized (queryCache) {
+			if (version == cacheVersion) {
+				queryCache.put(key, result);
+			}
+		}
+	}
+
 	/**
 	 * Connects the chance node to its prior predictions (if any).
 	 * 
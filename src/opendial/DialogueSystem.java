@@ -43,6 +43,7 @@ import opendial.bn.distribs.MultivariateDistribution;
 import opendial.bn.distribs.ProbDistribution;
 import opendial.bn.values.Value;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
 import opendial.datastructs.SpeechData;
 import opendial.domains.Domain;
 import opendial.domains.Model;
@@ -95,6 +96,9 @@ public class DialogueSystem {
 	// whether the system is paused or active
 	protected boolean paused = true;
 
+	// deadline for the current update of the dialogue state
+	protected volatile Deadline deadline = Deadline.NONE;
+
 	// ===================================
 	// SYSTEM INITIALISATION
 	// ===================================
@@ -251,6 +255,9 @@ public class DialogueSystem {
 	 */
 	public void pause(boolean toPause) {
 		paused = toPause;
+		if (toPause) {
+			deadline.cancel();
+		}
 
 		for (Module module : modules) {
 			module.pause(toPause);
@@ -632,7 +639,10 @@ public class DialogueSystem {
 	/**
 	 * Performs an update loop on the current dialogue state, by triggering all the
 	 * models and modules attached to the system until all possible updates have been
-	 * performed. The dialogue state is pruned at the end of the operation.
+	 * performed. The dialogue state is pruned at the end of the operation. The
+	 * update is performed within the turn budget specified in the settings: all
+	 * inference queries (including those of the planner and the pruner) retrieve
+	 * its deadline, and stop sampling once it expires.
 	 * 
 	 * <p>
 	 * The method returns the set of variables that have been updated during the
@@ -642,45 +652,62 @@ public class DialogueSystem {
 	 */
 	private Set<String> update() {
 
-		// set of variables that have been updated
-		Map<String, Integer> updatedVars = new HashMap<String, Integer>();
+		// deadline for the update (bounded by the turn budget, if any)
+		long budget =
+				(settings.turnBudget > 0) ? settings.turnBudget : Long.MAX_VALUE;
+		Deadline turn = Deadline.current().withTimeout(budget);
+		Deadline previous = Deadline.setCurrent(turn);
+		deadline = turn;
+
+		try {
+			// set of variables that have been updated
+			Map<String, Integer> updatedVars = new HashMap<String, Integer>();
 
-		while (!curState.getNewVariables().isEmpty()) {
+			while (!curState.getNewVariables().isEmpty()) {
 
-			// finding the new variables that must be processed
-			Set<String> toProcess = curState.getNewVariables();
+				// finding the new variables that must be processed
+				Set<String> toProcess = curState.getNewVariables();
 
-			synchronized (curState) {
+				synchronized (curState) {
 
-				// reducing the dialogue state to its relevant nodes
-				curState.reduce();
+					// reducing the dialogue state to its relevant nodes
+					curState.reduce();
 
-				// applying the domain models
-				for (Model model : domain.getModels()) {
-					if (model.isTriggered(curState, toProcess)) {
-						boolean change = model.trigger(curState);
-						if (change && model.isBlocking()) {
-							break;
+					// applying the domain models
+					for (Model model : domain.getModels()) {
+						if (model.isTriggered(curState, toProcess)) {
+							boolean change = model.trigger(curState);
+							if (change && model.isBlocking()) {
+								break;
+							}
 						}
 					}
-				}
 
-				// triggering the domain modules
-				modules.forEach(m -> m.trigger(curState, toProcess));
-
-				// checking for recursive update loops
-				for (String v : toProcess) {
-					int count = updatedVars.compute(v,
-							(x, y) -> (y == null) ? 1 : y + 1);
-					if (count > 10) {
-						displayComment("Warning: Recursive update of variable " + v);
-						return updatedVars.keySet();
+					// triggering the domain modules
+					modules.forEach(m -> m.trigger(curState, toProcess));
+
+					// checking for recursive update loops
+					for (String v : toProcess) {
+						int count = updatedVars.compute(v,
+								(x, y) -> (y == null) ? 1 : y + 1);
+						if (count > 10) {
+							displayComment(
+									"Warning: Recursive update of variable " + v);
+							return updatedVars.keySet();
+						}
 					}
 				}
 			}
-		}
 
-		return updatedVars.keySet();
+			return updatedVars.keySet();
+		}
+		finally {
+			if (turn.isExpired() && !turn.isCancelled()) {
+				log.fine("turn budget of " + budget + " ms exceeded");
+			}
+			Deadline.setCurrent(previous);
+			deadline = previous;
+		}
 	}
 
 	/**
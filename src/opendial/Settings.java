@@ -40,6 +40,7 @@ import javax.sound.sampled.Mixer;
 import opendial.bn.values.Value;
 import opendial.modules.Module;
 import opendial.utils.AudioUtils;
+import opendial.utils.RandomUtils;
 import opendial.utils.StringUtils;
 import opendial.utils.XMLUtils;
 
@@ -66,6 +67,18 @@ public class Settings {
 	/** maximum sampling time (in milliseconds) */
 	public static long maxSamplingTime = 250;
 
+	/**
+	 * tolerance on the estimated error of sampled query results (if positive,
+	 * sampling stops as soon as the tolerance is met, 0 to disable)
+	 */
+	public static double samplingTolerance = 0.0;
+
+	/**
+	 * whether the dialogue state keeps a persistent set of weighted particles
+	 * across turns (instead of drawing new samples at each reduction)
+	 */
+	public static boolean particleFilter = false;
+
 	/** Number of discretisation buckets to convert continuous distributions */
 	public static int discretisationBuckets = 50;
 
@@ -96,6 +109,12 @@ public class Settings {
 	/** Discount factor for forward planning */
 	public double discountFactor;
 
+	/**
+	 * Time budget (in milliseconds) for each update of the dialogue state, including
+	 * the application of the models, the planning and the pruning (0 to disable)
+	 */
+	public long turnBudget = 0;
+
 	/** Recording types */
 	public static enum Recording {
 		NONE, LAST_INPUT, ALL
@@ -211,6 +230,21 @@ public class Settings {
 			else if (key.equalsIgnoreCase("timeout")) {
 				maxSamplingTime = Integer.parseInt(mapping.getProperty(key));
 			}
+			else if (key.equalsIgnoreCase("budget")) {
+				turnBudget = Long.parseLong(mapping.getProperty(key).trim());
+			}
+			else if (key.equalsIgnoreCase("tolerance")) {
+				samplingTolerance = Double.parseDouble(mapping.getProperty(key));
+			}
+			else if (key.equalsIgnoreCase("particles")) {
+				particleFilter = Boolean.parseBoolean(mapping.getProperty(key));
+			}
+			else if (key.equalsIgnoreCase("seed")) {
+				long seed = Long.parseLong(mapping.getProperty(key).trim());
+				if (RandomUtils.getSeed() == null || RandomUtils.getSeed() != seed) {
+					RandomUtils.setSeed(seed);
+				}
+			}
 			else if (key.equalsIgnoreCase("discretisation")) {
 				discretisationBuckets = Integer.parseInt(mapping.getProperty(key));
 			}
@@ -312,6 +346,7 @@ public class Settings {
 		mapping.putAll(params);
 		mapping.setProperty("horizon", "" + horizon);
 		mapping.setProperty("discount", "" + discountFactor);
+		mapping.setProperty("budget", "" + turnBudget);
 		mapping.setProperty("gui", "" + showGUI);
 		mapping.setProperty("speech_user", "" + userSpeech);
 		mapping.setProperty("speech_system", "" + systemSpeech);
@@ -323,7 +358,12 @@ public class Settings {
 		mapping.setProperty("monitor", StringUtils.join(varsToMonitor, ","));
 		mapping.setProperty("samples", "" + nbSamples);
 		mapping.setProperty("timeout", "" + maxSamplingTime);
+		mapping.setProperty("tolerance", "" + samplingTolerance);
+		mapping.setProperty("particles", "" + particleFilter);
 		mapping.setProperty("discretisation", "" + discretisationBuckets);
+		if (RandomUtils.getSeed() != null) {
+			mapping.setProperty("seed", "" + RandomUtils.getSeed());
+		}
 		mapping.setProperty("modules", "" + modules.stream()
 				.map(m -> m.getCanonicalName()).collect(Collectors.joining(",")));
 		mapping.setProperty("connect",
@@ -25,10 +25,12 @@ package opendial.bn;
 import java.util.logging.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +42,7 @@ import opendial.bn.nodes.ActionNode;
 import opendial.bn.nodes.BNode;
 import opendial.bn.nodes.ChanceNode;
 import opendial.bn.nodes.UtilityNode;
+import opendial.utils.StringUtils;
 
 /**
  * Representation of a Bayesian Network augmented with value and action nodes. The
@@ -65,6 +68,17 @@ public class BNetwork {
 	// the action nodes
 	Map<String, ActionNode> actionNodes;
 
+	// modification stamp of the network, renewed by the network itself and by
+	// its nodes whenever they are modified
+	volatile long stamp;
+
+	// modification stamp for the identifiers and relations of the nodes
+	volatile long topologyStamp;
+
+	// topological ordering and ancestor relations, computed for a given version
+	// of the network
+	volatile Topology topology;
+
 	// ===================================
 	// NETWORK CONSTRUCTION
 	// ===================================
@@ -112,6 +126,7 @@ public class BNetwork {
 		}
 		nodes.put(node.getId(), node);
 		node.setNetwork(this);
+		setModified();
 
 		// adding the node in the type-specific collections
 		if (node instanceof ChanceNode) {
@@ -207,6 +222,8 @@ public class BNetwork {
 			else if (node instanceof ActionNode) {
 				actionNodes.remove(nodeId);
 			}
+			node.removeNetwork(this);
+			setModified();
 		}
 
 		return nodes.remove(nodeId);
@@ -255,6 +272,9 @@ public class BNetwork {
 	 */
 	public void reset(BNetwork network) {
 		if (System.identityHashCode(this) != System.identityHashCode(network)) {
+			for (BNode node : nodes.values()) {
+				node.removeNetwork(this);
+			}
 			nodes.clear();
 			chanceNodes.clear();
 			utilityNodes.clear();
@@ -262,6 +282,7 @@ public class BNetwork {
 			for (BNode node : network.getNodes()) {
 				addNode(node);
 			}
+			setModified();
 		}
 
 	}
@@ -412,12 +433,12 @@ public class BNetwork {
 	public <T extends ProbDistribution> Set<String> getNodeIds(Class<T> cls) {
 		Set<String> ids = new HashSet<String>();
 		for (ChanceNode cn : chanceNodes.values()) {
-			if (cls.isInstance(cn.getDistrib())) {
+			if (cls.isInstance(cn.peekDistrib())) {
 				ids.add(cn.getId());
 			}
 		}
 		for (UtilityNode un : utilityNodes.values()) {
-			if (cls.isInstance(un.getFunction())) {
+			if (cls.isInstance(un.peekFunction())) {
 				ids.add(un.getId());
 			}
 		}
@@ -543,14 +564,13 @@ public class BNetwork {
 	 * 
 	 * <p>
 	 * This ordering is used in particular for various inference algorithms relying
-	 * on a topological ordering of the nodes (e.g. variable elimination).
+	 * on a topological ordering of the nodes (e.g. variable elimination). The
+	 * ordering is cached until the next modification of the network.
 	 * 
 	 * @return the ordered list of nodes
 	 */
 	public List<BNode> getSortedNodes() {
-		List<BNode> nodesList = new ArrayList<BNode>(nodes.values());
-		Collections.sort(nodesList);
-		return nodesList;
+		return new ArrayList<BNode>(getTopology().sortedNodes);
 	}
 
 	/**
@@ -560,12 +580,58 @@ public class BNetwork {
 	 */
 	public List<String> getSortedNodesIds() {
 		List<String> sorted = new ArrayList<String>();
-		for (BNode n : getSortedNodes()) {
+		for (BNode n : getTopology().sortedNodes) {
 			sorted.add(n.getId());
 		}
 		return sorted;
 	}
 
+	/**
+	 * Returns the identifiers of all the ancestors of the node in the network.
+	 * 
+	 * @param nodeId the node identifier
+	 * @return the identifiers of its ancestors
+	 */
+	public Set<String> getAncestorIds(String nodeId) {
+		Topology t = getTopology();
+		if (t.ancestors == null) {
+			return new HashSet<String>(getNode(nodeId).getAncestorIds());
+		}
+		return t.getIds(t.ancestors[t.indices.get(nodeId)]);
+	}
+
+	/**
+	 * Returns the identifiers of all the descendants of the node in the network.
+	 * 
+	 * @param nodeId the node identifier
+	 * @return the identifiers of its descendants
+	 */
+	public Set<String> getDescendantIds(String nodeId) {
+		Topology t = getTopology();
+		if (t.descendants == null) {
+			return new HashSet<String>(getNode(nodeId).getDescendantIds());
+		}
+		return t.getIds(t.descendants[t.indices.get(nodeId)]);
+	}
+
+	/**
+	 * Returns true if the first node is an ancestor of the second node in the
+	 * network, and false otherwise.
+	 * 
+	 * @param ancestorId the identifier of the possible ancestor
+	 * @param nodeId the node identifier
+	 * @return true if ancestorId is an ancestor of nodeId, false otherwise
+	 */
+	public boolean isAncestor(String ancestorId, String nodeId) {
+		Topology t = getTopology();
+		if (t.ancestors == null) {
+			return getNode(nodeId).getAncestorIds().contains(ancestorId);
+		}
+		Integer ancestor = t.indices.get(ancestorId);
+		return ancestor != null
+				&& t.ancestors[t.indices.get(nodeId)].get(ancestor);
+	}
+
 	/**
 	 * Returns the subset of nodes that are referred to by the list of identifiers
 	 * 
@@ -649,10 +715,76 @@ public class BNetwork {
 		return false;
 	}
 
+	/**
+	 * Returns the current version of the network. The version changes every time a
+	 * node is added to or removed from the network, and every time one of its nodes
+	 * is modified (e.g. a new distribution or new relations). Two calls returning
+	 * the same version are therefore guaranteed to see the same network.
+	 * Subclasses may extend the version with additional content (such as the
+	 * evidence of a dialogue state).
+	 * 
+	 * @return the version of the network
+	 */
+	public long getVersion() {
+		return getStructureVersion();
+	}
+
+	/**
+	 * Returns the version of the nodes and relations of the network, ignoring any
+	 * additional content covered by {@link #getVersion()}. Compiled structures that
+	 * do not depend on this content (such as junction trees) can be keyed on this
+	 * version.
+	 * 
+	 * @return the version of the network structure
+	 */
+	public long getStructureVersion() {
+		return stamp;
+	}
+
 	// ===================================
 	// UTILITIES
 	// ===================================
 
+	/**
+	 * Renews the modification stamp of the network. This method should be called by
+	 * every operation modifying the structure of the network.
+	 */
+	protected void setModified() {
+		long newStamp = BNode.nextStamp();
+		stamp = newStamp;
+		topologyStamp = newStamp;
+	}
+
+	/**
+	 * Renews the modification stamp of the network after the modification of one
+	 * of its nodes. This method is called by the nodes themselves.
+	 * 
+	 * @param nodeStamp the new modification stamp of the node
+	 * @param structural whether the identifier or relations of the node changed
+	 */
+	public void setModified(long nodeStamp, boolean structural) {
+		stamp = nodeStamp;
+		if (structural) {
+			topologyStamp = nodeStamp;
+		}
+	}
+
+	/**
+	 * Returns the topological information for the current version of the network,
+	 * recomputing it if nodes or relations have been modified since the last call.
+	 * 
+	 * @return the topology of the network
+	 */
+	private Topology getTopology() {
+		long version = topologyStamp;
+		Topology t = topology;
+		if (t == null || t.version != version) {
+			t = new Topology(version, nodes.values());
+			topology = t;
+		}
+		return t;
+	}
+
 	/**
 	 * Returns the hashcode for the network, defined as the hashcode for the node
 	 * identifiers in the network.
@@ -729,4 +861,161 @@ public class BNetwork {
 		return s;
 	}
 
+	/**
+	 * Topological information for a given version of the network: the ordered list
+	 * of nodes (see getSortedNodes()), and the ancestors and descendants of each
+	 * node, encoded as bitsets over the node indices. The ancestors are computed in
+	 * a single pass over the network, and the sorting relies on the same criteria
+	 * as BNode.compareTo, but without traversing the network for each comparison.
+	 */
+	static final class Topology {
+
+		final long version;
+
+		// the nodes, in their original order
+		final BNode[] nodes;
+
+		// the index of each node identifier
+		final Map<String, Integer> indices;
+
+		// the ancestors and descendants of each node (null if the network is not a
+		// proper directed acyclic graph, in which case the nodes are sorted with
+		// BNode.compareTo)
+		final BitSet[] ancestors;
+		final BitSet[] descendants;
+
+		// the sorted nodes
+		final List<BNode> sortedNodes;
+
+		Topology(long version, Collection<BNode> networkNodes) {
+			this.version = version;
+			nodes = networkNodes.toArray(new BNode[networkNodes.size()]);
+			indices = new HashMap<String, Integer>();
+			for (int i = 0; i < nodes.length; i++) {
+				indices.put(nodes[i].getId(), i);
+			}
+			ancestors = computeAncestors();
+			List<BNode> sorted = new ArrayList<BNode>(Arrays.asList(nodes));
+			if (ancestors != null) {
+				descendants = new BitSet[nodes.length];
+				for (int i = 0; i < nodes.length; i++) {
+					descendants[i] = new BitSet(nodes.length);
+				}
+				for (int i = 0; i < nodes.length; i++) {
+					for (int j = ancestors[i].nextSetBit(0); j >= 0; j =
+							ancestors[i].nextSetBit(j + 1)) {
+						descendants[j].set(i);
+					}
+				}
+				Map<BNode, Integer> sortIndices =
+						new IdentityHashMap<BNode, Integer>();
+				for (int i = 0; i < nodes.length; i++) {
+					sortIndices.put(nodes[i], i);
+				}
+				int[] nbAncestors = Arrays.stream(ancestors)
+						.mapToInt(a -> a.cardinality()).toArray();
+				sorted.sort((n1, n2) -> compare(sortIndices.get(n1),
+						sortIndices.get(n2), nbAncestors));
+			}
+			else {
+				descendants = null;
+				Collections.sort(sorted);
+			}
+			sortedNodes = Collections.unmodifiableList(sorted);
+		}
+
+		/**
+		 * Computes the ancestors of each node, processing the nodes in topological
+		 * order (parents before children). Returns null if a node has an input
+		 * node outside the network or if the network contains a cycle.
+		 * 
+		 * @return the ancestors of each node
+		 */
+		private BitSet[] computeAncestors() {
+			BitSet[] result = new BitSet[nodes.length];
+			int[] nbMissingInputs = new int[nodes.length];
+			List<Integer> ready = new ArrayList<Integer>();
+			for (int i = 0; i < nodes.length; i++) {
+				for (String inputId : nodes[i].getInputNodeIds()) {
+					if (!indices.containsKey(inputId)) {
+						return null;
+					}
+				}
+				nbMissingInputs[i] = nodes[i].getInputNodeIds().size();
+				if (nbMissingInputs[i] == 0) {
+					ready.add(i);
+				}
+			}
+			for (int k = 0; k < ready.size(); k++) {
+				int i = ready.get(k);
+				result[i] = new BitSet(nodes.length);
+				for (String inputId : nodes[i].getInputNodeIds()) {
+					int input = indices.get(inputId);
+					result[i].set(input);
+					result[i].or(result[input]);
+				}
+				for (String outputId : nodes[i].getOutputNodesIds()) {
+					Integer output = indices.get(outputId);
+					if (output != null && --nbMissingInputs[output] == 0) {
+						ready.add(output);
+					}
+				}
+			}
+			return (ready.size() == nodes.length) ? result : null;
+		}
+
+		/**
+		 * Compares two nodes with the same criteria as BNode.compareTo.
+		 * 
+		 * @param i the index of the first node
+		 * @param j the index of the second node
+		 * @param nbAncestors the number of ancestors of each node
+		 * @return the comparison result
+		 */
+		private int compare(int i, int j, int[] nbAncestors) {
+			BNode n1 = nodes[i];
+			BNode n2 = nodes[j];
+			boolean isRoot1 = n1.getInputNodeIds().isEmpty();
+			boolean isRoot2 = n2.getInputNodeIds().isEmpty();
+			if (!isRoot2 && isRoot1) {
+				return +100;
+			}
+			else if (isRoot2 && !isRoot1) {
+				return -100;
+			}
+			else if (isRoot1 && isRoot2) {
+				if (n1 instanceof ActionNode && !(n2 instanceof ActionNode)) {
+					return +10;
+				}
+				else if (n2 instanceof ActionNode && !(n1 instanceof ActionNode)) {
+					return -10;
+				}
+				return StringUtils.compare(n1.getId(), n2.getId());
+			}
+			if (ancestors[i].get(j)) {
+				return -10;
+			}
+			if (ancestors[j].get(i)) {
+				return 10;
+			}
+			int sizeDiff = nbAncestors[j] - nbAncestors[i];
+			return (sizeDiff != 0) ? sizeDiff
+					: StringUtils.compare(n1.getId(), n2.getId());
+		}
+
+		/**
+		 * Returns the identifiers of the nodes in the bitset
+		 * 
+		 * @param bits the bitset of node indices
+		 * @return the corresponding identifiers
+		 */
+		Set<String> getIds(BitSet bits) {
+			Set<String> ids = new HashSet<String>();
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+				ids.add(nodes[i].getId());
+			}
+			return ids;
+		}
+	}
+
 }
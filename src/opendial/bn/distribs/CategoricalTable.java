@@ -38,7 +38,7 @@ import opendial.bn.values.DoubleVal;
 import opendial.bn.values.NoneVal;
 import opendial.bn.values.Value;
 import opendial.bn.values.ValueFactory;
-import opendial.inference.approximate.Intervals;
+import opendial.inference.approximate.AliasTable;
 import opendial.utils.InferenceUtils;
 import opendial.utils.MathUtils;
 import opendial.utils.StringUtils;
@@ -69,8 +69,8 @@ public class CategoricalTable implements IndependentDistribution {
 	// the probability table
 	Map<Value, Double> table;
 
-	// probability intervals (used for binary search in sampling)
-	Intervals<Value> intervals;
+	// alias table for sampling (built lazily)
+	AliasTable<Value> aliasTable;
 
 	// ===================================
 	// TABLE CONSTRUCTION
@@ -156,7 +156,7 @@ public class CategoricalTable implements IndependentDistribution {
 		if (changed) {
 			table = InferenceUtils.normalise(newTable);
 		}
-		intervals = null;
+		aliasTable = null;
 		return changed;
 	}
 
@@ -223,18 +223,18 @@ public class CategoricalTable implements IndependentDistribution {
 	 */
 	@Override
 	public Value sample() {
-		if (intervals == null) {
+		if (aliasTable == null) {
 			if (table.isEmpty()) {
-				log.warning("creating intervals for an empty table");
+				log.warning("creating alias table for an empty table");
 			}
-			intervals = new Intervals<Value>(table);
+			aliasTable = new AliasTable<Value>(table);
 		}
-		if (intervals.isEmpty()) {
-			log.warning("interval is empty, table: " + table);
+		if (aliasTable.isEmpty()) {
+			log.warning("alias table is empty, table: " + table);
 			return ValueFactory.none();
 		}
 
-		Value sample = intervals.sample();
+		Value sample = aliasTable.sample();
 		return sample;
 	}
 
@@ -31,7 +31,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import opendial.bn.distribs.ConditionalTable.Builder;
@@ -39,12 +38,19 @@ import opendial.bn.distribs.densityfunctions.KernelDensityFunction;
 import opendial.bn.values.ArrayVal;
 import opendial.bn.values.DoubleVal;
 import opendial.bn.values.Value;
+import opendial.bn.values.ValueFactory;
 import opendial.datastructs.Assignment;
+import opendial.inference.approximate.SampleBatch;
+import opendial.utils.RandomUtils;
 
 /**
  * Distribution defined "empirically" in terms of a set of samples on a collection of
  * random variables. This distribution can then be explicitly converted into a table
  * or a continuous distribution (depending on the variable type).
+ * 
+ * <p>
+ * The samples are stored in columnar form (one array of values per variable), and
+ * the conversion methods aggregate the samples directly over these columns.
  *
  * @author Pierre Lison (plison@ifi.uio.no)
  *
@@ -54,11 +60,8 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	// logger
 	public final static Logger log = Logger.getLogger("OpenDial");
 
-	// list of samples for the empirical distribution
-	protected List<Assignment> samples;
-
-	// random sampler
-	Random sampler;
+	// batch of samples for the empirical distribution
+	protected SampleBatch samples;
 
 	// cache for the discrete and continuous distributions
 	MultivariateTable discreteCache;
@@ -67,6 +70,10 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	// the names of the random variables
 	Set<String> variables;
 
+	// effective sample size and estimated error of the sampling process (if known)
+	double effectiveSampleSize = -1.0;
+	double errorEstimate = Double.NaN;
+
 	// ===================================
 	// CONSTRUCTION METHODS
 	// ===================================
@@ -75,9 +82,8 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 * Constructs an empirical distribution with an empty set of samples
 	 */
 	public EmpiricalDistribution() {
-		this.samples = new ArrayList<Assignment>();
+		this.samples = new SampleBatch();
 		this.variables = new HashSet<String>();
-		sampler = new Random();
 	}
 
 	/**
@@ -92,13 +98,23 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		}
 	}
 
+	/**
+	 * Constructs a new empirical distribution with a batch of samples
+	 * 
+	 * @param samples the batch of samples
+	 */
+	public EmpiricalDistribution(SampleBatch samples) {
+		this.samples = samples;
+		this.variables = new HashSet<String>(samples.getVariables());
+	}
+
 	/**
 	 * Adds a new sample to the distribution
 	 * 
 	 * @param sample the sample to add
 	 */
 	public void addSample(Assignment sample) {
-		samples.add(sample);
+		samples.addSample(sample);
 		discreteCache = null;
 		continuousCache = null;
 		variables.addAll(sample.getVariables());
@@ -113,9 +129,19 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		variables.remove(varId);
 		discreteCache = null;
 		continuousCache = null;
-		for (Assignment s : samples) {
-			s.removePair(varId);
-		}
+		samples.removeVariable(varId);
+	}
+
+	/**
+	 * Sets the statistics of the sampling process that produced the samples.
+	 * 
+	 * @param effectiveSampleSize the effective sample size
+	 * @param errorEstimate the estimated error on the query estimates
+	 */
+	public void setSamplingStatistics(double effectiveSampleSize,
+			double errorEstimate) {
+		this.effectiveSampleSize = effectiveSampleSize;
+		this.errorEstimate = errorEstimate;
 	}
 
 	// ===================================
@@ -132,9 +158,8 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	public Assignment sample() {
 
 		if (!samples.isEmpty()) {
-			int selection = sampler.nextInt(samples.size());
-			Assignment selected = samples.get(selection);
-			return selected;
+			int selection = RandomUtils.nextInt(samples.size());
+			return samples.getAssignment(selection);
 		}
 		else {
 			log.warning("distribution has no samples");
@@ -156,6 +181,19 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 * @return the collection of samples
 	 */
 	public Collection<Assignment> getSamples() {
+		List<Assignment> list = new ArrayList<Assignment>(samples.size());
+		for (int i = 0; i < samples.size(); i++) {
+			list.add(samples.getAssignment(i));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the samples in columnar form.
+	 * 
+	 * @return the batch of samples
+	 */
+	public SampleBatch getSampleBatch() {
 		return samples;
 	}
 
@@ -168,6 +206,26 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		return samples.size();
 	}
 
+	/**
+	 * Returns the effective sample size of the sampling process that produced the
+	 * samples. If unknown, returns the number of samples.
+	 * 
+	 * @return the effective sample size
+	 */
+	public double getEffectiveSampleSize() {
+		return (effectiveSampleSize >= 0) ? effectiveSampleSize : samples.size();
+	}
+
+	/**
+	 * Returns the estimated (standard) error on the query estimates of the sampling
+	 * process that produced the samples. If unknown, returns NaN.
+	 * 
+	 * @return the error estimate
+	 */
+	public double getErrorEstimate() {
+		return errorEstimate;
+	}
+
 	/**
 	 * Returns the possible values for the variables of the distribution.
 	 * 
@@ -175,11 +233,7 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 */
 	@Override
 	public Set<Assignment> getValues() {
-		Set<Assignment> possible = new HashSet<Assignment>();
-		for (Assignment sample : samples) {
-			possible.add(sample);
-		}
-		return possible;
+		return getCounts(variables).keySet();
 	}
 
 	/**
@@ -211,11 +265,10 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		if (discreteCache == null) {
 			MultivariateTable.Builder probs = new MultivariateTable.Builder();
 			double incr = 1.0 / samples.size();
-			for (Assignment sample : samples) {
-				Assignment trimmed = sample.getTrimmed(variables);
-				probs.incrementRow(trimmed, incr);
+			Map<Assignment, Integer> counts = getCounts(variables);
+			for (Assignment a : counts.keySet()) {
+				probs.incrementRow(a, counts.get(a) * incr);
 			}
-
 			discreteCache = probs.build();
 		}
 		return discreteCache;
@@ -250,8 +303,14 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 */
 	@Override
 	public IndependentDistribution getMarginal(String var) {
-		if (sample().getTrimmed(Arrays.asList(var)).containContinuousValues()
-				&& samples.stream().distinct().limit(5).count() == 5) {
+		Value[] column = samples.getColumn(var);
+		if (column == null || samples.isEmpty()) {
+			return createDiscrete(var);
+		}
+		Value val = column[RandomUtils.nextInt(samples.size())];
+		if ((val instanceof DoubleVal || val instanceof ArrayVal)
+				&& Arrays.stream(column, 0, samples.size()).distinct().limit(5)
+						.count() == 5) {
 			return createContinuous(var);
 		}
 		else {
@@ -276,10 +335,26 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		else {
 			Builder builder = new ConditionalTable.Builder(var);
 			double incr = 1.0 / samples.size();
-			for (Assignment sample : samples) {
-				Assignment condition = sample.getTrimmed(condVars);
-				Value val = sample.getValue(var);
-				builder.incrementRow(condition, val, incr);
+			List<String> condList = new ArrayList<String>(condVars);
+			int[] condColumns = samples.getColumnIndices(condList);
+			int headColumn = samples.getColumnIndex(var);
+
+			Map<List<Value>, Map<Value, Integer>> counts =
+					new HashMap<List<Value>, Map<Value, Integer>>();
+			for (int i = 0; i < samples.size(); i++) {
+				Value val =
+						(headColumn >= 0) ? samples.getValue(i, headColumn) : null;
+				counts.computeIfAbsent(samples.getValues(i, condColumns),
+						c -> new HashMap<Value, Integer>())
+						.merge((val != null) ? val : ValueFactory.none(), 1,
+								Integer::sum);
+			}
+			for (List<Value> condValues : counts.keySet()) {
+				Assignment condition = toAssignment(condList, condValues);
+				Map<Value, Integer> headCounts = counts.get(condValues);
+				for (Value val : headCounts.keySet()) {
+					builder.incrementRow(condition, val, headCounts.get(val) * incr);
+				}
 			}
 			builder.normalise();
 			return builder.build();
@@ -298,9 +373,14 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 
 		double incr = 1.0 / samples.size();
 
-		for (Assignment sample : samples) {
-			Value val = sample.getValue(headVar);
-			probs.incrementRow(val, incr);
+		Map<Value, Integer> counts = new HashMap<Value, Integer>();
+		Value[] column = samples.getColumn(headVar);
+		for (int i = 0; i < samples.size(); i++) {
+			Value val = (column != null) ? column[i] : null;
+			counts.merge((val != null) ? val : ValueFactory.none(), 1, Integer::sum);
+		}
+		for (Value val : counts.keySet()) {
+			probs.incrementRow(val, counts.get(val) * incr);
 		}
 
 		return probs.build();
@@ -315,8 +395,9 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	public ContinuousDistribution createContinuous(String headVar) {
 
 		List<double[]> values = new ArrayList<double[]>();
-		for (Assignment a : samples) {
-			Value v = a.getValue(headVar);
+		Value[] column = samples.getColumn(headVar);
+		for (int i = 0; column != null && i < samples.size(); i++) {
+			Value v = column[i];
 			if (v instanceof ArrayVal) {
 				values.add(((ArrayVal) v).getArray());
 			}
@@ -334,47 +415,51 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 
 	/**
 	 * Prunes all samples that contain a value whose relative frequency is below the
-	 * threshold specified as argument. DoubleVal and ArrayVal are ignored.
+	 * threshold specified as argument. DoubleVal and ArrayVal are ignored: since
+	 * the sampled values of continuous variables are nearly always distinct, their
+	 * frequencies would otherwise fall below the threshold and all samples would
+	 * be pruned.
 	 * 
 	 * @param threshold the frequency threshold
 	 */
 	@Override
 	public boolean pruneValues(double threshold) {
 
-		Map<String, Map<Value, Integer>> frequencies =
-				new HashMap<String, Map<Value, Integer>>();
-
-		for (Assignment sample : samples) {
-			for (String var : sample.getVariables()) {
-				Value val = sample.getValue(var);
-				if (!frequencies.containsKey(var)) {
-					frequencies.put(var, new HashMap<Value, Integer>());
-				}
-				Map<Value, Integer> valFreq = frequencies.get(var);
-				if (!valFreq.containsKey(val)) {
-					valFreq.put(val, 1);
+		List<String> vars = samples.getVariables();
+		int minNumber = (int) (samples.size() * threshold);
+		boolean[] pruned = new boolean[samples.size()];
+		int nbPruned = 0;
+		for (String var : vars) {
+			Value[] column = samples.getColumn(var);
+			Map<Value, Integer> frequencies = new HashMap<Value, Integer>();
+			for (int i = 0; i < samples.size(); i++) {
+				if (column[i] != null) {
+					frequencies.merge(column[i], 1, Integer::sum);
 				}
-				else {
-					valFreq.put(val, valFreq.get(val) + 1);
+			}
+			for (int i = 0; i < samples.size(); i++) {
+				Value val = column[i];
+				if (!pruned[i] && val != null && !(val instanceof DoubleVal)
+						&& !(val instanceof ArrayVal)
+						&& frequencies.get(val) < minNumber) {
+					pruned[i] = true;
+					nbPruned++;
 				}
 			}
 		}
 
-		boolean changed = false;
-		int minNumber = (int) (samples.size() * threshold);
-		for (int i = 0; i < samples.size(); i++) {
-			Assignment sample = samples.get(i);
-			for (String var : sample.getVariables()) {
-				if (frequencies.get(var).get(sample.getValue(var)) < minNumber) {
-					samples.remove(i);
-					changed = true;
-					continue;
+		if (nbPruned > 0) {
+			int[] rows = new int[samples.size() - nbPruned];
+			for (int i = 0, j = 0; i < pruned.length; i++) {
+				if (!pruned[i]) {
+					rows[j++] = i;
 				}
 			}
+			samples = samples.select(rows);
 		}
 		discreteCache = null;
 		continuousCache = null;
-		return changed;
+		return nbPruned > 0;
 	}
 
 	/**
@@ -385,18 +470,12 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 */
 	@Override
 	public void modifyVariableId(String oldId, String newId) {
-
 		if (variables.contains(oldId)) {
 			variables.remove(oldId);
 			variables.add(newId);
 		}
 
-		for (Assignment a : samples) {
-			if (a.containsVar(oldId)) {
-				Value v = a.removePair(oldId);
-				a.addPair(newId, v);
-			}
-		}
+		samples.modifyVariableId(oldId, newId);
 
 		if (discreteCache != null) {
 			discreteCache.modifyVariableId(oldId, newId);
@@ -413,7 +492,8 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	 */
 	@Override
 	public EmpiricalDistribution copy() {
-		EmpiricalDistribution copy = new EmpiricalDistribution(samples);
+		EmpiricalDistribution copy = new EmpiricalDistribution(samples.copy());
+		copy.setSamplingStatistics(effectiveSampleSize, errorEstimate);
 		return copy;
 	}
 
@@ -441,8 +521,8 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 	private boolean isContinuous() {
 
 		for (String var : getVariables()) {
-			Assignment a = samples.get(0);
-			if (a.containsVar(var) && a.containContinuousValues()) {
+			Value val = samples.isEmpty() ? null : samples.getValue(0, var);
+			if (val instanceof DoubleVal || val instanceof ArrayVal) {
 				if (getVariables().size() == 1) {
 					return true;
 				}
@@ -454,4 +534,44 @@ public class EmpiricalDistribution implements MultivariateDistribution {
 		return false;
 	}
 
+	/**
+	 * Counts the occurrences of each assignment of values for the given variables in
+	 * the samples.
+	 * 
+	 * @param vars the variables
+	 * @return the number of occurrences of each assignment
+	 */
+	private Map<Assignment, Integer> getCounts(Collection<String> vars) {
+		List<String> varList = new ArrayList<String>(vars);
+		int[] columns = samples.getColumnIndices(varList);
+		Map<List<Value>, Integer> counts = new HashMap<List<Value>, Integer>();
+		for (int i = 0; i < samples.size(); i++) {
+			counts.merge(samples.getValues(i, columns), 1, Integer::sum);
+		}
+		Map<Assignment, Integer> result = new HashMap<Assignment, Integer>();
+		for (List<Value> values : counts.keySet()) {
+			result.merge(toAssignment(varList, values), counts.get(values),
+					Integer::sum);
+		}
+		return result;
+	}
+
+	/**
+	 * Creates the assignment with the given variables and values (skipping the null
+	 * values)
+	 * 
+	 * @param vars the variables
+	 * @param values the values (in the same order)
+	 * @return the corresponding assignment
+	 */
+	private static Assignment toAssignment(List<String> vars, List<Value> values) {
+		Assignment a = new Assignment();
+		for (int j = 0; j < vars.size(); j++) {
+			if (values.get(j) != null) {
+				a.addPair(vars.get(j), values.get(j));
+			}
+		}
+		return a;
+	}
+
 }
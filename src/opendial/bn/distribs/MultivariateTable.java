@@ -29,12 +29,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
 
 import opendial.bn.values.Value;
 import opendial.datastructs.Assignment;
-import opendial.inference.approximate.Intervals;
+import opendial.inference.approximate.AliasTable;
 import opendial.utils.InferenceUtils;
 import opendial.utils.StringUtils;
 
@@ -56,11 +55,8 @@ public class MultivariateTable implements MultivariateDistribution {
 	// the probability table
 	Map<Assignment, Double> table;
 
-	// probability intervals (used for binary search in sampling)
-	Intervals<Assignment> intervals;
-
-	// sampler
-	Random sampler;
+	// alias table for sampling (built lazily)
+	AliasTable<Assignment> aliasTable;
 
 	// ===================================
 	// TABLE CONSTRUCTION
@@ -192,15 +188,15 @@ public class MultivariateTable implements MultivariateDistribution {
 	@Override
 	public Assignment sample() {
 
-		if (intervals == null) {
-			intervals = new Intervals<Assignment>(table);
+		if (aliasTable == null) {
+			aliasTable = new AliasTable<Assignment>(table);
 		}
-		if (intervals.isEmpty()) {
-			log.warning("interval is empty, table: " + table);
+		if (aliasTable.isEmpty()) {
+			log.warning("alias table is empty, table: " + table);
 			return new Assignment();
 		}
 
-		return intervals.sample();
+		return aliasTable.sample();
 	}
 
 	/**
@@ -296,7 +292,7 @@ public class MultivariateTable implements MultivariateDistribution {
 		}
 
 		table = newTable;
-		intervals = null;
+		aliasTable = null;
 	}
 
 	/**
@@ -28,11 +28,14 @@ import java.util.logging.*;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import opendial.bn.values.Value;
 import opendial.datastructs.Assignment;
+import opendial.inference.approximate.SampleBatch;
 import opendial.utils.InferenceUtils;
 import opendial.utils.StringUtils;
 
@@ -94,6 +97,37 @@ public class UtilityTable implements UtilityFunction {
 		variables.addAll(sample.getVariables());
 	}
 
+	/**
+	 * Adds the utility values of the samples in the batch to the estimated table.
+	 * The samples are first aggregated over the columns of the batch, such that the
+	 * table is only updated once per distinct assignment.
+	 * 
+	 * @param samples the batch of samples (with their utilities)
+	 */
+	public void incrementUtils(SampleBatch samples) {
+		List<String> vars = samples.getVariables();
+		int[] columns = samples.getColumnIndices(vars);
+		Map<List<Value>, double[]> sums = new HashMap<List<Value>, double[]>();
+		for (int i = 0; i < samples.size(); i++) {
+			double[] sum = sums.computeIfAbsent(samples.getValues(i, columns),
+					v -> new double[2]);
+			sum[0] += samples.getUtility(i);
+			sum[1]++;
+		}
+		for (List<Value> values : sums.keySet()) {
+			Assignment a = new Assignment();
+			for (int j = 0; j < vars.size(); j++) {
+				if (values.get(j) != null) {
+					a.addPair(vars.get(j), values.get(j));
+				}
+			}
+			double[] sum = sums.get(values);
+			table.computeIfAbsent(a, k -> new UtilityEstimate()).update(sum[0],
+					(int) sum[1]);
+			variables.addAll(a.getVariables());
+		}
+	}
+
 	/**
 	 * Sets the utility associated with a value assignment
 	 * 
@@ -274,6 +308,12 @@ public class UtilityTable implements UtilityFunction {
 		// number of values used for the average
 		int nbValues = 0;
 
+		/**
+		 * Creates a new, empty utility estimate
+		 */
+		public UtilityEstimate() {
+		}
+
 		/**
 		 * Creates a new utility estimate, with a first value
 		 * 
@@ -294,6 +334,17 @@ public class UtilityTable implements UtilityFunction {
 			average = prevUtil + (newValue - prevUtil) / (nbValues);
 		}
 
+		/**
+		 * Updates the current estimate with a number of new values
+		 * 
+		 * @param sum the sum of the new values
+		 * @param nbNewValues the number of new values
+		 */
+		public void update(double sum, int nbNewValues) {
+			nbValues += nbNewValues;
+			average += (sum - nbNewValues * average) / nbValues;
+		}
+
 		/**
 		 * Returns the current (averaged) estimate for the utility
 		 * 
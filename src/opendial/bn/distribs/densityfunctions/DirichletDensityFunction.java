@@ -26,13 +26,12 @@ package opendial.bn.distribs.densityfunctions;
 import java.util.logging.*;
 
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 
 import opendial.utils.MathUtils;
+import opendial.utils.RandomUtils;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -55,10 +54,6 @@ public class DirichletDensityFunction implements DensityFunction {
 	// normalisation factor
 	final double C;
 
-	// random number generator
-	static final Random rng = new Random(Calendar.getInstance().getTimeInMillis()
-			+ Thread.currentThread().getId());
-
 	/**
 	 * Create a new Dirichlet density function with the provided alpha parameters
 	 * 
@@ -187,8 +182,8 @@ public class DirichletDensityFunction implements DensityFunction {
 			double d = ((1 - k) * Math.pow(k, (k / (1 - k))));
 			double u, v, z, e, x;
 			do {
-				u = rng.nextDouble();
-				v = rng.nextDouble();
+				u = RandomUtils.nextDouble();
+				v = RandomUtils.nextDouble();
 				z = -Math.log(u);
 				e = -Math.log(v);
 				x = Math.pow(z, c);
@@ -206,8 +201,8 @@ public class DirichletDensityFunction implements DensityFunction {
 			double cheng = (1 + Math.log(4.5));
 			double u, v, x, y, z, r;
 			do {
-				u = rng.nextDouble();
-				v = rng.nextDouble();
+				u = RandomUtils.nextDouble();
+				v = RandomUtils.nextDouble();
 				y = ((1 / lam) * Math.log(v / (1 - v)));
 				x = (k * Math.exp(y));
 				z = (u * v * v);
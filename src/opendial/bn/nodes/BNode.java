@@ -23,6 +23,7 @@
 
 package opendial.bn.nodes;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -33,6 +34,8 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -71,6 +74,17 @@ public abstract class BNode implements Comparable<BNode> {
 	// Graphical model in which the node is included (can be null)
 	BNetwork network;
 
+	// networks including the node, which are informed of its modifications
+	// (weak references, since nodes are often shared with temporary networks)
+	final List<WeakReference<BNetwork>> networks =
+			new CopyOnWriteArrayList<WeakReference<BNetwork>>();
+
+	// global counter for the modification stamps of nodes and networks
+	private static final AtomicLong stamps = new AtomicLong();
+
+	// modification stamp of the node (changes every time the node is modified)
+	long stamp;
+
 	// ===================================
 	// NODE CONSTRUCTION
 	// ===================================
@@ -210,16 +224,44 @@ public abstract class BNode implements Comparable<BNode> {
 		if (network != null) {
 			network.modifyVariableId(oldNodeId, newNodeId);
 		}
+		setModified(true);
 	}
 
 	/**
 	 * Sets the Bayesian network associated with the node (useful to inform the
-	 * network of change of identifiers).
+	 * network of change of identifiers). The network is also informed of all
+	 * subsequent modifications of the node, until {@link #removeNetwork} is called.
 	 * 
 	 * @param network the Bayesian network to associate to the node.
 	 */
 	public void setNetwork(BNetwork network) {
 		this.network = network;
+		boolean included = false;
+		for (WeakReference<BNetwork> ref : networks) {
+			BNetwork other = ref.get();
+			if (other == null) {
+				networks.remove(ref);
+			}
+			included = included || other == network;
+		}
+		if (!included) {
+			networks.add(new WeakReference<BNetwork>(network));
+		}
+	}
+
+	/**
+	 * Stops informing the network of the modifications of the node (called when
+	 * the node is removed from the network).
+	 * 
+	 * @param network the Bayesian network to detach from the node
+	 */
+	public void removeNetwork(BNetwork network) {
+		for (WeakReference<BNetwork> ref : networks) {
+			BNetwork other = ref.get();
+			if (other == null || other == network) {
+				networks.remove(ref);
+			}
+		}
 	}
 
 	// ===================================
@@ -338,6 +380,7 @@ public abstract class BNode implements Comparable<BNode> {
 	 */
 	public List<BNode> getAncestors() {
 		List<BNode> ancestors = new ArrayList<BNode>();
+		Set<BNode> visited = new HashSet<BNode>();
 
 		Queue<BNode> nodesToProcess = new LinkedList<BNode>();
 		nodesToProcess.add(this);
@@ -347,10 +390,8 @@ public abstract class BNode implements Comparable<BNode> {
 		while (!nodesToProcess.isEmpty()) {
 			BNode currentNode = nodesToProcess.poll();
 			for (BNode ancestorNode : currentNode.getInputNodes()) {
-				if (!ancestors.contains(ancestorNode)) {
+				if (visited.add(ancestorNode)) {
 					ancestors.add(ancestorNode);
-				}
-				if (!nodesToProcess.contains(ancestorNode)) {
 					nodesToProcess.add(ancestorNode);
 				}
 			}
@@ -432,6 +473,7 @@ public abstract class BNode implements Comparable<BNode> {
 	 */
 	public List<BNode> getDescendants() {
 		List<BNode> descendants = new ArrayList<BNode>();
+		Set<BNode> visited = new HashSet<BNode>();
 
 		Queue<BNode> nodesToProcess = new LinkedList<BNode>();
 		nodesToProcess.add(this);
@@ -441,10 +483,8 @@ public abstract class BNode implements Comparable<BNode> {
 		while (!nodesToProcess.isEmpty()) {
 			BNode currentNode = nodesToProcess.poll();
 			for (BNode descendantNode : currentNode.getOutputNodes()) {
-				if (!descendants.contains(descendantNode)) {
+				if (visited.add(descendantNode)) {
 					descendants.add(descendantNode);
-				}
-				if (!nodesToProcess.contains(descendantNode)) {
 					nodesToProcess.add(descendantNode);
 				}
 			}
@@ -755,10 +795,58 @@ public abstract class BNode implements Comparable<BNode> {
 		return nodeId;
 	}
 
+	/**
+	 * Returns the modification stamp of the node. The stamp is drawn from a global
+	 * counter and is renewed every time the node (its relations, values or
+	 * distribution) is modified.
+	 * 
+	 * @return the modification stamp
+	 */
+	public long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Returns a new modification stamp, strictly greater than all previous ones.
+	 * 
+	 * @return the new stamp
+	 */
+	public static long nextStamp() {
+		return stamps.incrementAndGet();
+	}
+
 	// ===================================
 	// PROTECTED AND PRIVATE METHODS
 	// ===================================
 
+	/**
+	 * Renews the modification stamp of the node. This method should be called by
+	 * every operation modifying the content of the node.
+	 */
+	protected void setModified() {
+		setModified(false);
+	}
+
+	/**
+	 * Renews the modification stamp of the node and propagates it to the networks
+	 * including the node.
+	 * 
+	 * @param structural whether the modification affects the identifier or
+	 *            relations of the node (and hence the topology of the networks)
+	 */
+	protected void setModified(boolean structural) {
+		stamp = nextStamp();
+		for (WeakReference<BNetwork> ref : networks) {
+			BNetwork other = ref.get();
+			if (other == null) {
+				networks.remove(ref);
+			}
+			else {
+				other.setModified(stamp, structural);
+			}
+		}
+	}
+
 	/**
 	 * Replaces the identifier for the input and output nodes with the new identifier
 	 * 
@@ -791,6 +879,7 @@ public abstract class BNode implements Comparable<BNode> {
 					+ " already included in the input nodes of " + nodeId);
 		}
 		inputNodes.put(inputNode.getId(), inputNode);
+		setModified(true);
 	}
 
 	/**
@@ -807,11 +896,13 @@ public abstract class BNode implements Comparable<BNode> {
 		}
 		else {
 			outputNodes.put(outputNode.getId(), outputNode);
+			setModified(true);
 		}
 	}
 
 	protected boolean removeInputNode_internal(String inputNodeId) {
 		BNode inputNode = inputNodes.remove(inputNodeId);
+		setModified(true);
 		return (inputNode != null);
 	}
 
@@ -829,6 +920,7 @@ public abstract class BNode implements Comparable<BNode> {
 					"node " + outputNodeId + " is not an output node for " + nodeId);
 		}
 		BNode outputNode = outputNodes.remove(outputNodeId);
+		setModified(true);
 		return (outputNode != null);
 	}
 
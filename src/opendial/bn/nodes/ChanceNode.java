@@ -24,7 +24,6 @@
 package opendial.bn.nodes;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
@@ -58,6 +57,11 @@ public class ChanceNode extends BNode {
 	// a discretisation procedure defined by the distribution
 	protected Set<Value> cachedValues;
 
+	// whether the distribution is shared with copies of the node (in which case
+	// it must be copied before being handed out by getDistrib). The flag and the
+	// copy are guarded by the node's monitor
+	protected boolean sharedDistrib = false;
+
 	// ===================================
 	// NODE CONSTRUCTION
 	// ===================================
@@ -93,11 +97,30 @@ public class ChanceNode extends BNode {
 	 * @param distrib the distribution for the node
 	 */
 	public void setDistrib(ProbDistribution distrib) {
-		this.distrib = distrib;
+		synchronized (this) {
+			this.distrib = distrib;
+			sharedDistrib = false;
+		}
 		if (!distrib.getVariable().equals(nodeId)) {
 			log.warning(nodeId + "  != " + distrib.getVariable());
 		}
 		cachedValues = null;
+		setModified();
+	}
+
+	/**
+	 * Sets a probability distribution derived from the current one without being
+	 * copied (such as a posterior or marginal distribution), and which may thus
+	 * share some of its content with copies of the node. If the current
+	 * distribution is shared, the new one is considered shared as well, and is
+	 * copied before being handed out by getDistrib.
+	 * 
+	 * @param distrib the derived distribution for the node
+	 */
+	public synchronized void setDerivedDistrib(ProbDistribution distrib) {
+		boolean shared = sharedDistrib;
+		setDistrib(distrib);
+		sharedDistrib = shared;
 	}
 
 	/**
@@ -120,7 +143,7 @@ public class ChanceNode extends BNode {
 		// log.fine("changing id from " + this.nodeId + " to " + nodeId);
 		String oldId = nodeId;
 		super.setId(newId);
-		distrib.modifyVariableId(oldId, newId);
+		getDistrib().modifyVariableId(oldId, newId);
 	}
 
 	/**
@@ -129,8 +152,9 @@ public class ChanceNode extends BNode {
 	 * @param threshold the probability threshold
 	 */
 	public void pruneValues(double threshold) {
-		if (distrib.pruneValues(threshold)) {
+		if (getDistrib().pruneValues(threshold)) {
 			cachedValues = null;
+			setModified();
 		}
 	}
 
@@ -270,11 +294,29 @@ public class ChanceNode extends BNode {
 	}
 
 	/**
-	 * Returns the probability distribution attached to the node
+	 * Returns the probability distribution attached to the node. If the
+	 * distribution is currently shared with copies of the node, it is first copied,
+	 * so that the returned distribution can be safely modified in place.
 	 * 
-	 * @return the distribution
+	 * @return the (unshared) distribution
 	 */
-	public ProbDistribution getDistrib() {
+	public synchronized ProbDistribution getDistrib() {
+		if (sharedDistrib) {
+			distrib = distrib.copy();
+			sharedDistrib = false;
+		}
+		return distrib;
+	}
+
+	/**
+	 * Returns the probability distribution attached to the node without copying it,
+	 * even if it is shared with copies of the node. The distribution must therefore
+	 * not be modified. This method is meant for inference algorithms that only read
+	 * the distribution.
+	 * 
+	 * @return the (possibly shared) distribution
+	 */
+	public ProbDistribution peekDistrib() {
 		return distrib;
 	}
 
@@ -307,16 +349,17 @@ public class ChanceNode extends BNode {
 
 	/**
 	 * Returns a copy of the node. Note that only the node content is copied, not its
-	 * connection with other nodes.
+	 * connection with other nodes. The distribution is shared between the node and
+	 * its copy until one of them modifies it (copy-on-write).
 	 *
 	 * @return the copy
 	 */
 	@Override
-	public ChanceNode copy() {
-		ChanceNode cn = new ChanceNode(nodeId, distrib.copy());
-		if (cachedValues != null) {
-			cn.cachedValues = new HashSet<Value>(cachedValues);
-		}
+	public synchronized ChanceNode copy() {
+		ChanceNode cn = new ChanceNode(nodeId, distrib);
+		cn.cachedValues = cachedValues;
+		cn.sharedDistrib = true;
+		sharedDistrib = true;
 		return cn;
 	}
 
@@ -346,7 +389,7 @@ public class ChanceNode extends BNode {
 	@Override
 	protected void modifyVariableId(String oldId, String newId) {
 		super.modifyVariableId(oldId, newId);
-		distrib.modifyVariableId(oldId, newId);
+		getDistrib().modifyVariableId(oldId, newId);
 	}
 
 }
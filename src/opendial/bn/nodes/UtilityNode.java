@@ -49,6 +49,11 @@ public class UtilityNode extends BNode {
 	// the utility distribution
 	protected UtilityFunction distrib;
 
+	// whether the distribution is shared with copies of the node (in which case
+	// it must be copied before being handed out by getFunction). The flag and the
+	// copy are guarded by the node's monitor
+	protected boolean sharedDistrib = false;
+
 	// ===================================
 	// NODE CONSTRUCTION
 	// ===================================
@@ -83,7 +88,8 @@ public class UtilityNode extends BNode {
 	 */
 	public void addUtility(Assignment input, double value) {
 		if (distrib instanceof UtilityTable) {
-			((UtilityTable) distrib).setUtil(input, value);
+			((UtilityTable) getFunction()).setUtil(input, value);
+			setModified();
 		}
 		else {
 			log.warning("utility distribution is not a table, cannot add value");
@@ -97,7 +103,8 @@ public class UtilityNode extends BNode {
 	 */
 	public void removeUtility(Assignment input) {
 		if (distrib instanceof UtilityTable) {
-			((UtilityTable) distrib).removeUtil(input);
+			((UtilityTable) getFunction()).removeUtil(input);
+			setModified();
 		}
 		else {
 			log.warning("utility distribution is not a table, cannot remove value");
@@ -105,13 +112,17 @@ public class UtilityNode extends BNode {
 	}
 
 	public void setDistrib(UtilityFunction distrib) {
-		this.distrib = distrib;
+		synchronized (this) {
+			this.distrib = distrib;
+			sharedDistrib = false;
+		}
+		setModified();
 	}
 
 	@Override
 	public void setId(String newId) {
 		super.setId(newId);
-		distrib.modifyVariableId(this.nodeId, newId);
+		getFunction().modifyVariableId(this.nodeId, newId);
 	}
 
 	// ===================================
@@ -140,11 +151,27 @@ public class UtilityNode extends BNode {
 	}
 
 	/**
-	 * Returns the utility distribution
+	 * Returns the utility distribution. If the distribution is currently shared
+	 * with copies of the node, it is first copied, so that the returned
+	 * distribution can be safely modified in place.
+	 * 
+	 * @return the (unshared) utility distribution
+	 */
+	public synchronized UtilityFunction getFunction() {
+		if (sharedDistrib) {
+			distrib = distrib.copy();
+			sharedDistrib = false;
+		}
+		return distrib;
+	}
+
+	/**
+	 * Returns the utility distribution without copying it, even if it is shared
+	 * with copies of the node. The distribution must therefore not be modified.
 	 * 
-	 * @return the utility distribution
+	 * @return the (possibly shared) utility distribution
 	 */
-	public UtilityFunction getFunction() {
+	public UtilityFunction peekFunction() {
 		return distrib;
 	}
 
@@ -172,13 +199,16 @@ public class UtilityNode extends BNode {
 
 	/**
 	 * Returns a copy of the utility node. Note that only the node content is copied,
-	 * not its connection with other nodes.
+	 * not its connection with other nodes. The utility distribution is shared
+	 * between the node and its copy until one of them modifies it.
 	 * 
 	 * @return the copy
 	 */
 	@Override
-	public UtilityNode copy() {
-		UtilityNode copy = new UtilityNode(nodeId, distrib.copy());
+	public synchronized UtilityNode copy() {
+		UtilityNode copy = new UtilityNode(nodeId, distrib);
+		copy.sharedDistrib = true;
+		sharedDistrib = true;
 		return copy;
 	}
 
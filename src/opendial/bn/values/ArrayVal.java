@@ -154,7 +154,7 @@ public final class ArrayVal implements Value {
 	 */
 	@Override
 	public List<Value> getSubValues() {
-		return Arrays.stream(array).mapToObj(d -> new DoubleVal(d))
+		return Arrays.stream(array).mapToObj(d -> ValueFactory.create(d))
 				.collect(Collectors.toList());
 	}
 
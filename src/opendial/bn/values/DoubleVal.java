@@ -73,7 +73,7 @@ public final class DoubleVal implements Value {
 	 */
 	@Override
 	public boolean equals(Object o) {
-		boolean result = (o instanceof DoubleVal
+		boolean result = o == this || (o instanceof DoubleVal
 				&& Math.abs(((DoubleVal) o).getDouble() - getDouble()) < 0.000001);
 		return result;
 	}
@@ -124,7 +124,7 @@ public final class DoubleVal implements Value {
 	@Override
 	public Value concatenate(Value v) {
 		if (v instanceof DoubleVal) {
-			return new DoubleVal(d + ((DoubleVal) v).getDouble());
+			return ValueFactory.create(d + ((DoubleVal) v).getDouble());
 		}
 		else if (v instanceof StringVal) {
 			return ValueFactory.create(toString() + " " + v.toString());
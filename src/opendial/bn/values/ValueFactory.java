@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,6 +49,31 @@ public class ValueFactory {
 	// none value (no need to recreate one everytime)
 	static final NoneVal noneValue = new NoneVal();
 
+	// canonical boolean values
+	static final BooleanVal trueValue = new BooleanVal(true);
+	static final BooleanVal falseValue = new BooleanVal(false);
+
+	// range of the integer values that are interned as canonical double values
+	static final int MIN_INTERNED_INT = -128;
+	static final int MAX_INTERNED_INT = 1024;
+
+	// canonical double values for the integers in the above range
+	static final DoubleVal[] intValues =
+			new DoubleVal[MAX_INTERNED_INT - MIN_INTERNED_INT + 1];
+
+	static {
+		for (int i = 0; i < intValues.length; i++) {
+			intValues[i] = new DoubleVal(MIN_INTERNED_INT + i);
+		}
+	}
+
+	// maximum number of strings in the parse cache (which is cleared when full)
+	public static int MAX_CACHED_VALUES = 10000;
+
+	// cache of the (immutable) values parsed from their string representation
+	static final ConcurrentHashMap<String, Value> parseCache =
+			new ConcurrentHashMap<String, Value>();
+
 	// pattern to find a double value
 	public static Pattern doublePattern =
 			Pattern.compile("[-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?");
@@ -67,6 +93,11 @@ public class ValueFactory {
 	 * contains a numeric value, "true", "false", "None", or opening and closing
 	 * brackets, convert it to the appropriate values. Else, returns a string value.
 	 * 
+	 * <p>
+	 * The string, boolean and double values are immutable, and are therefore
+	 * stored in a (bounded) parse cache, such that the same string always yields
+	 * the same canonical value and is only parsed once.
+	 * 
 	 * @param str the string representation for the value
 	 * @return the resulting value
 	 */
@@ -75,16 +106,68 @@ public class ValueFactory {
 		if (str == null) {
 			return noneValue;
 		}
+		Value value = parseCache.get(str);
+		if (value != null) {
+			return value;
+		}
+		value = parse(str);
+		if (value instanceof StringVal || value instanceof DoubleVal
+				|| value instanceof BooleanVal) {
+			if (parseCache.size() >= MAX_CACHED_VALUES) {
+				parseCache.clear();
+			}
+			Value existing = parseCache.putIfAbsent(str, value);
+			return (existing != null) ? existing : value;
+		}
+		return value;
+	}
+
+	/**
+	 * Returns a double value given the double. Integers between -128 and 1024 are
+	 * mapped to canonical instances.
+	 * 
+	 * @param d the double
+	 * @return the value
+	 */
+	public static DoubleVal create(double d) {
+		if (d >= MIN_INTERNED_INT && d <= MAX_INTERNED_INT && d == Math.rint(d)
+				&& (d != 0.0 || 1 / d > 0)) {
+			return intValues[(int) d - MIN_INTERNED_INT];
+		}
+		return new DoubleVal(d);
+	}
+
+	public static ArrayVal create(double[] d) {
+		return new ArrayVal(d);
+	}
+
+	/**
+	 * Returns the (canonical) boolean value given the boolean
+	 * 
+	 * @param b the boolean
+	 * @return the double
+	 */
+	public static BooleanVal create(boolean b) {
+		return (b) ? trueValue : falseValue;
+	}
+
+	/**
+	 * Parses the string representation of a value.
+	 * 
+	 * @param str the string representation for the value
+	 * @return the resulting value
+	 */
+	private static Value parse(String str) {
 
 		Matcher m = doublePattern.matcher(str);
 		if (m.matches()) {
-			return new DoubleVal(Double.parseDouble(str));
+			return create(Double.parseDouble(str));
 		}
 		else if (str.equalsIgnoreCase("true")) {
-			return new BooleanVal(true);
+			return trueValue;
 		}
 		else if (str.equalsIgnoreCase("false")) {
-			return new BooleanVal(false);
+			return falseValue;
 		}
 		else if (str.equalsIgnoreCase("None")) {
 			return none();
@@ -123,30 +206,6 @@ public class ValueFactory {
 		return new StringVal(str);
 	}
 
-	/**
-	 * Returns a double value given the double
-	 * 
-	 * @param d the double
-	 * @return the value
-	 */
-	public static DoubleVal create(double d) {
-		return new DoubleVal(d);
-	}
-
-	public static ArrayVal create(double[] d) {
-		return new ArrayVal(d);
-	}
-
-	/**
-	 * Returns the boolean value given the boolean
-	 * 
-	 * @param b the boolean
-	 * @return the double
-	 */
-	public static BooleanVal create(boolean b) {
-		return new BooleanVal(b);
-	}
-
 	/**
 	 * Returns the set value given the values
 	 * 
@@ -24,16 +24,22 @@
 package opendial.datastructs;
 
 import java.util.logging.*;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Set;
-import java.util.Stack;
+import java.util.function.IntPredicate;
 import java.util.function.Predicate;
 
 import opendial.bn.values.ArrayVal;
@@ -51,9 +57,20 @@ import org.w3c.dom.Element;
  * conjunction of (variable,value) pairs.
  * 
  * <p>
- * Technically, the assignment is encoded as a map between the variable identifiers
- * and their associated value. This class offers various methods are provided for
- * creating, comparing and manipulating such assignments.
+ * Technically, the variable identifiers are interned in the {@link SymbolTable},
+ * and the assignment is encoded as an array of variable integers (sorted in
+ * increasing order) along with the array of their associated values. Lookups are
+ * linear for small assignments and binary otherwise, while the comparison and
+ * combination of assignments are merges of the two sorted arrays. This class
+ * offers various methods are provided for creating, comparing and manipulating
+ * such assignments.
+ * 
+ * <p>
+ * The arrays are shared (copy-on-write) between an assignment and its copies, as
+ * well as with the assignments derived from it without modification (such as a
+ * trimmed assignment that retains all variables, or a merge with an assignment
+ * that adds no new pair). The arrays are only copied when one of the assignments
+ * sharing them is modified, which makes defensive copies essentially free.
  *
  * @author Pierre Lison (plison@ifi.uio.no)
  *
@@ -63,8 +80,25 @@ public class Assignment {
 	// logger
 	final static Logger log = Logger.getLogger("OpenDial");
 
-	// the hashmap encoding the assignment
-	protected final Map<String, Value> map;
+	// size below which the variables are searched linearly
+	static final int LINEAR_SEARCH = 16;
+
+	// shared arrays for empty assignments
+	static final int[] EMPTY_VARS = new int[0];
+	static final Value[] EMPTY_VALUES = new Value[0];
+
+	// the integers (from the symbol table) of the variables, in increasing order
+	int[] vars;
+
+	// the values associated with the variables (in the same order)
+	Value[] values;
+
+	// the number of pairs in the assignment
+	int size;
+
+	// whether the arrays may be shared with another assignment (in which case
+	// they must be copied before any modification)
+	boolean shared = false;
 
 	// the cached value for the hash
 	int cachedHash = 0;
@@ -77,7 +111,8 @@ public class Assignment {
 	 * Creates a new, empty assignment
 	 */
 	public Assignment() {
-		map = new HashMap<String, Value>();
+		vars = EMPTY_VARS;
+		values = EMPTY_VALUES;
 	}
 
 	/**
@@ -86,7 +121,8 @@ public class Assignment {
 	 * @param a the assignment to copy
 	 */
 	public Assignment(Assignment a) {
-		map = new HashMap<String, Value>(a.map);
+		this();
+		share(a);
 	}
 
 	/**
@@ -96,8 +132,9 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public Assignment(String var, Value val) {
-		map = new HashMap<String, Value>();
-		map.put(var, val);
+		vars = new int[] { SymbolTable.intern(var) };
+		values = new Value[] { val };
+		size = 1;
 	}
 
 	/**
@@ -107,8 +144,7 @@ public class Assignment {
 	 * @param val the value (as a string)
 	 */
 	public Assignment(String var, String val) {
-		this();
-		map.put(var, ValueFactory.create(val));
+		this(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -118,8 +154,7 @@ public class Assignment {
 	 * @param val the value (as a double)
 	 */
 	public Assignment(String var, double val) {
-		this();
-		map.put(var, ValueFactory.create(val));
+		this(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -129,8 +164,7 @@ public class Assignment {
 	 * @param val the value (as a boolean)
 	 */
 	public Assignment(String var, boolean val) {
-		this();
-		map.put(var, ValueFactory.create(val));
+		this(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -140,8 +174,7 @@ public class Assignment {
 	 * @param val the value (as a double array)
 	 */
 	public Assignment(String var, double[] val) {
-		this();
-		map.put(var, ValueFactory.create(val));
+		this(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -195,8 +228,7 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public Assignment(Assignment ass, String var, Value val) {
-		this();
-		addAssignment(ass);
+		this(ass);
 		addPair(var, val);
 	}
 
@@ -209,8 +241,7 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public Assignment(Assignment ass, String var, String val) {
-		this();
-		addAssignment(ass);
+		this(ass);
 		addPair(var, val);
 	}
 
@@ -223,8 +254,7 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public Assignment(Assignment ass, String var, double val) {
-		this();
-		addAssignment(ass);
+		this(ass);
 		addPair(var, val);
 	}
 
@@ -237,8 +267,7 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public Assignment(Assignment ass, String var, boolean val) {
-		this();
-		addAssignment(ass);
+		this(ass);
 		addPair(var, val);
 	}
 
@@ -263,9 +292,8 @@ public class Assignment {
 	 * @param val2 value of second variable
 	 */
 	public Assignment(String var1, Value val1, String var2, Value val2) {
-		this();
-		map.put(var1, val1);
-		map.put(var2, val2);
+		this(var1, val1);
+		addPair(var2, val2);
 	}
 
 	/**
@@ -326,6 +354,7 @@ public class Assignment {
 		return a;
 	}
 
+
 	// ===================================
 	// SETTERS
 	// ===================================
@@ -337,8 +366,7 @@ public class Assignment {
 	 * @param val the value
 	 */
 	public void addPair(String var, Value val) {
-		map.put(var, val);
-		cachedHash = 0;
+		put(SymbolTable.intern(var), val);
 	}
 
 	/**
@@ -348,8 +376,7 @@ public class Assignment {
 	 * @param val the value, as a string
 	 */
 	public void addPair(String var, String val) {
-		map.put(var, ValueFactory.create(val));
-		cachedHash = 0;
+		addPair(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -359,8 +386,7 @@ public class Assignment {
 	 * @param val the value, as a double
 	 */
 	public void addPair(String var, double val) {
-		map.put(var, ValueFactory.create(val));
-		cachedHash = 0;
+		addPair(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -370,8 +396,7 @@ public class Assignment {
 	 * @param val the value, as a boolean
 	 */
 	public void addPair(String var, boolean val) {
-		map.put(var, ValueFactory.create(val));
-		cachedHash = 0;
+		addPair(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -381,8 +406,7 @@ public class Assignment {
 	 * @param val the value, as a double array
 	 */
 	public void addPair(String var, double[] val) {
-		map.put(var, ValueFactory.create(val));
-		cachedHash = 0;
+		addPair(var, ValueFactory.create(val));
 	}
 
 	/**
@@ -408,18 +432,48 @@ public class Assignment {
 	 * @param pairs the pairs to add
 	 */
 	public void addPairs(Map<String, Value> pairs) {
-		map.putAll(pairs);
-		cachedHash = 0;
+		for (Entry<String, Value> pair : pairs.entrySet()) {
+			put(SymbolTable.intern(pair.getKey()), pair.getValue());
+		}
 	}
 
 	/**
 	 * Add a new set of pairs defined in the assignment given as argument (i.e. merge
-	 * the given assignment into the present one).
+	 * the given assignment into the present one). The two sorted arrays are merged
+	 * in a single pass.
 	 * 
 	 * @param assignment the assignment to merge
 	 */
 	public void addAssignment(Assignment assignment) {
-		addPairs(assignment.getPairs());
+		if (assignment.size == 0 || contains(assignment)) {
+			return;
+		}
+		else if (size == 0) {
+			share(assignment);
+			return;
+		}
+		int[] newVars = new int[size + assignment.size];
+		Value[] newValues = new Value[size + assignment.size];
+		int i = 0, j = 0, k = 0;
+		while (i < size || j < assignment.size) {
+			if (j == assignment.size
+					|| (i < size && vars[i] < assignment.vars[j])) {
+				newVars[k] = vars[i];
+				newValues[k++] = values[i++];
+			}
+			else {
+				if (i < size && vars[i] == assignment.vars[j]) {
+					i++;
+				}
+				newVars[k] = assignment.vars[j];
+				newValues[k++] = assignment.values[j++];
+			}
+		}
+		vars = newVars;
+		values = newValues;
+		size = k;
+		shared = false;
+		cachedHash = 0;
 	}
 
 	/**
@@ -429,8 +483,12 @@ public class Assignment {
 	 * @return the removed value
 	 */
 	public Value removePair(String var) {
-		Value v = map.remove(var);
-		cachedHash = 0;
+		int index = indexOf(var);
+		if (index < 0) {
+			return null;
+		}
+		Value v = values[index];
+		removeAt(index);
 		return v;
 	}
 
@@ -440,8 +498,7 @@ public class Assignment {
 	 * @param vars the variable labels to remove
 	 */
 	public void removePairs(Collection<String> vars) {
-		vars.stream().forEach(v -> map.remove(v));
-		cachedHash = 0;
+		vars.stream().forEach(v -> removePair(v));
 	}
 
 	/**
@@ -451,19 +508,14 @@ public class Assignment {
 	 * @return the resulting assignment
 	 */
 	public Assignment removeValues(Value toRemove) {
-		Assignment a = new Assignment();
-		for (String var : map.keySet()) {
-			Value v = map.get(var);
-			if (!v.equals(toRemove)) {
-				a.addPair(var, v);
-			}
-		}
-		cachedHash = 0;
-		return a;
+		return select(i -> !values[i].equals(toRemove));
 	}
 
 	public void clear() {
-		map.clear();
+		vars = EMPTY_VARS;
+		values = EMPTY_VALUES;
+		size = 0;
+		shared = false;
 		cachedHash = 0;
 	}
 
@@ -474,8 +526,7 @@ public class Assignment {
 	 * @param variables the variables to consider
 	 */
 	public void trim(Collection<String> variables) {
-		map.keySet().retainAll(variables);
-		cachedHash = 0;
+		filter(i -> variables.contains(SymbolTable.getName(vars[i])));
 	}
 
 	/**
@@ -485,8 +536,7 @@ public class Assignment {
 	 * @param variables the variables to consider
 	 */
 	public void removeAll(Collection<String> variables) {
-		map.keySet().removeAll(variables);
-		cachedHash = 0;
+		filter(i -> !variables.contains(SymbolTable.getName(vars[i])));
 	}
 
 	// ===================================
@@ -501,10 +551,11 @@ public class Assignment {
 	 */
 	public Assignment intersect(Assignment assign) {
 		Assignment intersect = new Assignment();
-		for (String var : map.keySet()) {
-			Value v = map.get(var);
-			if (assign.getValue(var).equals(v)) {
-				intersect.addPair(var, v);
+		for (int i = 0; i < size; i++) {
+			int index = assign.indexOf(vars[i]);
+			Value v = (index >= 0) ? assign.values[index] : ValueFactory.none();
+			if (v.equals(values[i])) {
+				intersect.append(vars[i], values[i]);
 			}
 		}
 		return intersect;
@@ -517,15 +568,12 @@ public class Assignment {
 	 */
 	public Assignment removePrimes() {
 		Assignment a = new Assignment();
-		for (String var : map.keySet()) {
-			if (!map.containsKey(var + "'")) {
-				boolean hasPrime = (var.charAt(var.length() - 1) == '\'');
-				String newVar =
-						(hasPrime) ? var.substring(0, var.length() - 1) : var;
-				a.addPair(newVar, map.get(var));
+		a.ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			if (indexOf(SymbolTable.lookupPrimed(vars[i])) < 0) {
+				a.put(SymbolTable.removePrime(vars[i]), values[i]);
 			}
 		}
-
 		return a;
 	}
 
@@ -536,16 +584,7 @@ public class Assignment {
 	 * @param predicate the predicate to apply for the filtering
 	 */
 	public void filterValues(Predicate<Value> predicate) {
-		Stack<String> toRemove = new Stack<String>();
-		for (String var : map.keySet()) {
-			if (!predicate.test(map.get(var))) {
-				toRemove.add(var);
-			}
-		}
-		while (!toRemove.isEmpty()) {
-			map.remove(toRemove.pop());
-		}
-		cachedHash = 0;
+		filter(i -> predicate.test(values[i]));
 	}
 
 	/**
@@ -566,8 +605,10 @@ public class Assignment {
 
 	public Assignment addPrimes() {
 		Assignment a = new Assignment();
-		map.entrySet().stream()
-				.forEach(e -> a.addPair(e.getKey() + "'", e.getValue()));
+		a.ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			a.put(SymbolTable.addPrime(vars[i]), values[i]);
+		}
 		return a;
 	}
 
@@ -577,16 +618,20 @@ public class Assignment {
 	 * @return true if the assignment is empty, else false.
 	 */
 	public boolean isEmpty() {
-		return map.isEmpty();
+		return size == 0;
 	}
 
 	/**
-	 * Returns the pairs of the assignment
+	 * Returns the pairs of the assignment (as a new map)
 	 * 
 	 * @return all pairs
 	 */
 	public Map<String, Value> getPairs() {
-		return map;
+		Map<String, Value> pairs = new LinkedHashMap<String, Value>();
+		for (int i = 0; i < size; i++) {
+			pairs.put(SymbolTable.getName(vars[i]), values[i]);
+		}
+		return pairs;
 	}
 
 	/**
@@ -595,7 +640,7 @@ public class Assignment {
 	 * @return the number of pairs
 	 */
 	public int size() {
-		return map.size();
+		return size;
 	}
 
 	/**
@@ -606,7 +651,7 @@ public class Assignment {
 	 * @return true if the variable is included, false otherwise
 	 */
 	public boolean containsVar(String var) {
-		return map.containsKey(var);
+		return indexOf(var) >= 0;
 	}
 
 	/**
@@ -617,8 +662,8 @@ public class Assignment {
 	 * @return true if the assignment contains the pair, false otherwise
 	 */
 	public boolean containsPair(String variable, Value value) {
-		Value v = map.get(variable);
-		return v != null && v.equals(value);
+		int index = indexOf(variable);
+		return index >= 0 && values[index] != null && values[index].equals(value);
 	}
 
 	/**
@@ -629,7 +674,12 @@ public class Assignment {
 	 * @return true if all variables are included, false otherwise
 	 */
 	public boolean containsVars(Collection<String> vars) {
-		return map.keySet().containsAll(vars);
+		for (String var : vars) {
+			if (indexOf(var) < 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -640,7 +690,20 @@ public class Assignment {
 	 * @return true if at least one variable are included, false otherwise
 	 */
 	public boolean containsOneVar(Set<String> vars) {
-		return !Collections.disjoint(map.keySet(), vars);
+		if (vars.size() < size) {
+			for (String var : vars) {
+				if (indexOf(var) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (vars.contains(SymbolTable.getName(this.vars[i]))) {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
@@ -651,18 +714,7 @@ public class Assignment {
 	 * @return a new, trimmed assignment
 	 */
 	public Assignment getTrimmed(Collection<String> variables) {
-		Assignment a = new Assignment();
-		int trimmedHash = 0;
-		for (Entry<String, Value> e : map.entrySet()) {
-			String var = e.getKey();
-			if (variables.contains(var)) {
-				Value val = e.getValue();
-				a.addPair(var, val);
-				trimmedHash += var.hashCode() ^ val.hashCode();
-			}
-		}
-		a.cachedHash = trimmedHash;
-		return a;
+		return select(i -> variables.contains(SymbolTable.getName(vars[i])));
 	}
 
 	/**
@@ -673,18 +725,7 @@ public class Assignment {
 	 * @return a new, pruned assignment
 	 */
 	public Assignment getPruned(Collection<String> variables) {
-		Assignment a = new Assignment();
-		int trimmedHash = 0;
-		for (Entry<String, Value> e : map.entrySet()) {
-			String var = e.getKey();
-			if (!variables.contains(var)) {
-				Value val = e.getValue();
-				a.addPair(var, val);
-				trimmedHash += var.hashCode() ^ val.hashCode();
-			}
-		}
-		a.cachedHash = trimmedHash;
-		return a;
+		return select(i -> !variables.contains(SymbolTable.getName(vars[i])));
 	}
 
 	/**
@@ -704,18 +745,16 @@ public class Assignment {
 	 * @return the copy
 	 */
 	public Assignment copy() {
-		Assignment c = new Assignment(this);
-		c.cachedHash = cachedHash;
-		return c;
+		return new Assignment(this);
 	}
 
 	/**
-	 * Returns the list of variables used
+	 * Returns the set of variables used (as a view backed by the assignment)
 	 * 
-	 * @return variables list
+	 * @return variables set
 	 */
 	public Set<String> getVariables() {
-		return map.keySet();
+		return new VariableSet();
 	}
 
 	/**
@@ -724,7 +763,13 @@ public class Assignment {
 	 * @return the entry set
 	 */
 	public Set<Entry<String, Value>> getEntrySet() {
-		return map.entrySet();
+		Set<Entry<String, Value>> entries =
+				new LinkedHashSet<Entry<String, Value>>(size);
+		for (int i = 0; i < size; i++) {
+			entries.add(new AbstractMap.SimpleImmutableEntry<String, Value>(
+					SymbolTable.getName(vars[i]), values[i]));
+		}
+		return entries;
 	}
 
 	/**
@@ -735,7 +780,8 @@ public class Assignment {
 	 * @return the associated value
 	 */
 	public Value getValue(String var) {
-		return map.getOrDefault(var, ValueFactory.none());
+		int index = indexOf(var);
+		return (index >= 0) ? values[index] : ValueFactory.none();
 	}
 
 	/**
@@ -744,7 +790,8 @@ public class Assignment {
 	 * @return the collection of values
 	 */
 	public Collection<Value> getValues() {
-		return map.values();
+		return Collections.unmodifiableList(
+				Arrays.asList(Arrays.copyOf(values, size)));
 	}
 
 	/**
@@ -755,10 +802,9 @@ public class Assignment {
 	 * @return the corresponding values
 	 */
 	public List<Value> getValues(List<String> subsetVars) {
-		List<Value> vals = new ArrayList<Value>();
+		List<Value> vals = new ArrayList<Value>(subsetVars.size());
 		for (String var : subsetVars) {
-			Value v = map.getOrDefault(var, ValueFactory.none());
-			vals.add(v);
+			vals.add(getValue(var));
 		}
 		return vals;
 	}
@@ -771,20 +817,16 @@ public class Assignment {
 	 * @return true if a is contained in assignment, false otherwise
 	 */
 	public boolean contains(Assignment a) {
-		for (String key : a.getVariables()) {
-			if (map.containsKey(key)) {
-				Value val = a.getValue(key);
-				Value val2 = map.get(key);
-				if (val2 == null) {
-					if (val != null) {
-						return false;
-					}
-				}
-				else if (!val2.equals(val)) {
-					return false;
-				}
+		if (a.size > size) {
+			return false;
+		}
+		int i = 0;
+		for (int j = 0; j < a.size; j++) {
+			while (i < size && vars[i] < a.vars[j]) {
+				i++;
 			}
-			else {
+			if (i == size || vars[i] != a.vars[j]
+					|| !Objects.equals(values[i], a.values[j])) {
 				return false;
 			}
 		}
@@ -799,18 +841,21 @@ public class Assignment {
 	 * @return true if assignments are consistent, false otherwise
 	 */
 	public boolean consistentWith(Assignment a) {
-
-		Map<String, Value> firstMap = (a.size() < map.size()) ? a.map : map;
-		Map<String, Value> secondMap = (a.size() < map.size()) ? map : a.map;
-
-		for (String evidenceVar : firstMap.keySet()) {
-			Value v2 = secondMap.get(evidenceVar);
-			if (v2 == null) {
-				continue;
+		int i = 0, j = 0;
+		while (i < size && j < a.size) {
+			if (vars[i] < a.vars[j]) {
+				i++;
 			}
-			Value v1 = firstMap.get(evidenceVar);
-			if (!v1.equals(v2)) {
-				return false;
+			else if (vars[i] > a.vars[j]) {
+				j++;
+			}
+			else {
+				if (values[i] != null && a.values[j] != null
+						&& !values[i].equals(a.values[j])) {
+					return false;
+				}
+				i++;
+				j++;
 			}
 		}
 		return true;
@@ -827,9 +872,9 @@ public class Assignment {
 	 */
 	public boolean consistentWith(Assignment a, Set<String> subvars) {
 		for (String subvar : subvars) {
-			Value v2 = map.get(subvar);
+			int index = indexOf(subvar);
 			Value v1 = a.getValue(subvar);
-			if (v1 == null || v2 == null || !v1.equals(v2)) {
+			if (index < 0 || values[index] == null || !v1.equals(values[index])) {
 				return false;
 			}
 		}
@@ -843,8 +888,8 @@ public class Assignment {
 	 * @return true if all variables have none values, false otherwise
 	 */
 	public boolean isDefault() {
-		for (String var : map.keySet()) {
-			if (!map.get(var).equals(ValueFactory.none())) {
+		for (int i = 0; i < size; i++) {
+			if (!values[i].equals(ValueFactory.none())) {
 				return false;
 			}
 		}
@@ -852,9 +897,8 @@ public class Assignment {
 	}
 
 	public boolean containContinuousValues() {
-		for (String var : map.keySet()) {
-			if (map.get(var) instanceof DoubleVal
-					|| map.get(var) instanceof ArrayVal) {
+		for (int i = 0; i < size; i++) {
+			if (values[i] instanceof DoubleVal || values[i] instanceof ArrayVal) {
 				return true;
 			}
 		}
@@ -867,14 +911,19 @@ public class Assignment {
 
 	/**
 	 * Returns the hashcode associated with the assignment. The hashcode is
-	 * calculated from the hashmap corresponding to the assignment.
+	 * calculated in the same way as for a map between the variable labels and
+	 * their values.
 	 * 
 	 * @return the corresponding hashcode
 	 */
 	@Override
 	public int hashCode() {
 		if (cachedHash == 0) {
-			cachedHash = map.hashCode();
+			int hash = 0;
+			for (int i = 0; i < size; i++) {
+				hash += getHash(i);
+			}
+			cachedHash = hash;
 		}
 		return cachedHash;
 	}
@@ -888,8 +937,22 @@ public class Assignment {
 	 */
 	@Override
 	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
 		if (o instanceof Assignment) {
-			return map.equals(((Assignment) o).map);
+			Assignment a = (Assignment) o;
+			if (a.size != size || (cachedHash != 0 && a.cachedHash != 0
+					&& cachedHash != a.cachedHash)) {
+				return false;
+			}
+			for (int i = 0; i < size; i++) {
+				if (vars[i] != a.vars[i]
+						|| !Objects.equals(values[i], a.values[i])) {
+					return false;
+				}
+			}
+			return true;
 		}
 		return false;
 	}
@@ -898,13 +961,13 @@ public class Assignment {
 
 		Element root = doc.createElement("assignment");
 
-		for (String varId : map.keySet()) {
+		for (int i = 0; i < size; i++) {
 			Element var = doc.createElement("variable");
 			Attr id = doc.createAttribute("id");
-			id.setValue(varId);
+			id.setValue(SymbolTable.getName(vars[i]));
 			var.setAttributeNode(id);
 			Element value = doc.createElement("value");
-			value.setTextContent(map.get(varId).toString());
+			value.setTextContent(values[i].toString());
 			var.appendChild(value);
 			root.appendChild(var);
 		}
@@ -917,24 +980,24 @@ public class Assignment {
 	@Override
 	public String toString() {
 		String str = "";
-		if (map.keySet().isEmpty()) {
+		if (size == 0) {
 			return "~";
 		}
-		List<String> keyList = new ArrayList<String>(map.keySet());
-		for (String key : keyList) {
-			if (map.get(key) == null) {
+		for (int i = 0; i < size; i++) {
+			String key = SymbolTable.getName(vars[i]);
+			if (values[i] == null) {
 				str += key + "=null";
 			}
-			else if (map.get(key).equals(Boolean.TRUE)) {
+			else if (values[i].equals(Boolean.TRUE)) {
 				str += key;
 			}
-			else if (map.get(key).equals(Boolean.FALSE)) {
+			else if (values[i].equals(Boolean.FALSE)) {
 				str += "!" + key;
 			}
 			else {
-				str += key + "=" + map.get(key);
+				str += key + "=" + values[i];
 			}
-			if (!key.equals(keyList.get(map.keySet().size() - 1))) {
+			if (i < size - 1) {
 				str += " ^ ";
 			}
 		}
@@ -942,4 +1005,262 @@ public class Assignment {
 
 	}
 
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Returns the position of the variable in the arrays, or (-(insertion point) -
+	 * 1) if the variable is absent.
+	 * 
+	 * @param var the integer for the variable
+	 * @return the position of the variable
+	 */
+	int indexOf(int var) {
+		if (size < LINEAR_SEARCH) {
+			for (int i = 0; i < size; i++) {
+				if (vars[i] >= var) {
+					return (vars[i] == var) ? i : -(i + 1);
+				}
+			}
+			return -(size + 1);
+		}
+		return Arrays.binarySearch(vars, 0, size, var);
+	}
+
+	/**
+	 * Returns the position of the variable in the arrays, or a negative number if
+	 * the variable is absent.
+	 * 
+	 * @param var the variable label
+	 * @return the position of the variable
+	 */
+	int indexOf(Object var) {
+		if (size == 0) {
+			return -1;
+		}
+		int id = SymbolTable.lookup(var);
+		return (id >= 0) ? indexOf(id) : -1;
+	}
+
+	/**
+	 * Returns the hash of the pair at the given position
+	 * 
+	 * @param i the position
+	 * @return the hash of the pair
+	 */
+	private int getHash(int i) {
+		return SymbolTable.getHash(vars[i]) ^ Objects.hashCode(values[i]);
+	}
+
+	/**
+	 * Sets the value of the variable, inserting it at its sorted position if
+	 * necessary.
+	 * 
+	 * @param var the integer for the variable
+	 * @param val the value
+	 */
+	private void put(int var, Value val) {
+		int index = indexOf(var);
+		if (index >= 0) {
+			if (values[index] == val) {
+				return;
+			}
+			ensureCapacity(size);
+			values[index] = val;
+		}
+		else {
+			index = -(index + 1);
+			ensureCapacity(size + 1);
+			System.arraycopy(vars, index, vars, index + 1, size - index);
+			System.arraycopy(values, index, values, index + 1, size - index);
+			vars[index] = var;
+			values[index] = val;
+			size++;
+		}
+		cachedHash = 0;
+	}
+
+	/**
+	 * Appends a pair whose variable is larger than all variables in the
+	 * assignment.
+	 * 
+	 * @param var the integer for the variable
+	 * @param val the value
+	 */
+	private void append(int var, Value val) {
+		ensureCapacity(size + 1);
+		vars[size] = var;
+		values[size++] = val;
+		cachedHash = 0;
+	}
+
+	/**
+	 * Removes the pair at the given position
+	 * 
+	 * @param index the position
+	 */
+	private void removeAt(int index) {
+		ensureCapacity(size);
+		System.arraycopy(vars, index + 1, vars, index, size - index - 1);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		values[--size] = null;
+		cachedHash = 0;
+	}
+
+	/**
+	 * Only retains the pairs whose position satisfies the predicate
+	 * 
+	 * @param predicate the predicate on the positions
+	 */
+	private void filter(IntPredicate predicate) {
+		int k = 0;
+		while (k < size && predicate.test(k)) {
+			k++;
+		}
+		if (k == size) {
+			return;
+		}
+		ensureCapacity(size);
+		for (int i = k + 1; i < size; i++) {
+			if (predicate.test(i)) {
+				vars[k] = vars[i];
+				values[k++] = values[i];
+			}
+		}
+		Arrays.fill(values, k, size, null);
+		size = k;
+		cachedHash = 0;
+	}
+
+	/**
+	 * Returns a new assignment with the pairs whose position satisfies the
+	 * predicate. If all pairs are retained, the arrays are shared with the new
+	 * assignment. The hash of the new assignment is computed along the way.
+	 * 
+	 * @param predicate the predicate on the positions
+	 * @return the new assignment
+	 */
+	private Assignment select(IntPredicate predicate) {
+		Assignment a = new Assignment();
+		int hash = 0;
+		for (int i = 0; i < size; i++) {
+			if (predicate.test(i)) {
+				if (a.size < i) {
+					a.append(vars[i], values[i]);
+				}
+				else {
+					a.size++;
+				}
+				hash += getHash(i);
+			}
+			else if (a.size == i) {
+				// first excluded pair: the retained prefix is copied
+				int prefix = a.size;
+				a.vars = Arrays.copyOf(vars, Math.max(4, prefix + 1));
+				a.values = Arrays.copyOf(values, Math.max(4, prefix + 1));
+				Arrays.fill(a.values, prefix, a.values.length, null);
+			}
+		}
+		if (a.size == size) {
+			a.share(this);
+		}
+		a.cachedHash = hash;
+		return a;
+	}
+
+	/**
+	 * Shares the arrays of the given assignment, which is assumed to have the same
+	 * pairs as the current (empty) one after the operation.
+	 * 
+	 * @param a the assignment whose arrays are shared
+	 */
+	private void share(Assignment a) {
+		if (a.size > 0) {
+			vars = a.vars;
+			values = a.values;
+			size = a.size;
+			shared = true;
+			a.shared = true;
+			cachedHash = a.cachedHash;
+		}
+	}
+
+	/**
+	 * Ensures that the arrays can hold the given number of pairs and are not
+	 * shared with any other assignment (copying them if necessary)
+	 * 
+	 * @param capacity the number of pairs
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > vars.length) {
+			int newCapacity = Math.max(capacity, Math.max(4, vars.length * 2));
+			vars = Arrays.copyOf(vars, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+			shared = false;
+		}
+		else if (shared) {
+			vars = vars.clone();
+			values = values.clone();
+			shared = false;
+		}
+	}
+
+	/**
+	 * View of the variables in the assignment
+	 */
+	final class VariableSet extends AbstractSet<String> {
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				int next = 0;
+				boolean removable = false;
+
+				@Override
+				public boolean hasNext() {
+					return next < size;
+				}
+
+				@Override
+				public String next() {
+					if (next >= size) {
+						throw new NoSuchElementException();
+					}
+					removable = true;
+					return SymbolTable.getName(vars[next++]);
+				}
+
+				@Override
+				public void remove() {
+					if (!removable) {
+						throw new IllegalStateException();
+					}
+					removeAt(--next);
+					removable = false;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return indexOf(o) >= 0;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			int index = indexOf(o);
+			if (index >= 0) {
+				removeAt(index);
+				return true;
+			}
+			return false;
+		}
+	}
+
 }
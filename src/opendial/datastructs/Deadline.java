@@ -0,0 +1,241 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.datastructs;
+
+import java.util.logging.*;
+
+/**
+ * Deadline (and cancellation token) for a processing step, such as an update of
+ * the dialogue state, a planning process or an inference query. The deadline
+ * expires either when its time limit is reached or when it is explicitly
+ * cancelled. Child deadlines can be derived with a tighter time limit, and expire
+ * as soon as their parent expires.
+ * 
+ * <p>
+ * The deadline does not rely on any timer thread: the processing steps are
+ * expected to poll it (through isExpired()) at regular intervals. Processing steps
+ * that cannot return a partial result (such as exact inference) call check()
+ * instead, which throws an ExpiredException once the deadline has expired. The
+ * deadline that applies to the current thread can be set with setCurrent(...),
+ * and is retrieved by the inference queries upon their creation. As this
+ * thread-local deadline is not visible from worker threads, the deadline of a
+ * query must be passed explicitly to the tasks that it runs in parallel.
+ * 
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public final class Deadline {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Deadline without time limit (which cannot be cancelled) */
+	public static final Deadline NONE = new Deadline(null, Long.MAX_VALUE);
+
+	// deadline applying to each thread
+	static final ThreadLocal<Deadline> current =
+			ThreadLocal.withInitial(() -> NONE);
+
+	// parent deadline (null if none)
+	final Deadline parent;
+
+	// expiry time (in nanoseconds, with respect to System.nanoTime())
+	final long expiry;
+
+	// whether the time limit is bounded
+	final boolean bounded;
+
+	// whether the deadline has been cancelled
+	volatile boolean cancelled = false;
+
+	// ===================================
+	// CONSTRUCTION
+	// ===================================
+
+	/**
+	 * Creates a new deadline expiring after the given time (in milliseconds). A
+	 * time of Long.MAX_VALUE means that the deadline has no time limit.
+	 * 
+	 * @param millis the time limit (in milliseconds)
+	 */
+	public Deadline(long millis) {
+		this(null, millis);
+	}
+
+	/**
+	 * Creates a new deadline with the given parent and time limit.
+	 * 
+	 * @param parent the parent deadline (null if none)
+	 * @param millis the time limit (in milliseconds)
+	 */
+	private Deadline(Deadline parent, long millis) {
+		this.parent = parent;
+		long now = System.nanoTime();
+		long expiry = (millis < Long.MAX_VALUE / 1000000)
+				? now + Math.max(0, millis) * 1000000 : Long.MAX_VALUE;
+		boolean bounded = expiry != Long.MAX_VALUE;
+		if (parent != null && parent.bounded
+				&& (!bounded || parent.expiry - expiry < 0)) {
+			expiry = parent.expiry;
+			bounded = true;
+		}
+		this.expiry = expiry;
+		this.bounded = bounded;
+	}
+
+	/**
+	 * Returns a child deadline expiring after the given time (in milliseconds), or
+	 * when the current deadline expires (whichever comes first). Cancelling the
+	 * child deadline does not affect the current one.
+	 * 
+	 * @param millis the time limit of the child (in milliseconds)
+	 * @return the child deadline
+	 */
+	public Deadline withTimeout(long millis) {
+		return new Deadline(this, millis);
+	}
+
+	/**
+	 * Returns the deadline applying to the current thread (Deadline.NONE if no
+	 * deadline has been set).
+	 * 
+	 * @return the current deadline
+	 */
+	public static Deadline current() {
+		return current.get();
+	}
+
+	/**
+	 * Sets the deadline applying to the current thread, and returns the deadline
+	 * that applied before the call (which should be restored once the processing
+	 * step is completed).
+	 * 
+	 * @param deadline the new deadline (null for Deadline.NONE)
+	 * @return the previous deadline
+	 */
+	public static Deadline setCurrent(Deadline deadline) {
+		Deadline previous = current.get();
+		current.set((deadline != null) ? deadline : NONE);
+		return previous;
+	}
+
+	// ===================================
+	// GETTERS AND SETTERS
+	// ===================================
+
+	/**
+	 * Cancels the deadline (and all of its children). The method has no effect on
+	 * Deadline.NONE.
+	 */
+	public void cancel() {
+		if (this != NONE) {
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * Returns true if the deadline (or one of its ancestors) has been cancelled.
+	 * 
+	 * @return true if cancelled, false otherwise
+	 */
+	public boolean isCancelled() {
+		for (Deadline d = this; d != null; d = d.parent) {
+			if (d.cancelled) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the deadline has expired, either because its time limit has
+	 * been reached or because it has been cancelled. The method is cheap enough to
+	 * be polled within inner loops.
+	 * 
+	 * @return true if the deadline has expired, false otherwise
+	 */
+	public boolean isExpired() {
+		return (bounded && System.nanoTime() - expiry >= 0) || isCancelled();
+	}
+
+	/**
+	 * Throws an ExpiredException if the deadline has expired, and does nothing
+	 * otherwise.
+	 * 
+	 * @throws ExpiredException if the deadline has expired
+	 */
+	public void check() throws ExpiredException {
+		if (isExpired()) {
+			throw new ExpiredException(this);
+		}
+	}
+
+	/**
+	 * Returns the remaining time (in milliseconds) before the deadline expires, or
+	 * Long.MAX_VALUE if the deadline has no time limit.
+	 * 
+	 * @return the remaining time
+	 */
+	public long getRemainingTime() {
+		if (isCancelled()) {
+			return 0;
+		}
+		else if (!bounded) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, (expiry - System.nanoTime()) / 1000000);
+	}
+
+	/**
+	 * Returns a string representation of the deadline
+	 */
+	@Override
+	public String toString() {
+		if (isCancelled()) {
+			return "cancelled";
+		}
+		else if (!bounded) {
+			return "no deadline";
+		}
+		return getRemainingTime() + " ms remaining";
+	}
+
+	/**
+	 * Exception thrown by a processing step that is interrupted because its
+	 * deadline has expired.
+	 */
+	public static final class ExpiredException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Creates the exception for the expired deadline
+		 * 
+		 * @param deadline the expired deadline
+		 */
+		public ExpiredException(Deadline deadline) {
+			super("deadline expired (" + deadline + ")");
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.datastructs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.*;
+
+/**
+ * Symbol table interning the variable identifiers to integers. Each identifier is
+ * associated with a unique, stable integer, which is used by the assignments to
+ * store and compare their variables without hashing strings.
+ * 
+ * <p>
+ * The markers appended to the variable identifiers (the prime ' for new values,
+ * and the suffixes ^p, ^o and ^t for predictions, observations and temporary
+ * variables) are parsed once, when the identifier is interned, and are then
+ * available as structured flags. The symbol for the primed (or unprimed) version
+ * of a variable is also cached.
+ * 
+ * <p>
+ * The table is shared by all dialogue domains and only grows over time. Symbols
+ * are therefore only created for the identifiers stored in assignments: methods
+ * that merely query an identifier (such as lookup, lookupPrimed, or the string
+ * versions of isPrimed and removePrime) never create new symbols. Lookups are
+ * lock-free, while the creation of new symbols is synchronised.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public final class SymbolTable {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Flag for variables ending with a prime (new values) */
+	public static final int PRIMED = 1;
+
+	/** Flag for variables ending with ^p (predictions) */
+	public static final int PREDICTION = 2;
+
+	/** Flag for variables ending with ^o (observations) */
+	public static final int OBSERVATION = 4;
+
+	/** Flag for variables ending with ^t (temporary variables) */
+	public static final int TEMPORARY = 8;
+
+	// the integer for each interned identifier
+	static final ConcurrentHashMap<String, Integer> ids =
+			new ConcurrentHashMap<String, Integer>();
+
+	// the symbols, indexed by their integer
+	static volatile Symbol[] symbols = new Symbol[256];
+
+	// the number of interned symbols
+	static int nbSymbols = 0;
+
+	private SymbolTable() {
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Returns the integer for the variable identifier, creating a new symbol if the
+	 * identifier has not yet been interned.
+	 * 
+	 * @param var the variable identifier
+	 * @return the corresponding integer
+	 */
+	public static int intern(String var) {
+		Integer id = ids.get(var);
+		return (id != null) ? id : createSymbol(var);
+	}
+
+	/**
+	 * Returns the integer for the variable identifier, or -1 if the identifier has
+	 * never been interned (in which case no assignment can contain it).
+	 * 
+	 * @param var the variable identifier
+	 * @return the corresponding integer, or -1 if absent
+	 */
+	public static int lookup(Object var) {
+		if (var == null) {
+			return -1;
+		}
+		Integer id = ids.get(var);
+		return (id != null) ? id : -1;
+	}
+
+	/**
+	 * Returns the variable identifier for the integer
+	 * 
+	 * @param id the integer for the variable
+	 * @return the variable identifier
+	 */
+	public static String getName(int id) {
+		return symbols[id].name;
+	}
+
+	/**
+	 * Returns the hashcode of the variable identifier (the same as the string)
+	 * 
+	 * @param id the integer for the variable
+	 * @return the hashcode of the identifier
+	 */
+	public static int getHash(int id) {
+		return symbols[id].hash;
+	}
+
+	/**
+	 * Returns the markers (PRIMED, PREDICTION, OBSERVATION and TEMPORARY) of the
+	 * variable, as a combination of flags.
+	 * 
+	 * @param id the integer for the variable
+	 * @return the flags of the variable
+	 */
+	public static int getFlags(int id) {
+		return symbols[id].flags;
+	}
+
+	/**
+	 * Returns true if the variable ends with a prime, and false otherwise
+	 * 
+	 * @param id the integer for the variable
+	 * @return true if the variable is primed, false otherwise
+	 */
+	public static boolean isPrimed(int id) {
+		return (symbols[id].flags & PRIMED) != 0;
+	}
+
+	/**
+	 * Returns the integer for the variable with a prime appended to it.
+	 * 
+	 * @param id the integer for the variable
+	 * @return the integer for the primed variable
+	 */
+	public static int addPrime(int id) {
+		Symbol symbol = symbols[id];
+		if (symbol.primed < 0) {
+			symbol.primed = intern(symbol.name + "'");
+		}
+		return symbol.primed;
+	}
+
+	/**
+	 * Returns the integer for the variable with a prime appended to it, or -1 if the
+	 * primed variable has never been interned (in which case no assignment can
+	 * contain it). Contrary to addPrime(...), the method does not create any symbol.
+	 * 
+	 * @param id the integer for the variable
+	 * @return the integer for the primed variable, or -1 if absent
+	 */
+	public static int lookupPrimed(int id) {
+		Symbol symbol = symbols[id];
+		if (symbol.primed < 0) {
+			int primed = lookup(symbol.name + "'");
+			if (primed >= 0) {
+				symbol.primed = primed;
+			}
+			return primed;
+		}
+		return symbol.primed;
+	}
+
+	/**
+	 * Returns the integer for the variable without its final prime (or the integer
+	 * itself if the variable is not primed).
+	 * 
+	 * @param id the integer for the variable
+	 * @return the integer for the unprimed variable
+	 */
+	public static int removePrime(int id) {
+		Symbol symbol = symbols[id];
+		if (symbol.unprimed < 0) {
+			symbol.unprimed = ((symbol.flags & PRIMED) != 0)
+					? intern(symbol.name.substring(0, symbol.name.length() - 1))
+					: id;
+		}
+		return symbol.unprimed;
+	}
+
+	/**
+	 * Returns true if the variable identifier ends with a prime, and false otherwise
+	 * 
+	 * @param var the variable identifier
+	 * @return true if the variable is primed, false otherwise
+	 */
+	public static boolean isPrimed(String var) {
+		return var.endsWith("'");
+	}
+
+	/**
+	 * Returns the variable identifier without its final prime (or the identifier
+	 * itself if it is not primed).
+	 * 
+	 * @param var the variable identifier
+	 * @return the identifier without the prime
+	 */
+	public static String removePrime(String var) {
+		return (var.endsWith("'")) ? var.substring(0, var.length() - 1) : var;
+	}
+
+	/**
+	 * Returns the number of interned symbols
+	 * 
+	 * @return the number of symbols
+	 */
+	public static int size() {
+		return ids.size();
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Creates a new symbol for the variable identifier (if it has not been created
+	 * in the meantime by another thread).
+	 * 
+	 * @param var the variable identifier
+	 * @return the integer for the variable
+	 */
+	private static synchronized int createSymbol(String var) {
+		Integer existing = ids.get(var);
+		if (existing != null) {
+			return existing;
+		}
+		int id = nbSymbols++;
+		Symbol[] current = symbols;
+		if (id >= current.length) {
+			current = Arrays.copyOf(current, current.length * 2);
+		}
+		current[id] = new Symbol(var);
+		// the array is published before the integer, so that any thread reading
+		// the integer will also find the symbol
+		symbols = current;
+		ids.put(var, id);
+		return id;
+	}
+
+	/**
+	 * Interned variable identifier, with its markers.
+	 */
+	static final class Symbol {
+
+		final String name;
+		final int hash;
+		final int flags;
+
+		// integers for the primed and unprimed variables (-1 if not yet known)
+		volatile int primed = -1;
+		volatile int unprimed = -1;
+
+		Symbol(String name) {
+			this.name = name;
+			this.hash = name.hashCode();
+			boolean isPrimed = name.endsWith("'");
+			String base = (isPrimed) ? name.substring(0, name.length() - 1) : name;
+			int flags = (isPrimed) ? PRIMED : 0;
+			if (base.endsWith("^p")) {
+				flags |= PREDICTION;
+			}
+			else if (base.endsWith("^o")) {
+				flags |= OBSERVATION;
+			}
+			else if (base.endsWith("^t")) {
+				flags |= TEMPORARY;
+			}
+			this.flags = flags;
+		}
+	}
+
+}
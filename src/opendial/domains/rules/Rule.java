@@ -27,7 +27,6 @@ import java.util.logging.*;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
 
 import opendial.datastructs.Assignment;
@@ -36,6 +35,7 @@ import opendial.domains.rules.conditions.VoidCondition;
 import opendial.domains.rules.effects.Effect;
 import opendial.domains.rules.parameters.FixedParameter;
 import opendial.templates.Template;
+import opendial.utils.RandomUtils;
 
 /**
  * Generic representation of a probabilistic rule, with an identifier and an ordered
@@ -322,7 +322,7 @@ public class Rule {
 			for (Effect e : getEffects()) {
 				for (String randomToGenerate : e.getRandomsToGenerate()) {
 					groundings.extend(new Assignment(randomToGenerate,
-							(new Random()).nextInt(99999)));
+							RandomUtils.nextInt(99999)));
 				}
 			}
 			return groundings;
@@ -29,6 +29,7 @@ import java.awt.Graphics;
 import java.awt.Insets;
 import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -312,16 +313,18 @@ public class InteractionTab extends JComponent {
 						.queryProb(system.getSettings().userInput, false).toDiscrete();
 				showVariable(distrib);
 			}
+			List<String> toShow = new ArrayList<String>();
 			if (updatedVars.contains(system.getSettings().systemOutput)
 					&& state.hasChanceNode(system.getSettings().systemOutput)) {
-				showVariable(
-						state.queryProb(system.getSettings().systemOutput).toDiscrete());
+				toShow.add(system.getSettings().systemOutput);
 			}
 			for (String monitorVar : system.getSettings().varsToMonitor) {
 				if (updatedVars.contains(monitorVar)) {
-					showVariable(state.queryProb(monitorVar).toDiscrete());
+					toShow.add(monitorVar);
 				}
 			}
+			state.queryMarginals(toShow).values()
+					.forEach(d -> showVariable(d.toDiscrete()));
 		} else {
 			try {
 				SwingUtilities.invokeAndWait(() -> trigger(state, updatedVars));
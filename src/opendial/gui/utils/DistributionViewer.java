@@ -107,15 +107,31 @@ public class DistributionViewer extends JDialog {
 	 * @param currentState the updated dialogue state
 	 */
 	protected void update(DialogueState currentState) {
-
-		if (!currentState.hasChanceNode(queryVar)) {
-			return;
-		}
-		else if (lastDistrib != null && this.lastDistrib
-				.equals(currentState.getChanceNode(queryVar).getDistrib())) {
-			return;
+		if (currentState.hasChanceNode(queryVar) && !isUpToDate(currentState)) {
+			update(currentState.queryProb(queryVar));
 		}
-		this.lastDistrib = currentState.queryProb(queryVar);
+	}
+
+	/**
+	 * Returns true if the distribution shown in the viewer is the one of the
+	 * dialogue state (in which case no update is needed)
+	 * 
+	 * @param currentState the dialogue state
+	 * @return true if the viewer is up to date, false otherwise
+	 */
+	protected boolean isUpToDate(DialogueState currentState) {
+		return lastDistrib != null && currentState.hasChanceNode(queryVar)
+				&& lastDistrib
+						.equals(currentState.getChanceNode(queryVar).peekDistrib());
+	}
+
+	/**
+	 * Updates the current viewer with the (already computed) distribution.
+	 * 
+	 * @param distrib the updated distribution for the query variable
+	 */
+	protected void update(IndependentDistribution distrib) {
+		this.lastDistrib = distrib;
 
 		Container container = new Container();
 		container.setLayout(new BorderLayout());
@@ -125,13 +141,12 @@ public class DistributionViewer extends JDialog {
 		container.add(new JLabel("        "), BorderLayout.SOUTH);
 
 		try {
-			IndependentDistribution indepDistrib = currentState.queryProb(queryVar);
-			if (indepDistrib instanceof ContinuousDistribution) {
-				container.add(generatePanel(indepDistrib.toContinuous()),
+			if (distrib instanceof ContinuousDistribution) {
+				container.add(generatePanel(distrib.toContinuous()),
 						BorderLayout.CENTER);
 			}
 			else {
-				container.add(generatePanel(indepDistrib.toDiscrete()),
+				container.add(generatePanel(distrib.toDiscrete()),
 						BorderLayout.CENTER);
 			}
 		}
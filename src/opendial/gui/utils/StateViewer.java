@@ -41,6 +41,7 @@ import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.swing.JComponent;
 import javax.swing.JLabel;
@@ -362,8 +363,14 @@ public class StateViewer extends VisualizationViewer<String, Integer> {
 	 * Updates the windows displaying probability distributions.
 	 */
 	public void updateDistribs() {
-		for (String queryVar : shownDistribs.keySet()) {
-			shownDistribs.get(queryVar).update(currentState);
+		List<String> queryVars = shownDistribs.keySet().stream()
+				.filter(v -> currentState.hasChanceNode(v))
+				.filter(v -> !shownDistribs.get(v).isUpToDate(currentState))
+				.collect(Collectors.toList());
+		Map<String, IndependentDistribution> marginals =
+				currentState.queryMarginals(queryVars);
+		for (String queryVar : marginals.keySet()) {
+			shownDistribs.get(queryVar).update(marginals.get(queryVar));
 		}
 	}
 
@@ -476,7 +483,7 @@ public class StateViewer extends VisualizationViewer<String, Integer> {
 		public Shape transform(String arg0) {
 			BNode node = getBNode(arg0);
 			if (node instanceof ChanceNode) {
-				if (((ChanceNode) node).getDistrib() instanceof AnchoredRule) {
+				if (((ChanceNode) node).peekDistrib() instanceof AnchoredRule) {
 					return new Ellipse2D.Double(-5.0, -5.0, 20.0, 20.0);
 				}
 				else {
@@ -25,6 +25,8 @@ package opendial.inference;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import opendial.bn.BNetwork;
 import opendial.bn.distribs.IndependentDistribution;
@@ -123,6 +125,41 @@ public interface InferenceAlgorithm {
 		return queryProb(network, queryVar, new Assignment());
 	}
 
+	/**
+	 * Computes the marginal probability distribution of each query variable, given
+	 * the evidence. The default implementation performs one inference per variable,
+	 * and should be overridden by the algorithms able to extract all marginals from
+	 * a single pass.
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	public default Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : query.getQueryVars()) {
+			marginals.put(queryVar,
+					queryProb(query.getSubQuery(Arrays.asList(queryVar)))
+							.getMarginal(queryVar));
+		}
+		return marginals;
+	}
+
+	/**
+	 * Computes the marginal probability distribution of each query variable, given
+	 * the evidence.
+	 * 
+	 * @param network the Bayesian network
+	 * @param queryVars the query variables
+	 * @param evidence the evidence
+	 * @return the marginal distribution of each query variable
+	 */
+	public default Map<String, IndependentDistribution> queryMarginals(
+			BNetwork network, Collection<String> queryVars, Assignment evidence) {
+		return queryMarginals(new Query.ProbQuery(network, queryVars, evidence));
+	}
+
 	// ===================================
 	// UTILITY QUERIES
 	// ===================================
@@ -0,0 +1,117 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.inference;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+import opendial.bn.BNetwork;
+
+/**
+ * Small cache of objects computed for specific versions of Bayesian networks, such
+ * as compiled junction trees or requisite nodes. The networks are only weakly
+ * referenced, so that the cache does not prevent their garbage collection (the
+ * cached objects should therefore not refer to their network). At most one object
+ * is kept for each network, and the least recently used objects are evicted once
+ * the cache exceeds its capacity.
+ * 
+ * @author Pierre Lison (plison@ifi.uio.no)
+ *
+ * @param <T> the type of cached objects
+ */
+public final class NetworkCache<T> {
+
+	// maximum number of networks in the cache
+	final IntSupplier capacity;
+
+	// the cached objects, from the least to the most recently used
+	final LinkedList<Entry<T>> entries = new LinkedList<Entry<T>>();
+
+	/**
+	 * Creates a new, empty cache. The capacity is provided as a supplier, so that
+	 * it can be read from a static parameter.
+	 * 
+	 * @param capacity the maximum number of networks in the cache
+	 */
+	public NetworkCache(IntSupplier capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the object cached for the given version of the network, creating it
+	 * (outside of the cache lock) if necessary. Objects cached for other versions of
+	 * the network are discarded.
+	 * 
+	 * @param network the Bayesian network
+	 * @param version the version of the network
+	 * @param factory the function creating the object for the network
+	 * @return the cached (or newly created) object
+	 */
+	public T get(BNetwork network, long version, Function<BNetwork, T> factory) {
+		synchronized (entries) {
+			for (Iterator<Entry<T>> it = entries.iterator(); it.hasNext();) {
+				Entry<T> entry = it.next();
+				BNetwork entryNetwork = entry.network.get();
+				if (entryNetwork == null || entryNetwork == network) {
+					it.remove();
+					if (entryNetwork != null && entry.version == version) {
+						entries.addLast(entry);
+						return entry.value;
+					}
+				}
+			}
+		}
+		T value = factory.apply(network);
+		synchronized (entries) {
+			entries.addLast(new Entry<T>(network, version, value));
+			while (entries.size() > capacity.getAsInt()) {
+				entries.removeFirst();
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Object cached for a specific version of a network.
+	 */
+	static final class Entry<T> {
+
+		// the network (weakly referenced) and its version
+		final WeakReference<BNetwork> network;
+		final long version;
+
+		// the cached object
+		final T value;
+
+		Entry(BNetwork network, long version, T value) {
+			this.network = new WeakReference<BNetwork>(network);
+			this.version = version;
+			this.value = value;
+		}
+	}
+
+}
@@ -24,17 +24,24 @@
 package opendial.inference;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import opendial.bn.BNetwork;
+import opendial.bn.distribs.ContinuousDistribution;
 import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.ChanceNode;
 import opendial.bn.nodes.UtilityNode;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
 
 /**
  * Representation of an inference query, which can be either a probability query, a
@@ -46,6 +53,17 @@ public abstract class Query {
 
 	final static Logger log = Logger.getLogger("OpenDial");
 
+	/** Maximum number of networks for which the requisite nodes are cached */
+	public static int MAX_CACHED_NETWORKS = 10;
+
+	/** Maximum number of requisite node sets cached for a given network */
+	public static int MAX_CACHED_QUERIES = 100;
+
+	// the requisite nodes cached for each network, from the least to the most
+	// recently used
+	static final NetworkCache<RelevanceCache> caches =
+			new NetworkCache<RelevanceCache>(() -> MAX_CACHED_NETWORKS);
+
 	/**
 	 * Representation of a probability query P(queryVars | evidence) on a specific
 	 * Bayesian network.
@@ -87,12 +105,16 @@ public abstract class Query {
 	Collection<String> queryVars;
 	Assignment evidence;
 
+	// deadline for the query (retrieved from the current thread)
+	Deadline deadline;
+
 	public Query(BNetwork network, Collection<String> queryVars,
 			Assignment evidence) {
 
 		this.network = network;
 		this.queryVars = queryVars;
 		this.evidence = evidence;
+		this.deadline = Deadline.current();
 
 		if (queryVars.isEmpty()) {
 			log.warning("empty set of query variables: " + toString());
@@ -130,6 +152,29 @@ public abstract class Query {
 		return evidence;
 	}
 
+	/**
+	 * Returns the deadline for the query, which is the deadline applying to the
+	 * thread that created the query.
+	 * 
+	 * @return the deadline
+	 */
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	/**
+	 * Returns a probability query for the given variables, with the same network,
+	 * evidence and deadline as the current query.
+	 * 
+	 * @param subQueryVars the query variables
+	 * @return the corresponding probability query
+	 */
+	public ProbQuery getSubQuery(Collection<String> subQueryVars) {
+		ProbQuery subQuery = new ProbQuery(network, subQueryVars, evidence);
+		subQuery.deadline = deadline;
+		return subQuery;
+	}
+
 	/**
 	 * Returns a list of nodes sorted according to the ordering in
 	 * BNetwork.getSortedNodes() and pruned from the irrelevant nodes
@@ -138,9 +183,9 @@ public abstract class Query {
 	 */
 	public List<BNode> getFilteredSortedNodes() {
 		List<BNode> filteredNodes = new ArrayList<BNode>();
-		Set<String> irrelevantNodes = getIrrelevantNodes();
+		Set<String> requisiteNodes = getRequisiteNodeIds();
 		for (BNode node : network.getSortedNodes()) {
-			if (!irrelevantNodes.contains(node.getId())) {
+			if (requisiteNodes.contains(node.getId())) {
 				filteredNodes.add(node);
 			}
 		}
@@ -148,37 +193,107 @@ public abstract class Query {
 	}
 
 	/**
-	 * Assuming a particular query P(queryVars|evidence) or U(queryVars|evidence) on
-	 * the provided Bayesian network, determines which nodes is relevant for the
-	 * inference and which one can be discarded without affecting the final result.
+	 * Returns true if none of the relevant nodes for the query has a continuous
+	 * distribution (in which case the query can be answered with discrete factors),
+	 * and false otherwise.
 	 * 
+	 * @return true if the relevant nodes are all discrete, false otherwise
 	 */
-	private Set<String> getIrrelevantNodes() {
+	public boolean isDiscrete() {
+		for (BNode node : getFilteredSortedNodes()) {
+			if (node instanceof ChanceNode && ((ChanceNode) node)
+					.peekDistrib() instanceof ContinuousDistribution) {
+				return false;
+			}
+		}
+		return true;
+	}
 
-		Set<String> irrelevantNodesIds = new HashSet<String>();
+	/**
+	 * Returns the identifiers of the nodes whose distribution is required to answer
+	 * the query, as determined by the Bayes-ball algorithm (Shachter, 1998). The
+	 * set excludes the barren nodes, the nodes that are d-separated from the query
+	 * variables given the evidence, and the evidence nodes whose value is only
+	 * needed as a condition for their children (this value is then directly read
+	 * from the evidence). The set is cached for each version of the network, and
+	 * only depends on the query variables and on the evidence variables (not on
+	 * their values).
+	 * 
+	 * @return the identifiers of the requisite nodes
+	 */
+	public Set<String> getRequisiteNodeIds() {
+		List<Object> key = Arrays.asList(getClass(),
+				new HashSet<String>(queryVars), evidence.getVariables());
+		RelevanceCache cache = getCache(network);
+		synchronized (cache) {
+			Set<String> requisiteNodes = cache.requisites.get(key);
+			if (requisiteNodes == null) {
+				requisiteNodes = Collections.unmodifiableSet(bayesBall());
+				cache.requisites.put(key, requisiteNodes);
+			}
+			return requisiteNodes;
+		}
+	}
 
-		whileLoop: while (true) {
-			for (String nodeId : new ArrayList<String>(network.getNodeIds())) {
-				BNode node = network.getNode(nodeId);
-				if (!irrelevantNodesIds.contains(nodeId)
-						&& irrelevantNodesIds.containsAll(node.getOutputNodesIds())
-						&& !queryVars.contains(nodeId)
-						&& !evidence.containsVar(nodeId)
-						&& !(node instanceof UtilityNode)) {
-					irrelevantNodesIds.add(nodeId);
-					continue whileLoop;
-				}
-				else if (!(this instanceof UtilQuery)
-						&& !irrelevantNodesIds.contains(nodeId)
-						&& node instanceof UtilityNode) {
-					irrelevantNodesIds.add(nodeId);
-					continue whileLoop;
+	/**
+	 * Runs the Bayes-ball algorithm from the query variables (and, for utility
+	 * queries, from the utility nodes) and returns the nodes whose distribution is
+	 * requisite, together with the query variables. Balls are passed from
+	 * unobserved nodes to their parents when they come from a child, and to their
+	 * children in all cases, while observed nodes only bounce the balls coming
+	 * from their parents back to their own parents.
+	 * 
+	 * @return the requisite nodes
+	 */
+	private Set<String> bayesBall() {
+
+		boolean utilQuery = (this instanceof UtilQuery);
+		Set<String> top = new HashSet<String>();
+		Set<String> bottom = new HashSet<String>();
+
+		// the nodes to visit, along with a flag indicating whether the ball
+		// comes from a child
+		LinkedList<BNode> toVisit = new LinkedList<BNode>();
+		LinkedList<Boolean> fromChild = new LinkedList<Boolean>();
+		for (BNode node : network.getNodes()) {
+			if (queryVars.contains(node.getId())
+					|| (utilQuery && node instanceof UtilityNode)) {
+				// query variables always need their own distribution
+				top.add(node.getId());
+				toVisit.addAll(node.getInputNodes());
+				fromChild.addAll(
+						Collections.nCopies(node.getInputNodes().size(), true));
+				if (!evidence.containsVar(node.getId())) {
+					toVisit.add(node);
+					fromChild.add(false);
 				}
 			}
-			break whileLoop;
 		}
 
-		return irrelevantNodesIds;
+		while (!toVisit.isEmpty()) {
+			BNode node = toVisit.removeFirst();
+			boolean child = fromChild.removeFirst();
+			String id = node.getId();
+			if (node instanceof UtilityNode && !utilQuery) {
+				continue;
+			}
+			boolean observed = evidence.containsVar(id);
+			if ((child && !observed) || (!child && observed)) {
+				if (top.add(id)) {
+					for (BNode inputNode : node.getInputNodes()) {
+						toVisit.add(inputNode);
+						fromChild.add(true);
+					}
+				}
+			}
+			if (!observed && bottom.add(id)) {
+				for (BNode outputNode : node.getOutputNodes()) {
+					toVisit.add(outputNode);
+					fromChild.add(false);
+				}
+			}
+		}
+		return top;
 	}
 
 	/**
@@ -238,4 +353,34 @@ public abstract class Query {
 		return queryVars.hashCode() + 2 * evidence.hashCode();
 	}
 
+	/**
+	 * Returns the cache of requisite nodes for the current structure of the network,
+	 * creating a new one if necessary.
+	 * 
+	 * @param network the Bayesian network
+	 * @return the cache for the network
+	 */
+	private static RelevanceCache getCache(BNetwork network) {
+		return caches.get(network, network.getStructureVersion(),
+				n -> new RelevanceCache());
+	}
+
+	/**
+	 * Requisite nodes computed for a specific version of a Bayesian network, indexed
+	 * by query type, query variables and evidence variables.
+	 */
+	static final class RelevanceCache {
+
+		// the requisite nodes for each query, from the least to the most recently
+		// used
+		final Map<List<Object>, Set<String>> requisites =
+				new LinkedHashMap<List<Object>, Set<String>>(16, 0.75f, true) {
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<List<Object>, Set<String>> eldest) {
+						return size() > MAX_CACHED_QUERIES;
+					}
+				};
+	}
+
 }
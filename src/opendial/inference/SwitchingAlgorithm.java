@@ -23,33 +23,75 @@
 
 package opendial.inference;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.*;
 
 import opendial.bn.BNetwork;
-import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.CategoricalTable;
+import opendial.bn.distribs.IndependentDistribution;
 import opendial.bn.distribs.MultivariateDistribution;
 import opendial.bn.distribs.UtilityTable;
 import opendial.bn.nodes.BNode;
-import opendial.bn.nodes.ChanceNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
+import opendial.inference.approximate.GibbsSampling;
+import opendial.inference.approximate.LoopyBeliefPropagation;
+import opendial.inference.approximate.MiniBucketElimination;
 import opendial.inference.approximate.SamplingAlgorithm;
+import opendial.inference.exact.EliminationOrder;
+import opendial.inference.exact.JunctionTree;
 import opendial.inference.exact.VariableElimination;
 
 /**
- * Switching algorithms that alternates between an exact algorithm (variable
- * elimination) and an approximate algorithm (likelihood weighting) depending on the
- * query.
+ * Switching algorithms that alternates between an exact algorithm (junction tree or
+ * variable elimination) and approximate algorithms (loopy belief propagation,
+ * mini-bucket elimination and likelihood weighting) depending on the query.
  * 
  * <p>
- * The switching mechanism is defined via two thresholds:
+ * The switching mechanism relies on a simple cost model:
  * <ul>
- * <li>one threshold on the maximum branching factor of the network
- * <li>one threshold on the maximum number of combination of values in a node factor
+ * <li>the cost of exact inference is estimated from the elimination order of the
+ * query, as the total number of factor cells created during the elimination
+ * multiplied by EXACT_COST_PER_CELL
+ * <li>the cost of belief propagation is estimated from the number of cells in the
+ * node factors, multiplied by EXACT_COST_PER_CELL (for the construction of the
+ * factors) plus PROPAGATION_COST_PER_CELL (for the message passing)
+ * <li>the cost of likelihood weighting is estimated as the number of nodes times
+ * the number of samples, multiplied by SAMPLING_COST_PER_NODE (and bounded by the
+ * maximum sampling time)
+ * <li>the cost of mini-bucket elimination is estimated as the number of factor
+ * cells created with mini-buckets of at most MAX_BUCKET_SIZE cells, multiplied by
+ * EXACT_COST_PER_CELL
  * </ul>
+ * Exact inference is selected whenever its cost does not exceed the cost of
+ * likelihood weighting (which is bounded by the sampling time). Otherwise, the
+ * cheapest approximate algorithm is selected. Likelihood weighting is always
+ * selected if the Bayesian network contains a continuous distribution or if a
+ * node has more than MAX_BRANCHING_FACTOR parents. Exact inference is excluded if
+ * the largest factor created by the elimination exceeds MAX_FACTOR_SIZE, and
+ * belief propagation is excluded for reduction queries or if USE_PROPAGATION is
+ * false. Mini-bucket elimination is only considered if USE_MINI_BUCKETS is set.
+ * Exact inference relies on the junction tree algorithm if
+ * USE_JUNCTION_TREE is set, and variable elimination otherwise.
  * 
  * <p>
- * If one of these threshold is exceeded or if the Bayesian network contains a
- * continuous distribution, the selected algorithm will be likelihood weighting.
- * Variable elimination is selected in the remaining cases.
+ * When likelihood weighting is selected for a query with evidence, the likelihood
+ * of the evidence is first estimated from PILOT_DRAWS forward draws. If this
+ * likelihood is below MIN_EVIDENCE_LIKELIHOOD (in which case most samples would
+ * have a negligible weight), Gibbs sampling is selected instead, provided
+ * USE_GIBBS is set. The estimates are cached for each version of the network, so
+ * that repeated queries with the same evidence only pay for the pilot draws once.
+ * 
+ * <p>
+ * The predicted costs and the actual inference times are logged at the FINE
+ * level, in order to calibrate the cost constants for a given domain.
  * 
  * @author Pierre Lison (plison@ifi.uio.no)
  */
@@ -61,15 +103,70 @@ public class SwitchingAlgorithm implements InferenceAlgorithm {
 	// maximum branching factor (in-degree) for VE
 	public static int MAX_BRANCHING_FACTOR = 10;
 
-	// maximum number of values to use VE
+	// maximum number of values in the joint distribution of the query variables to
+	// extract the marginals from a single inference
 	public static int MAX_NBVALUES = 5000;
 
+	// maximum size of the factors created by exact inference
+	public static long MAX_FACTOR_SIZE = 1000000;
+
+	// estimated cost (in nanoseconds) of each factor cell in exact inference. The
+	// value was measured by timing variable elimination (on a warm JVM) on random
+	// discrete networks of 20 to 80 nodes with 2 to 3 values and 2 to 6 parents per
+	// node, which took between 1000 and 1200 ns for each cell of the elimination
+	// order when the order contained more than 20000 cells (smaller queries are
+	// dominated by a fixed overhead of a few milliseconds)
+	public static double EXACT_COST_PER_CELL = 1000;
+
+	// estimated cost (in nanoseconds) of sampling one node in likelihood weighting
+	public static double SAMPLING_COST_PER_NODE = 1500;
+
+	// estimated cost (in nanoseconds) of the message passing for each factor cell
+	// in belief propagation
+	public static double PROPAGATION_COST_PER_CELL = 1000;
+
+	// whether to use the junction tree algorithm for exact inference
+	public static boolean USE_JUNCTION_TREE = true;
+
+	// whether loopy belief propagation can be selected
+	public static boolean USE_PROPAGATION = true;
+
+	// whether mini-bucket elimination can be selected
+	public static boolean USE_MINI_BUCKETS = false;
+
+	// whether Gibbs sampling can be selected for queries with unlikely evidence
+	public static boolean USE_GIBBS = true;
+
+	// likelihood of the evidence below which Gibbs sampling is preferred to
+	// likelihood weighting
+	public static double MIN_EVIDENCE_LIKELIHOOD = 0.01;
+
+	// number of forward draws to estimate the likelihood of the evidence
+	public static int PILOT_DRAWS = 100;
+
+	// maximum number of likelihood estimates cached for a given network
+	public static int MAX_CACHED_ESTIMATES = 100;
+
+	// estimated likelihoods of the evidence for each network version, indexed by
+	// query variables and evidence
+	static final NetworkCache<Map<List<Object>, Double>> estimates =
+			new NetworkCache<Map<List<Object>, Double>>(
+					() -> Query.MAX_CACHED_NETWORKS);
+
 	VariableElimination ve;
+	JunctionTree jt;
+	LoopyBeliefPropagation bp;
+	MiniBucketElimination mb;
 	SamplingAlgorithm lw;
+	GibbsSampling gibbs;
 
 	public SwitchingAlgorithm() {
 		this.ve = new VariableElimination();
+		this.jt = new JunctionTree();
+		this.bp = new LoopyBeliefPropagation();
+		this.mb = new MiniBucketElimination();
 		this.lw = new SamplingAlgorithm();
+		this.gibbs = new GibbsSampling();
 	}
 
 	/**
@@ -81,8 +178,61 @@ public class SwitchingAlgorithm implements InferenceAlgorithm {
 	 */
 	@Override
 	public MultivariateDistribution queryProb(Query.ProbQuery query) {
-		InferenceAlgorithm algo = selectBestAlgorithm(query);
-		return algo.queryProb(query);
+		return run(select(query), algo -> algo.queryProb(query));
+	}
+
+	/**
+	 * Computes the marginal distribution of each query variable. If the selected
+	 * algorithm is likelihood weighting, Gibbs sampling, belief propagation or the
+	 * junction tree algorithm, the marginals are directly computed by the
+	 * algorithm. For variable elimination, if the joint distribution of the query
+	 * variables is small enough (less than MAX_NBVALUES combinations), the
+	 * marginals are extracted from a single inference on all query variables.
+	 * Otherwise, the marginals are computed one by one.
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	@Override
+	public Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		Selection selection = select(query);
+		InferenceAlgorithm algo = selection.algo;
+		if (algo == lw || algo == gibbs || algo == bp || algo == jt) {
+			return run(selection, a -> a.queryMarginals(query));
+		}
+		BNetwork network = query.getNetwork();
+		int nbCombinations = 1;
+		for (String queryVar : query.getQueryVars()) {
+			nbCombinations *= network.getNode(queryVar).getValues().size();
+			if (nbCombinations > MAX_NBVALUES) {
+				try {
+					return InferenceAlgorithm.super.queryMarginals(query);
+				}
+				finally {
+					selection.logTime();
+				}
+			}
+		}
+		// the marginals are summed from the rows of the joint distribution
+		MultivariateDistribution joint = run(selection, a -> a.queryProb(query));
+		Map<String, CategoricalTable.Builder> builders =
+				new LinkedHashMap<String, CategoricalTable.Builder>();
+		for (String queryVar : query.getQueryVars()) {
+			builders.put(queryVar, new CategoricalTable.Builder(queryVar));
+		}
+		for (Assignment row : joint.getValues()) {
+			double prob = joint.getProb(row);
+			for (String queryVar : builders.keySet()) {
+				builders.get(queryVar).incrementRow(row.getValue(queryVar), prob);
+			}
+		}
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : builders.keySet()) {
+			marginals.put(queryVar, builders.get(queryVar).build());
+		}
+		return marginals;
 	}
 
 	/**
@@ -94,8 +244,7 @@ public class SwitchingAlgorithm implements InferenceAlgorithm {
 	 */
 	@Override
 	public UtilityTable queryUtil(Query.UtilQuery query) {
-		InferenceAlgorithm algo = selectBestAlgorithm(query);
-		return algo.queryUtil(query);
+		return run(select(query), algo -> algo.queryUtil(query));
 	}
 
 	/**
@@ -116,32 +265,241 @@ public class SwitchingAlgorithm implements InferenceAlgorithm {
 	@Override
 	public BNetwork reduce(Query.ReduceQuery query) {
 		// select the best reduction algorithm and performs the reduction
-		InferenceAlgorithm algo = selectBestAlgorithm(query);
-		BNetwork result = algo.reduce(query);
-		return result;
+		return run(select(query), algo -> algo.reduce(query));
 	}
 
+	/**
+	 * Selects the algorithm with the lowest predicted cost for the query.
+	 * 
+	 * @param query the query
+	 * @return the selected algorithm
+	 */
 	public InferenceAlgorithm selectBestAlgorithm(Query query) {
+		return select(query).algo;
+	}
 
+	/**
+	 * Returns the predicted cost (in nanoseconds) of exact inference for the query,
+	 * or Double.POSITIVE_INFINITY if exact inference cannot be applied.
+	 * 
+	 * @param query the query
+	 * @return the predicted cost of exact inference
+	 */
+	public double getExactCost(Query query) {
+		if (!isFactorisable(query)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		EliminationOrder order = ve.getEliminationOrder(query);
+		if (order.getMaxFactorSize() > MAX_FACTOR_SIZE) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return order.getTotalFactorSize() * EXACT_COST_PER_CELL;
+	}
+
+	/**
+	 * Returns the predicted cost (in nanoseconds) of loopy belief propagation for
+	 * the query, or Double.POSITIVE_INFINITY if the propagation cannot be applied.
+	 * 
+	 * @param query the query
+	 * @return the predicted cost of belief propagation
+	 */
+	public double getPropagationCost(Query query) {
+		if (!USE_PROPAGATION || query instanceof Query.ReduceQuery
+				|| !isFactorisable(query)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double nbCells = 0;
+		for (BNode node : query.getFilteredSortedNodes()) {
+			double size = (node instanceof UtilityNode) ? 1
+					: node.getValues().size();
+			for (BNode inputNode : node.getInputNodes()) {
+				size *= inputNode.getValues().size();
+			}
+			nbCells += size;
+		}
+		if (query instanceof Query.UtilQuery) {
+			for (String queryVar : query.getQueryVars()) {
+				nbCells *= query.getNetwork().getNode(queryVar).getValues().size();
+			}
+		}
+		return nbCells * (EXACT_COST_PER_CELL + PROPAGATION_COST_PER_CELL);
+	}
+
+	/**
+	 * Returns the predicted cost (in nanoseconds) of mini-bucket elimination for
+	 * the query, or Double.POSITIVE_INFINITY if the elimination cannot be applied.
+	 * 
+	 * @param query the query
+	 * @return the predicted cost of mini-bucket elimination
+	 */
+	public double getMiniBucketCost(Query query) {
+		if (!USE_MINI_BUCKETS || !isFactorisable(query)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return mb.getPredictedSize(query) * EXACT_COST_PER_CELL;
+	}
+
+	/**
+	 * Returns the predicted cost (in nanoseconds) of likelihood weighting for the
+	 * query.
+	 * 
+	 * @param query the query
+	 * @return the predicted cost of likelihood weighting
+	 */
+	public double getSamplingCost(Query query) {
+		int nbNodes = query.getFilteredSortedNodes().size();
+		double cost = (double) nbNodes * lw.nbSamples * SAMPLING_COST_PER_NODE;
+		return Math.min(cost, lw.getMaxSamplingTime() * 1000000.0);
+	}
+
+	/**
+	 * Returns the likelihood of the evidence for the query, estimated from
+	 * PILOT_DRAWS forward draws. The estimates are cached for each version of the
+	 * network, query variables and evidence.
+	 * 
+	 * @param query the query
+	 * @return the estimated likelihood of the evidence
+	 */
+	public double getEvidenceLikelihood(Query query) {
+		BNetwork network = query.getNetwork();
+		Map<List<Object>, Double> cache = estimates.get(network,
+				network.getStructureVersion(),
+				n -> Collections.synchronizedMap(
+						new LinkedHashMap<List<Object>, Double>(16, 0.75f, true) {
+							@Override
+							protected boolean removeEldestEntry(
+									Map.Entry<List<Object>, Double> eldest) {
+								return size() > MAX_CACHED_ESTIMATES;
+							}
+						}));
+		List<Object> key = Arrays.asList(new HashSet<String>(query.getQueryVars()),
+				query.getEvidence().copy());
+		Double likelihood = cache.get(key);
+		if (likelihood == null) {
+			likelihood =
+					GibbsSampling.estimateEvidenceLikelihood(query, PILOT_DRAWS);
+			cache.put(key, likelihood);
+		}
+		return likelihood;
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Returns true if the nodes of the query can be converted into discrete factors
+	 * (i.e. if none of them has a continuous distribution or more than
+	 * MAX_BRANCHING_FACTOR parents), and false otherwise.
+	 * 
+	 * @param query the query
+	 * @return true if the query nodes can be converted into factors
+	 */
+	private static boolean isFactorisable(Query query) {
 		for (BNode node : query.getFilteredSortedNodes()) {
 			if (node.getInputNodeIds().size() > MAX_BRANCHING_FACTOR) {
-				return lw;
+				return false;
 			}
-			if (node instanceof ChanceNode) {
-				if (((ChanceNode) node)
-						.getDistrib() instanceof ContinuousDistribution) {
-					return lw;
-				}
-				int nbValues = ((ChanceNode) node).getNbValues();
-				for (ChanceNode i : node.getInputNodes(ChanceNode.class)) {
-					nbValues *= i.getNbValues();
-				}
-				if (nbValues > MAX_NBVALUES) {
-					return lw;
-				}
+		}
+		return query.isDiscrete();
+	}
+
+	/**
+	 * Selects the algorithm for the query based on the predicted costs.
+	 * 
+	 * @param query the query
+	 * @return the selection
+	 */
+	private Selection select(Query query) {
+		double exactCost = getExactCost(query);
+		double propagationCost = getPropagationCost(query);
+		double samplingCost = getSamplingCost(query);
+		double miniBucketCost = (exactCost > samplingCost)
+				? getMiniBucketCost(query) : Double.POSITIVE_INFINITY;
+		InferenceAlgorithm algo = (USE_JUNCTION_TREE) ? jt : ve;
+		if (exactCost > samplingCost) {
+			algo = (propagationCost < samplingCost) ? bp : lw;
+			if (miniBucketCost < Math.min(propagationCost, samplingCost)) {
+				algo = mb;
+			}
+		}
+		if (algo == lw && USE_GIBBS && !query.getEvidence().isEmpty()
+				&& getEvidenceLikelihood(query) < MIN_EVIDENCE_LIKELIHOOD) {
+			algo = gibbs;
+		}
+		return new Selection(query, algo, exactCost, propagationCost,
+				miniBucketCost, samplingCost);
+	}
+
+	/**
+	 * Runs the inference with the selected algorithm, and logs its time. If the
+	 * deadline of the query expires before the selected algorithm completes (for
+	 * algorithms that cannot return a partial result, such as exact inference),
+	 * the inference falls back on likelihood weighting, which returns the samples
+	 * collected within the deadline.
+	 * 
+	 * @param selection the selected algorithm
+	 * @param inference the inference to run
+	 * @return the inference result
+	 */
+	private <T> T run(Selection selection,
+			Function<InferenceAlgorithm, T> inference) {
+		try {
+			return inference.apply(selection.algo);
+		}
+		catch (Deadline.ExpiredException e) {
+			log.fine(selection.algo.getClass().getSimpleName() + " interrupted for "
+					+ selection.query + ", falling back on likelihood weighting");
+			return inference.apply(lw);
+		}
+		finally {
+			selection.logTime();
+		}
+	}
+
+	/**
+	 * Algorithm selected for a query, along with the predicted costs and the start
+	 * time of the inference.
+	 */
+	private static final class Selection {
+
+		final Query query;
+		final InferenceAlgorithm algo;
+		final double exactCost;
+		final double propagationCost;
+		final double miniBucketCost;
+		final double samplingCost;
+		final long start;
+
+		Selection(Query query, InferenceAlgorithm algo, double exactCost,
+				double propagationCost, double miniBucketCost,
+				double samplingCost) {
+			this.query = query;
+			this.algo = algo;
+			this.exactCost = exactCost;
+			this.propagationCost = propagationCost;
+			this.miniBucketCost = miniBucketCost;
+			this.samplingCost = samplingCost;
+			this.start = System.nanoTime();
+		}
+
+		/**
+		 * Logs the predicted costs and the actual inference time (in milliseconds)
+		 */
+		void logTime() {
+			if (log.isLoggable(Level.FINE)) {
+				double time = (System.nanoTime() - start) / 1000000.0;
+				log.fine(algo.getClass().getSimpleName() + " selected for query "
+						+ query + " (predicted exact cost: " + exactCost / 1000000.0
+						+ " ms, predicted propagation cost: "
+						+ propagationCost / 1000000.0
+						+ " ms, predicted mini-bucket cost: "
+						+ miniBucketCost / 1000000.0
+						+ " ms, predicted sampling cost: "
+						+ samplingCost / 1000000.0 + " ms, actual time: " + time
+						+ " ms)");
 			}
 		}
-		return ve;
 	}
 
 }
@@ -0,0 +1,194 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.inference.approximate;
+
+import java.util.logging.*;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+
+import opendial.utils.RandomUtils;
+
+/**
+ * Alias table (Walker's alias method, in the variant of Vose) for sampling content
+ * objects according to their probabilities (or weights) in constant time. The
+ * table is built in time linear in the number of objects, and each draw then
+ * requires a single uniform integer and a single uniform double.
+ * 
+ * <p>
+ * Each slot i of the table contains an object, the probability of keeping this
+ * object, and an alias slot whose object is selected otherwise.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ *
+ * @param <T> the type of the content objects
+ */
+public class AliasTable<T> {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	// the content objects
+	final T[] objects;
+
+	// probability of keeping the object in each slot
+	final double[] keepProbs;
+
+	// alias slot for each slot
+	final int[] aliases;
+
+	// total probability (or weight) for the table
+	final double totalProb;
+
+	/**
+	 * Creates a new alias table with a set of (content,probability) pairs
+	 * 
+	 * @param table the table from which to create the alias table
+	 */
+	public AliasTable(Map<T, Double> table) {
+		this(table.keySet(), a -> table.get(a));
+	}
+
+	/**
+	 * Creates a new alias table with a collection of values and a function
+	 * specifying the probability (or weight) of each value
+	 * 
+	 * @param content the collection of content objects
+	 * @param probs the function associating a weight to each object
+	 */
+	@SuppressWarnings("unchecked")
+	public AliasTable(Collection<T> content, Function<T, Double> probs) {
+
+		int n = content.size();
+		objects = (T[]) new Object[n];
+		double[] weights = new double[n];
+		double total = 0.0;
+		int i = 0;
+		for (T a : content) {
+			double prob = probs.apply(a);
+			if (Double.isNaN(prob)) {
+				throw new RuntimeException("probability is NaN: " + a);
+			}
+			objects[i] = a;
+			weights[i] = Math.max(prob, 0.0);
+			total += weights[i];
+			i++;
+		}
+		if (n > 0 && total < 0.0001) {
+			throw new RuntimeException("total prob is null: " + content);
+		}
+		totalProb = total;
+		keepProbs = new double[n];
+		aliases = new int[n];
+
+		// the slots are split into "small" (scaled weight below 1) and "large" ones,
+		// and each small slot is then completed with the excess of a large one
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int nbSmall = 0;
+		int nbLarge = 0;
+		for (i = 0; i < n; i++) {
+			weights[i] = weights[i] * n / total;
+			if (weights[i] < 1.0) {
+				small[nbSmall++] = i;
+			}
+			else {
+				large[nbLarge++] = i;
+			}
+		}
+		while (nbSmall > 0 && nbLarge > 0) {
+			int s = small[--nbSmall];
+			int l = large[--nbLarge];
+			keepProbs[s] = weights[s];
+			aliases[s] = l;
+			weights[l] = (weights[l] + weights[s]) - 1.0;
+			if (weights[l] < 1.0) {
+				small[nbSmall++] = l;
+			}
+			else {
+				large[nbLarge++] = l;
+			}
+		}
+
+		// the remaining slots (including those left by rounding errors) are full
+		while (nbLarge > 0) {
+			int l = large[--nbLarge];
+			keepProbs[l] = 1.0;
+			aliases[l] = l;
+		}
+		while (nbSmall > 0) {
+			int s = small[--nbSmall];
+			keepProbs[s] = 1.0;
+			aliases[s] = s;
+		}
+	}
+
+	/**
+	 * Samples an object from the alias table.
+	 * 
+	 * @return the sampled object
+	 */
+	public T sample() {
+		if (objects.length == 0) {
+			throw new RuntimeException("could not sample: empty alias table");
+		}
+		int slot = RandomUtils.nextInt(objects.length);
+		if (RandomUtils.nextDouble() < keepProbs[slot]) {
+			return objects[slot];
+		}
+		return objects[aliases[slot]];
+	}
+
+	/**
+	 * Returns the total probability (or weight) of the table
+	 * 
+	 * @return the total probability
+	 */
+	public double getTotalProb() {
+		return totalProb;
+	}
+
+	/**
+	 * Returns true is the table is empty (no elements), false otherwise
+	 * 
+	 * @return whether the table is empty
+	 */
+	public boolean isEmpty() {
+		return (objects.length == 0);
+	}
+
+	/**
+	 * Returns a string representation of the alias table
+	 */
+	@Override
+	public String toString() {
+		String s = "";
+		for (int i = 0; i < objects.length; i++) {
+			s += objects[i] + "[" + keepProbs[i] + "," + objects[aliases[i]] + "]\n";
+		}
+		return s;
+	}
+
+}
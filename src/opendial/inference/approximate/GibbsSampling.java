@@ -0,0 +1,497 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.approximate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.*;
+import java.util.stream.IntStream;
+
+import opendial.Settings;
+import opendial.bn.BNetwork;
+import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.EmpiricalDistribution;
+import opendial.bn.distribs.IndependentDistribution;
+import opendial.bn.distribs.UtilityTable;
+import opendial.bn.nodes.BNode;
+import opendial.bn.values.Value;
+import opendial.datastructs.Deadline;
+import opendial.inference.InferenceAlgorithm;
+import opendial.inference.Query;
+import opendial.utils.RandomUtils;
+
+/**
+ * Markov chain Monte Carlo inference based on (block) Gibbs sampling. Contrary to
+ * likelihood weighting, the samples are drawn from the posterior distribution
+ * given the evidence, which avoids the degeneracy of the sample weights when the
+ * evidence is unlikely or located deep in the network.
+ * 
+ * <p>
+ * Each chain is initialised with the most likely of INIT_DRAWS forward draws. At
+ * each sweep, the non-evidence variables are resampled from their distribution
+ * given their Markov blanket (their input nodes, output nodes and the other input
+ * nodes of their output nodes). The input nodes of each evidence node are
+ * resampled jointly (as one block) when their number of value combinations does
+ * not exceed MAX_BLOCK_SIZE, since the evidence makes them strongly dependent. The
+ * first BURN_IN sweeps of each chain are discarded, and one sample is collected
+ * every THINNING sweeps. NB_CHAINS chains are run in parallel.
+ * 
+ * <p>
+ * The algorithm requires all non-evidence chance nodes to be discrete. Queries
+ * with continuous non-evidence nodes are delegated to likelihood weighting.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class GibbsSampling implements InferenceAlgorithm {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Number of sweeps discarded at the start of each chain */
+	public static int BURN_IN = 100;
+
+	/** Number of sweeps between two collected samples */
+	public static int THINNING = 2;
+
+	/** Number of chains run in parallel */
+	public static int NB_CHAINS = 4;
+
+	/** Maximum number of value combinations for a block of variables */
+	public static int MAX_BLOCK_SIZE = 100;
+
+	/** Number of forward draws from which each chain is initialised */
+	public static int INIT_DRAWS = 20;
+
+	// number of samples to collect (over all chains)
+	int nbSamples = Settings.nbSamples;
+
+	// maximum sampling time (in milliseconds)
+	long maxSamplingTime = Settings.maxSamplingTime;
+
+	// algorithm used for the queries with continuous non-evidence nodes
+	SamplingAlgorithm lw;
+
+	/**
+	 * Creates a new Gibbs sampling algorithm, with the default number of samples
+	 * and sampling time
+	 */
+	public GibbsSampling() {
+		lw = new SamplingAlgorithm();
+	}
+
+	/**
+	 * Creates a new Gibbs sampling algorithm with the specified number of samples
+	 * and sampling time
+	 * 
+	 * @param nbSamples the number of samples to collect
+	 * @param maxSamplingTime the maximum sampling time
+	 */
+	public GibbsSampling(int nbSamples, long maxSamplingTime) {
+		this.nbSamples = nbSamples;
+		this.maxSamplingTime = maxSamplingTime;
+		lw = new SamplingAlgorithm(nbSamples, maxSamplingTime);
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Queries for the probability distribution of the set of random variables in the
+	 * Bayesian network, given the provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the resulting empirical distribution
+	 */
+	@Override
+	public EmpiricalDistribution queryProb(Query.ProbQuery query) {
+		Chains chains = new Chains(query);
+		if (!chains.isApplicable()) {
+			return lw.queryProb(query);
+		}
+		SampleBatch samples = chains.run();
+		EmpiricalDistribution distrib = new EmpiricalDistribution(samples);
+
+		// the statistics assume independent samples, and thus ignore the
+		// autocorrelation of the chains
+		SamplingStatistics statistics =
+				new SamplingStatistics(query.getQueryVars(), false);
+		statistics.addSamples(samples, 0);
+		distrib.setSamplingStatistics(statistics.getEffectiveSampleSize(),
+				statistics.getErrorEstimate());
+		return distrib;
+	}
+
+	/**
+	 * Computes the marginal distribution of each query variable from a single set of
+	 * samples.
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	@Override
+	public Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		EmpiricalDistribution distrib = queryProb(query);
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : query.getQueryVars()) {
+			marginals.put(queryVar, distrib.getMarginal(queryVar));
+		}
+		return marginals;
+	}
+
+	/**
+	 * Queries for the utility of a particular set of (action) variables, given the
+	 * provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the utility distribution
+	 */
+	@Override
+	public UtilityTable queryUtil(Query.UtilQuery query) {
+		Chains chains = new Chains(query);
+		if (!chains.isApplicable()) {
+			return lw.queryUtil(query);
+		}
+		UtilityTable utilityTable = new UtilityTable();
+		utilityTable.incrementUtils(chains.run());
+		return utilityTable;
+	}
+
+	/**
+	 * Reduces the Bayesian network to a subset of its variables, based on the
+	 * samples collected for the query variables.
+	 * 
+	 * @param query the reduction query
+	 * @return the reduced Bayesian network
+	 */
+	@Override
+	public BNetwork reduce(Query.ReduceQuery query) {
+		Chains chains = new Chains(query);
+		if (!chains.isApplicable()) {
+			return lw.reduce(query);
+		}
+		return SamplingAlgorithm.createReducedNetwork(query, chains.run());
+	}
+
+	/**
+	 * Estimates the likelihood of the evidence of the query (as the average weight
+	 * of forward draws).
+	 * 
+	 * @param query the query
+	 * @param nbDraws the number of draws
+	 * @return the estimated likelihood of the evidence
+	 */
+	public static double estimateEvidenceLikelihood(Query query, int nbDraws) {
+		if (query.getEvidence().isEmpty()) {
+			return 1.0;
+		}
+		List<BNode> sortedNodes = query.getFilteredSortedNodes();
+		Collections.reverse(sortedNodes);
+		SamplingPlan plan = new SamplingPlan(sortedNodes, query.getEvidence(),
+				query.getQueryVars());
+		return plan.estimateEvidenceLikelihood(nbDraws);
+	}
+
+	// ===================================
+	// MARKOV CHAINS
+	// ===================================
+
+	/**
+	 * Markov chains for a particular query, compiled from the sampling plan of the
+	 * query. Each block of slots is associated with the slots whose probability
+	 * depends on the block (the slots of the block and of their output nodes).
+	 */
+	final class Chains {
+
+		final Query query;
+
+		// the sampling plan for the query
+		final SamplingPlan plan;
+
+		// the domain of each slot (null if the slot is not resampled)
+		final Value[][] domains;
+
+		// the blocks of slots that are resampled together
+		final List<int[]> blocks = new ArrayList<int[]>();
+
+		// the slots whose probabilities depend on each block
+		final List<int[]> blockFactors = new ArrayList<int[]>();
+
+		// the slots of the utility nodes
+		final int[] utilitySlots;
+
+		// whether the query can be handled by Gibbs sampling
+		boolean applicable = true;
+
+		/**
+		 * Compiles the chains for the query.
+		 * 
+		 * @param query the query
+		 */
+		Chains(Query query) {
+			this.query = query;
+			List<BNode> sortedNodes = query.getFilteredSortedNodes();
+			Collections.reverse(sortedNodes);
+			plan = new SamplingPlan(sortedNodes, query.getEvidence(),
+					query.getQueryVars());
+			int nbSlots = plan.size();
+
+			// retrieves the domains of the slots to resample
+			domains = new Value[nbSlots][];
+			List<List<Integer>> outputSlots = new ArrayList<List<Integer>>();
+			List<Integer> utilities = new ArrayList<Integer>();
+			for (int i = 0; i < nbSlots; i++) {
+				SamplingPlan.NodeSampler sampler = plan.samplers[i];
+				outputSlots.add(new ArrayList<Integer>());
+				if (sampler instanceof SamplingPlan.ChanceSampler) {
+					SamplingPlan.ChanceSampler chance =
+							(SamplingPlan.ChanceSampler) sampler;
+					if (chance.node
+							.peekDistrib() instanceof ContinuousDistribution) {
+						applicable = false;
+					}
+					domains[i] = chance.node.getValues().toArray(new Value[0]);
+				}
+				else if (sampler instanceof SamplingPlan.ActionSampler) {
+					domains[i] = ((SamplingPlan.ActionSampler) sampler).node
+							.getValues().toArray(new Value[0]);
+				}
+				else if (sampler instanceof SamplingPlan.UtilitySampler) {
+					utilities.add(i);
+				}
+			}
+			utilitySlots = utilities.stream().mapToInt(i -> i).toArray();
+			for (int i = 0; i < nbSlots; i++) {
+				if (!(plan.samplers[i] instanceof SamplingPlan.UtilitySampler)) {
+					for (int input : plan.samplers[i].inputSlots) {
+						outputSlots.get(input).add(i);
+					}
+				}
+			}
+
+			// the inputs of each evidence node are grouped in a block
+			boolean[] inBlock = new boolean[nbSlots];
+			for (int i = 0; i < nbSlots; i++) {
+				if (plan.samplers[i] instanceof SamplingPlan.EvidenceSampler) {
+					List<Integer> block = new ArrayList<Integer>();
+					long size = 1;
+					for (int input : plan.samplers[i].inputSlots) {
+						if (domains[input] != null && !inBlock[input]) {
+							block.add(input);
+							size *= domains[input].length;
+						}
+					}
+					if (block.size() > 1 && size <= MAX_BLOCK_SIZE) {
+						block.forEach(s -> inBlock[s] = true);
+						addBlock(block, outputSlots);
+					}
+				}
+			}
+
+			// the remaining variables are resampled one by one
+			for (int i = 0; i < nbSlots; i++) {
+				if (domains[i] != null && !inBlock[i]) {
+					addBlock(Collections.singletonList(i), outputSlots);
+				}
+			}
+		}
+
+		/**
+		 * Returns true if all non-evidence chance nodes are discrete, and false
+		 * otherwise.
+		 * 
+		 * @return true if the chains can be run, false otherwise
+		 */
+		boolean isApplicable() {
+			return applicable;
+		}
+
+		/**
+		 * Runs the chains in parallel and returns the collected samples.
+		 * 
+		 * @return the collected (unweighted) samples
+		 */
+		SampleBatch run() {
+			long seed = RandomUtils.newSeed();
+			Deadline deadline =
+					query.getDeadline().withTimeout(maxSamplingTime);
+			int nbChains = Math.max(1, NB_CHAINS);
+			int samplesPerChain = (nbSamples + nbChains - 1) / nbChains;
+			List<String> sampledVars = plan.getQueryVariables();
+			return IntStream.range(0, nbChains).parallel().collect(
+					() -> new SampleBatch(sampledVars), (batch, c) -> {
+						RandomUtils.runSeeded(seed, c,
+								() -> runChain(batch, samplesPerChain, deadline));
+					}, (b1, b2) -> b1.addAll(b2));
+		}
+
+		/**
+		 * Runs one chain and adds the collected samples to the batch. The chain
+		 * stops once the number of samples is reached, or when the deadline has
+		 * expired (provided a minimum number of samples has been collected).
+		 * 
+		 * @param batch the batch in which to add the samples
+		 * @param nbChainSamples the number of samples to collect
+		 * @param deadline the deadline for the sampling
+		 */
+		void runChain(SampleBatch batch, int nbChainSamples, Deadline deadline) {
+			SamplingPlan.Buffer buffer = new SamplingPlan.Buffer(plan.samplers);
+			Value[] initValues = null;
+			double initWeight = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < Math.max(1, INIT_DRAWS); i++) {
+				plan.draw(buffer);
+				if (initValues == null || buffer.logWeight > initWeight) {
+					initValues = buffer.values.clone();
+					initWeight = buffer.logWeight;
+				}
+			}
+			System.arraycopy(initValues, 0, buffer.values, 0, initValues.length);
+
+			int minSamples = Math.max(1, LikelihoodWeighting.MIN_DRAWS / NB_CHAINS);
+			int nbCollected = 0;
+			for (int sweep = 0; nbCollected < nbChainSamples; sweep++) {
+				boolean expired = deadline.isExpired();
+				if (expired && nbCollected >= minSamples) {
+					break;
+				}
+				for (int b = 0; b < blocks.size(); b++) {
+					resample(b, buffer);
+				}
+				if (expired || (sweep >= BURN_IN
+						&& (sweep - BURN_IN) % Math.max(1, THINNING) == 0)) {
+					buffer.logWeight = 0.0;
+					buffer.utility = 0.0;
+					for (int slot : utilitySlots) {
+						plan.samplers[slot].sample(buffer);
+					}
+					plan.addSample(buffer, batch);
+					nbCollected++;
+				}
+			}
+		}
+
+		/**
+		 * Resamples the values of the block from their distribution given the
+		 * current values of the other slots.
+		 * 
+		 * @param b the block index
+		 * @param buffer the buffer with the current values
+		 */
+		private void resample(int b, SamplingPlan.Buffer buffer) {
+			int[] block = blocks.get(b);
+			int[] factors = blockFactors.get(b);
+			int size = 1;
+			for (int slot : block) {
+				size *= domains[slot].length;
+			}
+			double[] cumulative = new double[size];
+			int[] indices = new int[block.length];
+			double total = 0.0;
+			for (int i = 0; i < size; i++) {
+				setValues(block, indices, buffer);
+				double prob = 1.0;
+				for (int j = 0; j < factors.length && prob > 0; j++) {
+					prob *= plan.samplers[factors[j]].getProb(buffer);
+				}
+				total += prob;
+				cumulative[i] = total;
+				increment(block, indices);
+			}
+
+			// if all combinations are impossible, the values are drawn uniformly
+			int selected = (total > 0) ? 0 : RandomUtils.nextInt(size);
+			if (total > 0) {
+				double draw = RandomUtils.nextDouble() * total;
+				while (selected < size - 1 && cumulative[selected] <= draw) {
+					selected++;
+				}
+			}
+			for (int k = block.length - 1; k >= 0; k--) {
+				indices[k] = selected % domains[block[k]].length;
+				selected /= domains[block[k]].length;
+			}
+			setValues(block, indices, buffer);
+		}
+
+		/**
+		 * Adds a new block of slots, along with the slots whose probability depends
+		 * on the block.
+		 * 
+		 * @param block the slots of the block
+		 * @param outputSlots the output slots of each slot
+		 */
+		private void addBlock(List<Integer> block,
+				List<List<Integer>> outputSlots) {
+			List<Integer> factors = new ArrayList<Integer>();
+			for (int slot : block) {
+				if (!factors.contains(slot)) {
+					factors.add(slot);
+				}
+				for (int output : outputSlots.get(slot)) {
+					if (!factors.contains(output)) {
+						factors.add(output);
+					}
+				}
+			}
+			blocks.add(block.stream().mapToInt(i -> i).toArray());
+			blockFactors.add(factors.stream().mapToInt(i -> i).toArray());
+		}
+
+		/**
+		 * Writes the values of the block in the buffer
+		 * 
+		 * @param block the slots of the block
+		 * @param indices the indices of the values in the domain of each slot
+		 * @param buffer the buffer
+		 */
+		private void setValues(int[] block, int[] indices,
+				SamplingPlan.Buffer buffer) {
+			for (int k = 0; k < block.length; k++) {
+				buffer.values[block[k]] = domains[block[k]][indices[k]];
+			}
+		}
+
+		/**
+		 * Increments the value indices to the next combination (in row-major
+		 * order).
+		 * 
+		 * @param block the slots of the block
+		 * @param indices the value indices
+		 */
+		private void increment(int[] block, int[] indices) {
+			for (int k = block.length - 1; k >= 0; k--) {
+				indices[k]++;
+				if (indices[k] < domains[block[k]].length) {
+					return;
+				}
+				indices[k] = 0;
+			}
+		}
+	}
+
+}
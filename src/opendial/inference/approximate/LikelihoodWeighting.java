@@ -1,24 +1,19 @@
 package opendial.inference.approximate;
 
 import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Stack;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
-
-import opendial.bn.distribs.ContinuousDistribution;
-import opendial.bn.distribs.ProbDistribution;
-import opendial.bn.nodes.ActionNode;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
 import opendial.bn.nodes.BNode;
-import opendial.bn.nodes.ChanceNode;
-import opendial.bn.nodes.UtilityNode;
-import opendial.bn.values.Value;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
 import opendial.inference.Query;
+import opendial.utils.RandomUtils;
 
 /**
  * Sampling process (based on likelihood weighting) for a particular query.
@@ -33,25 +28,50 @@ public class LikelihoodWeighting {
 	// actual number of samples for the algorithm
 	int nbSamples;
 
+	// tolerance on the error estimate for the anytime mode (0 if disabled)
+	double tolerance;
+
+	// minimum number of draws per batch in the anytime mode
+	public static int MIN_BATCH_SIZE = 100;
+
+	// number of batches in the anytime mode (if the sampling does not converge)
+	public static int NB_BATCHES = 10;
+
 	public static double WEIGHT_THRESHOLD = 0.0001f;
 
-	// the stack of weighted samples which have been collected so far
-	Stack<Sample> samples = new Stack<Sample>();
+	// minimum number of draws (performed even if the deadline has expired)
+	public static int MIN_DRAWS = 50;
+
+	/** Schemes for redrawing the samples according to their weight */
+	public static enum Resampling {
+		SYSTEMATIC, STRATIFIED, MULTINOMIAL
+	}
+
+	// scheme used to redraw the samples
+	public static Resampling RESAMPLING = Resampling.SYSTEMATIC;
+
+	// number of strata handled by each parallel task when redrawing the samples
+	public static int RESAMPLING_BLOCK_SIZE = 512;
+
+	// the batch of weighted samples which have been collected so far
+	SampleBatch samples;
 
 	// the query
 	Query query;
 	Collection<String> queryVars;
 	Assignment evidence;
 
-	// sorted nodes in the network
-	List<BNode> sortedNodes;
+	// compiled sampling plan for the sorted nodes in the network
+	SamplingPlan plan;
+
+	// statistics on the collected samples
+	SamplingStatistics statistics;
 
-	// termination status
-	boolean isTerminated = false;
+	// seed of the query (from which the generators for each draw are derived)
+	long seed;
 
-	// scheduled thread pool to terminate sampling once the time limit is
-	// reached
-	static ScheduledExecutorService service = Executors.newScheduledThreadPool(2);
+	// deadline for the sampling (bounded by the deadline of the query)
+	Deadline deadline;
 
 	// ===================================
 	// PUBLIC METHODS
@@ -66,26 +86,51 @@ public class LikelihoodWeighting {
 	 * @param maxSamplingTime maximum sampling time (in milliseconds)
 	 */
 	public LikelihoodWeighting(Query query, int nbSamples, long maxSamplingTime) {
+		this(query, nbSamples, maxSamplingTime, 0.0);
+	}
+
+	/**
+	 * Creates a new sampling query with the given arguments and starts sampling
+	 * (using parallel streams). If the tolerance is positive, the sampling runs in
+	 * anytime mode: the samples are drawn in batches, and the sampling stops as soon
+	 * as the estimated error on the query estimates falls below the tolerance.
+	 * 
+	 * @param query the query to answer
+	 * @param nbSamples the (maximum) number of samples to collect
+	 * @param maxSamplingTime maximum sampling time (in milliseconds)
+	 * @param tolerance the tolerance on the error estimate (0 to disable)
+	 */
+	public LikelihoodWeighting(Query query, int nbSamples, long maxSamplingTime,
+			double tolerance) {
 		this.query = query;
 		this.evidence = query.getEvidence();
 		this.queryVars = query.getQueryVars();
 
 		this.nbSamples = nbSamples;
-		sortedNodes = query.getFilteredSortedNodes();
+		this.tolerance = tolerance;
+		this.seed = RandomUtils.newSeed();
+		this.deadline = query.getDeadline().withTimeout(maxSamplingTime);
+		List<BNode> sortedNodes = query.getFilteredSortedNodes();
 		Collections.reverse(sortedNodes);
-		service.schedule(() -> isTerminated = true, maxSamplingTime,
-				TimeUnit.MILLISECONDS);
-		Stream.generate(() -> this)
-				// creates infinite stream
-				.parallel()
-				// parallelise
-				.map(p -> p.sample())
-				// generate a sample
-				.limit(nbSamples)
-				// stop when nbSamples are collected
-				.filter(s -> s.getWeight() > WEIGHT_THRESHOLD)
-				.filter(s -> !s.isEmpty()) // discard empty samples
-				.forEach(s -> samples.add(s)); // makes a list of samples
+		plan = new SamplingPlan(sortedNodes, evidence, queryVars);
+		samples = new SampleBatch(plan.getQueryVariables());
+		statistics =
+				new SamplingStatistics(queryVars, query instanceof Query.UtilQuery);
+
+		int batchSize = (tolerance > 0.0)
+				? Math.max(MIN_BATCH_SIZE, nbSamples / NB_BATCHES) : nbSamples;
+		int nbDraws = 0;
+		while (nbDraws < nbSamples
+				&& (nbDraws < MIN_DRAWS || !deadline.isExpired())) {
+			int nbCollected = samples.size();
+			int nbNewDraws = Math.min(batchSize, nbSamples - nbDraws);
+			collectSamples(nbDraws, nbNewDraws);
+			nbDraws += nbNewDraws;
+			statistics.addSamples(samples, nbCollected);
+			if (tolerance > 0.0 && statistics.hasConverged(tolerance)) {
+				break;
+			}
+		}
 	}
 
 	/**
@@ -98,59 +143,85 @@ public class LikelihoodWeighting {
 	}
 
 	/**
-	 * Returns the collected samples
+	 * Returns the collected samples. As in the columnar form, the samples are first
+	 * redrawn according to their weight, and a sample drawn several times is
+	 * returned as several references to the same object.
+	 * 
+	 * <p>
+	 * The samples are always redrawn with the multinomial scheme, as the weighting
+	 * schemes applied to these samples (see SamplingAlgorithm.getWeightedSamples)
+	 * reweight each reference to a shared sample.
 	 * 
 	 * @return the collected samples
 	 */
 	public List<Sample> getSamples() {
-		redrawSamples();
+		SampleBatch collected = samples;
+		int[] rows = redrawSamples(Resampling.MULTINOMIAL);
+		Sample[] cache = new Sample[collected.size()];
+		List<Sample> result = new ArrayList<Sample>(rows.length);
+		for (int row : rows) {
+			if (cache[row] == null) {
+				cache[row] = collected.getSample(row);
+			}
+			result.add(cache[row]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the collected samples, in columnar form
+	 * 
+	 * @return the batch of collected samples
+	 */
+	public SampleBatch getSampleBatch() {
+		redrawSamples(RESAMPLING);
 		return samples;
 	}
 
 	/**
-	 * Runs the sample collection procedure until termination (either due to a
-	 * time-out or the collection of a number of samples = nbSamples). The method
-	 * loops until terminate() is called, or enough samples have been collected.
+	 * Returns the effective sample size of the (weighted) samples collected by the
+	 * query
+	 * 
+	 * @return the effective sample size
+	 */
+	public double getEffectiveSampleSize() {
+		return statistics.getEffectiveSampleSize();
+	}
+
+	/**
+	 * Returns the estimated standard error on the query estimates (marginal
+	 * probabilities or mean utilities).
+	 * 
+	 * @return the error estimate
+	 */
+	public double getErrorEstimate() {
+		return statistics.getErrorEstimate();
+	}
+
+	/**
+	 * Draws one sample from the network.
 	 * 
-	 * @return the resulting sample
+	 * <p>
+	 * The draw is performed on the reusable buffer of the sampling plan, and the
+	 * values of the query variables are only added to the batch if the weight of
+	 * the draw is above the threshold (and the sample is not empty).
 	 * 
+	 * @param batch the batch in which to add the sample
 	 */
-	protected Sample sample() {
-		Sample sample = new Sample();
-		if (isTerminated) {
-			return sample;
+	protected void sample(SampleBatch batch) {
+		if (batch.getVariables().isEmpty()) {
+			return;
 		}
 		try {
-			for (BNode n : sortedNodes) {
-				String id = n.getId();
-
-				// if the node is an evidence node and has no input nodes
-				if (n.getInputNodeIds().isEmpty() && evidence.containsVar(id)) {
-					sample.addPair(id, evidence.getValue(id));
-
-				}
-				else if (n instanceof ChanceNode) {
-					sampleChanceNode((ChanceNode) n, sample);
-				}
-
-				// if the node is an action node
-				else if (n instanceof ActionNode) {
-					sampleActionNode((ActionNode) n, sample);
-				}
-
-				// finally, if the node is a utility node, calculate the utility
-				else if (n instanceof UtilityNode) {
-					double newUtil = ((UtilityNode) n).getUtility(sample);
-					sample.addUtility(newUtil);
-				}
+			SamplingPlan.Buffer buffer = plan.draw();
+			if (buffer.logWeight > Math.log(WEIGHT_THRESHOLD)) {
+				plan.addSample(buffer, batch);
 			}
-			sample.trim(queryVars);
 		}
 		catch (RuntimeException e) {
 			log.warning("exception caught: " + e);
 			e.printStackTrace();
 		}
-		return sample;
 	}
 
 	// ===================================
@@ -158,79 +229,134 @@ public class LikelihoodWeighting {
 	// ===================================
 
 	/**
-	 * Samples the given chance node and add it to the sample. If the variable is
-	 * part of the evidence, updates the weight.
+	 * Draws a batch of samples in parallel, and adds those that are not discarded
+	 * to the collected samples. Each draw uses its own random generator, derived
+	 * from the query seed and the draw index, such that the collected samples do
+	 * not depend on the scheduling of the threads. The
+	 * draws are skipped once the deadline of the sampling has expired (except for
+	 * the first MIN_DRAWS ones).
 	 * 
-	 * @param n the chance node to sample
+	 * @param firstDraw the index of the first draw in the batch
+	 * @param nbDraws the number of draws in the batch
 	 */
-	private void sampleChanceNode(ChanceNode n, Sample sample) {
-
-		String id = n.getId();
-		// if the node is chance node and not evidence, sample from the values
-		if (!evidence.containsVar(id)) {
-			Value newVal = n.sample(sample);
-			sample.addPair(id, newVal);
-		}
+	private void collectSamples(int firstDraw, int nbDraws) {
+		List<String> sampledVars = samples.getVariables();
+		SampleBatch newSamples = IntStream.range(firstDraw, firstDraw + nbDraws)
+				// parallelise
+				.parallel()
+				// each worker fills its own batch
+				.collect(() -> new SampleBatch(sampledVars), (batch, i) -> {
+					if (i < MIN_DRAWS || !deadline.isExpired()) {
+						// generate a sample from a generator specific to the draw
+						RandomUtils.runSeeded(seed, i, () -> sample(batch));
+					}
+				}, (b1, b2) -> b1.addAll(b2)); // merge the batches (in order)
+		samples.addAll(newSamples);
+	}
 
-		// if the node is an evidence node, update the weights
-		else {
-			Value evidenceValue = evidence.getValue(id);
-			ProbDistribution distrib = n.getDistrib();
-			double evidenceProb = 1.0;
-			if (distrib instanceof ContinuousDistribution) {
-				evidenceProb = ((ContinuousDistribution) distrib)
-						.getProbDensity(evidenceValue);
-			}
-			else {
-				evidenceProb = n.getProb(sample, evidenceValue);
-			}
-			sample.addLogWeight(Math.log(evidenceProb));
-			sample.addPair(id, evidenceValue);
-		}
+	/**
+	 * Redraw the samples according to their weight. The number of redrawn samples is
+	 * the same as the number of collected samples.
+	 * 
+	 * <p>
+	 * In the systematic and stratified schemes, the interval [0, total weight) is
+	 * divided into as many strata as samples, and one position is drawn in each
+	 * stratum (at the same offset for all strata in the systematic scheme, and at
+	 * independent offsets in the stratified scheme). In the multinomial scheme, each
+	 * position is drawn independently over the whole interval. The positions are
+	 * processed in parallel, in blocks of RESAMPLING_BLOCK_SIZE.
+	 * 
+	 * @param scheme the resampling scheme
+	 * @return the rows of the previously collected samples that were redrawn
+	 */
+	private int[] redrawSamples(Resampling scheme) {
+		int[] rows = getRedrawnRows(samples, samples.size(), scheme, seed);
+		samples = samples.select(rows);
+		return rows;
 	}
 
 	/**
-	 * Samples the action node. If the node is part of the evidence, simply add it to
-	 * the sample. Else, samples an action at random.
+	 * Returns the rows of the batch that are redrawn according to their weight,
+	 * using the given scheme (see {@link #redrawSamples(Resampling)}). If the total
+	 * weight of the batch is zero, the rows are returned as such.
 	 * 
-	 * @param n the action node
-	 * @param sample the weighted sample to extend
+	 * @param collected the batch of weighted samples
+	 * @param nbRows the number of rows to redraw
+	 * @param scheme the resampling scheme
+	 * @param seed the seed from which the random generators are derived
+	 * @return the redrawn rows
 	 */
-	private void sampleActionNode(ActionNode n, Sample sample) {
+	static int[] getRedrawnRows(SampleBatch collected, int nbRows,
+			Resampling scheme, long seed) {
+		int sampleSize = collected.size();
 
-		String id = n.getId();
-		if (!evidence.containsVar(id) && n.getInputNodeIds().isEmpty()) {
-			Value newVal = n.sample();
-			sample.addPair(id, newVal);
-		}
-		else {
-			Value evidenceValue = evidence.getValue(id);
-			sample.addPair(id, evidenceValue);
+		// cumulative weights of the samples (relative to the largest weight, to
+		// avoid underflows)
+		double maxLogWeight = collected.getMaxLogWeight();
+		double[] cumulative = new double[sampleSize];
+		Arrays.parallelSetAll(cumulative,
+				i -> Math.exp(collected.getLogWeight(i) - maxLogWeight));
+		Arrays.parallelPrefix(cumulative, Double::sum);
+		double total = (sampleSize > 0) ? cumulative[sampleSize - 1] : 0.0;
+		if (!(total > 0.0)) {
+			if (sampleSize > 0) {
+				log.warning("could not redraw samples: total weight is " + total);
+			}
+			return IntStream.range(0, sampleSize).toArray();
 		}
+
+		double offset = RandomUtils.newGenerator(seed, -1).nextDouble();
+		int[] rows = new int[nbRows];
+		int nbBlocks = (nbRows + RESAMPLING_BLOCK_SIZE - 1) / RESAMPLING_BLOCK_SIZE;
+		IntStream.range(0, nbBlocks).parallel().forEach(b -> {
+			SplittableRandom rng = RandomUtils.newGenerator(seed, -2 - b);
+			int row = -1;
+			int end = Math.min((b + 1) * RESAMPLING_BLOCK_SIZE, nbRows);
+			for (int j = b * RESAMPLING_BLOCK_SIZE; j < end; j++) {
+				if (scheme == Resampling.MULTINOMIAL) {
+					double position = rng.nextDouble() * total;
+					rows[j] = getFirstAbove(cumulative, position);
+					continue;
+				}
+				double u = (scheme == Resampling.STRATIFIED)
+						? rng.nextDouble() : offset;
+				double position = (j + u) * total / nbRows;
+
+				// the positions are increasing within a block, so the search only
+				// needs to be done for the first one
+				if (row < 0) {
+					row = getFirstAbove(cumulative, position);
+				}
+				while (row < sampleSize - 1 && cumulative[row] <= position) {
+					row++;
+				}
+				rows[j] = row;
+			}
+		});
+		return rows;
 	}
 
 	/**
-	 * Redraw the samples according to their weight. The number of redrawn samples is
-	 * the same as the one given as argument.
+	 * Returns the index of the first cumulative weight that is strictly above the
+	 * position (using binary search), or the last index if there is none.
 	 * 
-	 * @param samples the initial samples (with their weight)
-	 * @return the redrawn samples given their weight redrawn.
+	 * @param cumulative the cumulative weights (in increasing order)
+	 * @param position the position
+	 * @return the corresponding index
 	 */
-	private void redrawSamples() {
-		try {
-			Intervals<Sample> intervals =
-					new Intervals<Sample>(samples, s -> s.getWeight());
-			Stack<Sample> newSamples = new Stack<Sample>();
-			int sampleSize = samples.size();
-			for (int j = 0; j < sampleSize; j++) {
-				newSamples.add(intervals.sample());
+	private static int getFirstAbove(double[] cumulative, double position) {
+		int min = 0;
+		int max = cumulative.length - 1;
+		while (min < max) {
+			int mid = (min + max) >>> 1;
+			if (cumulative[mid] <= position) {
+				min = mid + 1;
+			}
+			else {
+				max = mid;
 			}
-			samples = newSamples;
-		}
-		catch (RuntimeException e) {
-			log.warning("could not redraw samples: " + e);
-			e.printStackTrace();
 		}
+		return min;
 	}
 
 }
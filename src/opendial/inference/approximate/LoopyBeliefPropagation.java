@@ -0,0 +1,591 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.approximate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.*;
+import java.util.stream.IntStream;
+
+import opendial.Settings;
+import opendial.bn.BNetwork;
+import opendial.bn.distribs.CategoricalTable;
+import opendial.bn.distribs.IndependentDistribution;
+import opendial.bn.distribs.MultivariateDistribution;
+import opendial.bn.distribs.MultivariateTable;
+import opendial.bn.distribs.UtilityTable;
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.bn.values.Value;
+import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
+import opendial.inference.InferenceAlgorithm;
+import opendial.inference.Query;
+import opendial.utils.InferenceUtils;
+
+/**
+ * Loopy belief propagation algorithm, which computes approximate marginal
+ * distributions by passing messages on the factor graph of the Bayesian network
+ * (sum-product algorithm). The factor graph contains one factor per chance and
+ * action node, covering the node and its parents, from which the evidence
+ * variables are removed.
+ * 
+ * <p>
+ * All messages are updated in parallel at each iteration, and are damped in order
+ * to improve the convergence on networks with cycles. The propagation stops when
+ * the maximum change in the messages falls below TOLERANCE, after MAX_ITERATIONS
+ * iterations, or when the deadline of the query expires. The marginals are exact
+ * for networks without undirected cycles.
+ * 
+ * <p>
+ * The joint distribution of several query variables is approximated by the
+ * product of their marginals. Utility queries are answered by running the
+ * propagation for each assignment of the query variables, and summing the
+ * expected utilities of the utility nodes. Reduction queries and networks with
+ * continuous distributions are delegated to likelihood weighting.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class LoopyBeliefPropagation implements InferenceAlgorithm {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Maximum number of iterations of the propagation */
+	public static int MAX_ITERATIONS = 100;
+
+	/** Convergence threshold on the maximum change in the messages */
+	public static double TOLERANCE = 0.0001;
+
+	/** Damping factor (weight of the previous message in each update) */
+	public static double DAMPING = 0.3;
+
+	// maximum propagation time (in milliseconds)
+	long maxTime = Settings.maxSamplingTime;
+
+	// algorithm used for the queries that cannot be handled by the propagation
+	SamplingAlgorithm lw = new SamplingAlgorithm();
+
+	/**
+	 * Creates a new belief propagation algorithm, with the default maximum
+	 * propagation time
+	 */
+	public LoopyBeliefPropagation() {
+	}
+
+	/**
+	 * Creates a new belief propagation algorithm with the specified maximum
+	 * propagation time
+	 * 
+	 * @param maxTime the maximum propagation time (in milliseconds)
+	 */
+	public LoopyBeliefPropagation(long maxTime) {
+		this.maxTime = maxTime;
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Queries for the probability distribution of the set of random variables in the
+	 * Bayesian network, given the provided evidence. The joint distribution is
+	 * approximated by the product of the marginals of the query variables.
+	 * 
+	 * @param query the full query
+	 * @return the corresponding probability table
+	 */
+	@Override
+	public MultivariateDistribution queryProb(Query.ProbQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.queryProb(query);
+		}
+		Map<Assignment, Double> table = new HashMap<Assignment, Double>();
+		table.put(new Assignment(), 1.0);
+		for (IndependentDistribution marginal : queryMarginals(query).values()) {
+			Map<Assignment, Double> newTable = new HashMap<Assignment, Double>();
+			for (Assignment a : table.keySet()) {
+				for (Value v : marginal.getValues()) {
+					double prob = table.get(a) * marginal.getProb(v);
+					if (prob > 0) {
+						newTable.put(new Assignment(a, marginal.getVariable(), v),
+								prob);
+					}
+				}
+			}
+			table = newTable;
+		}
+		MultivariateTable.Builder builder = new MultivariateTable.Builder();
+		builder.addRows(table);
+		return builder.build();
+	}
+
+	/**
+	 * Computes the marginal distribution of each query variable from a single
+	 * propagation.
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	@Override
+	public Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.queryMarginals(query);
+		}
+		Assignment evidence = query.getEvidence();
+		FactorGraph graph =
+				new FactorGraph(query.getFilteredSortedNodes(), evidence);
+		graph.propagate(query.getDeadline().withTimeout(maxTime));
+
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : query.getQueryVars()) {
+			CategoricalTable.Builder builder =
+					new CategoricalTable.Builder(queryVar);
+			if (evidence.containsVar(queryVar)) {
+				builder.addRow(evidence.getValue(queryVar), 1.0);
+			}
+			else {
+				Map<Value, Double> belief = graph.getBelief(queryVar);
+				for (Value v : belief.keySet()) {
+					builder.addRow(v, belief.get(v));
+				}
+			}
+			marginals.put(queryVar, builder.build());
+		}
+		return marginals;
+	}
+
+	/**
+	 * Queries for the utility of a particular set of (action) variables, given the
+	 * provided evidence. The propagation is performed for each assignment of the
+	 * query variables.
+	 * 
+	 * @param query the full query
+	 * @return the utility distribution
+	 */
+	@Override
+	public UtilityTable queryUtil(Query.UtilQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.queryUtil(query);
+		}
+		BNetwork network = query.getNetwork();
+		Assignment evidence = query.getEvidence();
+		Map<String, Set<Value>> queryValues = new HashMap<String, Set<Value>>();
+		for (String queryVar : query.getQueryVars()) {
+			if (!evidence.containsVar(queryVar)) {
+				queryValues.put(queryVar, network.getNode(queryVar).getValues());
+			}
+		}
+		Assignment queryEvidence = evidence.getTrimmed(query.getQueryVars());
+		Deadline deadline = query.getDeadline().withTimeout(maxTime);
+		List<BNode> nodes = query.getFilteredSortedNodes();
+
+		UtilityTable table = new UtilityTable();
+		for (Assignment a : InferenceUtils.getAllCombinations(queryValues)) {
+			FactorGraph graph = new FactorGraph(nodes, new Assignment(evidence, a));
+			graph.propagate(deadline);
+			table.setUtil(new Assignment(a, queryEvidence),
+					graph.getExpectedUtility());
+		}
+		return table;
+	}
+
+	/**
+	 * Reduces the Bayesian network to a subset of its variables. The reduction is
+	 * delegated to likelihood weighting.
+	 * 
+	 * @param query the reduction query
+	 * @return the reduced network
+	 */
+	@Override
+	public BNetwork reduce(Query.ReduceQuery query) {
+		return lw.reduce(query);
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Normalises the array in place (or makes it uniform if its sum is zero).
+	 * 
+	 * @param values the array to normalise
+	 */
+	private static void normalise(double[] values) {
+		double total = 0.0;
+		for (double v : values) {
+			total += v;
+		}
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (total > 0) ? values[i] / total : 1.0 / values.length;
+		}
+	}
+
+	/**
+	 * Factor graph for the relevant nodes of a query, along with the messages
+	 * exchanged between its variables and factors.
+	 */
+	static final class FactorGraph {
+
+		// the variables of the graph (evidence variables excluded)
+		final List<String> vars = new ArrayList<String>();
+
+		// the index of each variable
+		final Map<String, Integer> varIndices = new HashMap<String, Integer>();
+
+		// the domain of each variable
+		final List<Value[]> domains = new ArrayList<Value[]>();
+
+		// the index of each value in the domain of each variable
+		final List<Map<Value, Integer>> valueIndices =
+				new ArrayList<Map<Value, Integer>>();
+
+		// the (factor, position) pairs in which each variable appears
+		final List<List<int[]>> neighbours = new ArrayList<List<int[]>>();
+
+		// the scope of each factor (as variable indices)
+		final List<int[]> scopes = new ArrayList<int[]>();
+
+		// the potential of each factor, indexed in row-major order
+		final List<double[]> potentials = new ArrayList<double[]>();
+
+		// the utilities of each factor (null if the factor is not a utility)
+		final List<double[]> utilities = new ArrayList<double[]>();
+
+		// the utility of the utility nodes whose inputs are all in the evidence
+		double constantUtility = 0.0;
+
+		// messages from each factor to each variable in its scope
+		double[][][] factorToVar;
+
+		// messages from each variable to each factor in which it appears
+		double[][][] varToFactor;
+
+		/**
+		 * Creates the factor graph for the nodes, given the evidence.
+		 * 
+		 * @param nodes the nodes
+		 * @param evidence the evidence
+		 */
+		FactorGraph(List<BNode> nodes, Assignment evidence) {
+			for (BNode node : nodes) {
+				List<BNode> scopeNodes = new ArrayList<BNode>();
+				for (BNode inputNode : node.getInputNodes()) {
+					if (!evidence.containsVar(inputNode.getId())) {
+						scopeNodes.add(inputNode);
+					}
+				}
+				boolean isUtility = node instanceof UtilityNode;
+				if (!isUtility && !evidence.containsVar(node.getId())) {
+					scopeNodes.add(node);
+				}
+				int[] scope = new int[scopeNodes.size()];
+				int size = 1;
+				for (int k = 0; k < scope.length; k++) {
+					scope[k] = getVarIndex(scopeNodes.get(k));
+					size *= domains.get(scope[k]).length;
+				}
+				double[] potential = new double[size];
+				double[] utility = null;
+				if (isUtility) {
+					Arrays.fill(potential, 1.0);
+					utility = new double[size];
+				}
+				Map<Assignment, Double> factor = node.getFactor();
+				for (Assignment a : factor.keySet()) {
+					if (!a.consistentWith(evidence)) {
+						continue;
+					}
+					int index = getIndex(scope, a);
+					if (index < 0) {
+						continue;
+					}
+					else if (scope.length == 0 && isUtility) {
+						constantUtility += factor.get(a);
+					}
+					else if (isUtility) {
+						utility[index] = factor.get(a);
+					}
+					else {
+						potential[index] += factor.get(a);
+					}
+				}
+				if (scope.length > 0) {
+					for (int k = 0; k < scope.length; k++) {
+						neighbours.get(scope[k])
+								.add(new int[] { scopes.size(), k });
+					}
+					scopes.add(scope);
+					potentials.add(potential);
+					utilities.add(utility);
+				}
+			}
+
+			// initialises the messages to uniform distributions
+			factorToVar = new double[scopes.size()][][];
+			varToFactor = new double[scopes.size()][][];
+			for (int f = 0; f < scopes.size(); f++) {
+				int[] scope = scopes.get(f);
+				factorToVar[f] = new double[scope.length][];
+				varToFactor[f] = new double[scope.length][];
+				for (int k = 0; k < scope.length; k++) {
+					int domainSize = domains.get(scope[k]).length;
+					factorToVar[f][k] = new double[domainSize];
+					varToFactor[f][k] = new double[domainSize];
+					normalise(factorToVar[f][k]);
+					normalise(varToFactor[f][k]);
+				}
+			}
+		}
+
+		/**
+		 * Propagates the messages until convergence, until the maximum number of
+		 * iterations is reached or until the deadline expires.
+		 * 
+		 * @param deadline the deadline for the propagation
+		 * @return the number of iterations
+		 */
+		int propagate(Deadline deadline) {
+			for (int i = 1; i <= MAX_ITERATIONS; i++) {
+				IntStream.range(0, vars.size()).parallel()
+						.forEach(v -> updateVarMessages(v));
+				double change = IntStream.range(0, scopes.size()).parallel()
+						.mapToDouble(f -> updateFactorMessages(f)).max()
+						.orElse(0.0);
+				if (change < TOLERANCE) {
+					return i;
+				}
+				else if (deadline.isExpired()) {
+					log.fine("belief propagation interrupted after " + i
+							+ " iterations (change: " + change + ")");
+					return i;
+				}
+			}
+			log.fine("belief propagation did not converge after "
+					+ MAX_ITERATIONS + " iterations");
+			return MAX_ITERATIONS;
+		}
+
+		/**
+		 * Returns the (approximate) marginal distribution of the variable.
+		 * 
+		 * @param var the variable
+		 * @return the marginal distribution
+		 */
+		Map<Value, Double> getBelief(String var) {
+			int v = varIndices.get(var);
+			Value[] domain = domains.get(v);
+			double[] belief = new double[domain.length];
+			Arrays.fill(belief, 1.0);
+			for (int[] pair : neighbours.get(v)) {
+				double[] message = factorToVar[pair[0]][pair[1]];
+				for (int x = 0; x < domain.length; x++) {
+					belief[x] *= message[x];
+				}
+				normalise(belief);
+			}
+			Map<Value, Double> result = new LinkedHashMap<Value, Double>();
+			for (int x = 0; x < domain.length; x++) {
+				result.put(domain[x], belief[x]);
+			}
+			return result;
+		}
+
+		/**
+		 * Returns the expected utility of the utility nodes, computed from the
+		 * (approximate) distribution over the inputs of each utility node.
+		 * 
+		 * @return the expected utility
+		 */
+		double getExpectedUtility() {
+			double total = constantUtility;
+			for (int f = 0; f < scopes.size(); f++) {
+				double[] utility = utilities.get(f);
+				if (utility == null) {
+					continue;
+				}
+				int[] scope = scopes.get(f);
+				double[] potential = potentials.get(f);
+				int[] values = new int[scope.length];
+				double sumProbs = 0.0;
+				double sumUtils = 0.0;
+				for (int i = 0; i < potential.length; i++) {
+					double prob = potential[i];
+					for (int k = 0; k < scope.length; k++) {
+						prob *= varToFactor[f][k][values[k]];
+					}
+					sumProbs += prob;
+					sumUtils += prob * utility[i];
+					increment(values, scope);
+				}
+				total += (sumProbs > 0) ? sumUtils / sumProbs : 0.0;
+			}
+			return total;
+		}
+
+		/**
+		 * Updates the messages sent by the variable to the factors in which it
+		 * appears (the product of the messages received from the other factors).
+		 * 
+		 * @param v the variable index
+		 */
+		private void updateVarMessages(int v) {
+			List<int[]> pairs = neighbours.get(v);
+			int domainSize = domains.get(v).length;
+			for (int[] pair : pairs) {
+				double[] message = new double[domainSize];
+				Arrays.fill(message, 1.0);
+				for (int[] other : pairs) {
+					if (other != pair) {
+						double[] incoming = factorToVar[other[0]][other[1]];
+						for (int x = 0; x < domainSize; x++) {
+							message[x] *= incoming[x];
+						}
+					}
+				}
+				normalise(message);
+				varToFactor[pair[0]][pair[1]] = message;
+			}
+		}
+
+		/**
+		 * Updates the (damped) messages sent by the factor to the variables in its
+		 * scope, and returns the maximum change in these messages.
+		 * 
+		 * @param f the factor index
+		 * @return the maximum change in the messages
+		 */
+		private double updateFactorMessages(int f) {
+			int[] scope = scopes.get(f);
+			double[] potential = potentials.get(f);
+			double[][] incoming = varToFactor[f];
+			double[][] messages = new double[scope.length][];
+			for (int k = 0; k < scope.length; k++) {
+				messages[k] = new double[domains.get(scope[k]).length];
+			}
+
+			// sums the products of the potential with the incoming messages,
+			// using prefix and suffix products to exclude each recipient
+			int[] values = new int[scope.length];
+			double[] prefix = new double[scope.length + 1];
+			for (int i = 0; i < potential.length; i++) {
+				if (potential[i] > 0) {
+					prefix[0] = potential[i];
+					for (int k = 0; k < scope.length; k++) {
+						prefix[k + 1] = prefix[k] * incoming[k][values[k]];
+					}
+					double suffix = 1.0;
+					for (int k = scope.length - 1; k >= 0; k--) {
+						messages[k][values[k]] += prefix[k] * suffix;
+						suffix *= incoming[k][values[k]];
+					}
+				}
+				increment(values, scope);
+			}
+
+			double change = 0.0;
+			for (int k = 0; k < scope.length; k++) {
+				double[] previous = factorToVar[f][k];
+				normalise(messages[k]);
+				for (int x = 0; x < messages[k].length; x++) {
+					messages[k][x] =
+							(1 - DAMPING) * messages[k][x] + DAMPING * previous[x];
+					double diff = Math.abs(messages[k][x] - previous[x]);
+					change = Math.max(change, diff);
+				}
+				factorToVar[f][k] = messages[k];
+			}
+			return change;
+		}
+
+		/**
+		 * Returns the index of the variable associated with the node, creating it if
+		 * necessary.
+		 * 
+		 * @param node the node
+		 * @return the variable index
+		 */
+		private int getVarIndex(BNode node) {
+			Integer v = varIndices.get(node.getId());
+			if (v == null) {
+				v = vars.size();
+				vars.add(node.getId());
+				varIndices.put(node.getId(), v);
+				Value[] domain = node.getValues().toArray(new Value[0]);
+				Map<Value, Integer> indices = new HashMap<Value, Integer>();
+				for (int x = 0; x < domain.length; x++) {
+					indices.put(domain[x], x);
+				}
+				domains.add(domain);
+				valueIndices.add(indices);
+				neighbours.add(new ArrayList<int[]>());
+			}
+			return v;
+		}
+
+		/**
+		 * Returns the row-major index of the assignment in a factor with the given
+		 * scope (or -1 if one of the values is not in the domain of its variable).
+		 * 
+		 * @param scope the scope of the factor
+		 * @param a the assignment
+		 * @return the corresponding index
+		 */
+		private int getIndex(int[] scope, Assignment a) {
+			int index = 0;
+			for (int k = 0; k < scope.length; k++) {
+				Value value = a.getValue(vars.get(scope[k]));
+				Integer x = valueIndices.get(scope[k]).get(value);
+				if (x == null) {
+					return -1;
+				}
+				index = index * domains.get(scope[k]).length + x;
+			}
+			return index;
+		}
+
+		/**
+		 * Increments the value indices to the next row (in row-major order).
+		 * 
+		 * @param values the value indices
+		 * @param scope the scope of the factor
+		 */
+		private void increment(int[] values, int[] scope) {
+			for (int k = scope.length - 1; k >= 0; k--) {
+				values[k]++;
+				if (values[k] < domains.get(scope[k]).length) {
+					return;
+				}
+				values[k] = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,381 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.approximate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.*;
+
+import opendial.bn.BNetwork;
+import opendial.bn.distribs.MultivariateDistribution;
+import opendial.bn.distribs.MultivariateTable;
+import opendial.bn.distribs.UtilityTable;
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
+import opendial.inference.InferenceAlgorithm;
+import opendial.inference.Query;
+import opendial.inference.exact.DoubleFactor;
+import opendial.inference.exact.EliminationOrder;
+import opendial.inference.exact.VariableElimination;
+
+/**
+ * Mini-bucket elimination, which approximates variable elimination by bounding the
+ * size of the factors created during the elimination.
+ * 
+ * <p>
+ * The hidden variables are eliminated in the same order as in variable
+ * elimination. For each variable, the factors that contain it (its bucket) are
+ * partitioned into mini-buckets, such that the product of the factors in each
+ * mini-bucket covers at most maxBucketSize cells. The product of each mini-bucket
+ * is computed separately, and the variable is summed out of the first
+ * mini-bucket. The variable is also summed out of the other mini-buckets to
+ * approximate the query results, and maximised (or minimised) out of them to
+ * derive upper (or lower) bounds on the query probabilities. If each bucket fits
+ * in a single mini-bucket, the results are exact.
+ * 
+ * <p>
+ * The cost of the elimination is therefore bounded by the number of mini-buckets
+ * times maxBucketSize (plus the size of the final product over the query
+ * variables), and its results are deterministic. Networks with continuous
+ * distributions are delegated to likelihood weighting.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class MiniBucketElimination implements InferenceAlgorithm {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Default maximum number of cells in the product of a mini-bucket */
+	public static long MAX_BUCKET_SIZE = 10000;
+
+	// maximum number of cells in the product of a mini-bucket
+	long maxBucketSize;
+
+	// algorithm used for the queries that cannot be handled by the elimination
+	SamplingAlgorithm lw = new SamplingAlgorithm();
+
+	// the operation used to eliminate a variable from the secondary mini-buckets
+	private static enum Mode {
+		SUM, MAX, MIN
+	}
+
+	/**
+	 * Creates a new mini-bucket elimination algorithm, with the default maximum
+	 * size of the mini-buckets
+	 */
+	public MiniBucketElimination() {
+		this(MAX_BUCKET_SIZE);
+	}
+
+	/**
+	 * Creates a new mini-bucket elimination algorithm with the specified maximum
+	 * size of the mini-buckets
+	 * 
+	 * @param maxBucketSize the maximum number of cells in the product of a
+	 *            mini-bucket
+	 */
+	public MiniBucketElimination(long maxBucketSize) {
+		this.maxBucketSize = maxBucketSize;
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Queries for the (approximate) probability distribution of the set of random
+	 * variables in the Bayesian network, given the provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the corresponding probability table
+	 */
+	@Override
+	public MultivariateDistribution queryProb(Query.ProbQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.queryProb(query);
+		}
+		DoubleFactor queryFactor = createQueryFactor(query, Mode.SUM);
+		queryFactor.normalise();
+		MultivariateTable.Builder builder = new MultivariateTable.Builder();
+		builder.addRows(queryFactor.getProbTable());
+		builder.normalise();
+		return builder.build();
+	}
+
+	/**
+	 * Returns lower and upper bounds on the probability of each assignment of the
+	 * query variables given the evidence. The bounds are derived from a lower and
+	 * an upper bound on the joint probability P(queryVars, evidence) of each
+	 * assignment. Queries with continuous distributions cannot be bounded, and
+	 * return an empty map.
+	 * 
+	 * @param query the full query
+	 * @return the lower and upper bounds for each assignment of the query variables
+	 */
+	public Map<Assignment, double[]> queryBounds(Query.ProbQuery query) {
+		if (!query.isDiscrete()) {
+			log.warning("cannot bound query " + query
+					+ " with continuous distributions");
+			return new LinkedHashMap<Assignment, double[]>();
+		}
+		Map<Assignment, Double> lower =
+				createQueryFactor(query, Mode.MIN).getProbTable();
+		Map<Assignment, Double> upper =
+				createQueryFactor(query, Mode.MAX).getProbTable();
+		double totalLower = lower.values().stream().mapToDouble(d -> d).sum();
+		double totalUpper = upper.values().stream().mapToDouble(d -> d).sum();
+
+		Map<Assignment, double[]> bounds = new LinkedHashMap<Assignment, double[]>();
+		for (Assignment a : upper.keySet()) {
+			double l = lower.getOrDefault(a, 0.0);
+			double u = upper.get(a);
+			double lowerBound = (l > 0.0) ? l / (l + totalUpper - u) : 0.0;
+			double upperBound = (u > 0.0) ? u / (u + totalLower - l) : 0.0;
+			bounds.put(a, new double[] { Math.min(1.0, lowerBound),
+					Math.min(1.0, upperBound) });
+		}
+		return bounds;
+	}
+
+	/**
+	 * Queries for the (approximate) utility of a particular set of (action)
+	 * variables, given the provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the utility distribution
+	 */
+	@Override
+	public UtilityTable queryUtil(Query.UtilQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.queryUtil(query);
+		}
+		DoubleFactor queryFactor = createQueryFactor(query, Mode.SUM);
+		queryFactor.normalise();
+		return new UtilityTable(queryFactor.getUtilTable());
+	}
+
+	/**
+	 * Reduces the Bayesian network to a subset of its variables, based on the
+	 * (approximate) distribution of the query variables.
+	 * 
+	 * @param query the reduction query
+	 * @return the reduced network
+	 */
+	@Override
+	public BNetwork reduce(Query.ReduceQuery query) {
+		if (!query.isDiscrete()) {
+			return lw.reduce(query);
+		}
+		DoubleFactor queryFactor = createQueryFactor(query, Mode.SUM);
+		queryFactor.normalise();
+		return VariableElimination.createReducedNetwork(query, queryFactor);
+	}
+
+	/**
+	 * Returns the predicted number of cells created by the elimination for the
+	 * query (including the final product over the query variables).
+	 * 
+	 * @param query the query
+	 * @return the predicted number of cells
+	 */
+	public long getPredictedSize(Query query) {
+		List<BNode> nodes = query.getFilteredSortedNodes();
+		Map<String, Long> sizes = EliminationOrder.getDomainSizes(nodes);
+		List<Set<String>> scopes = new ArrayList<Set<String>>();
+		for (BNode node : nodes) {
+			Set<String> scope = new HashSet<String>(node.getInputNodeIds());
+			if (!(node instanceof UtilityNode)) {
+				scope.add(node.getId());
+			}
+			scope.removeAll(query.getEvidence().getVariables());
+			if (!scope.isEmpty()) {
+				scopes.add(scope);
+			}
+		}
+
+		long total = 0;
+		for (String hiddenVar : getHiddenVars(query, nodes)) {
+			List<Set<String>> bucket = new ArrayList<Set<String>>();
+			for (Set<String> scope : new ArrayList<Set<String>>(scopes)) {
+				if (scope.contains(hiddenVar)) {
+					bucket.add(scope);
+					scopes.remove(scope);
+				}
+			}
+			for (List<Set<String>> miniBucket : partition(bucket, sizes)) {
+				Set<String> union = new HashSet<String>();
+				miniBucket.forEach(s -> union.addAll(s));
+				total = EliminationOrder.add(total,
+						EliminationOrder.getSize(union, sizes));
+				union.remove(hiddenVar);
+				if (!union.isEmpty()) {
+					scopes.add(union);
+				}
+			}
+		}
+		Set<String> remaining = new HashSet<String>();
+		scopes.forEach(s -> remaining.addAll(s));
+		return EliminationOrder.add(total,
+				EliminationOrder.getSize(remaining, sizes));
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Generates the factor associated with the query variables, by eliminating the
+	 * hidden variables with the given operation on the secondary mini-buckets. The
+	 * deadline of the query is checked before the elimination of each variable.
+	 * 
+	 * @param query the query
+	 * @param mode the operation for the secondary mini-buckets
+	 * @return the (unnormalised) factor for the query variables
+	 * @throws Deadline.ExpiredException if the deadline of the query has expired
+	 */
+	private DoubleFactor createQueryFactor(Query query, Mode mode) {
+		Deadline deadline = query.getDeadline();
+		Assignment evidence = query.getEvidence();
+		List<BNode> nodes = query.getFilteredSortedNodes();
+		Map<String, Long> sizes = EliminationOrder.getDomainSizes(nodes);
+		List<DoubleFactor> factors = new ArrayList<DoubleFactor>();
+		for (BNode node : nodes) {
+			DoubleFactor factor = VariableElimination.makeFactor(node, evidence);
+			if (!factor.isEmpty()) {
+				factors.add(factor);
+			}
+		}
+
+		for (String hiddenVar : getHiddenVars(query, nodes)) {
+			deadline.check();
+			List<DoubleFactor> bucket = new ArrayList<DoubleFactor>();
+			for (DoubleFactor factor : new ArrayList<DoubleFactor>(factors)) {
+				if (factor.getVariables().contains(hiddenVar)) {
+					bucket.add(factor);
+					factors.remove(factor);
+				}
+			}
+			Map<Set<String>, List<DoubleFactor>> scopes =
+					new HashMap<Set<String>, List<DoubleFactor>>();
+			bucket.forEach(f -> scopes.computeIfAbsent(f.getVariables(),
+					s -> new ArrayList<DoubleFactor>()).add(f));
+			List<List<Set<String>>> miniBuckets =
+					partition(new ArrayList<Set<String>>(scopes.keySet()), sizes);
+			for (int i = 0; i < miniBuckets.size(); i++) {
+				DoubleFactor product = new DoubleFactor();
+				product.addEntry(new Assignment(), 1.0, 0.0);
+				for (Set<String> scope : miniBuckets.get(i)) {
+					for (DoubleFactor factor : scopes.get(scope)) {
+						product = product.product(factor);
+					}
+				}
+				// constant factors are kept, as they do not cancel out in the
+				// bounds
+				factors.add((i == 0 || mode == Mode.SUM)
+						? product.sumOut(hiddenVar)
+						: (mode == Mode.MAX) ? product.maxOut(hiddenVar)
+								: product.minOut(hiddenVar));
+			}
+		}
+
+		deadline.check();
+		DoubleFactor queryFactor = new DoubleFactor();
+		queryFactor.addEntry(new Assignment(), 1.0, 0.0);
+		for (DoubleFactor factor : factors) {
+			queryFactor = queryFactor.product(factor);
+		}
+		queryFactor = VariableElimination.addEvidencePairs(queryFactor, query);
+		queryFactor.trim(query.getQueryVars());
+		return queryFactor;
+	}
+
+	/**
+	 * Partitions the scopes of a bucket into mini-buckets whose joint scope covers
+	 * at most maxBucketSize cells (unless a single scope is already larger). The
+	 * scopes are considered from the largest to the smallest, and each scope is
+	 * added to the first mini-bucket in which it fits.
+	 * 
+	 * @param bucket the scopes in the bucket
+	 * @param sizes the domain sizes of the variables
+	 * @return the mini-buckets
+	 */
+	private List<List<Set<String>>> partition(List<Set<String>> bucket,
+			Map<String, Long> sizes) {
+		List<Set<String>> sorted = new ArrayList<Set<String>>(bucket);
+		sorted.sort(Comparator
+				.comparing((Set<String> s) -> EliminationOrder.getSize(s, sizes))
+				.reversed());
+		List<List<Set<String>>> miniBuckets = new ArrayList<List<Set<String>>>();
+		List<Set<String>> unions = new ArrayList<Set<String>>();
+		for (Set<String> scope : sorted) {
+			int i = 0;
+			for (; i < miniBuckets.size(); i++) {
+				Set<String> union = new HashSet<String>(unions.get(i));
+				union.addAll(scope);
+				if (EliminationOrder.getSize(union, sizes) <= maxBucketSize) {
+					miniBuckets.get(i).add(scope);
+					unions.set(i, union);
+					break;
+				}
+			}
+			if (i == miniBuckets.size()) {
+				miniBuckets.add(new ArrayList<Set<String>>());
+				miniBuckets.get(i).add(scope);
+				unions.add(new HashSet<String>(scope));
+			}
+		}
+		return miniBuckets;
+	}
+
+	/**
+	 * Returns the hidden variables of the query, in elimination order.
+	 * 
+	 * @param query the query
+	 * @param nodes the relevant nodes for the query
+	 * @return the hidden variables
+	 */
+	private static List<String> getHiddenVars(Query query, List<BNode> nodes) {
+		Collection<String> queryVars = query.getQueryVars();
+		EliminationOrder order = new EliminationOrder(nodes, queryVars,
+				query.getEvidence(), VariableElimination.HEURISTIC);
+		List<String> hiddenVars = new ArrayList<String>(order.getOrder());
+		for (BNode node : nodes) {
+			if (!queryVars.contains(node.getId())
+					&& !hiddenVars.contains(node.getId())) {
+				hiddenVars.add(node.getId());
+			}
+		}
+		return hiddenVars;
+	}
+
+}
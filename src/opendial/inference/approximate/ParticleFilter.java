@@ -0,0 +1,448 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.approximate;
+
+import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import opendial.Settings;
+import opendial.bn.BNetwork;
+import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.ProbDistribution;
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.ChanceNode;
+import opendial.datastructs.Deadline;
+import opendial.inference.Query;
+import opendial.utils.RandomUtils;
+
+/**
+ * Sequential Monte Carlo reduction of the dialogue state. Instead of drawing a new
+ * set of samples at each reduction, the filter keeps persistent sets of weighted
+ * particles over the state variables (one set per reduction, that is, per clique
+ * of the dialogue state). At each reduction, the particles are propagated through
+ * the nodes that were added to the state since the last reduction, and reweighted
+ * by the likelihood of the evidence. The particles are only resampled when their
+ * effective sample size drops below RESAMPLING_THRESHOLD times the number of
+ * particles.
+ * 
+ * <p>
+ * The values of a state variable are taken from the particles as long as the
+ * distribution of its node is equal to the one produced by the last reduction (and
+ * the values of its input nodes are also taken from the particles). The other
+ * variables are sampled as in likelihood weighting. Continuous variables are
+ * always sampled from the (kernel density) distribution of their node, in order to
+ * avoid the degeneracy of their particles after successive resamplings. When a
+ * reduction involves several independent sets of particles, their particles are
+ * paired by index. If the evidence has zero likelihood for all particles, the
+ * particles are drawn anew from the network. When the evidence does not change the
+ * weights of the particles, the variables taken from the particles keep their
+ * current distribution in the reduced network.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class ParticleFilter {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/**
+	 * Ratio between the effective sample size and the number of particles below
+	 * which the particles are resampled
+	 */
+	public static double RESAMPLING_THRESHOLD = 0.5;
+
+	// number of particles
+	int nbParticles = Settings.nbSamples;
+
+	// maximum sampling time (in milliseconds)
+	long maxSamplingTime = Settings.maxSamplingTime;
+
+	// the sets of particles (over disjoint sets of state variables)
+	List<ParticleSet> sets = new ArrayList<ParticleSet>();
+
+	/**
+	 * Creates a new particle filter with the default number of particles and
+	 * sampling time
+	 */
+	public ParticleFilter() {
+	}
+
+	/**
+	 * Creates a new particle filter with the given number of particles and sampling
+	 * time
+	 * 
+	 * @param nbParticles the number of particles
+	 * @param maxSamplingTime the maximum sampling time (in milliseconds)
+	 */
+	public ParticleFilter(int nbParticles, long maxSamplingTime) {
+		this.nbParticles = nbParticles;
+		this.maxSamplingTime = maxSamplingTime;
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Reduces the Bayesian network to the query variables, by propagating and
+	 * reweighting the particles. The propagated particles (defined over the query
+	 * variables) replace the particles from which they were derived.
+	 * 
+	 * @param query the reduction query
+	 * @return the reduced Bayesian network
+	 */
+	public BNetwork reduce(Query.ReduceQuery query) {
+		List<BNode> sortedNodes = query.getFilteredSortedNodes();
+		Collections.reverse(sortedNodes);
+		SamplingPlan plan = new SamplingPlan(sortedNodes, query.getEvidence(),
+				query.getQueryVars());
+
+		// selects the slots whose values are taken from the particles
+		ParticleSet[] sources = new ParticleSet[plan.size()];
+		int[] columns = new int[plan.size()];
+		Set<String> fixedVars = new HashSet<String>();
+		for (int i = 0; i < plan.size(); i++) {
+			BNode node = sortedNodes.get(i);
+			if (!(node instanceof ChanceNode)
+					|| query.getEvidence().containsVar(node.getId())
+					|| !fixedVars.containsAll(node.getInputNodeIds())) {
+				continue;
+			}
+			ProbDistribution distrib = ((ChanceNode) node).peekDistrib();
+			for (ParticleSet set : sets) {
+				if (matches(set.anchors.get(node.getId()), distrib)
+						&& !(distrib instanceof ContinuousDistribution)) {
+					sources[i] = set;
+					columns[i] = set.particles.getColumnIndex(node.getId());
+					fixedVars.add(node.getId());
+					break;
+				}
+			}
+		}
+		List<ParticleSet> used = new ArrayList<ParticleSet>();
+		Arrays.stream(sources).filter(s -> s != null).distinct()
+				.forEach(s -> used.add(s));
+
+		long seed = RandomUtils.newSeed();
+		Deadline deadline = query.getDeadline().withTimeout(maxSamplingTime);
+		int nbDraws = used.stream().mapToInt(s -> s.particles.size()).max()
+				.orElse(nbParticles);
+		double[] increments = new double[nbDraws];
+		SampleBatch propagated =
+				propagate(plan, sources, columns, used, increments, seed, deadline);
+		double maxLogWeight = normalise(propagated);
+
+		// if the evidence is impossible for all particles, they are drawn anew
+		if (!used.isEmpty() && maxLogWeight == Double.NEGATIVE_INFINITY) {
+			log.fine("evidence has zero likelihood for all particles, redrawing");
+			fixedVars.clear();
+			increments = new double[nbParticles];
+			propagated = propagate(plan, new ParticleSet[plan.size()], columns,
+					Collections.emptyList(), increments, seed, deadline);
+			normalise(propagated);
+		}
+
+		// resamples the particles if the effective sample size is too low
+		double ess = getEffectiveSampleSize(propagated);
+		boolean resampled = ess < RESAMPLING_THRESHOLD * nbParticles;
+		SampleBatch particles = propagated;
+		SampleBatch samples;
+		if (resampled) {
+			int[] rows = LikelihoodWeighting.getRedrawnRows(propagated, nbParticles,
+					LikelihoodWeighting.RESAMPLING, seed);
+			particles = propagated.select(rows);
+			for (int i = 0; i < particles.size(); i++) {
+				particles.setWeight(i, 1.0);
+			}
+			samples = particles;
+		}
+		else {
+			samples = propagated.select(LikelihoodWeighting.getRedrawnRows(
+					propagated, propagated.size(), LikelihoodWeighting.RESAMPLING,
+					seed));
+		}
+		log.fine("propagated " + propagated.size() + " particles ("
+				+ fixedVars.size() + " variables taken from the particles, ESS="
+				+ ess + ", resampled=" + resampled + ")");
+
+		// if the weights of the particles are unchanged, so are the distributions
+		// of the variables taken from the particles
+		boolean unchanged = !resampled && propagated.size() == increments.length
+				&& Arrays.stream(increments).distinct().count() <= 1;
+		BNetwork reduced = SamplingAlgorithm.createReducedNetwork(query, samples,
+				(unchanged) ? fixedVars : Collections.emptySet());
+
+		// the new particles replace the ones from which they were derived
+		sets.removeAll(used);
+		for (ParticleSet set : new ArrayList<ParticleSet>(sets)) {
+			query.getQueryVars().forEach(v -> set.remove(v));
+			if (set.isEmpty()) {
+				sets.remove(set);
+			}
+		}
+		ParticleSet newSet = new ParticleSet(particles);
+		for (String var : new ArrayList<String>(particles.getVariables())) {
+			if (reduced.hasChanceNode(var)) {
+				newSet.anchors.put(var, reduced.getChanceNode(var).peekDistrib());
+			}
+			else {
+				particles.removeVariable(var);
+			}
+		}
+		sets.add(newSet);
+		return reduced;
+	}
+
+	/**
+	 * Updates the particles after the network produced by the last reductions has
+	 * been copied or modified (for instance, after renaming the updated variables or
+	 * removing spurious nodes). The variables are associated with the distributions
+	 * of the nodes in the network, and renamed along with the nodes (by removing the
+	 * primes from their identifiers). The variables whose distribution has changed
+	 * are removed from the particles, as well as the variables that also belong to
+	 * a more recent set of particles.
+	 * 
+	 * @param network the current network
+	 */
+	public void update(BNetwork network) {
+		Set<String> newerVars = new HashSet<String>();
+		for (int i = sets.size() - 1; i >= 0; i--) {
+			ParticleSet set = sets.get(i);
+			for (String var : new ArrayList<String>(set.particles.getVariables())) {
+				ProbDistribution anchor = set.anchors.remove(var);
+				String newVar = var.replace("'", "");
+				if (network.hasChanceNode(var) && matches(anchor,
+						network.getChanceNode(var).peekDistrib())) {
+					set.anchors.put(var, network.getChanceNode(var).peekDistrib());
+				}
+				else if (!newVar.equals(var) && network.hasChanceNode(newVar)
+						&& matches(anchor,
+								network.getChanceNode(newVar).peekDistrib())) {
+					set.particles.modifyVariableId(var, newVar);
+					set.anchors.put(newVar,
+							network.getChanceNode(newVar).peekDistrib());
+				}
+				else {
+					set.particles.removeVariable(var);
+				}
+			}
+			newerVars.forEach(v -> set.remove(v));
+			newerVars.addAll(set.anchors.keySet());
+			if (set.isEmpty()) {
+				sets.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the (weighted) particles that contain the variable, if any.
+	 * 
+	 * @param var the variable
+	 * @return the particles for the variable, or null if there is none
+	 */
+	public SampleBatch getParticles(String var) {
+		for (ParticleSet set : sets) {
+			if (set.anchors.containsKey(var)) {
+				return set.particles;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a string representation of the particle filter
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (ParticleSet set : sets) {
+			str += set.particles.size() + " particles over " + set.anchors.keySet()
+					+ " (ESS=" + getEffectiveSampleSize(set.particles) + ")\n";
+		}
+		return str.trim();
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Propagates the particles through the sampling plan, in parallel. The values
+	 * of the slots associated with a set of particles are taken from these
+	 * particles, and the other slots are sampled. The weight of each propagated
+	 * particle is the product of the weights of the particles it derives from and
+	 * of the likelihood of the evidence. The draws are skipped once the deadline
+	 * has expired (except for the first MIN_DRAWS ones).
+	 * 
+	 * @param plan the sampling plan
+	 * @param sources the set of particles for each slot (or null if the slot is
+	 *            sampled)
+	 * @param columns the column of each slot in its set of particles
+	 * @param used the sets of particles to propagate
+	 * @param increments the array in which to write the logarithmic likelihood of
+	 *            the evidence for each draw (one per draw)
+	 * @param seed the seed of the propagation
+	 * @param deadline the deadline
+	 * @return the propagated particles
+	 */
+	private static SampleBatch propagate(SamplingPlan plan, ParticleSet[] sources,
+			int[] columns, List<ParticleSet> used, double[] increments, long seed,
+			Deadline deadline) {
+		Arrays.fill(increments, Double.NaN);
+		boolean[] fixed = new boolean[sources.length];
+		for (int k = 0; k < sources.length; k++) {
+			fixed[k] = sources[k] != null;
+		}
+		List<String> vars = plan.getQueryVariables();
+		return IntStream.range(0, increments.length).parallel()
+				.collect(() -> new SampleBatch(vars), (batch, i) -> {
+					if (i >= LikelihoodWeighting.MIN_DRAWS && deadline.isExpired()) {
+						return;
+					}
+					try {
+						RandomUtils.runSeeded(seed, i, () -> {
+							SamplingPlan.Buffer buffer = plan.buffers.get();
+							for (int k = 0; k < fixed.length; k++) {
+								if (fixed[k]) {
+									SampleBatch particles = sources[k].particles;
+									buffer.values[k] = particles.getValue(
+											i % particles.size(), columns[k]);
+								}
+							}
+							plan.draw(buffer, fixed);
+							increments[i] = buffer.logWeight;
+							if (buffer.logWeight > Double.NEGATIVE_INFINITY) {
+								for (ParticleSet set : used) {
+									buffer.logWeight += set.particles
+											.getLogWeight(i % set.particles.size());
+								}
+								plan.addSample(buffer, batch);
+							}
+						});
+					}
+					catch (RuntimeException e) {
+						log.warning("exception caught: " + e);
+					}
+				}, (b1, b2) -> b1.addAll(b2));
+	}
+
+	/**
+	 * Returns true if the distribution is equal to the distribution associated with
+	 * a variable of the particles, and false otherwise. As copies of a node share
+	 * its distribution until one of them modifies it, the anchor is usually the
+	 * same object as the distribution. The equality check covers the distributions
+	 * that were cloned without being modified (e.g. when a shared node is accessed
+	 * for writing).
+	 * 
+	 * @param anchor the distribution associated with the variable (may be null)
+	 * @param distrib the distribution
+	 * @return true if the distributions match, false otherwise
+	 */
+	private static boolean matches(ProbDistribution anchor,
+			ProbDistribution distrib) {
+		return anchor != null && (anchor == distrib || anchor.equals(distrib));
+	}
+
+	/**
+	 * Normalises the logarithmic weights of the batch such that the highest one is
+	 * 0, and returns the highest weight before normalisation.
+	 * 
+	 * @param batch the batch
+	 * @return the highest logarithmic weight before normalisation
+	 */
+	private static double normalise(SampleBatch batch) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < batch.size(); i++) {
+			max = Math.max(max, batch.logWeights[i]);
+		}
+		if (max > Double.NEGATIVE_INFINITY) {
+			for (int i = 0; i < batch.size(); i++) {
+				batch.logWeights[i] -= max;
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the effective sample size of the weighted batch
+	 * 
+	 * @param batch the batch
+	 * @return the effective sample size
+	 */
+	private static double getEffectiveSampleSize(SampleBatch batch) {
+		double sum = 0.0;
+		double sumSquares = 0.0;
+		for (int i = 0; i < batch.size(); i++) {
+			double weight = batch.getWeight(i);
+			sum += weight;
+			sumSquares += weight * weight;
+		}
+		return (sumSquares > 0.0) ? sum * sum / sumSquares : 0.0;
+	}
+
+	/**
+	 * Set of weighted particles produced by a reduction, along with the
+	 * distribution of each variable in the reduced network.
+	 */
+	static final class ParticleSet {
+
+		// the weighted particles (one column per variable)
+		final SampleBatch particles;
+
+		// the distribution of each variable at the time of the reduction
+		final Map<String, ProbDistribution> anchors;
+
+		ParticleSet(SampleBatch particles) {
+			this.particles = particles;
+			this.anchors = new HashMap<String, ProbDistribution>();
+		}
+
+		/**
+		 * Removes the variable from the particles
+		 * 
+		 * @param var the variable
+		 */
+		void remove(String var) {
+			anchors.remove(var);
+			particles.removeVariable(var);
+		}
+
+		/**
+		 * Returns true if the particles contain no variable
+		 * 
+		 * @return true if empty, false otherwise
+		 */
+		boolean isEmpty() {
+			return anchors.isEmpty();
+		}
+	}
+
+}
@@ -0,0 +1,496 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.inference.approximate;
+
+import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import opendial.bn.values.Value;
+import opendial.datastructs.Assignment;
+
+/**
+ * Columnar representation of a collection of (possibly weighted) samples. Instead
+ * of storing each sample as a separate assignment, the batch stores one array of
+ * values per variable, plus one array of logarithmic weights and one array of
+ * utilities. A null entry in a column indicates that the variable is not part of
+ * the sample.
+ * 
+ * <p>
+ * The columnar layout makes it possible to aggregate the samples (e.g. to compute
+ * marginal distributions) with tight loops over the columns, without creating an
+ * assignment for each sample.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ *
+ */
+public class SampleBatch {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	// initial capacity of the columns
+	static final int INITIAL_CAPACITY = 16;
+
+	// the variables (one per column)
+	final List<String> variables;
+
+	// the column index for each variable
+	final Map<String, Integer> columnIndices;
+
+	// the columns of values
+	Value[][] columns;
+
+	// the logarithmic weights
+	double[] logWeights;
+
+	// the utilities
+	double[] utilities;
+
+	// number of samples in the batch
+	int size;
+
+	// ===================================
+	// CONSTRUCTION METHODS
+	// ===================================
+
+	/**
+	 * Creates a new, empty batch with no variable. The columns are added as new
+	 * variables appear in the samples.
+	 */
+	public SampleBatch() {
+		this(Collections.emptyList());
+	}
+
+	/**
+	 * Creates a new, empty batch with a column for each variable
+	 * 
+	 * @param variables the variables
+	 */
+	public SampleBatch(Collection<String> variables) {
+		this.variables = new ArrayList<String>(variables.size());
+		this.columnIndices = new HashMap<String, Integer>();
+		columns = new Value[0][];
+		logWeights = new double[INITIAL_CAPACITY];
+		utilities = new double[INITIAL_CAPACITY];
+		for (String var : variables) {
+			addColumn(var);
+		}
+	}
+
+	/**
+	 * Adds a new row (with empty values) to the batch, and returns its index. The
+	 * values of the row are then to be set with {@link #setValue(int, int, Value)}.
+	 * 
+	 * @param logWeight the logarithmic weight of the sample
+	 * @param utility the utility of the sample
+	 * @return the index of the new row
+	 */
+	public int addRow(double logWeight, double utility) {
+		if (size == logWeights.length) {
+			grow(size * 2);
+		}
+		logWeights[size] = logWeight;
+		utilities[size] = utility;
+		return size++;
+	}
+
+	/**
+	 * Sets the value in the given row and column
+	 * 
+	 * @param row the row index
+	 * @param column the column index
+	 * @param value the value
+	 */
+	public void setValue(int row, int column, Value value) {
+		columns[column][row] = value;
+	}
+
+	/**
+	 * Adds a sample to the batch. If the assignment is a weighted sample, its
+	 * weight and utility are also included. New columns are created for the
+	 * variables that are not yet in the batch.
+	 * 
+	 * @param sample the sample to add
+	 */
+	public void addSample(Assignment sample) {
+		int row = (sample instanceof Sample)
+				? addRow(((Sample) sample).logWeight, ((Sample) sample).utility)
+				: addRow(0.0, 0.0);
+		for (Map.Entry<String, Value> pair : sample.getPairs().entrySet()) {
+			Integer column = columnIndices.get(pair.getKey());
+			if (column == null) {
+				column = addColumn(pair.getKey());
+			}
+			columns[column][row] = pair.getValue();
+		}
+	}
+
+	/**
+	 * Adds all the samples of the other batch to the current batch.
+	 * 
+	 * @param other the other batch
+	 */
+	public void addAll(SampleBatch other) {
+		if (size + other.size > logWeights.length) {
+			grow(Math.max(size + other.size, size * 2));
+		}
+		for (int j = 0; j < other.variables.size(); j++) {
+			String var = other.variables.get(j);
+			Integer column = columnIndices.get(var);
+			if (column == null) {
+				column = addColumn(var);
+			}
+			System.arraycopy(other.columns[j], 0, columns[column], size, other.size);
+		}
+		System.arraycopy(other.logWeights, 0, logWeights, size, other.size);
+		System.arraycopy(other.utilities, 0, utilities, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Returns a new batch with the rows at the given indices (in the given order,
+	 * possibly with repetitions).
+	 * 
+	 * @param rows the row indices
+	 * @return the new batch
+	 */
+	public SampleBatch select(int[] rows) {
+		SampleBatch selection = new SampleBatch(variables);
+		selection.grow(rows.length);
+		for (int j = 0; j < columns.length; j++) {
+			Value[] column = columns[j];
+			Value[] newColumn = selection.columns[j];
+			for (int i = 0; i < rows.length; i++) {
+				newColumn[i] = column[rows[i]];
+			}
+		}
+		for (int i = 0; i < rows.length; i++) {
+			selection.logWeights[i] = logWeights[rows[i]];
+			selection.utilities[i] = utilities[rows[i]];
+		}
+		selection.size = rows.length;
+		return selection;
+	}
+
+	/**
+	 * Removes the variable (and its column) from the batch
+	 * 
+	 * @param var the variable to remove
+	 */
+	public void removeVariable(String var) {
+		Integer column = columnIndices.remove(var);
+		if (column == null) {
+			return;
+		}
+		variables.remove((int) column);
+		Value[][] newColumns = new Value[columns.length - 1][];
+		System.arraycopy(columns, 0, newColumns, 0, column);
+		System.arraycopy(columns, column + 1, newColumns, column,
+				columns.length - column - 1);
+		columns = newColumns;
+		for (int j = column; j < variables.size(); j++) {
+			columnIndices.put(variables.get(j), j);
+		}
+	}
+
+	/**
+	 * Replaces the variable label by a new one
+	 * 
+	 * @param oldId the old variable label
+	 * @param newId the new variable label
+	 */
+	public void modifyVariableId(String oldId, String newId) {
+		if (!columnIndices.containsKey(oldId) || oldId.equals(newId)) {
+			return;
+		}
+		// the existing column for the new label is removed first, as this shifts
+		// the indices of the subsequent columns
+		removeVariable(newId);
+		int column = columnIndices.remove(oldId);
+		variables.set(column, newId);
+		columnIndices.put(newId, column);
+	}
+
+	/**
+	 * Sets the weight of the given row
+	 * 
+	 * @param row the row index
+	 * @param weight the (non-logarithmic) weight
+	 */
+	public void setWeight(int row, double weight) {
+		logWeights[row] = Math.log(weight);
+	}
+
+	// ===================================
+	// GETTERS
+	// ===================================
+
+	/**
+	 * Returns the number of samples in the batch
+	 * 
+	 * @return the number of samples
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the batch contains no sample, and false otherwise
+	 * 
+	 * @return whether the batch is empty
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the variables of the batch (in the order of the columns)
+	 * 
+	 * @return the variables
+	 */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(variables);
+	}
+
+	/**
+	 * Returns the column index of the variable, or -1 if the variable is not in
+	 * the batch
+	 * 
+	 * @param var the variable
+	 * @return the column index
+	 */
+	public int getColumnIndex(String var) {
+		Integer column = columnIndices.get(var);
+		return (column != null) ? column : -1;
+	}
+
+	/**
+	 * Returns the column indices of the variables (-1 for the variables that are not
+	 * in the batch)
+	 * 
+	 * @param vars the variables
+	 * @return the column indices
+	 */
+	public int[] getColumnIndices(Collection<String> vars) {
+		return vars.stream().mapToInt(v -> getColumnIndex(v)).toArray();
+	}
+
+	/**
+	 * Returns the column of values for the variable. The column may be longer than
+	 * the number of samples, and contains null entries for the samples that do not
+	 * include the variable. If the variable is not in the batch, returns null.
+	 * 
+	 * @param var the variable
+	 * @return the column of values
+	 */
+	public Value[] getColumn(String var) {
+		Integer column = columnIndices.get(var);
+		return (column != null) ? columns[column] : null;
+	}
+
+	/**
+	 * Returns the value of the variable in the given row (or null if the variable
+	 * is not part of the sample)
+	 * 
+	 * @param row the row index
+	 * @param var the variable
+	 * @return the value
+	 */
+	public Value getValue(int row, String var) {
+		Integer column = columnIndices.get(var);
+		return (column != null) ? columns[column][row] : null;
+	}
+
+	/**
+	 * Returns the value in the given row and column
+	 * 
+	 * @param row the row index
+	 * @param column the column index
+	 * @return the value
+	 */
+	public Value getValue(int row, int column) {
+		return columns[column][row];
+	}
+
+	/**
+	 * Returns the values of the given row for the given columns, as a list that can
+	 * be used as key in hash tables.
+	 * 
+	 * @param row the row index
+	 * @param cols the column indices (-1 for a variable that is not in the batch)
+	 * @return the list of values
+	 */
+	public List<Value> getValues(int row, int[] cols) {
+		Value[] values = new Value[cols.length];
+		for (int j = 0; j < cols.length; j++) {
+			values[j] = (cols[j] >= 0) ? columns[cols[j]][row] : null;
+		}
+		return Arrays.asList(values);
+	}
+
+	/**
+	 * Returns the logarithmic weight of the given row
+	 * 
+	 * @param row the row index
+	 * @return the logarithmic weight
+	 */
+	public double getLogWeight(int row) {
+		return logWeights[row];
+	}
+
+	/**
+	 * Returns the largest logarithmic weight in the batch (negative infinity if the
+	 * batch is empty)
+	 * 
+	 * @return the largest logarithmic weight
+	 */
+	public double getMaxLogWeight() {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < size; i++) {
+			max = Math.max(max, logWeights[i]);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the weight (exponentiated value, not the logarithmic one!) of the
+	 * given row
+	 * 
+	 * @param row the row index
+	 * @return the weight
+	 */
+	public double getWeight(int row) {
+		return Math.exp(logWeights[row]);
+	}
+
+	/**
+	 * Returns the utility of the given row
+	 * 
+	 * @param row the row index
+	 * @return the utility
+	 */
+	public double getUtility(int row) {
+		return utilities[row];
+	}
+
+	/**
+	 * Returns the assignment of values for the given row
+	 * 
+	 * @param row the row index
+	 * @return the corresponding assignment
+	 */
+	public Assignment getAssignment(int row) {
+		Assignment a = new Assignment();
+		for (int j = 0; j < columns.length; j++) {
+			if (columns[j][row] != null) {
+				a.addPair(variables.get(j), columns[j][row]);
+			}
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the (weighted) sample for the given row
+	 * 
+	 * @param row the row index
+	 * @return the corresponding sample
+	 */
+	public Sample getSample(int row) {
+		return new Sample(getAssignment(row), logWeights[row], utilities[row]);
+	}
+
+	/**
+	 * Returns the list of (weighted) samples in the batch
+	 * 
+	 * @return the list of samples
+	 */
+	public List<Sample> getSamples() {
+		List<Sample> samples = new ArrayList<Sample>(size);
+		for (int i = 0; i < size; i++) {
+			samples.add(getSample(i));
+		}
+		return samples;
+	}
+
+	// ===================================
+	// UTILITY METHODS
+	// ===================================
+
+	/**
+	 * Returns a copy of the batch
+	 * 
+	 * @return the copy
+	 */
+	public SampleBatch copy() {
+		SampleBatch copy = new SampleBatch(variables);
+		copy.addAll(this);
+		return copy;
+	}
+
+	/**
+	 * Returns a string representation of the batch
+	 */
+	@Override
+	public String toString() {
+		return "batch of " + size + " samples on " + variables;
+	}
+
+	/**
+	 * Adds a new column for the variable, and returns its index
+	 * 
+	 * @param var the variable
+	 * @return the column index
+	 */
+	private int addColumn(String var) {
+		int column = variables.size();
+		variables.add(var);
+		columnIndices.put(var, column);
+		columns = Arrays.copyOf(columns, column + 1);
+		columns[column] = new Value[logWeights.length];
+		return column;
+	}
+
+	/**
+	 * Grows the capacity of the batch
+	 * 
+	 * @param capacity the new capacity
+	 */
+	private void grow(int capacity) {
+		if (capacity <= logWeights.length) {
+			return;
+		}
+		for (int j = 0; j < columns.length; j++) {
+			columns[j] = Arrays.copyOf(columns[j], capacity);
+		}
+		logWeights = Arrays.copyOf(logWeights, capacity);
+		utilities = Arrays.copyOf(utilities, capacity);
+	}
+
+}
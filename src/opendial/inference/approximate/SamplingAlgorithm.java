@@ -27,6 +27,7 @@ import java.util.logging.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -36,6 +37,7 @@ import opendial.Settings;
 import opendial.bn.BNetwork;
 import opendial.bn.distribs.ContinuousDistribution;
 import opendial.bn.distribs.EmpiricalDistribution;
+import opendial.bn.distribs.IndependentDistribution;
 import opendial.bn.distribs.ProbDistribution;
 import opendial.bn.distribs.UtilityTable;
 import opendial.bn.nodes.ChanceNode;
@@ -60,6 +62,8 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 
 	long maxSamplingTime = Settings.maxSamplingTime;
 
+	double tolerance = Settings.samplingTolerance;
+
 	// ===================================
 	// CONSTRUCTORS
 	// ===================================
@@ -76,6 +80,22 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 		this.maxSamplingTime = maxSamplingTime;
 	}
 
+	/**
+	 * Creates a new likelihood weighting algorithm with the specified (maximum)
+	 * number of samples, sampling time and tolerance on the error estimate. If the
+	 * tolerance is positive, the sampling stops as soon as the estimated error on
+	 * the query estimates falls below the tolerance.
+	 * 
+	 * @param nbSamples the maximum number of samples to collect
+	 * @param maxSamplingTime the maximum sampling time
+	 * @param tolerance the tolerance on the error estimate (0 to disable)
+	 */
+	public SamplingAlgorithm(int nbSamples, long maxSamplingTime,
+			double tolerance) {
+		this(nbSamples, maxSamplingTime);
+		this.tolerance = tolerance;
+	}
+
 	/**
 	 * Creates a new likelihood weighting algorithm with the specified number of
 	 * samples and sampling time
@@ -84,6 +104,15 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 	public SamplingAlgorithm() {
 	}
 
+	/**
+	 * Returns the maximum sampling time (in milliseconds) for a query
+	 * 
+	 * @return the maximum sampling time
+	 */
+	public long getMaxSamplingTime() {
+		return maxSamplingTime;
+	}
+
 	// ===================================
 	// PUBLIC METHODS
 	// ===================================
@@ -100,12 +129,35 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 
 		// creates a new query thread
 		LikelihoodWeighting isquery =
-				new LikelihoodWeighting(query, nbSamples, maxSamplingTime);
+				new LikelihoodWeighting(query, nbSamples, maxSamplingTime,
+				tolerance);
 
 		// extract and redraw the samples according to their weight.
-		List<Sample> samples = isquery.getSamples();
+		SampleBatch samples = isquery.getSampleBatch();
 		// creates an empirical distribution from the samples
-		return new EmpiricalDistribution(samples);
+		EmpiricalDistribution distrib = new EmpiricalDistribution(samples);
+		distrib.setSamplingStatistics(isquery.getEffectiveSampleSize(),
+				isquery.getErrorEstimate());
+		return distrib;
+	}
+
+	/**
+	 * Computes the marginal distribution of each query variable from a single set of
+	 * samples (collected for all query variables at once).
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	@Override
+	public Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		EmpiricalDistribution distrib = queryProb(query);
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : query.getQueryVars()) {
+			marginals.put(queryVar, distrib.getMarginal(queryVar));
+		}
+		return marginals;
 	}
 
 	/**
@@ -123,12 +175,12 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 				new LikelihoodWeighting(query, 1, Settings.maxSamplingTime);
 
 		// extract and redraw the samples according to their weight.
-		List<Sample> samples = isquery.getSamples();
+		SampleBatch samples = isquery.getSampleBatch();
 		if (samples.isEmpty()) {
 			throw new RuntimeException("could not extract sample");
 		}
 		else {
-			return samples.get(0).getTrimmed(query.getQueryVars());
+			return samples.getAssignment(0);
 		}
 	}
 
@@ -145,15 +197,15 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 		try {
 			// creates a new query thread
 			LikelihoodWeighting isquery =
-					new LikelihoodWeighting(query, nbSamples, maxSamplingTime);
+					new LikelihoodWeighting(query, nbSamples, maxSamplingTime,
+					tolerance);
 
 			// extract and redraw the samples
-			List<Sample> samples = isquery.getSamples();
+			SampleBatch samples = isquery.getSampleBatch();
 
 			// creates the utility table from the samples
 			UtilityTable utilityTable = new UtilityTable();
-			samples.stream()
-					.forEach(s -> utilityTable.incrementUtil(s, s.getUtility()));
+			utilityTable.incrementUtils(samples);
 
 			return utilityTable;
 		}
@@ -176,13 +228,16 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 		Query query = new Query.UtilQuery(network, network.getChanceNodeIds(),
 				new Assignment());
 		LikelihoodWeighting isquery =
-				new LikelihoodWeighting(query, nbSamples, maxSamplingTime);
+				new LikelihoodWeighting(query, nbSamples, maxSamplingTime,
+				tolerance);
 
 		// extract and redraw the samples
-		List<Sample> samples = isquery.getSamples();
+		SampleBatch samples = isquery.getSampleBatch();
 
-		double total =
-				samples.stream().parallel().mapToDouble(s -> s.getUtility()).sum();
+		double total = 0.0;
+		for (int i = 0; i < samples.size(); i++) {
+			total += samples.getUtility(i);
+		}
 		return total / samples.size();
 	}
 
@@ -200,21 +255,61 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 	@Override
 	public BNetwork reduce(Query.ReduceQuery query) {
 
-		BNetwork network = query.getNetwork();
-		Collection<String> queryVars = query.getQueryVars();
 		// creates a new query thread
 		LikelihoodWeighting isquery =
-				new LikelihoodWeighting(query, nbSamples, maxSamplingTime);
+				new LikelihoodWeighting(query, nbSamples, maxSamplingTime,
+				tolerance);
 
 		// extract and redraw the samples
-		List<Sample> samples = isquery.getSamples();
+		return createReducedNetwork(query, isquery.getSampleBatch());
+	}
+
+	/**
+	 * Creates the reduced Bayesian network for the query, based on the samples
+	 * collected for the query variables.
+	 * 
+	 * @param query the reduction query
+	 * @param samples the (unweighted) samples
+	 * @return the reduced Bayesian network
+	 */
+	static BNetwork createReducedNetwork(Query.ReduceQuery query,
+			SampleBatch samples) {
+		return createReducedNetwork(query, samples, Collections.emptySet());
+	}
 
+	/**
+	 * Creates the reduced Bayesian network for the query, based on the samples
+	 * collected for the query variables. The variables whose distribution is known
+	 * to be unchanged by the query keep their current distribution (provided their
+	 * input nodes are also part of the query variables).
+	 * 
+	 * @param query the reduction query
+	 * @param samples the (unweighted) samples
+	 * @param unchangedVars the variables whose distribution is unchanged
+	 * @return the reduced Bayesian network
+	 */
+	static BNetwork createReducedNetwork(Query.ReduceQuery query,
+			SampleBatch samples, Set<String> unchangedVars) {
+
+		BNetwork network = query.getNetwork();
+		Collection<String> queryVars = query.getQueryVars();
 		EmpiricalDistribution fullDistrib = new EmpiricalDistribution(samples);
 
 		// create the reduced network
 		BNetwork reduced = new BNetwork();
 		for (String var : query.getSortedQueryVars()) {
 
+			if (unchangedVars.contains(var) && queryVars
+					.containsAll(network.getNode(var).getInputNodeIds())) {
+				ChanceNode original = network.getChanceNode(var);
+				ChanceNode node = original.copy();
+				for (String inputId : original.getInputNodeIds()) {
+					node.addInputNode(reduced.getNode(inputId));
+				}
+				reduced.addNode(node);
+				continue;
+			}
+
 			Set<String> inputNodesIds =
 					network.getNode(var).getAncestorsIds(queryVars);
 			for (String inputNodeId : new ArrayList<String>(inputNodesIds)) {
@@ -224,7 +319,7 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 				// distribution with a continuous dependent variable is hard to
 				// construct)
 				ChanceNode inputNode = reduced.getChanceNode(inputNodeId);
-				if (inputNode.getDistrib() instanceof ContinuousDistribution) {
+				if (inputNode.peekDistrib() instanceof ContinuousDistribution) {
 					inputNodesIds.remove(inputNodeId);
 				}
 			}
@@ -271,14 +366,15 @@ public class SamplingAlgorithm implements InferenceAlgorithm {
 		for (Query query : weightedQueries.keySet()) {
 			Consumer<Collection<Sample>> weightScheme = weightedQueries.get(query);
 			LikelihoodWeighting isquery =
-					new LikelihoodWeighting(query, nbSamples, maxSamplingTime);
+					new LikelihoodWeighting(query, nbSamples, maxSamplingTime,
+					tolerance);
 			List<Sample> samples = isquery.getSamples();
 			weightScheme.accept(samples);
-			Intervals<Sample> intervals =
-					new Intervals<Sample>(samples, s -> s.getWeight());
+			AliasTable<Sample> aliasTable =
+					new AliasTable<Sample>(samples, s -> s.getWeight());
 			int sampleSize = samples.size();
 			for (int j = 0; j < sampleSize; j++) {
-				distrib.addSample(intervals.sample());
+				distrib.addSample(aliasTable.sample());
 			}
 		}
 		return distrib;
@@ -0,0 +1,529 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.inference.approximate;
+
+import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.IndependentDistribution;
+import opendial.bn.distribs.ProbDistribution;
+import opendial.bn.nodes.ActionNode;
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.ChanceNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.bn.values.Value;
+import opendial.datastructs.Assignment;
+
+/**
+ * Compiled sampling plan for a particular query. The plan converts the (filtered
+ * and topologically sorted) list of nodes into a flat array of node samplers, where
+ * each node is associated with an integer slot. Each draw writes the sampled values
+ * into a reusable per-thread buffer, and a sample object is only created for the
+ * query variables.
+ * 
+ * <p>
+ * The conditions passed to the node distributions only contain the values of the
+ * input nodes, and are reused from one draw to the next.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ *
+ */
+public class SamplingPlan {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	// the node identifiers (one per slot)
+	final String[] ids;
+
+	// the samplers for each node (one per slot, in topological order)
+	final NodeSampler[] samplers;
+
+	// the slots of the query variables
+	final int[] querySlots;
+
+	// the buffers used by each thread
+	final ThreadLocal<Buffer> buffers;
+
+	// ===================================
+	// PLAN CONSTRUCTION
+	// ===================================
+
+	/**
+	 * Compiles a new sampling plan for the sorted nodes (from the roots to the
+	 * leaves), the evidence and query variables.
+	 * 
+	 * @param sortedNodes the nodes to sample, in topological order
+	 * @param evidence the evidence
+	 * @param queryVars the query variables
+	 */
+	public SamplingPlan(List<BNode> sortedNodes, Assignment evidence,
+			Collection<String> queryVars) {
+
+		int nbNodes = sortedNodes.size();
+		ids = new String[nbNodes];
+		samplers = new NodeSampler[nbNodes];
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		for (int i = 0; i < nbNodes; i++) {
+			ids[i] = sortedNodes.get(i).getId();
+			slots.put(ids[i], i);
+		}
+
+		int nbQuerySlots = 0;
+		for (int i = 0; i < nbNodes; i++) {
+			samplers[i] = createSampler(sortedNodes.get(i), i, slots, evidence);
+
+			// the input nodes outside the plan (if any) take their evidence value
+			samplers[i].fixedInputs = evidence
+					.getTrimmed(sortedNodes.get(i).getInputNodeIds());
+			samplers[i].fixedInputs.removePairs(slots.keySet());
+			if (queryVars.contains(ids[i]) && samplers[i].hasValue()) {
+				nbQuerySlots++;
+			}
+		}
+		querySlots = new int[nbQuerySlots];
+		for (int i = 0, j = 0; i < nbNodes; i++) {
+			if (queryVars.contains(ids[i]) && samplers[i].hasValue()) {
+				querySlots[j++] = i;
+			}
+		}
+
+		buffers = ThreadLocal.withInitial(() -> new Buffer(samplers));
+	}
+
+	// ===================================
+	// PUBLIC METHODS
+	// ===================================
+
+	/**
+	 * Draws a new sample according to the plan. The sample is written in the buffer
+	 * of the current thread, which is reused from one draw to the next.
+	 * 
+	 * @return the buffer containing the drawn values, weight and utility
+	 */
+	public Buffer draw() {
+		return draw(buffers.get());
+	}
+
+	/**
+	 * Estimates the likelihood of the evidence, as the average weight of a number
+	 * of draws.
+	 * 
+	 * @param nbDraws the number of draws
+	 * @return the estimated likelihood of the evidence
+	 */
+	public double estimateEvidenceLikelihood(int nbDraws) {
+		double total = 0.0;
+		for (int i = 0; i < nbDraws; i++) {
+			total += draw().getWeight();
+		}
+		return (nbDraws > 0) ? total / nbDraws : 1.0;
+	}
+
+	/**
+	 * Draws a new sample according to the plan, and writes it in the provided
+	 * buffer.
+	 * 
+	 * @param buffer the buffer in which to write the drawn values
+	 * @return the buffer
+	 */
+	Buffer draw(Buffer buffer) {
+		buffer.logWeight = 0.0;
+		buffer.utility = 0.0;
+		for (int i = 0; i < samplers.length; i++) {
+			samplers[i].sample(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Draws a new sample according to the plan, except for the fixed slots, whose
+	 * values must already be written in the buffer.
+	 * 
+	 * @param buffer the buffer in which to write the drawn values
+	 * @param fixed whether the value of each slot is fixed
+	 * @return the buffer
+	 */
+	Buffer draw(Buffer buffer, boolean[] fixed) {
+		buffer.logWeight = 0.0;
+		buffer.utility = 0.0;
+		for (int i = 0; i < samplers.length; i++) {
+			if (!fixed[i]) {
+				samplers[i].sample(buffer);
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Adds the content of the buffer, restricted to the query variables, as a new
+	 * row in the batch. The columns of the batch must correspond to the query
+	 * variables of the plan (see {@link #getQueryVariables()}).
+	 * 
+	 * @param buffer the buffer with the drawn values
+	 * @param batch the batch in which to add the sample
+	 */
+	public void addSample(Buffer buffer, SampleBatch batch) {
+		int row = batch.addRow(buffer.logWeight, buffer.utility);
+		for (int i = 0; i < querySlots.length; i++) {
+			batch.setValue(row, i, buffer.values[querySlots[i]]);
+		}
+	}
+
+	/**
+	 * Returns the query variables that are sampled by the plan (in the order of
+	 * the batch columns).
+	 * 
+	 * @return the sampled query variables
+	 */
+	public List<String> getQueryVariables() {
+		List<String> queryVars = new ArrayList<String>(querySlots.length);
+		for (int i = 0; i < querySlots.length; i++) {
+			queryVars.add(ids[querySlots[i]]);
+		}
+		return queryVars;
+	}
+
+	/**
+	 * Returns the number of nodes in the plan.
+	 * 
+	 * @return the number of nodes
+	 */
+	public int size() {
+		return samplers.length;
+	}
+
+	/**
+	 * Returns a string representation of the plan
+	 */
+	@Override
+	public String toString() {
+		String str = "";
+		for (int i = 0; i < samplers.length; i++) {
+			str += i + ":" + ids[i] + "(" + samplers[i].getClass().getSimpleName()
+					+ ") ";
+		}
+		return str.trim();
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Creates the sampler for the node located at the given slot.
+	 * 
+	 * @param n the node
+	 * @param slot the slot of the node
+	 * @param slots the mapping between node identifiers and slots
+	 * @param evidence the evidence
+	 * @return the corresponding sampler
+	 */
+	private NodeSampler createSampler(BNode n, int slot,
+			Map<String, Integer> slots, Assignment evidence) {
+		String id = n.getId();
+		int[] inputSlots = n.getInputNodeIds().stream()
+				.filter(i -> slots.containsKey(i)).mapToInt(i -> slots.get(i))
+				.toArray();
+
+		// if the node is an evidence node and has no input nodes
+		if (n.getInputNodeIds().isEmpty() && evidence.containsVar(id)) {
+			return new FixedSampler(slot, ids, evidence.getValue(id));
+		}
+		else if (n instanceof ChanceNode && evidence.containsVar(id)) {
+			return new EvidenceSampler(slot, inputSlots, ids, (ChanceNode) n,
+					evidence.getValue(id));
+		}
+		else if (n instanceof ChanceNode) {
+			return new ChanceSampler(slot, inputSlots, ids, (ChanceNode) n);
+		}
+
+		// if the node is an action node
+		else if (n instanceof ActionNode && n.getInputNodeIds().isEmpty()
+				&& !evidence.containsVar(id)) {
+			return new ActionSampler(slot, ids, (ActionNode) n);
+		}
+		else if (n instanceof ActionNode) {
+			return new FixedSampler(slot, ids, evidence.getValue(id));
+		}
+
+		// finally, if the node is a utility node, calculate the utility
+		else if (n instanceof UtilityNode) {
+			return new UtilitySampler(slot, inputSlots, ids, (UtilityNode) n);
+		}
+		throw new RuntimeException("cannot create sampler for node " + id);
+	}
+
+	// ===================================
+	// BUFFER AND NODE SAMPLERS
+	// ===================================
+
+	/**
+	 * Reusable buffer for the draws of a given thread. The buffer contains the
+	 * sampled values (one per slot), the conditions used for each node, and the
+	 * logarithmic weight and utility of the current draw.
+	 */
+	public static final class Buffer {
+
+		// the sampled values
+		final Value[] values;
+
+		// the (reusable) conditions for each node
+		final Assignment[] conditions;
+
+		// logarithmic weight of the draw
+		double logWeight;
+
+		// utility of the draw
+		double utility;
+
+		Buffer(NodeSampler[] samplers) {
+			values = new Value[samplers.length];
+			conditions = new Assignment[samplers.length];
+			for (int i = 0; i < samplers.length; i++) {
+				conditions[i] = new Assignment(samplers[i].fixedInputs);
+			}
+		}
+
+		/**
+		 * Returns the (exponentiated) weight of the current draw
+		 * 
+		 * @return the weight
+		 */
+		public double getWeight() {
+			return Math.exp(logWeight);
+		}
+
+		/**
+		 * Returns the utility of the current draw
+		 * 
+		 * @return the utility
+		 */
+		public double getUtility() {
+			return utility;
+		}
+	}
+
+	/**
+	 * Sampler for a single node of the plan.
+	 */
+	static abstract class NodeSampler {
+
+		// the slot of the node
+		final int slot;
+
+		// the node identifiers for the input slots
+		final String[] inputIds;
+
+		// the input slots
+		final int[] inputSlots;
+
+		// the values of the input nodes that are not part of the plan
+		Assignment fixedInputs = new Assignment();
+
+		NodeSampler(int slot, int[] inputSlots, String[] ids) {
+			this.slot = slot;
+			this.inputSlots = inputSlots;
+			this.inputIds = new String[inputSlots.length];
+			for (int i = 0; i < inputSlots.length; i++) {
+				inputIds[i] = ids[inputSlots[i]];
+			}
+		}
+
+		/**
+		 * Samples the node and writes the result in the buffer
+		 * 
+		 * @param buffer the buffer for the draw
+		 */
+		abstract void sample(Buffer buffer);
+
+		/**
+		 * Returns true if the sampler writes a value in its slot, and false otherwise
+		 * 
+		 * @return true if a value is written, else false
+		 */
+		boolean hasValue() {
+			return true;
+		}
+
+		/**
+		 * Returns the probability of the current value of the slot given the
+		 * current values of its input slots (1.0 if the node does not define a
+		 * conditional probability).
+		 * 
+		 * @param buffer the buffer for the draw
+		 * @return the probability of the value
+		 */
+		double getProb(Buffer buffer) {
+			return 1.0;
+		}
+
+		/**
+		 * Fills the condition of the node with the current values of its input
+		 * nodes.
+		 * 
+		 * @param buffer the buffer for the draw
+		 * @return the filled condition
+		 */
+		final Assignment getCondition(Buffer buffer) {
+			Assignment condition = buffer.conditions[slot];
+			for (int i = 0; i < inputSlots.length; i++) {
+				condition.addPair(inputIds[i], buffer.values[inputSlots[i]]);
+			}
+			return condition;
+		}
+	}
+
+	/**
+	 * Sampler for a node with a fixed value (evidence or action without input).
+	 */
+	static final class FixedSampler extends NodeSampler {
+
+		final Value value;
+
+		FixedSampler(int slot, String[] ids, Value value) {
+			super(slot, new int[0], ids);
+			this.value = value;
+		}
+
+		@Override
+		void sample(Buffer buffer) {
+			buffer.values[slot] = value;
+		}
+	}
+
+	/**
+	 * Sampler for a chance node that is not part of the evidence.
+	 */
+	static final class ChanceSampler extends NodeSampler {
+
+		final ChanceNode node;
+		final IndependentDistribution independent;
+
+		ChanceSampler(int slot, int[] inputSlots, String[] ids,
+				ChanceNode node) {
+			super(slot, inputSlots, ids);
+			this.node = node;
+			ProbDistribution distrib = node.peekDistrib();
+			independent = (distrib instanceof IndependentDistribution)
+					? (IndependentDistribution) distrib : null;
+		}
+
+		@Override
+		void sample(Buffer buffer) {
+			buffer.values[slot] = (independent != null) ? independent.sample()
+					: node.sample(getCondition(buffer));
+		}
+
+		@Override
+		double getProb(Buffer buffer) {
+			return (independent != null) ? independent.getProb(buffer.values[slot])
+					: node.getProb(getCondition(buffer), buffer.values[slot]);
+		}
+	}
+
+	/**
+	 * Sampler for a chance node that is part of the evidence (and has input nodes).
+	 * The sampler updates the weight of the draw.
+	 */
+	static final class EvidenceSampler extends NodeSampler {
+
+		final ChanceNode node;
+		final Value evidenceValue;
+		final ContinuousDistribution continuous;
+
+		EvidenceSampler(int slot, int[] inputSlots, String[] ids,
+				ChanceNode node, Value evidenceValue) {
+			super(slot, inputSlots, ids);
+			this.node = node;
+			this.evidenceValue = evidenceValue;
+			ProbDistribution distrib = node.peekDistrib();
+			continuous = (distrib instanceof ContinuousDistribution)
+					? (ContinuousDistribution) distrib : null;
+		}
+
+		@Override
+		void sample(Buffer buffer) {
+			double evidenceProb = (continuous != null)
+					? continuous.getProbDensity(evidenceValue)
+					: node.getProb(getCondition(buffer), evidenceValue);
+			buffer.logWeight += Math.log(evidenceProb);
+			buffer.values[slot] = evidenceValue;
+		}
+
+		@Override
+		double getProb(Buffer buffer) {
+			return (continuous != null) ? continuous.getProbDensity(evidenceValue)
+					: node.getProb(getCondition(buffer), evidenceValue);
+		}
+	}
+
+	/**
+	 * Sampler for an action node without input nodes.
+	 */
+	static final class ActionSampler extends NodeSampler {
+
+		final ActionNode node;
+
+		ActionSampler(int slot, String[] ids, ActionNode node) {
+			super(slot, new int[0], ids);
+			this.node = node;
+		}
+
+		@Override
+		void sample(Buffer buffer) {
+			buffer.values[slot] = node.sample();
+		}
+	}
+
+	/**
+	 * Sampler for a utility node, which adds its utility to the draw.
+	 */
+	static final class UtilitySampler extends NodeSampler {
+
+		final UtilityNode node;
+
+		UtilitySampler(int slot, int[] inputSlots, String[] ids,
+				UtilityNode node) {
+			super(slot, inputSlots, ids);
+			this.node = node;
+		}
+
+		@Override
+		void sample(Buffer buffer) {
+			buffer.utility += node.getUtility(getCondition(buffer));
+		}
+
+		@Override
+		boolean hasValue() {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.inference.approximate;
+
+import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import opendial.bn.values.Value;
+
+/**
+ * Running statistics on a collection of weighted samples, used to determine when a
+ * sampling process has converged. The statistics include the effective sample size
+ * (ESS) of the samples and an estimate of the standard error on the query
+ * estimates. For probability queries, the error is the maximum standard error on
+ * the marginal probabilities of the query variables. For utility queries, the error
+ * is the maximum standard error on the mean utility of each query assignment.
+ * 
+ * <p>
+ * The statistics are updated incrementally, so that they can be checked after each
+ * batch of samples. The weights are accumulated relative to the largest weight
+ * seen so far, such that very small weights do not underflow.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ *
+ */
+public class SamplingStatistics {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	// minimum effective sample size before convergence can be declared
+	public static double MIN_EFFECTIVE_SIZE = 100;
+
+	// the query variables
+	final Collection<String> queryVars;
+
+	// whether the statistics concern utilities (instead of probabilities)
+	final boolean utilities;
+
+	// number of samples
+	int nbSamples = 0;
+
+	// logarithm of the reference weight, relative to which the weights are summed
+	double logOffset = Double.NEGATIVE_INFINITY;
+
+	// sum of the weights and squared weights
+	double sumWeights = 0.0;
+	double sumSquaredWeights = 0.0;
+
+	// sum of the weights for each value of the query variables
+	final List<Map<Value, Double>> valueWeights;
+
+	// weighted sums for the utilities of each query assignment (in this order:
+	// weights, squared weights, weighted utilities, weighted squared utilities)
+	final Map<List<Value>, double[]> utilityWeights;
+
+	// ===================================
+	// CONSTRUCTION METHODS
+	// ===================================
+
+	/**
+	 * Creates new (empty) statistics for the query variables
+	 * 
+	 * @param queryVars the query variables
+	 * @param utilities whether the query concerns utilities
+	 */
+	public SamplingStatistics(Collection<String> queryVars, boolean utilities) {
+		this.queryVars = queryVars;
+		this.utilities = utilities;
+		valueWeights = new ArrayList<Map<Value, Double>>(queryVars.size());
+		for (int j = 0; j < queryVars.size(); j++) {
+			valueWeights.add(new HashMap<Value, Double>());
+		}
+		utilityWeights = new HashMap<List<Value>, double[]>();
+	}
+
+	/**
+	 * Updates the statistics with the samples of the batch, starting from the given
+	 * row.
+	 * 
+	 * @param batch the batch of (weighted) samples
+	 * @param firstRow the first row to include in the statistics
+	 */
+	public void addSamples(SampleBatch batch, int firstRow) {
+		int[] columns = batch.getColumnIndices(queryVars);
+		double maxLogWeight = Double.NEGATIVE_INFINITY;
+		for (int i = firstRow; i < batch.size(); i++) {
+			maxLogWeight = Math.max(maxLogWeight, batch.getLogWeight(i));
+		}
+		if (maxLogWeight > logOffset) {
+			rescale(maxLogWeight);
+		}
+		for (int i = firstRow; i < batch.size(); i++) {
+			double w = (logOffset > Double.NEGATIVE_INFINITY)
+					? Math.exp(batch.getLogWeight(i) - logOffset) : 0.0;
+			nbSamples++;
+			sumWeights += w;
+			sumSquaredWeights += w * w;
+			if (utilities) {
+				double u = batch.getUtility(i);
+				double[] sums = utilityWeights.computeIfAbsent(
+						batch.getValues(i, columns), a -> new double[4]);
+				sums[0] += w;
+				sums[1] += w * w;
+				sums[2] += w * u;
+				sums[3] += w * u * u;
+			}
+			else {
+				for (int j = 0; j < columns.length; j++) {
+					if (columns[j] >= 0) {
+						valueWeights.get(j).merge(batch.getValue(i, columns[j]), w,
+								Double::sum);
+					}
+				}
+			}
+		}
+	}
+
+	// ===================================
+	// GETTERS
+	// ===================================
+
+	/**
+	 * Returns the number of samples included in the statistics
+	 * 
+	 * @return the number of samples
+	 */
+	public int getNbSamples() {
+		return nbSamples;
+	}
+
+	/**
+	 * Returns the effective sample size, defined as (sum of weights)^2 / (sum of
+	 * squared weights).
+	 * 
+	 * @return the effective sample size
+	 */
+	public double getEffectiveSampleSize() {
+		return (sumSquaredWeights > 0) ? sumWeights * sumWeights / sumSquaredWeights
+				: 0.0;
+	}
+
+	/**
+	 * Returns the estimated standard error on the query estimates (marginal
+	 * probabilities or mean utilities). If no sample has been collected, returns
+	 * positive infinity.
+	 * 
+	 * @return the error estimate
+	 */
+	public double getErrorEstimate() {
+		double ess = getEffectiveSampleSize();
+		if (ess <= 0.0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double error = 0.0;
+		if (utilities) {
+			for (double[] sums : utilityWeights.values()) {
+				// assignments whose weights all underflowed carry no information
+				if (sums[1] <= 0.0) {
+					continue;
+				}
+				double localEss = sums[0] * sums[0] / sums[1];
+				double mean = sums[2] / sums[0];
+				double variance = Math.max(0.0, sums[3] / sums[0] - mean * mean);
+				error = Math.max(error, Math.sqrt(variance / localEss));
+			}
+		}
+		else {
+			for (Map<Value, Double> weights : valueWeights) {
+				for (double weight : weights.values()) {
+					double prob = weight / sumWeights;
+					error = Math.max(error, Math.sqrt(prob * (1 - prob) / ess));
+				}
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Returns true if the effective sample size is large enough and the error
+	 * estimate is below the tolerance, and false otherwise.
+	 * 
+	 * @param tolerance the tolerance on the error estimate
+	 * @return true if the sampling has converged, else false
+	 */
+	public boolean hasConverged(double tolerance) {
+		return getEffectiveSampleSize() >= MIN_EFFECTIVE_SIZE
+				&& getErrorEstimate() <= tolerance;
+	}
+
+	/**
+	 * Changes the reference weight of the statistics, and rescales the sums
+	 * accordingly.
+	 * 
+	 * @param newLogOffset the logarithm of the new reference weight
+	 */
+	private void rescale(double newLogOffset) {
+		double factor = (logOffset > Double.NEGATIVE_INFINITY)
+				? Math.exp(logOffset - newLogOffset) : 0.0;
+		logOffset = newLogOffset;
+		sumWeights *= factor;
+		sumSquaredWeights *= factor * factor;
+		for (Map<Value, Double> weights : valueWeights) {
+			weights.replaceAll((v, w) -> w * factor);
+		}
+		for (double[] sums : utilityWeights.values()) {
+			sums[0] *= factor;
+			sums[1] *= factor * factor;
+			sums[2] *= factor;
+			sums[3] *= factor;
+		}
+	}
+
+	/**
+	 * Returns a string representation of the statistics
+	 */
+	@Override
+	public String toString() {
+		return "samples=" + nbSamples + ", ESS=" + getEffectiveSampleSize()
+				+ ", error=" + getErrorEstimate();
+	}
+
+}
@@ -20,23 +20,46 @@
 // TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
 // SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 // =================================================================                                                                   
-
 package opendial.inference.exact;
 
 import java.util.logging.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import opendial.bn.values.Value;
 import opendial.datastructs.Assignment;
 
 /**
- * Double factor, combining probability and utility distributions
+ * Double factor, combining probability and utility distributions.
+ * 
+ * <p>
+ * The factor is stored either as a dense tensor (with integer-coded variable
+ * values and stride-indexed arrays for the probabilities and utilities) or as a
+ * sparse table mapping assignments to values. New factors start in the sparse
+ * representation, and are converted to the dense one by the method compact() if
+ * they are sufficiently dense. Products and sum-outs on dense factors are
+ * performed by index arithmetic, and are split into blocks of cells processed in
+ * parallel for the factors with at least PARALLEL_THRESHOLD cells.
+ * 
+ * <p>
+ * To avoid underflows in long products, the probabilities are stored relative to
+ * a logarithmic scale specific to each factor, which is adjusted whenever the
+ * probabilities become too small (or too large) to be safely represented. In
+ * addition, the entries of a product whose probability is negligible compared to
+ * the largest one are dropped. The mass of the dropped entries is tracked, and
+ * provides an upper bound on the error of the factor (see getPrecisionBound()).
  *
  * @author Pierre Lison (plison@ifi.uio.no)
  *
@@ -46,10 +69,50 @@ public class DoubleFactor {
 	// logger
 	final static Logger log = Logger.getLogger("OpenDial");
 
-	// the matrix, mapping each assignment to two double values
-	// (the probability and the utility)
+	/** Minimum proportion of defined cells for a factor to be stored densely */
+	public static double MIN_DENSITY = 0.25;
+
+	/** Maximum number of cells for a dense factor */
+	public static int MAX_DENSE_SIZE = 1000000;
+
+	/** Minimum number of cells for the operations on a dense factor to run in
+	 * parallel */
+	public static int PARALLEL_THRESHOLD = 20000;
+
+	// number of cells in each block processed in parallel (a multiple of 64, such
+	// that the blocks do not share any word of the bit sets)
+	private static final int BLOCK_SIZE = 4096;
+
+	/** Whether the probabilities are rescaled (in log-space) to avoid underflows */
+	public static boolean LOG_SCALING = true;
+
+	/**
+	 * Relative threshold below which the entries of a product are dropped: an entry
+	 * is dropped if its probability is at most PRUNING_THRESHOLD times the largest
+	 * probability in the product (with the default value, only the entries with a
+	 * zero probability are dropped). A negative value disables the pruning.
+	 */
+	public static double PRUNING_THRESHOLD = 0.0;
+
+	// bounds outside of which the probabilities of a factor are rescaled
+	private static final double MIN_SCALE = 1E-50;
+	private static final double MAX_SCALE = 1E50;
+
+	// the sparse matrix, mapping each assignment to two double values
+	// (the probability and the utility). Null if the factor is dense
 	Map<Assignment, double[]> matrix;
 
+	// the dense tensor. Null if the factor is sparse
+	Tensor tensor;
+
+	// logarithm of the scale of the probabilities (the actual probability of each
+	// entry is its stored probability multiplied by exp(logScale))
+	double logScale = 0.0;
+
+	// upper bound on the probability mass dropped from the factor (or from the
+	// factors it was computed from), relative to the scale of the factor
+	double residual = 0.0;
+
 	// ===================================
 	// CONSTRUCTION METHODS
 	// ===================================
@@ -67,10 +130,47 @@ public class DoubleFactor {
 	 * @param existingFactor the existing factor
 	 */
 	public DoubleFactor(DoubleFactor existingFactor) {
-		matrix = new HashMap<Assignment, double[]>(existingFactor.matrix);
+		if (existingFactor.tensor != null) {
+			tensor = existingFactor.tensor.copy();
+		}
+		else {
+			matrix = new HashMap<Assignment, double[]>();
+			for (Entry<Assignment, double[]> e : existingFactor.matrix.entrySet()) {
+				matrix.put(e.getKey(), e.getValue().clone());
+			}
+		}
+		logScale = existingFactor.logScale;
+		residual = existingFactor.residual;
+	}
+
+	/**
+	 * Creates a dense factor from the provided tensor
+	 * 
+	 * @param tensor the tensor
+	 */
+	private DoubleFactor(Tensor tensor) {
+		this.tensor = tensor;
 	}
 
+	/**
+	 * Adds a new entry to the factor (replacing any existing one)
+	 * 
+	 * @param a the assignment
+	 * @param probValue the probability value
+	 * @param utilityValue the utility value
+	 */
 	public void addEntry(Assignment a, double probValue, double utilityValue) {
+		probValue = toScale(probValue);
+		if (tensor != null) {
+			int index = tensor.indexOf(a);
+			if (index >= 0) {
+				tensor.probs[index] = probValue;
+				tensor.utils[index] = utilityValue;
+				tensor.defined.set(index);
+				return;
+			}
+			toSparse();
+		}
 		matrix.put(a, new double[] { probValue, utilityValue });
 	}
 
@@ -82,21 +182,54 @@ public class DoubleFactor {
 	 * @param utilIncr utility increment
 	 */
 	public void incrementEntry(Assignment a, double probIncr, double utilIncr) {
-		double[] old = matrix.getOrDefault(a, new double[] { 0.0, 0.0 });
-		double[] val = new double[] { old[0] + probIncr, old[1] + utilIncr };
-		matrix.put(a, val);
+		probIncr = toScale(probIncr);
+		if (tensor != null) {
+			int index = tensor.indexOf(a);
+			if (index >= 0) {
+				tensor.probs[index] += probIncr;
+				tensor.utils[index] += utilIncr;
+				tensor.defined.set(index);
+				return;
+			}
+			toSparse();
+		}
+		double[] entry = matrix.get(a);
+		if (entry == null) {
+			matrix.put(a, new double[] { probIncr, utilIncr });
+		}
+		else {
+			entry[0] += probIncr;
+			entry[1] += utilIncr;
+		}
 	}
 
 	/**
-	 * Normalises the factor, assuming no conditional variables in the factor.
+	 * Normalises the factor, assuming no conditional variables in the factor. The
+	 * factor is left unchanged if its total probability mass is zero.
 	 * 
 	 */
 	public void normalise() {
-		double total = matrix.values().stream().mapToDouble(v -> v[0]).sum();
-		for (Entry<Assignment, double[]> e : matrix.entrySet()) {
-			double[] old = e.getValue();
-			e.setValue(new double[] { old[0] / total, old[1] });
+		double total = getTotalMass();
+		if (!(total > 0.0)) {
+			return;
+		}
+		if (tensor != null) {
+			Tensor t = tensor;
+			forEachBlock(t.size(), (start, end) -> {
+				for (int i = t.defined.nextSetBit(start); i >= 0
+						&& i < end; i = t.defined.nextSetBit(i + 1)) {
+					t.probs[i] /= total;
+				}
+			});
+			logScale = 0.0;
+			residual /= total;
+			return;
+		}
+		for (double[] entry : matrix.values()) {
+			entry[0] /= total;
 		}
+		logScale = 0.0;
+		residual /= total;
 	}
 
 	/**
@@ -104,10 +237,22 @@ public class DoubleFactor {
 	 * factor.
 	 */
 	public void normaliseUtil() {
-		for (Entry<Assignment, double[]> e : matrix.entrySet()) {
-			double[] old = e.getValue();
-			if (old[0] > 0.0 && old[1] != 0 && old[0] != 1) {
-				e.setValue(new double[] { old[0], old[1] / old[0] });
+		if (tensor != null) {
+			Tensor t = tensor;
+			forEachBlock(t.size(), (start, end) -> {
+				for (int i = t.defined.nextSetBit(start); i >= 0
+						&& i < end; i = t.defined.nextSetBit(i + 1)) {
+					double prob = t.probs[i];
+					if (prob > 0.0 && t.utils[i] != 0 && prob != 1) {
+						t.utils[i] /= prob;
+					}
+				}
+			});
+			return;
+		}
+		for (double[] entry : matrix.values()) {
+			if (entry[0] > 0.0 && entry[1] != 0 && entry[0] != 1) {
+				entry[1] /= entry[0];
 			}
 		}
 	}
@@ -119,6 +264,46 @@ public class DoubleFactor {
 	 */
 	public void normalise(Collection<String> condVars) {
 
+		if (tensor != null) {
+			Tensor t = tensor;
+
+			// computes the strides of the conditional variables
+			int[] condStrides = new int[t.vars.length];
+			int nbConds = 1;
+			for (int j = t.vars.length - 1; j >= 0; j--) {
+				if (condVars.contains(t.vars[j])) {
+					condStrides[j] = nbConds;
+					nbConds *= t.domains[j].length;
+				}
+			}
+			double[] totals = new double[nbConds];
+			int[] condIndices = new int[t.size()];
+			forEachBlock(t.size(), (start, end) -> {
+				for (int i = t.defined.nextSetBit(start); i >= 0
+						&& i < end; i = t.defined.nextSetBit(i + 1)) {
+					int condIndex = 0;
+					for (int j = 0; j < t.vars.length; j++) {
+						condIndex += t.code(i, j) * condStrides[j];
+					}
+					condIndices[i] = condIndex;
+				}
+			});
+			for (int i = t.defined.nextSetBit(0); i >= 0; i =
+					t.defined.nextSetBit(i + 1)) {
+				totals[condIndices[i]] += t.probs[i];
+			}
+			forEachBlock(t.size(), (start, end) -> {
+				for (int i = t.defined.nextSetBit(start); i >= 0
+						&& i < end; i = t.defined.nextSetBit(i + 1)) {
+					t.probs[i] /= totals[condIndices[i]];
+				}
+			});
+			logScale = 0.0;
+			residual /= Arrays.stream(totals).filter(v -> v > 0.0).min()
+					.orElse(1.0);
+			return;
+		}
+
 		Map<Assignment, Double> totals = new HashMap<Assignment, Double>();
 		for (Assignment a : matrix.keySet()) {
 			Assignment cond = a.getTrimmed(condVars);
@@ -127,9 +312,11 @@ public class DoubleFactor {
 		}
 		for (Entry<Assignment, double[]> e : matrix.entrySet()) {
 			Assignment cond = e.getKey().getTrimmed(condVars);
-			double[] old = e.getValue();
-			e.setValue(new double[] { old[0] / totals.get(cond), old[1] });
+			e.getValue()[0] /= totals.get(cond);
 		}
+		logScale = 0.0;
+		residual /= totals.values().stream().filter(v -> v > 0.0)
+				.mapToDouble(v -> v).min().orElse(1.0);
 	}
 
 	/**
@@ -138,6 +325,12 @@ public class DoubleFactor {
 	 * @param headVars the variables to retain.
 	 */
 	public void trim(Collection<String> headVars) {
+		if (tensor != null) {
+			if (headVars.containsAll(Arrays.asList(tensor.vars))) {
+				return;
+			}
+			toSparse();
+		}
 		Map<Assignment, double[]> matrix2 = new HashMap<Assignment, double[]>();
 		for (Entry<Assignment, double[]> e : matrix.entrySet()) {
 			Assignment a = e.getKey();
@@ -148,6 +341,172 @@ public class DoubleFactor {
 		matrix = matrix2;
 	}
 
+	/**
+	 * Converts the factor to its dense representation, provided all its
+	 * assignments are defined on the same variables and the proportion of defined
+	 * cells is at least MIN_DENSITY. Otherwise, the factor is left unchanged.
+	 */
+	public void compact() {
+		if (tensor != null || matrix.isEmpty()) {
+			return;
+		}
+		Assignment first = matrix.keySet().iterator().next();
+		String[] vars = first.getVariables().toArray(new String[0]);
+		List<Set<Value>> values = new ArrayList<Set<Value>>();
+		for (int j = 0; j < vars.length; j++) {
+			values.add(new LinkedHashSet<Value>());
+		}
+		for (Assignment a : matrix.keySet()) {
+			if (a.size() != vars.length) {
+				return;
+			}
+			for (int j = 0; j < vars.length; j++) {
+				Value v = a.getValue(vars[j]);
+				if (v == null) {
+					return;
+				}
+				values.get(j).add(v);
+			}
+		}
+		long size = 1;
+		Value[][] domains = new Value[vars.length][];
+		for (int j = 0; j < vars.length; j++) {
+			domains[j] = values.get(j).toArray(new Value[0]);
+			size *= domains[j].length;
+		}
+		if (size > MAX_DENSE_SIZE || matrix.size() < MIN_DENSITY * size) {
+			return;
+		}
+		Tensor t = new Tensor(vars, domains);
+		for (Entry<Assignment, double[]> e : matrix.entrySet()) {
+			int index = t.indexOf(e.getKey());
+			t.probs[index] = e.getValue()[0];
+			t.utils[index] = e.getValue()[1];
+			t.defined.set(index);
+		}
+		tensor = t;
+		matrix = null;
+	}
+
+	// ===================================
+	// FACTOR OPERATIONS
+	// ===================================
+
+	/**
+	 * Returns the pointwise product of the current factor with the factor given as
+	 * argument. The entries of the product are defined for every pair of mutually
+	 * consistent entries, and are associated with the product of their
+	 * probabilities and the sum of their utilities. The negligible entries of the
+	 * product are dropped (see PRUNING_THRESHOLD).
+	 * 
+	 * @param other the other factor
+	 * @return the product of the two factors
+	 */
+	public DoubleFactor product(DoubleFactor other) {
+		if (tensor != null && other.tensor != null) {
+			long size = tensor.size();
+			for (int j = 0; j < other.tensor.vars.length; j++) {
+				if (tensor.position(other.tensor.vars[j]) < 0) {
+					size *= other.tensor.domains[j].length;
+				}
+			}
+			if (size <= MAX_DENSE_SIZE) {
+				DoubleFactor product =
+						new DoubleFactor(tensor.product(other.tensor));
+				product.setScale(this, other);
+				product.checkDensity();
+				return product;
+			}
+		}
+
+		// otherwise, performs a hash join on the shared variables
+		Set<String> sharedVars = new HashSet<String>(other.getVariables());
+		sharedVars.retainAll(getVariables());
+		Map<Assignment, List<Assignment>> index =
+				new HashMap<Assignment, List<Assignment>>();
+		Map<Assignment, double[]> entries = getEntries();
+		for (Assignment b : entries.keySet()) {
+			Assignment key = b.getTrimmed(sharedVars);
+			if (key.size() == sharedVars.size()) {
+				index.computeIfAbsent(key, k -> new ArrayList<Assignment>()).add(b);
+			}
+		}
+		DoubleFactor product = new DoubleFactor();
+		for (Entry<Assignment, double[]> e : other.getEntries().entrySet()) {
+			Assignment a = e.getKey();
+			List<Assignment> matches = index.get(a.getTrimmed(sharedVars));
+			if (matches == null) {
+				continue;
+			}
+			for (Assignment b : matches) {
+				double[] entry2 = entries.get(b);
+				product.addEntry(new Assignment(a, b), e.getValue()[0] * entry2[0],
+						e.getValue()[1] + entry2[1]);
+			}
+		}
+		product.setScale(this, other);
+		product.compact();
+		return product;
+	}
+
+	/**
+	 * Sums out the variable from the factor, and returns the result. The
+	 * probabilities are summed, while the utilities are averaged (weighted by
+	 * their probabilities).
+	 * 
+	 * @param variable the variable to sum out
+	 * @return the summed out factor
+	 */
+	public DoubleFactor sumOut(String variable) {
+		if (tensor != null && tensor.position(variable) >= 0) {
+			DoubleFactor sumFactor = new DoubleFactor(tensor.sumOut(variable));
+			sumFactor.logScale = logScale;
+			sumFactor.residual = residual;
+			sumFactor.normaliseUtil();
+			sumFactor.checkDensity();
+			return sumFactor;
+		}
+
+		DoubleFactor sumFactor = new DoubleFactor();
+		for (Entry<Assignment, double[]> e : getEntries().entrySet()) {
+			Assignment reducedA = new Assignment(e.getKey());
+			reducedA.removePair(variable);
+			double prob = e.getValue()[0];
+			double util = e.getValue()[1];
+			sumFactor.incrementEntry(reducedA, prob, prob * util);
+		}
+		sumFactor.logScale = logScale;
+		sumFactor.residual = residual;
+		sumFactor.normaliseUtil();
+		sumFactor.compact();
+		return sumFactor;
+	}
+
+	/**
+	 * Maximises the variable out of the factor, and returns the result. Each entry
+	 * of the result takes the largest probability among the entries that only
+	 * differ by the value of the variable, along with the utility of this entry.
+	 * 
+	 * @param variable the variable to maximise out
+	 * @return the resulting factor
+	 */
+	public DoubleFactor maxOut(String variable) {
+		return extremumOut(variable, true);
+	}
+
+	/**
+	 * Minimises the variable out of the factor, and returns the result. Each entry
+	 * of the result takes the smallest probability among the entries that only
+	 * differ by the value of the variable (zero if one of these entries is missing
+	 * from the factor), along with the utility of this entry.
+	 * 
+	 * @param variable the variable to minimise out
+	 * @return the resulting factor
+	 */
+	public DoubleFactor minOut(String variable) {
+		return extremumOut(variable, false);
+	}
+
 	// ===================================
 	// GETTERS
 	// ===================================
@@ -159,6 +518,9 @@ public class DoubleFactor {
 	 * @return true if the factor is empty, false otherwise
 	 */
 	public boolean isEmpty() {
+		if (tensor != null) {
+			return tensor.vars.length == 0 || tensor.defined.isEmpty();
+		}
 		if (matrix == null) {
 			return true;
 		}
@@ -171,8 +533,25 @@ public class DoubleFactor {
 		return true;
 	}
 
+	/**
+	 * Returns the probability and utility for the assignment, if it is encoded in
+	 * the matrix. Else, returns null.
+	 * 
+	 * @param a the assignment
+	 * @return the probability and utility of the assignment
+	 */
 	public double[] getEntry(Assignment a) {
-		return matrix.get(a);
+		if (tensor != null) {
+			int index = tensor.indexOf(a);
+			if (index < 0 || !tensor.defined.get(index)) {
+				return null;
+			}
+			return new double[] { fromScale(tensor.probs[index]),
+					tensor.utils[index] };
+		}
+		double[] entry = matrix.get(a);
+		return (entry != null && logScale != 0.0)
+				? new double[] { fromScale(entry[0]), entry[1] } : entry;
 	}
 
 	/**
@@ -183,7 +562,7 @@ public class DoubleFactor {
 	 * @return probability of the assignment
 	 */
 	public double getProbEntry(Assignment a) {
-		return matrix.get(a)[0];
+		return getEntry(a)[0];
 	}
 
 	/**
@@ -194,7 +573,7 @@ public class DoubleFactor {
 	 * @return utility for the assignment
 	 */
 	public double getUtilityEntry(Assignment a) {
-		return matrix.get(a)[1];
+		return getEntry(a)[1];
 	}
 
 	/**
@@ -203,7 +582,7 @@ public class DoubleFactor {
 	 * @return the matrix
 	 */
 	public Set<Assignment> getAssignments() {
-		return matrix.keySet();
+		return getEntries().keySet();
 	}
 
 	/**
@@ -212,8 +591,11 @@ public class DoubleFactor {
 	 * @return the probability matrix
 	 */
 	public Map<Assignment, Double> getProbTable() {
-		return matrix.keySet().stream()
-				.collect(Collectors.toMap(a -> a, a -> matrix.get(a)[0]));
+		Map<Assignment, Double> table = new HashMap<Assignment, Double>();
+		for (Entry<Assignment, double[]> e : getEntries().entrySet()) {
+			table.put(e.getKey(), fromScale(e.getValue()[0]));
+		}
+		return table;
 	}
 
 	/**
@@ -222,8 +604,11 @@ public class DoubleFactor {
 	 * @return the utility matrix
 	 */
 	public Map<Assignment, Double> getUtilTable() {
-		return matrix.keySet().stream()
-				.collect(Collectors.toMap(a -> a, a -> matrix.get(a)[1]));
+		Map<Assignment, Double> table = new HashMap<Assignment, Double>();
+		for (Entry<Assignment, double[]> e : getEntries().entrySet()) {
+			table.put(e.getKey(), e.getValue()[1]);
+		}
+		return table;
 	}
 
 	/**
@@ -232,7 +617,7 @@ public class DoubleFactor {
 	 * @return the set of assignments
 	 */
 	public Set<Assignment> getValues() {
-		return matrix.keySet();
+		return getAssignments();
 	}
 
 	/**
@@ -242,7 +627,10 @@ public class DoubleFactor {
 	 * @return the set of variables
 	 */
 	public Set<String> getVariables() {
-		if (!matrix.isEmpty()) {
+		if (tensor != null) {
+			return new HashSet<String>(Arrays.asList(tensor.vars));
+		}
+		else if (!matrix.isEmpty()) {
 			return matrix.keySet().iterator().next().getVariables();
 		}
 		else {
@@ -257,7 +645,7 @@ public class DoubleFactor {
 	 * @return true if assignment is included, false otherwise
 	 */
 	public boolean hasAssignment(Assignment a) {
-		return matrix.containsKey(a);
+		return getEntry(a) != null;
 	}
 
 	/**
@@ -267,8 +655,36 @@ public class DoubleFactor {
 	 * @return the set of possible values
 	 */
 	public Set<Value> getValues(String variable) {
-		return matrix.keySet().stream().map(a -> a.getValue(variable))
-				.collect(Collectors.toSet());
+		Set<Value> values = new HashSet<Value>();
+		for (Assignment a : getAssignments()) {
+			values.add(a.getValue(variable));
+		}
+		return values;
+	}
+
+	/**
+	 * Returns an upper bound on the proportion of the probability mass of the
+	 * factor that was lost because of the entries dropped from the factor or from
+	 * the factors it was computed from. Once normalised, the factor is guaranteed
+	 * to be within this total variation distance of the exact result.
+	 * 
+	 * @return the precision bound (0.0 if no entry was dropped)
+	 */
+	public double getPrecisionBound() {
+		if (residual <= 0.0) {
+			return 0.0;
+		}
+		return residual / (getTotalMass() + residual);
+	}
+
+	/**
+	 * Returns true if the factor is currently stored as a dense tensor, and false
+	 * if it is stored as a sparse table.
+	 * 
+	 * @return true if the factor is dense, false otherwise
+	 */
+	public boolean isDense() {
+		return tensor != null;
 	}
 
 	// ===================================
@@ -290,10 +706,11 @@ public class DoubleFactor {
 	@Override
 	public String toString() {
 		String str = "";
-		for (Assignment a : matrix.keySet()) {
-			str += "P(" + a + ")=" + matrix.get(a)[0];
-			if (matrix.get(a)[1] != 0) {
-				str += " and U(" + a + ")=" + matrix.get(a)[1];
+		for (Entry<Assignment, double[]> e : getEntries().entrySet()) {
+			Assignment a = e.getKey();
+			str += "P(" + a + ")=" + fromScale(e.getValue()[0]);
+			if (e.getValue()[1] != 0) {
+				str += " and U(" + a + ")=" + e.getValue()[1];
 			}
 			str += "\n";
 		}
@@ -306,7 +723,542 @@ public class DoubleFactor {
 	 * @return the factor size
 	 */
 	public int size() {
-		return matrix.size();
+		return (tensor != null) ? tensor.defined.cardinality() : matrix.size();
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Returns the entries of the factor, mapping each assignment to its probability
+	 * and utility. For dense factors, the entries are decoded from the tensor.
+	 * 
+	 * @return the entries of the factor
+	 */
+	private Map<Assignment, double[]> getEntries() {
+		if (tensor == null) {
+			return matrix;
+		}
+		Map<Assignment, double[]> entries = new HashMap<Assignment, double[]>();
+		for (int i = tensor.defined.nextSetBit(0); i >= 0; i =
+				tensor.defined.nextSetBit(i + 1)) {
+			entries.put(tensor.decode(i),
+					new double[] { tensor.probs[i], tensor.utils[i] });
+		}
+		return entries;
+	}
+
+	/**
+	 * Maximises or minimises the variable out of the factor.
+	 * 
+	 * @param variable the variable to eliminate
+	 * @param max true to maximise the variable out, false to minimise it
+	 * @return the resulting factor
+	 */
+	private DoubleFactor extremumOut(String variable, boolean max) {
+		int nbValues = getValues(variable).size();
+
+		// for each reduced assignment: the probability, utility and number of
+		// entries with the extremum
+		Map<Assignment, double[]> extrema = new HashMap<Assignment, double[]>();
+		for (Entry<Assignment, double[]> e : getEntries().entrySet()) {
+			Assignment reducedA = new Assignment(e.getKey());
+			reducedA.removePair(variable);
+			double prob = e.getValue()[0];
+			double[] extremum = extrema.get(reducedA);
+			if (extremum == null) {
+				extrema.put(reducedA, new double[] { prob, e.getValue()[1], 1 });
+			}
+			else {
+				if ((max && prob > extremum[0]) || (!max && prob < extremum[0])) {
+					extremum[0] = prob;
+					extremum[1] = e.getValue()[1];
+				}
+				extremum[2]++;
+			}
+		}
+		DoubleFactor result = new DoubleFactor();
+		for (Entry<Assignment, double[]> e : extrema.entrySet()) {
+			double[] extremum = e.getValue();
+			if (!max && extremum[2] < nbValues) {
+				result.addEntry(e.getKey(), 0.0, 0.0);
+			}
+			else {
+				result.addEntry(e.getKey(), extremum[0], extremum[1]);
+			}
+		}
+		result.logScale = logScale;
+		result.residual = residual;
+		result.compact();
+		return result;
+	}
+
+	/**
+	 * Sets the scale and residual mass of the factor as the product of two factors,
+	 * then drops its negligible entries and rescales its probabilities.
+	 * 
+	 * @param factor1 the first factor of the product
+	 * @param factor2 the second factor of the product
+	 */
+	private void setScale(DoubleFactor factor1, DoubleFactor factor2) {
+		logScale = factor1.logScale + factor2.logScale;
+		if (factor1.residual > 0.0 || factor2.residual > 0.0) {
+			// dropped entries of one factor may be combined with any entry of
+			// the other factor
+			residual = factor1.residual * factor2.getTotalMass()
+					+ factor2.residual * factor1.getTotalMass()
+					+ factor1.residual * factor2.residual;
+		}
+		double max = getMaxProb();
+		if (PRUNING_THRESHOLD >= 0.0) {
+			prune(PRUNING_THRESHOLD * max);
+		}
+		if (LOG_SCALING && max > 0.0 && (max < MIN_SCALE || max > MAX_SCALE)) {
+			logScale += Math.log(max);
+			residual /= max;
+			if (tensor != null) {
+				for (int i = tensor.defined.nextSetBit(0); i >= 0; i =
+						tensor.defined.nextSetBit(i + 1)) {
+					tensor.probs[i] /= max;
+				}
+			}
+			else {
+				for (double[] entry : matrix.values()) {
+					entry[0] /= max;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops the entries whose probability is lower or equal to the threshold, and
+	 * adds their mass to the residual. The factor is left unchanged if all its
+	 * entries would be dropped.
+	 * 
+	 * @param threshold the threshold
+	 */
+	private void prune(double threshold) {
+		if (tensor != null) {
+			BitSet dropped = new BitSet(tensor.size());
+			double droppedMass = 0.0;
+			for (int i = tensor.defined.nextSetBit(0); i >= 0; i =
+					tensor.defined.nextSetBit(i + 1)) {
+				if (tensor.probs[i] <= threshold) {
+					dropped.set(i);
+					droppedMass += tensor.probs[i];
+				}
+			}
+			if (dropped.cardinality() < tensor.defined.cardinality()) {
+				tensor.defined.andNot(dropped);
+				residual += droppedMass;
+			}
+			return;
+		}
+		if (matrix.values().stream().anyMatch(v -> v[0] > threshold)) {
+			for (Iterator<double[]> it = matrix.values().iterator(); it
+					.hasNext();) {
+				double[] entry = it.next();
+				if (entry[0] <= threshold) {
+					residual += entry[0];
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the largest (scaled) probability in the factor
+	 * 
+	 * @return the largest probability
+	 */
+	private double getMaxProb() {
+		double max = 0.0;
+		if (tensor != null) {
+			for (int i = tensor.defined.nextSetBit(0); i >= 0; i =
+					tensor.defined.nextSetBit(i + 1)) {
+				max = Math.max(max, tensor.probs[i]);
+			}
+			return max;
+		}
+		for (double[] entry : matrix.values()) {
+			max = Math.max(max, entry[0]);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the sum of the (scaled) probabilities in the factor
+	 * 
+	 * @return the total probability mass
+	 */
+	private double getTotalMass() {
+		double total = 0.0;
+		if (tensor != null && tensor.size() >= PARALLEL_THRESHOLD) {
+			Tensor t = tensor;
+			return IntStream.range(0, t.size()).parallel().filter(t.defined::get)
+					.mapToDouble(i -> t.probs[i]).sum();
+		}
+		else if (tensor != null) {
+			for (int i = tensor.defined.nextSetBit(0); i >= 0; i =
+					tensor.defined.nextSetBit(i + 1)) {
+				total += tensor.probs[i];
+			}
+			return total;
+		}
+		for (double[] entry : matrix.values()) {
+			total += entry[0];
+		}
+		return total;
+	}
+
+	/**
+	 * Converts an actual probability to its value relative to the scale of the
+	 * factor.
+	 * 
+	 * @param prob the probability
+	 * @return the scaled probability
+	 */
+	private double toScale(double prob) {
+		return (logScale != 0.0) ? prob * Math.exp(-logScale) : prob;
+	}
+
+	/**
+	 * Converts a probability relative to the scale of the factor to its actual
+	 * value.
+	 * 
+	 * @param prob the scaled probability
+	 * @return the actual probability
+	 */
+	private double fromScale(double prob) {
+		return (logScale != 0.0) ? prob * Math.exp(logScale) : prob;
+	}
+
+	/**
+	 * Applies the operation to each block of BLOCK_SIZE cells, in parallel if the
+	 * total number of cells is at least PARALLEL_THRESHOLD.
+	 * 
+	 * @param size the total number of cells
+	 * @param operation the operation to apply to each block
+	 */
+	private static void forEachBlock(int size, BlockOperation operation) {
+		int nbBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		IntStream blocks = IntStream.range(0, nbBlocks);
+		if (size >= PARALLEL_THRESHOLD) {
+			blocks = blocks.parallel();
+		}
+		blocks.forEach(b -> operation.apply(b * BLOCK_SIZE,
+				Math.min((b + 1) * BLOCK_SIZE, size)));
+	}
+
+	/**
+	 * Operation on a block of cells of a tensor.
+	 */
+	@FunctionalInterface
+	private static interface BlockOperation {
+
+		/**
+		 * Applies the operation on the cells between start (inclusive) and end
+		 * (exclusive).
+		 * 
+		 * @param start the first cell
+		 * @param end the end of the block
+		 */
+		void apply(int start, int end);
+	}
+
+	/**
+	 * Converts the factor to its sparse representation.
+	 */
+	private void toSparse() {
+		if (tensor != null) {
+			matrix = getEntries();
+			tensor = null;
+		}
+	}
+
+	/**
+	 * Converts a dense factor to its sparse representation if the proportion of
+	 * defined cells falls below MIN_DENSITY.
+	 */
+	private void checkDensity() {
+		if (tensor != null
+				&& tensor.defined.cardinality() < MIN_DENSITY * tensor.size()) {
+			toSparse();
+		}
+	}
+
+	/**
+	 * Dense representation of a factor, where the values of each variable are
+	 * encoded as integers and the cells are laid out in row-major order (the last
+	 * variable having a stride of 1).
+	 */
+	private static final class Tensor {
+
+		// the variables of the tensor
+		final String[] vars;
+
+		// the values for each variable, indexed by their integer code
+		final Value[][] domains;
+
+		// the integer codes for the values of each variable
+		final List<Map<Value, Integer>> codes;
+
+		// the stride of each variable
+		final int[] strides;
+
+		// the probability and utility of each cell
+		final double[] probs;
+		final double[] utils;
+
+		// the cells that are defined in the factor
+		final BitSet defined;
+
+		/**
+		 * Creates a new tensor with the given variables and domains, where all cells
+		 * are initially undefined.
+		 * 
+		 * @param vars the variables
+		 * @param domains the values for each variable
+		 */
+		Tensor(String[] vars, Value[][] domains) {
+			this.vars = vars;
+			this.domains = domains;
+			codes = new ArrayList<Map<Value, Integer>>(vars.length);
+			strides = new int[vars.length];
+			int size = 1;
+			for (int j = vars.length - 1; j >= 0; j--) {
+				strides[j] = size;
+				size *= domains[j].length;
+			}
+			for (int j = 0; j < vars.length; j++) {
+				Map<Value, Integer> varCodes = new HashMap<Value, Integer>();
+				for (int k = 0; k < domains[j].length; k++) {
+					varCodes.put(domains[j][k], k);
+				}
+				codes.add(varCodes);
+			}
+			probs = new double[size];
+			utils = new double[size];
+			defined = new BitSet(size);
+		}
+
+		/**
+		 * Creates a copy of an existing tensor (sharing its immutable parts).
+		 * 
+		 * @param t the tensor to copy
+		 */
+		private Tensor(Tensor t) {
+			vars = t.vars;
+			domains = t.domains;
+			codes = t.codes;
+			strides = t.strides;
+			probs = t.probs.clone();
+			utils = t.utils.clone();
+			defined = (BitSet) t.defined.clone();
+		}
+
+		/**
+		 * Returns the number of cells in the tensor
+		 * 
+		 * @return the number of cells
+		 */
+		int size() {
+			return probs.length;
+		}
+
+		/**
+		 * Returns the position of the variable in the tensor, or -1 if the variable
+		 * is not included.
+		 * 
+		 * @param variable the variable
+		 * @return its position
+		 */
+		int position(String variable) {
+			for (int j = 0; j < vars.length; j++) {
+				if (vars[j].equals(variable)) {
+					return j;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Returns the integer code of the j-th variable for the given cell
+		 * 
+		 * @param index the cell index
+		 * @param j the variable position
+		 * @return the code of the variable value
+		 */
+		int code(int index, int j) {
+			return (index / strides[j]) % domains[j].length;
+		}
+
+		/**
+		 * Returns the index of the cell corresponding to the assignment, or -1 if
+		 * the assignment cannot be encoded in the tensor.
+		 * 
+		 * @param a the assignment
+		 * @return the cell index
+		 */
+		int indexOf(Assignment a) {
+			if (a.size() != vars.length) {
+				return -1;
+			}
+			int index = 0;
+			for (int j = 0; j < vars.length; j++) {
+				Value v = a.getValue(vars[j]);
+				Integer code = (v != null) ? codes.get(j).get(v) : null;
+				if (code == null) {
+					return -1;
+				}
+				index += code * strides[j];
+			}
+			return index;
+		}
+
+		/**
+		 * Returns the assignment corresponding to the cell index
+		 * 
+		 * @param index the cell index
+		 * @return the corresponding assignment
+		 */
+		Assignment decode(int index) {
+			Assignment a = new Assignment();
+			for (int j = 0; j < vars.length; j++) {
+				a.addPair(vars[j], domains[j][code(index, j)]);
+			}
+			return a;
+		}
+
+		/**
+		 * Returns the product of the two tensors. The variables of the product are
+		 * the variables of the current tensor followed by the remaining variables of
+		 * the other tensor. Shared variables take their values from the current
+		 * tensor.
+		 * 
+		 * @param other the other tensor
+		 * @return the product tensor
+		 */
+		Tensor product(Tensor other) {
+			List<String> newVars = new ArrayList<String>(Arrays.asList(vars));
+			List<Value[]> newDomains =
+					new ArrayList<Value[]>(Arrays.asList(domains));
+			for (int j = 0; j < other.vars.length; j++) {
+				if (position(other.vars[j]) < 0) {
+					newVars.add(other.vars[j]);
+					newDomains.add(other.domains[j]);
+				}
+			}
+			Tensor product = new Tensor(newVars.toArray(new String[0]),
+					newDomains.toArray(new Value[0][]));
+			int nbVars = product.vars.length;
+
+			// mapping between the codes of the product and the other tensor
+			int[] otherStrides = new int[nbVars];
+			int[][] otherCodes = new int[nbVars][];
+			for (int j = 0; j < nbVars; j++) {
+				int pos = other.position(product.vars[j]);
+				if (pos >= 0) {
+					otherStrides[j] = other.strides[pos];
+					otherCodes[j] = new int[product.domains[j].length];
+					for (int k = 0; k < otherCodes[j].length; k++) {
+						Integer code =
+								other.codes.get(pos).get(product.domains[j][k]);
+						otherCodes[j][k] = (code != null) ? code : -1;
+					}
+				}
+			}
+
+			// loops on the cells of each block, with the codes incremented as an
+			// odometer
+			long[] words = new long[(product.size() + 63) / 64];
+			forEachBlock(product.size(), (start, end) -> {
+				int[] cellCodes = new int[nbVars];
+				for (int j = 0; j < nbVars; j++) {
+					cellCodes[j] = product.code(start, j);
+				}
+				for (int i = start; i < end; i++) {
+					int index1 = 0;
+					int index2 = 0;
+					for (int j = 0; j < nbVars && index2 >= 0; j++) {
+						if (j < vars.length) {
+							index1 += cellCodes[j] * strides[j];
+						}
+						if (otherCodes[j] != null) {
+							int code = otherCodes[j][cellCodes[j]];
+							index2 = (code >= 0) ? index2 + code * otherStrides[j]
+									: -1;
+						}
+					}
+					if (index2 >= 0 && defined.get(index1)
+							&& other.defined.get(index2)) {
+						product.probs[i] = probs[index1] * other.probs[index2];
+						product.utils[i] = utils[index1] + other.utils[index2];
+						words[i >> 6] |= 1L << i;
+					}
+					for (int j = nbVars - 1; j >= 0; j--) {
+						if (++cellCodes[j] < product.domains[j].length) {
+							break;
+						}
+						cellCodes[j] = 0;
+					}
+				}
+			});
+			product.defined.or(BitSet.valueOf(words));
+			return product;
+		}
+
+		/**
+		 * Sums out the variable from the tensor. The probabilities are summed, and
+		 * the utilities weighted by their probabilities are summed.
+		 * 
+		 * @param variable the variable to sum out (must be in the tensor)
+		 * @return the resulting tensor
+		 */
+		Tensor sumOut(String variable) {
+			int pos = position(variable);
+			String[] newVars = new String[vars.length - 1];
+			Value[][] newDomains = new Value[vars.length - 1][];
+			for (int j = 0, k = 0; j < vars.length; j++) {
+				if (j != pos) {
+					newVars[k] = vars[j];
+					newDomains[k++] = domains[j];
+				}
+			}
+			Tensor sum = new Tensor(newVars, newDomains);
+			int stride = strides[pos];
+			int nbValues = domains[pos].length;
+
+			// each cell of the sum collects the cells of the tensor that only
+			// differ by the value of the variable
+			long[] words = new long[(sum.size() + 63) / 64];
+			forEachBlock(sum.size(), (start, end) -> {
+				for (int index = start; index < end; index++) {
+					int first = (index / stride) * stride * nbValues
+							+ (index % stride);
+					for (int k = 0; k < nbValues; k++) {
+						int i = first + k * stride;
+						if (defined.get(i)) {
+							sum.probs[index] += probs[i];
+							sum.utils[index] += probs[i] * utils[i];
+							words[index >> 6] |= 1L << index;
+						}
+					}
+				}
+			});
+			sum.defined.or(BitSet.valueOf(words));
+			return sum;
+		}
+
+		/**
+		 * Returns a copy of the tensor
+		 * 
+		 * @return the copy
+		 */
+		Tensor copy() {
+			return new Tensor(this);
+		}
 	}
 
 }
@@ -0,0 +1,368 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.exact;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.ChanceNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.datastructs.Assignment;
+import opendial.inference.Query;
+
+/**
+ * Order in which the hidden variables of a query are summed out by variable
+ * elimination, along with the predicted size of the largest factor created during
+ * the elimination.
+ * 
+ * <p>
+ * The order is constructed greedily on the interaction graph of the query (where
+ * two variables are connected if they appear in the same factor), using one of the
+ * following heuristics:
+ * <ul>
+ * <li>TOPOLOGICAL: the ordering of BNetwork.getSortedNodes() (leaves first)
+ * <li>MIN_DEGREE: the variable with the smallest number of neighbours
+ * <li>MIN_FILL: the variable whose elimination adds the fewest edges
+ * <li>WEIGHTED_MIN_FILL: the variable whose elimination adds the edges with the
+ * smallest total weight, the weight of an edge being the product of the domain
+ * sizes of its two variables
+ * </ul>
+ * Ties are broken by the size of the factor created by the elimination, and then by
+ * the topological ordering.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class EliminationOrder {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Heuristics for the selection of the next variable to eliminate */
+	public static enum Heuristic {
+		TOPOLOGICAL, MIN_DEGREE, MIN_FILL, WEIGHTED_MIN_FILL
+	}
+
+	// the heuristic used to construct the order
+	final Heuristic heuristic;
+
+	// the variables to eliminate, in order
+	final List<String> order;
+
+	// the clusters of variables created by each elimination (the eliminated
+	// variable and its neighbours at the time of the elimination)
+	final List<Set<String>> clusters;
+
+	// the predicted size of the largest factor
+	final long maxFactorSize;
+
+	// the predicted total size of the factors created during the elimination
+	final long totalFactorSize;
+
+	// ===================================
+	// CONSTRUCTION
+	// ===================================
+
+	/**
+	 * Constructs the elimination order for the query, using the provided heuristic.
+	 * 
+	 * @param query the query
+	 * @param heuristic the heuristic
+	 */
+	public EliminationOrder(Query query, Heuristic heuristic) {
+		this(query.getFilteredSortedNodes(), query.getQueryVars(),
+				query.getEvidence(), heuristic);
+	}
+
+	/**
+	 * Constructs the elimination order for the relevant nodes of a query, using the
+	 * provided heuristic.
+	 * 
+	 * @param nodes the relevant nodes, in topological order (leaves first)
+	 * @param queryVars the query variables (which are not eliminated)
+	 * @param evidence the evidence (whose variables are not eliminated)
+	 * @param heuristic the heuristic
+	 */
+	public EliminationOrder(List<BNode> nodes, Collection<String> queryVars,
+			Assignment evidence, Heuristic heuristic) {
+		this.heuristic = heuristic;
+
+		// retrieves the domain sizes of the variables
+		Map<String, Long> sizes = getDomainSizes(nodes);
+
+		// builds the interaction graph from the scopes of the node factors
+		Map<String, Set<String>> graph = new LinkedHashMap<String, Set<String>>();
+		long maxSize = 1;
+		long totalSize = 0;
+		for (BNode node : nodes) {
+			Set<String> scope = new HashSet<String>(node.getInputNodeIds());
+			if (!(node instanceof UtilityNode)) {
+				scope.add(node.getId());
+			}
+			scope.removeAll(evidence.getVariables());
+			for (String var : scope) {
+				graph.computeIfAbsent(var, v -> new HashSet<String>()).addAll(scope);
+				graph.get(var).remove(var);
+			}
+			maxSize = Math.max(maxSize, getSize(scope, sizes));
+			totalSize = add(totalSize, getSize(scope, sizes));
+		}
+
+		// greedy elimination of the hidden variables
+		Set<String> hiddenVars = new LinkedHashSet<String>();
+		nodes.forEach(n -> hiddenVars.add(n.getId()));
+		hiddenVars.addAll(graph.keySet());
+		hiddenVars.retainAll(graph.keySet());
+		hiddenVars.removeAll(queryVars);
+		List<String> hidden = new ArrayList<String>(hiddenVars);
+		order = new ArrayList<String>();
+		clusters = new ArrayList<Set<String>>();
+		while (!hidden.isEmpty()) {
+			String best = hidden.get(0);
+			long bestSize = getClusterSize(best, graph, sizes);
+			if (heuristic != Heuristic.TOPOLOGICAL) {
+				double bestScore = getScore(best, graph, sizes);
+				for (String var : hidden) {
+					double score = getScore(var, graph, sizes);
+					long size = getClusterSize(var, graph, sizes);
+					if (score < bestScore
+							|| (score == bestScore && size < bestSize)) {
+						best = var;
+						bestScore = score;
+						bestSize = size;
+					}
+				}
+			}
+			maxSize = Math.max(maxSize, bestSize);
+			totalSize = add(totalSize, bestSize);
+			Set<String> neighbours = graph.remove(best);
+			for (String neighbour : neighbours) {
+				graph.get(neighbour).addAll(neighbours);
+				graph.get(neighbour).remove(neighbour);
+				graph.get(neighbour).remove(best);
+			}
+			hidden.remove(best);
+			order.add(best);
+			Set<String> cluster = new HashSet<String>(neighbours);
+			cluster.add(best);
+			clusters.add(cluster);
+		}
+
+		// the final product covers the remaining (query) variables
+		maxFactorSize = Math.max(maxSize, getSize(graph.keySet(), sizes));
+		totalFactorSize = add(totalSize, getSize(graph.keySet(), sizes));
+	}
+
+	// ===================================
+	// GETTERS
+	// ===================================
+
+	/**
+	 * Returns the heuristic used to construct the order
+	 * 
+	 * @return the heuristic
+	 */
+	public Heuristic getHeuristic() {
+		return heuristic;
+	}
+
+	/**
+	 * Returns the hidden variables to eliminate, in order
+	 * 
+	 * @return the ordered list of variables
+	 */
+	public List<String> getOrder() {
+		return Collections.unmodifiableList(order);
+	}
+
+	/**
+	 * Returns the clusters of variables created by the elimination of each variable
+	 * (in the same order as getOrder()). Each cluster contains the eliminated
+	 * variable and its neighbours at the time of its elimination.
+	 * 
+	 * @return the list of clusters
+	 */
+	public List<Set<String>> getClusters() {
+		return Collections.unmodifiableList(clusters);
+	}
+
+	/**
+	 * Returns the predicted number of cells of the largest factor created when
+	 * eliminating the variables in this order (including the initial factors and
+	 * the final product over the query variables).
+	 * 
+	 * @return the predicted maximum factor size
+	 */
+	public long getMaxFactorSize() {
+		return maxFactorSize;
+	}
+
+	/**
+	 * Returns the predicted total number of cells of the factors manipulated when
+	 * eliminating the variables in this order (the initial factors, the factors
+	 * created by each elimination and the final product). This number is roughly
+	 * proportional to the running time of variable elimination.
+	 * 
+	 * @return the predicted total factor size
+	 */
+	public long getTotalFactorSize() {
+		return totalFactorSize;
+	}
+
+	/**
+	 * Returns the induced width of the order, that is, the number of variables in
+	 * the largest cluster minus one.
+	 * 
+	 * @return the induced width
+	 */
+	public int getInducedWidth() {
+		int width = 0;
+		for (Set<String> cluster : clusters) {
+			width = Math.max(width, cluster.size() - 1);
+		}
+		return width;
+	}
+
+	/**
+	 * Returns a string representation of the elimination order
+	 * 
+	 * @return the string representation
+	 */
+	@Override
+	public String toString() {
+		return heuristic + " order " + order + " (max factor size: "
+				+ maxFactorSize + ", total size: " + totalFactorSize + ")";
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Returns the score of the variable for the heuristic (lower is better).
+	 * 
+	 * @param var the variable
+	 * @param graph the current interaction graph
+	 * @param sizes the domain sizes
+	 * @return the score
+	 */
+	private double getScore(String var, Map<String, Set<String>> graph,
+			Map<String, Long> sizes) {
+		switch (heuristic) {
+		case MIN_DEGREE:
+			return graph.get(var).size();
+		case MIN_FILL:
+		case WEIGHTED_MIN_FILL:
+			double fill = 0.0;
+			List<String> neighbours = new ArrayList<String>(graph.get(var));
+			for (int i = 0; i < neighbours.size(); i++) {
+				for (int j = i + 1; j < neighbours.size(); j++) {
+					String a = neighbours.get(i);
+					String b = neighbours.get(j);
+					if (!graph.get(a).contains(b)) {
+						fill += (heuristic == Heuristic.MIN_FILL) ? 1.0
+								: (double) sizes.getOrDefault(a, 1L)
+										* sizes.getOrDefault(b, 1L);
+					}
+				}
+			}
+			return fill;
+		default:
+			return 0.0;
+		}
+	}
+
+	/**
+	 * Returns the size of the factor created by the elimination of the variable
+	 * (covering the variable and its neighbours).
+	 * 
+	 * @param var the variable
+	 * @param graph the current interaction graph
+	 * @param sizes the domain sizes
+	 * @return the cluster size
+	 */
+	private static long getClusterSize(String var, Map<String, Set<String>> graph,
+			Map<String, Long> sizes) {
+		Set<String> cluster = new HashSet<String>(graph.get(var));
+		cluster.add(var);
+		return getSize(cluster, sizes);
+	}
+
+	/**
+	 * Returns the domain sizes of the (non-utility) nodes.
+	 * 
+	 * @param nodes the nodes
+	 * @return the domain size of each variable
+	 */
+	public static Map<String, Long> getDomainSizes(Collection<BNode> nodes) {
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		for (BNode node : nodes) {
+			if (node instanceof ChanceNode) {
+				sizes.put(node.getId(), (long) ((ChanceNode) node).getNbValues());
+			}
+			else if (!(node instanceof UtilityNode)) {
+				sizes.put(node.getId(), (long) node.getValues().size());
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the number of combinations of values for the variables (saturated at
+	 * Long.MAX_VALUE). Variables without a domain size count as a single value.
+	 * 
+	 * @param vars the variables
+	 * @param sizes the domain sizes
+	 * @return the number of combinations
+	 */
+	public static long getSize(Collection<String> vars, Map<String, Long> sizes) {
+		long size = 1;
+		for (String var : vars) {
+			long varSize = Math.max(1, sizes.getOrDefault(var, 1L));
+			size = (size > Long.MAX_VALUE / varSize) ? Long.MAX_VALUE
+					: size * varSize;
+		}
+		return size;
+	}
+
+	/**
+	 * Adds two sizes (saturated at Long.MAX_VALUE).
+	 * 
+	 * @param size1 the first size
+	 * @param size2 the second size
+	 * @return the sum
+	 */
+	public static long add(long size1, long size2) {
+		return (size1 > Long.MAX_VALUE - size2) ? Long.MAX_VALUE : size1 + size2;
+	}
+
+}
@@ -0,0 +1,493 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+package opendial.inference.exact;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import opendial.bn.BNetwork;
+import opendial.bn.distribs.CategoricalTable;
+import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.IndependentDistribution;
+import opendial.bn.distribs.MultivariateTable;
+import opendial.bn.distribs.UtilityTable;
+import opendial.bn.nodes.BNode;
+import opendial.bn.nodes.ChanceNode;
+import opendial.bn.nodes.UtilityNode;
+import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
+import opendial.inference.InferenceAlgorithm;
+import opendial.inference.NetworkCache;
+import opendial.inference.Query;
+
+/**
+ * Implementation of the junction tree (clique tree) algorithm, using Shafer-Shenoy
+ * message passing over double factors.
+ * 
+ * <p>
+ * The Bayesian network is compiled into a tree of cliques (obtained from a
+ * weighted min-fill elimination order), and the compiled tree is cached for the
+ * current version of the network. The messages between cliques are computed on
+ * demand for the current evidence and cached as well, such that subsequent queries
+ * on the same network and evidence only need to combine the messages sent to one
+ * clique. When the evidence changes, only the messages depending on the modified
+ * evidence are recomputed.
+ * 
+ * <p>
+ * Queries whose variables are not included in a single clique, as well as
+ * reduction queries, are delegated to variable elimination.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class JunctionTree implements InferenceAlgorithm {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	/** Maximum number of compiled networks kept in the cache */
+	public static int MAX_CACHED_TREES = 10;
+
+	/** Maximum clique size (number of value combinations) for the compilation */
+	public static long MAX_CLIQUE_SIZE = 50000;
+
+	// the compiled trees, from the least to the most recently used
+	static final NetworkCache<CliqueTree> trees =
+			new NetworkCache<CliqueTree>(() -> MAX_CACHED_TREES);
+
+	// algorithm used for the queries that cannot be answered from the cliques
+	VariableElimination ve = new VariableElimination();
+
+	// ===================================
+	// MAIN QUERY METHODS
+	// ===================================
+
+	/**
+	 * Queries for the probability distribution of the set of random variables in the
+	 * Bayesian network, given the provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the corresponding categorical table
+	 */
+	@Override
+	public MultivariateTable queryProb(Query.ProbQuery query) {
+		DoubleFactor queryFactor = createQueryFactor(query);
+		if (queryFactor == null) {
+			return ve.queryProb(query);
+		}
+		MultivariateTable.Builder builder = new MultivariateTable.Builder();
+		builder.addRows(queryFactor.getProbTable());
+		builder.normalise();
+		return builder.build();
+	}
+
+	/**
+	 * Computes the marginal distribution of each query variable from the calibrated
+	 * cliques.
+	 * 
+	 * @param query the full query
+	 * @return the marginal distribution of each query variable
+	 */
+	@Override
+	public Map<String, IndependentDistribution> queryMarginals(
+			Query.ProbQuery query) {
+		Map<String, IndependentDistribution> marginals =
+				new LinkedHashMap<String, IndependentDistribution>();
+		for (String queryVar : query.getQueryVars()) {
+			Query.ProbQuery varQuery =
+					query.getSubQuery(Collections.singleton(queryVar));
+			DoubleFactor queryFactor = createQueryFactor(varQuery);
+			if (queryFactor == null) {
+				marginals.put(queryVar,
+						ve.queryProb(varQuery).getMarginal(queryVar));
+				continue;
+			}
+			queryFactor.normalise();
+			CategoricalTable.Builder builder =
+					new CategoricalTable.Builder(queryVar);
+			for (Assignment a : queryFactor.getAssignments()) {
+				builder.addRow(a.getValue(queryVar), queryFactor.getProbEntry(a));
+			}
+			marginals.put(queryVar, builder.build());
+		}
+		return marginals;
+	}
+
+	/**
+	 * Queries for the utility of a particular set of (action) variables, given the
+	 * provided evidence
+	 * 
+	 * @param query the full query
+	 * @return the utility distribution
+	 */
+	@Override
+	public UtilityTable queryUtil(Query.UtilQuery query) {
+		DoubleFactor queryFactor = createQueryFactor(query);
+		if (queryFactor == null) {
+			return ve.queryUtil(query);
+		}
+		queryFactor.normalise();
+		return new UtilityTable(queryFactor.getUtilTable());
+	}
+
+	/**
+	 * Reduces the Bayesian network to a subset of its variables. The reduction is
+	 * delegated to variable elimination.
+	 * 
+	 * @param query the reduction query
+	 * @return the reduced network
+	 */
+	@Override
+	public BNetwork reduce(Query.ReduceQuery query) {
+		return ve.reduce(query);
+	}
+
+	/**
+	 * Returns the cliques of the junction tree compiled for the network (or an empty
+	 * list if the network cannot be compiled).
+	 * 
+	 * @param network the Bayesian network
+	 * @return the cliques of the junction tree
+	 */
+	public List<Set<String>> getCliques(BNetwork network) {
+		CliqueTree tree = getTree(network);
+		return (tree.compilable) ? Collections.unmodifiableList(tree.cliques)
+				: Collections.emptyList();
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Returns the factor for the query variables, computed from the calibrated
+	 * clique that contains them. Returns null if the network cannot be compiled or
+	 * if no clique contains all query variables.
+	 * 
+	 * @param query the query
+	 * @return the query factor, or null
+	 */
+	private DoubleFactor createQueryFactor(Query query) {
+		CliqueTree tree = getTree(query.getNetwork());
+		if (!tree.compilable) {
+			return null;
+		}
+		DoubleFactor queryFactor = tree.query(query);
+		if (queryFactor == null) {
+			return null;
+		}
+		queryFactor.normalise();
+		queryFactor = VariableElimination.addEvidencePairs(queryFactor, query);
+		queryFactor.trim(query.getQueryVars());
+		return queryFactor;
+	}
+
+	/**
+	 * Returns the clique tree compiled for the current structure of the network,
+	 * compiling it if necessary. The tree does not depend on the evidence of the
+	 * network (if any), which is provided with each query.
+	 * 
+	 * @param network the Bayesian network
+	 * @return the compiled tree
+	 */
+	private static CliqueTree getTree(BNetwork network) {
+		return trees.get(network, network.getStructureVersion(), CliqueTree::new);
+	}
+
+	/**
+	 * Junction tree compiled for a specific version of a Bayesian network, along
+	 * with the messages computed for the current evidence.
+	 */
+	static final class CliqueTree {
+
+		// whether the network could be compiled
+		boolean compilable = true;
+
+		// the nodes of the network
+		List<BNode> nodes;
+
+		// the cliques, and the neighbours of each clique in the tree
+		List<Set<String>> cliques;
+		List<List<Integer>> neighbours;
+
+		// the clique to which the factor of each node is assigned, and the nodes
+		// assigned to each clique
+		Map<String, Integer> assignedCliques;
+		List<List<BNode>> cliqueNodes;
+
+		// the evidence on which the factors are currently computed
+		Assignment evidence;
+
+		// the factor of each node and the potential of each clique
+		Map<String, DoubleFactor> nodeFactors;
+		DoubleFactor[] potentials;
+
+		// the messages sent by each clique to each of its neighbours
+		List<Map<Integer, DoubleFactor>> messages;
+
+		/**
+		 * Compiles the clique tree for the network.
+		 * 
+		 * @param network the Bayesian network
+		 */
+		CliqueTree(BNetwork network) {
+			nodes = network.getSortedNodes();
+			for (ChanceNode node : network.getChanceNodes()) {
+				if (node.peekDistrib() instanceof ContinuousDistribution) {
+					compilable = false;
+					return;
+				}
+			}
+
+			// the cliques are the clusters of a full elimination of the variables
+			EliminationOrder order = new EliminationOrder(nodes,
+					Collections.emptySet(), new Assignment(),
+					EliminationOrder.Heuristic.WEIGHTED_MIN_FILL);
+			if (order.getMaxFactorSize() > MAX_CLIQUE_SIZE) {
+				compilable = false;
+				return;
+			}
+			cliques = new ArrayList<Set<String>>(order.getClusters());
+			Map<String, Integer> eliminations = new HashMap<String, Integer>();
+			for (int i = 0; i < order.getOrder().size(); i++) {
+				eliminations.put(order.getOrder().get(i), i);
+			}
+
+			// each clique is connected to the clique of the first variable
+			// eliminated after its own variable
+			neighbours = new ArrayList<List<Integer>>();
+			for (int i = 0; i < cliques.size(); i++) {
+				neighbours.add(new ArrayList<Integer>());
+			}
+			for (int i = 0; i < cliques.size(); i++) {
+				int parent = cliques.size();
+				for (String var : cliques.get(i)) {
+					int elimination = eliminations.get(var);
+					if (elimination > i && elimination < parent) {
+						parent = elimination;
+					}
+				}
+				if (parent < cliques.size()) {
+					neighbours.get(i).add(parent);
+					neighbours.get(parent).add(i);
+				}
+			}
+
+			// the factor of each node is assigned to the clique of the first
+			// variable eliminated in its scope
+			assignedCliques = new HashMap<String, Integer>();
+			cliqueNodes = new ArrayList<List<BNode>>();
+			for (int i = 0; i < cliques.size(); i++) {
+				cliqueNodes.add(new ArrayList<BNode>());
+			}
+			for (BNode node : nodes) {
+				int clique = cliques.size();
+				for (String var : getScope(node)) {
+					clique = Math.min(clique, eliminations.get(var));
+				}
+				if (clique < cliques.size()) {
+					assignedCliques.put(node.getId(), clique);
+					cliqueNodes.get(clique).add(node);
+				}
+			}
+
+			nodeFactors = new HashMap<String, DoubleFactor>();
+			potentials = new DoubleFactor[cliques.size()];
+			messages = new ArrayList<Map<Integer, DoubleFactor>>();
+			for (int i = 0; i < cliques.size(); i++) {
+				messages.add(new HashMap<Integer, DoubleFactor>());
+			}
+		}
+
+		/**
+		 * Returns the factor over the query variables (with the exception of the
+		 * evidence variables), computed from the smallest clique including them.
+		 * Returns null if no such clique exists. The deadline of the query is
+		 * checked before computing each potential and message (the messages that
+		 * are already computed remain cached).
+		 * 
+		 * @param query the query
+		 * @return the factor for the query
+		 * @throws Deadline.ExpiredException if the deadline of the query has
+		 *             expired
+		 */
+		synchronized DoubleFactor query(Query query) {
+			Set<String> queryVars = new HashSet<String>(query.getQueryVars());
+			queryVars.removeAll(query.getEvidence().getVariables());
+			int best = -1;
+			for (int i = 0; i < cliques.size(); i++) {
+				if (cliques.get(i).containsAll(queryVars) && (best < 0
+						|| cliques.get(i).size() < cliques.get(best).size())) {
+					best = i;
+				}
+			}
+			if (queryVars.isEmpty() || best < 0) {
+				return null;
+			}
+			setEvidence(query.getEvidence());
+
+			Deadline deadline = query.getDeadline();
+			DoubleFactor belief = getPotential(best, deadline);
+			for (int neighbour : neighbours.get(best)) {
+				belief = belief.product(getMessage(neighbour, best, deadline));
+			}
+			for (String var : belief.getVariables()) {
+				if (!queryVars.contains(var)) {
+					belief = belief.sumOut(var);
+				}
+			}
+			return belief;
+		}
+
+		/**
+		 * Updates the evidence of the tree. The factors of the nodes whose scope
+		 * includes a modified evidence variable are recomputed, and all messages
+		 * sent away from the cliques of these nodes are invalidated.
+		 * 
+		 * @param newEvidence the new evidence
+		 */
+		private void setEvidence(Assignment newEvidence) {
+			if (evidence != null && evidence.equals(newEvidence)) {
+				return;
+			}
+			Set<String> modified = new HashSet<String>();
+			if (evidence != null) {
+				modified.addAll(evidence.getVariables());
+				modified.addAll(newEvidence.getVariables());
+				for (String var : newEvidence.getVariables()) {
+					if (newEvidence.getValue(var).equals(evidence.getValue(var))) {
+						modified.remove(var);
+					}
+				}
+			}
+			evidence = new Assignment(newEvidence);
+
+			for (BNode node : nodes) {
+				if (nodeFactors.containsKey(node.getId())
+						&& !Collections.disjoint(getScope(node), modified)) {
+					nodeFactors.remove(node.getId());
+					Integer clique = assignedCliques.get(node.getId());
+					if (clique != null && potentials[clique] != null) {
+						potentials[clique] = null;
+						invalidateMessages(clique, -1);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Invalidates the messages sent from the clique away from the given origin
+		 * (recursively).
+		 * 
+		 * @param clique the clique
+		 * @param origin the neighbour from which the invalidation originates (or -1)
+		 */
+		private void invalidateMessages(int clique, int origin) {
+			for (int neighbour : neighbours.get(clique)) {
+				if (neighbour != origin
+						&& messages.get(clique).remove(neighbour) != null) {
+					invalidateMessages(neighbour, clique);
+				}
+			}
+		}
+
+		/**
+		 * Returns the potential of the clique, defined as the product of the factors
+		 * assigned to it.
+		 * 
+		 * @param clique the clique
+		 * @param deadline the deadline of the query
+		 * @return its potential
+		 */
+		private DoubleFactor getPotential(int clique, Deadline deadline) {
+			if (potentials[clique] == null) {
+				deadline.check();
+				DoubleFactor potential = new DoubleFactor();
+				potential.addEntry(new Assignment(), 1.0, 0.0);
+				for (BNode node : cliqueNodes.get(clique)) {
+					DoubleFactor factor = nodeFactors.computeIfAbsent(node.getId(),
+							id -> VariableElimination.makeFactor(node, evidence));
+					if (!factor.isEmpty()) {
+						potential = potential.product(factor);
+					}
+				}
+				potentials[clique] = potential;
+			}
+			return potentials[clique];
+		}
+
+		/**
+		 * Returns the message sent from one clique to a neighbouring clique, which
+		 * is the product of the clique potential and of the messages received from
+		 * its other neighbours, where the variables outside the separator are
+		 * summed out.
+		 * 
+		 * @param from the sending clique
+		 * @param to the receiving clique
+		 * @param deadline the deadline of the query
+		 * @return the message
+		 */
+		private DoubleFactor getMessage(int from, int to, Deadline deadline) {
+			DoubleFactor message = messages.get(from).get(to);
+			if (message == null) {
+				message = getPotential(from, deadline);
+				for (int neighbour : neighbours.get(from)) {
+					if (neighbour != to) {
+						DoubleFactor received =
+								getMessage(neighbour, from, deadline);
+						deadline.check();
+						message = message.product(received);
+					}
+				}
+				for (String var : message.getVariables()) {
+					if (!cliques.get(to).contains(var)) {
+						message = message.sumOut(var);
+					}
+				}
+				messages.get(from).put(to, message);
+			}
+			return message;
+		}
+
+		/**
+		 * Returns the variables in the scope of the node factor
+		 * 
+		 * @param node the node
+		 * @return the variables in its scope
+		 */
+		private static Set<String> getScope(BNode node) {
+			Set<String> scope = new HashSet<String>(node.getInputNodeIds());
+			if (!(node instanceof UtilityNode)) {
+				scope.add(node.getId());
+			}
+			return scope;
+		}
+	}
+
+}
@@ -29,10 +29,12 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import opendial.bn.BNetwork;
 import opendial.bn.distribs.CategoricalTable;
@@ -46,7 +48,9 @@ import opendial.bn.nodes.BNode;
 import opendial.bn.nodes.ChanceNode;
 import opendial.bn.nodes.UtilityNode;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
 import opendial.inference.InferenceAlgorithm;
+import opendial.inference.NetworkCache;
 import opendial.inference.Query;
 
 /**
@@ -59,6 +63,36 @@ public class VariableElimination implements InferenceAlgorithm {
 
 	final static Logger log = Logger.getLogger("OpenDial");
 
+	/** Default heuristic for the elimination order */
+	public static EliminationOrder.Heuristic HEURISTIC =
+			EliminationOrder.Heuristic.WEIGHTED_MIN_FILL;
+
+	// heuristic for the elimination order (null to use the default one)
+	EliminationOrder.Heuristic heuristic;
+
+	// elimination orders for each network version, indexed by query type, query
+	// variables, evidence variables and heuristic
+	static final NetworkCache<Map<List<Object>, EliminationOrder>> orders =
+			new NetworkCache<Map<List<Object>, EliminationOrder>>(
+					() -> Query.MAX_CACHED_NETWORKS);
+
+	/**
+	 * Creates a new variable elimination algorithm with the default heuristic for
+	 * the elimination order.
+	 */
+	public VariableElimination() {
+	}
+
+	/**
+	 * Creates a new variable elimination algorithm with the provided heuristic for
+	 * the elimination order.
+	 * 
+	 * @param heuristic the heuristic
+	 */
+	public VariableElimination(EliminationOrder.Heuristic heuristic) {
+		this.heuristic = heuristic;
+	}
+
 	// ===================================
 	// MAIN QUERY METHODS
 	// ===================================
@@ -93,51 +127,164 @@ public class VariableElimination implements InferenceAlgorithm {
 		return new UtilityTable(queryFactor.getUtilTable());
 	}
 
+	/**
+	 * Returns the order in which the hidden variables of the query are eliminated,
+	 * along with the predicted size of the largest factor. The order is cached for
+	 * each version of the network, so that the cost estimate of the query and its
+	 * actual elimination only compute it once.
+	 * 
+	 * @param query the query
+	 * @return the elimination order
+	 */
+	public EliminationOrder getEliminationOrder(Query query) {
+		BNetwork network = query.getNetwork();
+		Map<List<Object>, EliminationOrder> cache = orders.get(network,
+				network.getStructureVersion(),
+				n -> Collections.synchronizedMap(
+						new LinkedHashMap<List<Object>, EliminationOrder>(16, 0.75f,
+								true) {
+							@Override
+							protected boolean removeEldestEntry(
+									Map.Entry<List<Object>, EliminationOrder> e) {
+								return size() > Query.MAX_CACHED_QUERIES;
+							}
+						}));
+		EliminationOrder.Heuristic h = getHeuristic();
+		List<Object> key = Arrays.asList(query.getClass(),
+				new HashSet<String>(query.getQueryVars()),
+				new HashSet<String>(query.getEvidence().getVariables()), h);
+		EliminationOrder order = cache.get(key);
+		if (order == null) {
+			order = new EliminationOrder(query, h);
+			cache.put(key, order);
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the heuristic used for the elimination order.
+	 * 
+	 * @return the heuristic
+	 */
+	public EliminationOrder.Heuristic getHeuristic() {
+		return (heuristic != null) ? heuristic : HEURISTIC;
+	}
+
 	// ===================================
 	// INFERENCE OPERATION METHODS
 	// ===================================
 
 	/**
 	 * Generates the full double factor associated with the query variables, using
-	 * the variable-elimination algorithm.
+	 * the variable-elimination algorithm. The deadline of the query is checked
+	 * before each factor operation.
 	 * 
 	 * @param query the query
 	 * @return the full double factor containing all query variables occurred during
 	 *         the inference
+	 * @throws Deadline.ExpiredException if the deadline of the query has expired
 	 */
 	private DoubleFactor createQueryFactor(Query query) {
 
 		List<DoubleFactor> factors = new LinkedList<DoubleFactor>();
 		Collection<String> queryVars = query.getQueryVars();
 		Assignment evidence = query.getEvidence();
+		Deadline deadline = query.getDeadline();
 
-		for (BNode n : query.getFilteredSortedNodes()) {
-			// create the basic factor for every variable
+		// create the basic factor for every variable
+		List<BNode> nodes = query.getFilteredSortedNodes();
+		for (BNode n : nodes) {
+			deadline.check();
 			DoubleFactor basicFactor = makeFactor(n, evidence);
 			if (!basicFactor.isEmpty()) {
 				factors.add(basicFactor);
-				// if the variable is hidden, we sum it out
-				if (!queryVars.contains(n.getId())) {
-					factors = sumOut(n.getId(), factors);
-				}
 			}
 		}
+
+		// sum out the hidden variables, following the elimination order (the
+		// independent components of the factors are processed in parallel)
+		EliminationOrder order = getEliminationOrder(query);
+		List<String> hiddenVars = new ArrayList<String>(order.getOrder());
+		for (BNode n : nodes) {
+			if (!queryVars.contains(n.getId()) && !hiddenVars.contains(n.getId())) {
+				hiddenVars.add(n.getId());
+			}
+		}
+		factors = getComponents(factors).parallelStream()
+				.map(c -> eliminate(hiddenVars, c, deadline))
+				.collect(Collectors.toList());
+
 		// compute the final product, and normalise
-		DoubleFactor finalProduct = pointwiseProduct(factors);
+		DoubleFactor finalProduct = pointwiseProduct(factors, deadline);
+		if (finalProduct.getPrecisionBound() > 0.0) {
+			log.fine("precision bound for " + query + ": "
+					+ finalProduct.getPrecisionBound());
+		}
+		finalProduct.normalise();
 		finalProduct = addEvidencePairs(finalProduct, query);
 		finalProduct.trim(queryVars);
 		return finalProduct;
 	}
 
+	/**
+	 * Partitions the factors into independent components, where two factors belong
+	 * to the same component if they are connected by a chain of factors sharing
+	 * some variables.
+	 * 
+	 * @param factors the factors
+	 * @return the independent components
+	 */
+	private static List<List<DoubleFactor>> getComponents(
+			List<DoubleFactor> factors) {
+		List<List<DoubleFactor>> components = new ArrayList<List<DoubleFactor>>();
+		List<Set<String>> componentVars = new ArrayList<Set<String>>();
+		for (DoubleFactor f : factors) {
+			List<DoubleFactor> component = new ArrayList<DoubleFactor>();
+			Set<String> vars = new HashSet<String>(f.getVariables());
+			component.add(f);
+			for (int i = components.size() - 1; i >= 0; i--) {
+				if (!Collections.disjoint(componentVars.get(i), vars)) {
+					component.addAll(components.remove(i));
+					vars.addAll(componentVars.remove(i));
+				}
+			}
+			components.add(component);
+			componentVars.add(vars);
+		}
+		return components;
+	}
+
+	/**
+	 * Sums out the hidden variables (in the given order) from a component of
+	 * factors, and returns the product of the remaining factors.
+	 * 
+	 * @param hiddenVars the hidden variables, in elimination order
+	 * @param factors the factors of the component
+	 * @param deadline the deadline of the query
+	 * @return the product of the factors with the hidden variables summed out
+	 */
+	private static DoubleFactor eliminate(List<String> hiddenVars,
+			List<DoubleFactor> factors, Deadline deadline) {
+		for (String hiddenVar : hiddenVars) {
+			if (factors.stream()
+					.anyMatch(f -> f.getVariables().contains(hiddenVar))) {
+				factors = sumOut(hiddenVar, factors, deadline);
+			}
+		}
+		return pointwiseProduct(factors, deadline);
+	}
+
 	/**
 	 * Sums out the variable from the pointwise product of the factors, and returns
 	 * the result
 	 * 
 	 * @param nodeId the Bayesian node corresponding to the variable
 	 * @param factors the factors to sum out
+	 * @param deadline the deadline of the query
 	 * @return the summed out factor
 	 */
-	private List<DoubleFactor> sumOut(String nodeId, List<DoubleFactor> factors) {
+	private static List<DoubleFactor> sumOut(String nodeId,
+			List<DoubleFactor> factors, Deadline deadline) {
 
 		// we divide the factors into two lists: the factors which are
 		// independent of the variable, and those who aren't
@@ -154,9 +301,11 @@ public class VariableElimination implements InferenceAlgorithm {
 		}
 
 		// we compute the product of the dependent factors
-		DoubleFactor productDependentFactors = pointwiseProduct(dependentFactors);
+		DoubleFactor productDependentFactors =
+				pointwiseProduct(dependentFactors, deadline);
 
 		// we sum out the dependent factors
+		deadline.check();
 		DoubleFactor sumDependentFactors =
 				sumOutDependent(nodeId, productDependentFactors);
 
@@ -174,70 +323,31 @@ public class VariableElimination implements InferenceAlgorithm {
 	 * @param factor the factor to sum out
 	 * @return the summed out factor
 	 */
-	private DoubleFactor sumOutDependent(String nodeId, DoubleFactor factor) {
-
-		// create the new factor
-		DoubleFactor sumFactor = new DoubleFactor();
-
-		for (Assignment a : factor.getValues()) {
-			Assignment reducedA = new Assignment(a);
-			reducedA.removePair(nodeId);
-			double[] entry = factor.getEntry(a);
-			double prob = entry[0];
-			double util = entry[1];
-			sumFactor.incrementEntry(reducedA, prob, prob * util);
-		}
-
-		sumFactor.normaliseUtil();
-
-		return sumFactor;
+	private static DoubleFactor sumOutDependent(String nodeId,
+			DoubleFactor factor) {
+		return factor.sumOut(nodeId);
 	}
 
 	/**
 	 * Computes the pointwise matrix product of the list of factors
 	 * 
 	 * @param factors the factors
+	 * @param deadline the deadline of the query
 	 * @return the pointwise product of the factors
 	 */
-	private DoubleFactor pointwiseProduct(List<DoubleFactor> factors) {
+	private static DoubleFactor pointwiseProduct(List<DoubleFactor> factors,
+			Deadline deadline) {
 
 		if (factors.isEmpty()) {
 			DoubleFactor factor = new DoubleFactor();
 			factor.addEntry(new Assignment(), 1.0, 0.0);
 			return factor;
 		}
-		else if (factors.size() == 1) {
-			return factors.get(0);
-		}
 		DoubleFactor factor = factors.get(0);
-		factors.remove(0);
-		for (DoubleFactor f : factors) {
-
-			DoubleFactor tempFactor = new DoubleFactor();
-			Set<String> sharedVars = new HashSet<String>(f.getVariables());
-			sharedVars.retainAll(factor.getVariables());
-
-			for (Assignment a : f.getValues()) {
-
-				double[] entry = f.getEntry(a);
-				double prob = entry[0];
-				double util = entry[1];
-
-				for (Assignment b : factor.getValues()) {
-					if (b.consistentWith(a, sharedVars)) {
-						double[] entry2 = factor.getEntry(b);
-						double prob2 = entry2[0];
-						double util2 = entry2[1];
-						double product = prob * prob2;
-						double sum = util + util2;
-
-						tempFactor.addEntry(new Assignment(a, b), product, sum);
-					}
-				}
-			}
-			factor = tempFactor;
+		for (DoubleFactor f : factors.subList(1, factors.size())) {
+			deadline.check();
+			factor = factor.product(f);
 		}
-
 		return factor;
 	}
 
@@ -249,7 +359,7 @@ public class VariableElimination implements InferenceAlgorithm {
 	 * @param evidence the evidence
 	 * @return the factor for the node
 	 */
-	private DoubleFactor makeFactor(BNode node, Assignment evidence) {
+	public static DoubleFactor makeFactor(BNode node, Assignment evidence) {
 
 		DoubleFactor factor = new DoubleFactor();
 
@@ -271,6 +381,7 @@ public class VariableElimination implements InferenceAlgorithm {
 				}
 			}
 		}
+		factor.compact();
 
 		return factor;
 	}
@@ -283,7 +394,8 @@ public class VariableElimination implements InferenceAlgorithm {
 	 * @param query the query
 	 * @param distribution the computed distribution
 	 */
-	private DoubleFactor addEvidencePairs(DoubleFactor factor, Query query) {
+	public static DoubleFactor addEvidencePairs(DoubleFactor factor,
+			Query query) {
 
 		Set<String> inter = new HashSet<String>(query.getQueryVars());
 		inter.retainAll(query.getEvidence().getVariables());
@@ -317,12 +429,23 @@ public class VariableElimination implements InferenceAlgorithm {
 	 */
 	@Override
 	public BNetwork reduce(Query.ReduceQuery query) {
+		return createReducedNetwork(query, createQueryFactor(query));
+	}
+
+	/**
+	 * Creates the reduced network for the query, based on the factor for the query
+	 * variables. The distribution of each query variable is conditioned on its
+	 * closest ancestors among the query variables.
+	 * 
+	 * @param query the reduction query
+	 * @param queryFactor the factor for the query variables
+	 * @return the reduced network
+	 */
+	public static BNetwork createReducedNetwork(Query.ReduceQuery query,
+			DoubleFactor queryFactor) {
 
 		BNetwork network = query.getNetwork();
 		Collection<String> queryVars = query.getQueryVars();
-
-		// create the query factor
-		DoubleFactor queryFactor = createQueryFactor(query);
 		BNetwork reduced = new BNetwork();
 
 		List<String> sortedNodesIds = network.getSortedNodesIds();
@@ -358,15 +481,17 @@ public class VariableElimination implements InferenceAlgorithm {
 	 * @param toEstimate the variable to estimate
 	 * @return the relevant factor associated with the node could be found
 	 */
-	private DoubleFactor getRelevantFactor(DoubleFactor fullFactor, String headVar,
-			Set<String> inputVars) {
+	private static DoubleFactor getRelevantFactor(DoubleFactor fullFactor,
+			String headVar, Set<String> inputVars) {
 
 		// summing out unrelated variables
 		DoubleFactor factor = fullFactor.copy();
 		for (String otherVar : new ArrayList<String>(factor.getVariables())) {
 			if (!otherVar.equals(headVar) && !inputVars.contains(otherVar)) {
+				// (the query factor is already computed, so the deadline is
+				// not checked anymore)
 				List<DoubleFactor> summedOut =
-						sumOut(otherVar, Arrays.asList(factor));
+						sumOut(otherVar, Arrays.asList(factor), Deadline.NONE);
 				if (!summedOut.isEmpty()) {
 					factor = summedOut.get(0);
 				}
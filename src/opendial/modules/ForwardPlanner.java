@@ -27,9 +27,6 @@ import java.util.logging.*;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import opendial.DialogueState;
 import opendial.DialogueSystem;
@@ -38,6 +35,7 @@ import opendial.bn.distribs.MultivariateDistribution;
 import opendial.bn.distribs.MultivariateTable;
 import opendial.bn.distribs.UtilityTable;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
 import opendial.domains.Model;
 
 /**
@@ -80,10 +78,6 @@ public class ForwardPlanner implements Module {
 
 	boolean paused = false;
 
-	// scheduled thread pool to terminate planning once the time limit is
-	// reached
-	static ScheduledExecutorService service = Executors.newScheduledThreadPool(2);
-
 	/**
 	 * Constructs a forward planner for the dialogue system.
 	 * 
@@ -99,9 +93,9 @@ public class ForwardPlanner implements Module {
 	@Override
 	public void pause(boolean shouldBePaused) {
 		paused = shouldBePaused;
-		if (currentProcess != null && !currentProcess.isTerminated) {
+		if (currentProcess != null && !currentProcess.deadline.isExpired()) {
 			log.fine("trying to terminate the process?");
-			currentProcess.isTerminated = true;
+			currentProcess.deadline.cancel();
 		}
 	}
 
@@ -146,12 +140,14 @@ public class ForwardPlanner implements Module {
 
 		DialogueState initState;
 
-		boolean isTerminated = false;
+		// deadline for the planning (bounded by the deadline of the current update)
+		Deadline deadline;
 
 		/**
 		 * Creates the planning process. Timeout is set to twice the maximum sampling
-		 * time. Then, runs the planner until the horizon has been reached, or the
-		 * planner has run out of time. Adds the best action to the dialogue state.
+		 * time (within the deadline of the current update). Then, runs the planner
+		 * until the horizon has been reached, or the planner has run out of time.
+		 * Adds the best action to the dialogue state.
 		 * 
 		 * @param initState initial dialogue state.
 		 */
@@ -165,9 +161,10 @@ public class ForwardPlanner implements Module {
 			// responses
 			timeout = (initState.hasChanceNode(settings.userSpeech)) ? timeout / 5
 					: timeout;
-			service.schedule(() -> isTerminated = true, timeout,
-					TimeUnit.MILLISECONDS);
+			deadline = Deadline.current().withTimeout(timeout);
 
+			// the inference queries performed during planning share its deadline
+			Deadline previous = Deadline.setCurrent(deadline);
 			try {
 				// step 1: extract the Q-values
 				UtilityTable evalActions = getQValues(initState, settings.horizon);
@@ -187,13 +184,16 @@ public class ForwardPlanner implements Module {
 				// step 4: add the selection action to the dialogue state
 				initState.addToState(bestAction.removePrimes());
 				// log.fine("BEST ACTION: " + bestAction);
-				isTerminated = true;
+				deadline.cancel();
 			}
 			catch (RuntimeException e) {
 				log.warning("could not perform planning, aborting action selection: "
 						+ e);
 				e.printStackTrace();
 			}
+			finally {
+				Deadline.setCurrent(previous);
+			}
 		}
 
 		/**
@@ -222,7 +222,7 @@ public class ForwardPlanner implements Module {
 				double reward = rewards.getUtil(action);
 				qValues.setUtil(action, reward);
 
-				if (horizon > 1 && !isTerminated && !paused
+				if (horizon > 1 && !deadline.isExpired() && !paused
 						&& hasTransition(action)) {
 
 					DialogueState copy = state.copy();
@@ -34,6 +34,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -166,9 +168,12 @@ public class RemoteConnector implements Module {
 			Document xmlDoc = XMLUtils.newXMLDocument();
 			Element root = xmlDoc.createElement("update");
 			xmlDoc.appendChild(root);
-			updatedVars.stream().filter(v -> state.hasChanceNode(v))
+			List<String> toSend = updatedVars.stream()
+					.filter(v -> state.hasChanceNode(v))
 					.filter(v -> !v.equals(system.getSettings().userSpeech))
-					.map(v -> state.queryProb(v).generateXML(xmlDoc))
+					.collect(Collectors.toList());
+			state.queryMarginals(toSend).values().stream()
+					.map(d -> d.generateXML(xmlDoc))
 					.forEach(n -> root.appendChild(n));
 
 			// if the resulting document is non-empty, forward it through the
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Set;
 
 import opendial.DialogueState;
+import opendial.Settings;
 import opendial.bn.BNetwork;
 import opendial.bn.distribs.CategoricalTable;
 import opendial.bn.distribs.MarginalDistribution;
@@ -42,6 +43,7 @@ import opendial.bn.values.ValueFactory;
 import opendial.datastructs.Assignment;
 import opendial.domains.rules.distribs.AnchoredRule;
 import opendial.domains.rules.distribs.EquivalenceDistribution;
+import opendial.inference.Query;
 import opendial.inference.SwitchingAlgorithm;
 
 /**
@@ -78,6 +80,9 @@ public class StatePruner {
 
 				// step 2: reduction
 				DialogueState reduced = reduce(state, nodesToKeep);
+				if (Settings.particleFilter) {
+					state.getParticleFilter().update(reduced);
+				}
 
 				// step 3: reinsert action and utility nodes (if necessary)
 				reinsertActionAndUtilityNodes(reduced, state);
@@ -91,6 +96,10 @@ public class StatePruner {
 				// step 6: and final reset the state to the reduced form
 				state.reset(reduced);
 
+				// step 7: align the particles with the pruned state
+				if (Settings.particleFilter) {
+					state.getParticleFilter().update(state);
+				}
 			}
 			else {
 				state.reset(new BNetwork());
@@ -119,7 +128,7 @@ public class StatePruner {
 					|| node.getId().endsWith("^o")) {
 				continue;
 			}
-			else if (ENABLE_REDUCTION & node.getDistrib() instanceof AnchoredRule) {
+			else if (ENABLE_REDUCTION & node.peekDistrib() instanceof AnchoredRule) {
 				continue;
 			}
 			else if (node.getInputNodeIds().size() < 3 && node.getNbValues() == 1
@@ -145,7 +154,7 @@ public class StatePruner {
 			if (state.getParameterIds().contains(node.getId())
 					&& !node.hasDescendant(state.getEvidence().getVariables())) {
 				node.getOutputNodes(ChanceNode.class).stream()
-						.filter(n -> n.getDistrib() instanceof AnchoredRule)
+						.filter(n -> n.peekDistrib() instanceof AnchoredRule)
 						.forEach(n -> nodesToKeep.add(n.getId()));
 			}
 		}
@@ -163,6 +172,9 @@ public class StatePruner {
 	 * <li>Finally, if only one clique is present, the reduction selects the best
 	 * algorithm and return the result of the reduction process.
 	 * </ul>
+	 * In particle filter mode (see Settings.particleFilter), the inference is
+	 * replaced by the propagation of the persistent particles of the state, unless
+	 * exact inference is cheaper than sampling.
 	 * 
 	 * @param state the dialogue state to reduce
 	 * @param nodesToKeep the nodes to preserve in the reduction
@@ -217,9 +229,18 @@ public class StatePruner {
 			return fullState;
 		}
 
+		// in particle filter mode, propagates the persistent particles of the state
+		// (unless exact inference is cheaper than sampling)
+		SwitchingAlgorithm switching = new SwitchingAlgorithm();
+		Query.ReduceQuery query =
+				new Query.ReduceQuery(state, nodesToKeep, evidence);
+		if (Settings.particleFilter && switching.getExactCost(query) > switching
+				.getSamplingCost(query)) {
+			return new DialogueState(state.getParticleFilter().reduce(query));
+		}
+
 		// else, select the best reduction algorithm and performs the reduction
-		BNetwork result =
-				new SwitchingAlgorithm().reduce(state, nodesToKeep, evidence);
+		BNetwork result = switching.reduce(query);
 		return new DialogueState(result);
 	}
 
@@ -242,8 +263,8 @@ public class StatePruner {
 						state.queryProb(node.getId(), false).toDiscrete();
 				for (ChanceNode outputNode : node.getOutputNodes(ChanceNode.class)) {
 					MarginalDistribution newDistrib = new MarginalDistribution(
-							outputNode.getDistrib(), initDistrib);
-					outputNode.setDistrib(newDistrib);
+							outputNode.peekDistrib(), initDistrib);
+					outputNode.setDerivedDistrib(newDistrib);
 				}
 				newState.removeNode(node.getId());
 			}
@@ -291,12 +312,12 @@ public class StatePruner {
 
 			// if the node only contain a None value, prunes it
 			if (node.getInputNodes().isEmpty() && node.getOutputNodes().isEmpty()
-					&& node.getDistrib() instanceof CategoricalTable
+					&& node.peekDistrib() instanceof CategoricalTable
 					&& node.getProb(ValueFactory.none()) > 0.99) {
 				reduced.removeNode(node.getId());
 				continue;
 			}
-			else if (node.getDistrib() instanceof EquivalenceDistribution
+			else if (node.peekDistrib() instanceof EquivalenceDistribution
 					&& node.getInputNodeIds().isEmpty()) {
 				reduced.removeNode(node.getId());
 			}
@@ -310,16 +331,16 @@ public class StatePruner {
 					&& reduced.getIncrementalVars().isEmpty()) {
 				Assignment onlyAssign = new Assignment(node.getId(), node.sample());
 				for (ChanceNode outputNode : node.getOutputNodes(ChanceNode.class)) {
-					if (!(outputNode.getDistrib() instanceof AnchoredRule)) {
-						ProbDistribution curDistrib = outputNode.getDistrib();
+					if (!(outputNode.peekDistrib() instanceof AnchoredRule)) {
+						ProbDistribution curDistrib = outputNode.peekDistrib();
 						outputNode.removeInputNode(node.getId());
 						if (outputNode.getInputNodeIds().isEmpty()) {
-							outputNode.setDistrib(
+							outputNode.setDerivedDistrib(
 									curDistrib.getProbDistrib(onlyAssign));
 						}
 						else {
-							outputNode
-									.setDistrib(curDistrib.getPosterior(onlyAssign));
+							outputNode.setDerivedDistrib(
+									curDistrib.getPosterior(onlyAssign));
 						}
 					}
 				}
@@ -131,8 +131,8 @@ public class WizardControl implements Module {
 		// directly select the action
 		if (state.getUtilityNodes().size() == 1) {
 			UtilityNode urnode = state.getUtilityNodes().stream().findFirst().get();
-			if (urnode.getFunction() instanceof AnchoredRule) {
-				AnchoredRule arule = (AnchoredRule) urnode.getFunction();
+			if (urnode.peekFunction() instanceof AnchoredRule) {
+				AnchoredRule arule = (AnchoredRule) urnode.peekFunction();
 				if (arule.getInputRange().linearise().size() == 1
 						&& arule.getParameters().isEmpty()) {
 					system.getModule(ForwardPlanner.class).trigger(state,
@@ -27,7 +27,6 @@ import java.util.logging.*;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import opendial.bn.values.ValueFactory;
@@ -50,6 +49,7 @@ import opendial.domains.rules.parameters.FixedParameter;
 import opendial.domains.rules.parameters.Parameter;
 import opendial.domains.rules.parameters.SingleParameter;
 import opendial.templates.Template;
+import opendial.utils.RandomUtils;
 import opendial.utils.XMLUtils;
 
 import org.w3c.dom.NamedNodeMap;
@@ -246,7 +246,7 @@ public class XMLRuleReader {
 			Template tvar = Template.create(variable);
 			if (tvar.isUnderspecified()) {
 				tvar = Template.create(tvar.toString().replace("*",
-						"{" + (new Random().nextInt(100)) + "}"));
+						"{" + RandomUtils.nextInt(100) + "}"));
 			}
 
 			if (node.getAttributes().getNamedItem("value") != null) {
@@ -219,7 +219,7 @@ public interface Template extends Comparable<Template> {
 				return false;
 			}
 			MatchResult mr = (MatchResult) o;
-			return mr.map.equals(this.map) && mr.isMatching == isMatching;
+			return super.equals(mr) && mr.isMatching == isMatching;
 		}
 
 		@Override
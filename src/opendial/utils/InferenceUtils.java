@@ -31,7 +31,6 @@ import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -160,13 +159,11 @@ public class InferenceUtils {
 		List<Map.Entry<T, Double>> entries =
 				new ArrayList<Map.Entry<T, Double>>(initTable.entrySet());
 
-		Random rand = new Random();
-
-		Collections.shuffle(entries);
+		RandomUtils.shuffle(entries);
 		Collections.sort(entries, (a, b) -> {
 			double result = a.getValue() - b.getValue();
 			if  (Math.abs(result) < 0.0001) {
-				return (rand.nextBoolean())? 1 : -1;
+				return (RandomUtils.nextBoolean())? 1 : -1;
 			}
 			else {
 				return (int) (result * 10000000);
@@ -0,0 +1,276 @@
+// =================================================================                                                                   
+// Copyright (C) 2011-2015 Pierre Lison (plison@ifi.uio.no)
+
+// Permission is hereby granted, free of charge, to any person 
+// obtaining a copy of this software and associated documentation 
+// files (the "Software"), to deal in the Software without restriction, 
+// including without limitation the rights to use, copy, modify, merge, 
+// publish, distribute, sublicense, and/or sell copies of the Software, 
+// and to permit persons to whom the Software is furnished to do so, 
+// subject to the following conditions:
+
+// The above copyright notice and this permission notice shall be 
+// included in all copies or substantial portions of the Software.
+
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+// IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+// CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+// TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+// SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+// =================================================================                                                                   
+
+package opendial.utils;
+
+import java.util.logging.*;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Random number generation for all stochastic operations in OpenDial (sampling of
+ * probability distributions, random tie-breaking, generation of random
+ * identifiers, etc.).
+ * 
+ * <p>
+ * Each thread draws its random numbers from its own generator, which avoids the
+ * contention on a shared {@link java.util.Random} object when samples are drawn in
+ * parallel. The thread-local generators are split from a root generator that can
+ * be seeded (via the "seed" setting or the method {@link #setSeed(long)}).
+ * 
+ * <p>
+ * Since the assignment of tasks to threads is not deterministic, inference
+ * algorithms that require bit-for-bit reproducible results draw one seed per query
+ * with {@link #newSeed()}, and run each draw with a dedicated generator derived
+ * from this seed and the draw index (see {@link #runSeeded(long, long, Runnable)}).
+ * The thread-local generators are left untouched by these draws.
+ *
+ * @author Pierre Lison (plison@ifi.uio.no)
+ */
+public class RandomUtils {
+
+	// logger
+	final static Logger log = Logger.getLogger("OpenDial");
+
+	// increment used to derive the seeds of successive draws
+	static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	// root generator, from which the thread-local generators are split
+	static SplittableRandom root = new SplittableRandom();
+
+	// generator for the query seeds (kept apart from the root generator, such that
+	// the seeds do not depend on the number of threads that split a generator)
+	static SplittableRandom seeds = root.split();
+
+	// the seed of the root generator (null if the root generator is not seeded)
+	static Long seed = null;
+
+	// number of times the root generator has been (re)seeded
+	static volatile int generation = 0;
+
+	// the generator of each thread
+	static final ThreadLocal<LocalGenerator> generators =
+			ThreadLocal.withInitial(() -> new LocalGenerator());
+
+	// ===================================
+	// SEEDING
+	// ===================================
+
+	/**
+	 * Seeds the root generator. All threads subsequently reset their generators
+	 * (split from the newly seeded root).
+	 * 
+	 * @param newSeed the seed
+	 */
+	public static synchronized void setSeed(long newSeed) {
+		root = new SplittableRandom(newSeed);
+		seeds = root.split();
+		seed = newSeed;
+		generation++;
+	}
+
+	/**
+	 * Removes the seed of the root generator, which is reinitialised with a
+	 * non-deterministic seed. All threads subsequently reset their generators.
+	 */
+	public static synchronized void clearSeed() {
+		root = new SplittableRandom();
+		seeds = root.split();
+		seed = null;
+		generation++;
+	}
+
+	/**
+	 * Returns the seed of the root generator, if one has been set
+	 * 
+	 * @return the seed, or null if the root generator is not seeded
+	 */
+	public static Long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Draws a new seed from the root generator. The method is typically called
+	 * once per inference query, and the resulting seed is then used to derive the
+	 * generator of each draw.
+	 * 
+	 * @return the new seed
+	 */
+	public static synchronized long newSeed() {
+		return seeds.nextLong();
+	}
+
+	/**
+	 * Creates a new generator with a seed derived from the given seed and index.
+	 * The derived seeds are scrambled such that the random sequences for
+	 * successive indices do not overlap.
+	 * 
+	 * @param querySeed the seed (drawn once per query)
+	 * @param index the index of the draw
+	 * @return the new generator
+	 */
+	public static SplittableRandom newGenerator(long querySeed, long index) {
+		return new SplittableRandom(mix(querySeed + index * GOLDEN_GAMMA));
+	}
+
+	/**
+	 * Runs the draw with a generator derived from the given seed and index (see
+	 * {@link #newGenerator(long, long)}). All random numbers requested by the
+	 * current thread during the draw come from this generator. The generator of the
+	 * thread is restored at the end of the draw.
+	 * 
+	 * @param querySeed the seed (drawn once per query)
+	 * @param index the index of the draw
+	 * @param draw the draw to run
+	 */
+	public static void runSeeded(long querySeed, long index, Runnable draw) {
+		LocalGenerator local = generators.get();
+		SplittableRandom previous = local.drawRng;
+		local.drawRng = newGenerator(querySeed, index);
+		try {
+			draw.run();
+		}
+		finally {
+			local.drawRng = previous;
+		}
+	}
+
+	// ===================================
+	// RANDOM DRAWS
+	// ===================================
+
+	/**
+	 * Returns the random generator for the current thread (or the generator of the
+	 * seeded draw currently running on the thread, if any).
+	 * 
+	 * @return the thread-local generator
+	 */
+	public static SplittableRandom getGenerator() {
+		LocalGenerator local = generators.get();
+		if (local.drawRng != null) {
+			return local.drawRng;
+		}
+		if (local.generation != generation || local.rng == null) {
+			local.rng = split();
+			local.generation = generation;
+		}
+		return local.rng;
+	}
+
+	/**
+	 * Returns a random double uniformly drawn from [0,1)
+	 * 
+	 * @return the random double
+	 */
+	public static double nextDouble() {
+		return getGenerator().nextDouble();
+	}
+
+	/**
+	 * Returns a random integer uniformly drawn from [0, bound)
+	 * 
+	 * @param bound the (exclusive) upper bound
+	 * @return the random integer
+	 */
+	public static int nextInt(int bound) {
+		return getGenerator().nextInt(bound);
+	}
+
+	/**
+	 * Returns a random boolean
+	 * 
+	 * @return the random boolean
+	 */
+	public static boolean nextBoolean() {
+		return getGenerator().nextBoolean();
+	}
+
+	/**
+	 * Returns a random double drawn from a standard normal distribution (using the
+	 * polar method of Marsaglia).
+	 * 
+	 * @return the random double
+	 */
+	public static double nextGaussian() {
+		SplittableRandom rng = getGenerator();
+		double v1, v2, s;
+		do {
+			v1 = 2 * rng.nextDouble() - 1;
+			v2 = 2 * rng.nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		}
+		while (s >= 1 || s == 0);
+		return v1 * Math.sqrt(-2 * Math.log(s) / s);
+	}
+
+	/**
+	 * Randomly permutes the elements of the list (Fisher-Yates shuffle).
+	 * 
+	 * @param list the list to shuffle
+	 * @param <T> the type of the list elements
+	 */
+	public static <T> void shuffle(List<T> list) {
+		SplittableRandom rng = getGenerator();
+		for (int i = list.size() - 1; i > 0; i--) {
+			int j = rng.nextInt(i + 1);
+			list.set(i, list.set(j, list.get(i)));
+		}
+	}
+
+	// ===================================
+	// PRIVATE METHODS
+	// ===================================
+
+	/**
+	 * Splits a new generator from the root generator
+	 * 
+	 * @return the new generator
+	 */
+	private static synchronized SplittableRandom split() {
+		return root.split();
+	}
+
+	/**
+	 * Scrambles the bits of the seed (SplitMix64 finaliser, as in SplittableRandom)
+	 * 
+	 * @param z the seed
+	 * @return the scrambled seed
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Generator of a thread, together with the generation of the root generator
+	 * it was derived from, and the generator of the seeded draw currently running
+	 * on the thread (if any).
+	 */
+	static final class LocalGenerator {
+		SplittableRandom rng;
+		int generation = -1;
+		SplittableRandom drawRng;
+	}
+
+}
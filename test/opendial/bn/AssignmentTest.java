@@ -23,12 +23,20 @@
 
 package opendial.bn;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import opendial.bn.values.Value;
 import opendial.bn.values.ValueFactory;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.SymbolTable;
 
 import org.junit.Test;
 
@@ -62,4 +70,102 @@ public class AssignmentTest {
 		assertFalse(a1bis.equals(a2));
 		assertFalse(a1bis.hashCode() == a2.hashCode());
 	}
+
+	@Test
+	public void testIntKeyedAssignment() {
+		Map<String, Value> map = new HashMap<String, Value>();
+		Assignment a = new Assignment();
+		for (int i = 20; i >= 0; i--) {
+			a.addPair("var" + i, ValueFactory.create(i));
+			map.put("var" + i, ValueFactory.create(i));
+		}
+		assertEquals(map, a.getPairs());
+		assertEquals(map.hashCode(), a.hashCode());
+		assertEquals(map.keySet(), a.getVariables());
+		assertEquals(new Assignment(map), a);
+		assertEquals(ValueFactory.create(7), a.getValue("var7"));
+		assertEquals(ValueFactory.none(), a.getValue("unknownVar"));
+
+		Assignment b = a.getTrimmed(Arrays.asList("var3", "var12", "var40"));
+		assertEquals(2, b.size());
+		assertTrue(a.contains(b));
+		assertTrue(a.consistentWith(b));
+		b.addPair("var3", "other");
+		assertFalse(a.contains(b));
+		assertFalse(a.consistentWith(b));
+		b.removePair("var3");
+		b.addPair("var40", true);
+		assertFalse(a.contains(b));
+		assertTrue(a.consistentWith(b));
+		Assignment c = new Assignment(a, b);
+		assertEquals(22, c.size());
+		c.removeAll(new HashSet<String>(Arrays.asList("var40", "var0")));
+		assertEquals(20, c.size());
+		assertEquals(a.getPruned(Arrays.asList("var0")), c);
+		assertEquals(a.getPruned(Arrays.asList("var0")).hashCode(), c.hashCode());
+	}
+
+	@Test
+	public void testSharedAssignments() {
+		Assignment a = new Assignment(Arrays.asList("A", "!B", "C"));
+		Assignment copy = a.copy();
+		Assignment trimmed = a.getTrimmed("A", "B", "C", "D");
+		Assignment merged = new Assignment(a, new Assignment("!B"));
+		assertEquals(a, trimmed);
+		assertEquals(a, merged);
+
+		// modifying the original does not affect the assignments sharing its pairs
+		a.addPair("D", "value");
+		a.removePair("A");
+		a.addPair("C", false);
+		Assignment original = new Assignment(Arrays.asList("A", "!B", "C"));
+		for (Assignment b : Arrays.asList(copy, trimmed, merged)) {
+			assertEquals(original, b);
+			assertEquals(original.hashCode(), b.hashCode());
+		}
+
+		// and conversely
+		copy.trim(Arrays.asList("A"));
+		trimmed.addPair("E", true);
+		merged.clear();
+		assertEquals(new Assignment("A"), copy);
+		assertEquals(new Assignment(original, "E", true), trimmed);
+		assertTrue(merged.isEmpty());
+		assertEquals(new Assignment(new Assignment(Arrays.asList("!B", "!C")), "D",
+				"value"), a);
+	}
+
+	@Test
+	public void testSymbolTable() {
+		int id = SymbolTable.intern("a_u'");
+		assertEquals(id, SymbolTable.intern("a_u'"));
+		assertEquals("a_u'", SymbolTable.getName(id));
+		assertTrue(SymbolTable.isPrimed(id));
+		assertEquals("a_u", SymbolTable.getName(SymbolTable.removePrime(id)));
+		assertEquals(id, SymbolTable.addPrime(SymbolTable.intern("a_u")));
+		assertEquals(SymbolTable.PREDICTION | SymbolTable.PRIMED,
+				SymbolTable.getFlags(SymbolTable.intern("u_m^p'")));
+		assertEquals(SymbolTable.OBSERVATION,
+				SymbolTable.getFlags(SymbolTable.intern("u_m^o")));
+		assertEquals(-1, SymbolTable.lookup("neverInterned"));
+
+		// queries do not intern new identifiers
+		int nbSymbols = SymbolTable.size();
+		assertTrue(SymbolTable.isPrimed("neverInterned'"));
+		assertFalse(SymbolTable.isPrimed("neverInterned"));
+		assertEquals("neverInterned", SymbolTable.removePrime("neverInterned'"));
+		assertEquals(-1,
+				SymbolTable.lookupPrimed(SymbolTable.intern("symbolTest")));
+		assertEquals(id, SymbolTable.lookupPrimed(SymbolTable.intern("a_u")));
+		new Assignment("symbolTest", "hi").removePrimes();
+		assertEquals(nbSymbols + 1, SymbolTable.size());
+
+		Assignment a = new Assignment(new Assignment("a_u", "hi"), "a_m'", "hello");
+		a.addPair("a_m", "bye");
+		Assignment expected = new Assignment(new Assignment("a_u", "hi"), "a_m",
+				"hello");
+		assertEquals(expected, a.removePrimes());
+		assertEquals(new Assignment(new Assignment("a_u'", "hi"), "a_m'", "bye"),
+				a.getTrimmed("a_u", "a_m").addPrimes());
+	}
 }
@@ -27,7 +27,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.logging.Logger;
 
 import opendial.bn.distribs.CategoricalTable;
@@ -287,6 +291,70 @@ public class BNetworkStructureTest {
 		assertEquals("a_m.place'", bn2.getSortedNodes().get(0).getId());
 	}
 
+	@Test
+	public void testCachedTopology() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		List<BNode> expected = new ArrayList<BNode>(bn.getNodes());
+		Collections.sort(expected);
+		assertEquals(expected, bn.getSortedNodes());
+		assertEquals(new HashSet<String>(Arrays.asList("Alarm", "Burglary",
+				"Earthquake")), bn.getAncestorIds("JohnCalls"));
+		assertEquals(new HashSet<String>(Arrays.asList("Alarm", "JohnCalls",
+				"MaryCalls", "Util1", "Util2")), bn.getDescendantIds("Burglary"));
+		assertTrue(bn.isAncestor("Earthquake", "MaryCalls"));
+		assertFalse(bn.isAncestor("MaryCalls", "Earthquake"));
+
+		// the cached topology is updated after each modification
+		bn.getNode("JohnCalls").removeInputNode("Alarm");
+		assertTrue(bn.getAncestorIds("JohnCalls").isEmpty());
+		assertFalse(bn.getDescendantIds("Burglary").contains("JohnCalls"));
+		ChanceNode node = new ChanceNode("Neighbour", ValueFactory.create(true));
+		node.addInputNode(bn.getNode("MaryCalls"));
+		bn.addNode(node);
+		assertTrue(bn.isAncestor("Earthquake", "Neighbour"));
+		expected = new ArrayList<BNode>(bn.getNodes());
+		Collections.sort(expected);
+		assertEquals(expected, bn.getSortedNodes());
+		bn.removeNode("MaryCalls");
+		assertFalse(bn.isAncestor("Earthquake", "Neighbour"));
+		assertFalse(bn.getSortedNodesIds().contains("MaryCalls"));
+	}
+
+	@Test
+	public void testNetworkVersion() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		BNetwork bn2 = new BNetwork(bn.getNodes());
+		bn.getSortedNodes();
+		BNetwork.Topology topology = bn.topology;
+		long version = bn.getVersion();
+
+		// modifying a distribution renews the version, but not the topology
+		ChanceNode node = bn.getChanceNode("Burglary");
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("Burglary");
+		builder.addRow(ValueFactory.create(true), 0.2f);
+		builder.addRow(ValueFactory.create(false), 0.8f);
+		node.setDistrib(builder.build());
+		assertTrue(bn.getVersion() > version);
+		assertEquals(bn.getVersion(), node.getStamp());
+		assertEquals(bn.getVersion(), bn2.getVersion());
+		bn.getSortedNodes();
+		assertTrue(topology == bn.topology);
+
+		// modifying a relation renews both
+		version = bn.getVersion();
+		bn.getNode("JohnCalls").removeInputNode("Alarm");
+		assertTrue(bn.getVersion() > version);
+		bn.getSortedNodes();
+		assertTrue(topology != bn.topology);
+
+		// removed nodes no longer modify the network
+		bn.removeNode("Burglary");
+		version = bn.getVersion();
+		node.setDistrib(builder.build());
+		assertEquals(version, bn.getVersion());
+		assertEquals(node.getStamp(), bn2.getVersion());
+	}
+
 	@Test
 	public void testCliques() {
 		BNetwork bn = NetworkExamples.constructBasicNetwork();
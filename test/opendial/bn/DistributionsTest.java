@@ -26,14 +26,17 @@ package opendial.bn;
 import static org.junit.Assert.*;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.logging.Logger;
 
 import opendial.Settings;
 import opendial.bn.distribs.CategoricalTable;
 import opendial.bn.distribs.ConditionalTable;
 import opendial.bn.distribs.ContinuousDistribution;
+import opendial.bn.distribs.EmpiricalDistribution;
 import opendial.bn.distribs.IndependentDistribution;
 import opendial.bn.distribs.MultivariateTable;
+import opendial.bn.distribs.ProbDistribution;
 import opendial.bn.distribs.densityfunctions.DirichletDensityFunction;
 import opendial.bn.distribs.densityfunctions.GaussianDensityFunction;
 import opendial.bn.distribs.densityfunctions.KernelDensityFunction;
@@ -45,6 +48,7 @@ import opendial.bn.values.Value;
 import opendial.bn.values.ValueFactory;
 import opendial.common.InferenceChecks;
 import opendial.datastructs.Assignment;
+import opendial.inference.approximate.SampleBatch;
 import opendial.inference.approximate.SamplingAlgorithm;
 import opendial.inference.exact.VariableElimination;
 import opendial.utils.MathUtils;
@@ -85,6 +89,25 @@ public class DistributionsTest {
 				0.1, 0.001);
 	}
 
+	@Test
+	public void testAliasSampling() {
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("var1");
+		builder.addRow("val1", 0.6);
+		builder.addRow("val2", 0.3);
+		builder.addRow("val3", 0.1);
+		builder.addRow("val4", 0.0);
+		IndependentDistribution table = builder.build();
+		int[] counts = new int[4];
+		for (int i = 0; i < 10000; i++) {
+			String val = table.sample().toString();
+			counts[Integer.parseInt(val.substring(3)) - 1]++;
+		}
+		assertEquals(0.6, counts[0] / 10000.0, 0.03);
+		assertEquals(0.3, counts[1] / 10000.0, 0.03);
+		assertEquals(0.1, counts[2] / 10000.0, 0.02);
+		assertEquals(0, counts[3]);
+	}
+
 	@Test
 	public void testMaths() {
 		assertEquals(4.0, MathUtils.getVolume(2, 1), 0.001);
@@ -316,6 +339,63 @@ public class DistributionsTest {
 
 	}
 
+	@Test
+	public void testEmpiricalColumns() {
+		EmpiricalDistribution empirical = new EmpiricalDistribution();
+		empirical.addSample(new Assignment(Arrays.asList("A", "B")));
+		empirical.addSample(new Assignment(Arrays.asList("A", "!B")));
+		empirical.addSample(new Assignment(Arrays.asList("!A", "B")));
+		empirical.addSample(new Assignment("A", true));
+
+		assertEquals(4, empirical.size());
+		assertEquals(0.75, empirical.getMarginal("A").getProb(true), 0.0001);
+		assertEquals(0.25,
+				empirical.getProb(new Assignment(Arrays.asList("A", "!B"))), 0.0001);
+		assertEquals(0.25, empirical.getProb(new Assignment("A", true)), 0.0001);
+		assertEquals(4, empirical.getValues().size());
+
+		ProbDistribution condDistrib =
+				empirical.getMarginal("B", new HashSet<String>(Arrays.asList("A")));
+		assertEquals(1.0 / 3, condDistrib.getProb(new Assignment("A", true),
+				ValueFactory.create(false)), 0.0001);
+		assertEquals(1.0, condDistrib.getProb(new Assignment("A", false),
+				ValueFactory.create(true)), 0.0001);
+
+		empirical.modifyVariableId("A", "C");
+		assertEquals(0.75, empirical.getMarginal("C").getProb(true), 0.0001);
+		empirical.removeVariable("C");
+		assertEquals(new HashSet<String>(Arrays.asList("B")),
+				empirical.getVariables());
+		assertEquals(0.5, empirical.getMarginal("B").getProb(true), 0.0001);
+
+		// renaming onto an existing column placed before the renamed one
+		EmpiricalDistribution empirical2 = new EmpiricalDistribution();
+		for (int i = 0; i < 10; i++) {
+			Assignment sample = new Assignment("A", "a");
+			sample.addPair("B", (i < 9) ? "b1" : "b2");
+			sample.addPair("C", ValueFactory.create(i / 10.0));
+			sample.addPair("D", i < 4);
+			empirical2.addSample(sample);
+		}
+		empirical2.modifyVariableId("D", "A");
+		assertEquals(new HashSet<String>(Arrays.asList("A", "B", "C")),
+				empirical2.getVariables());
+		SampleBatch batch = empirical2.getSampleBatch();
+		assertEquals(-1, batch.getColumnIndex("D"));
+		for (String var : batch.getVariables()) {
+			assertEquals(var, batch.getVariables().get(batch.getColumnIndex(var)));
+		}
+		assertEquals(0.4, empirical2.getMarginal("A").getProb(true), 0.0001);
+		assertEquals(0.9, empirical2.getMarginal("B").getProb("b1"), 0.0001);
+
+		// continuous values are not pruned, but the rare discrete ones are
+		assertTrue(empirical2.pruneValues(0.2));
+		assertEquals(9, empirical2.size());
+		assertEquals(1.0, empirical2.getMarginal("B").getProb("b1"), 0.0001);
+		assertFalse(empirical2.pruneValues(0.2));
+		assertEquals(9, empirical2.size());
+	}
+
 	@Test
 	public void empiricalDistribContinuous() {
 		ContinuousDistribution continuous = new ContinuousDistribution("var1",
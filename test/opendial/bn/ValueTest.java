@@ -116,6 +116,27 @@ public class ValueTest {
 
 	}
 
+	@Test
+	public void testInterning() {
+		assertTrue(ValueFactory.create("hello") == ValueFactory.create("hello"));
+		assertTrue(ValueFactory.create("True") == ValueFactory.create(true));
+		assertTrue(ValueFactory.create(false) == ValueFactory.create("false"));
+		assertTrue(ValueFactory.create("3") == ValueFactory.create(3.0));
+		assertTrue(ValueFactory.create(2.5) != ValueFactory.create(2.5));
+		assertEquals(ValueFactory.create(2.5), ValueFactory.create("2.5"));
+		assertTrue(1 / ValueFactory.create(-0.0).getDouble() < 0);
+		assertTrue(ValueFactory.create("[1,2]") != ValueFactory.create("[1,2]"));
+		assertEquals(ValueFactory.create("[1,2]"), ValueFactory.create("[1,2]"));
+
+		int oldSize = ValueFactory.MAX_CACHED_VALUES;
+		ValueFactory.MAX_CACHED_VALUES = 10;
+		for (int i = 0; i < 50; i++) {
+			assertEquals(new StringVal("string" + i),
+					ValueFactory.create("string" + i));
+		}
+		ValueFactory.MAX_CACHED_VALUES = oldSize;
+	}
+
 	public void testClosest() {
 		Builder builder = new CategoricalTable.Builder("v");
 		builder.addRow(new double[] { 0.2, 0.2 }, 0.3);
@@ -23,11 +23,24 @@
 
 package opendial.domains;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
 import java.util.logging.*;
 
 import opendial.DialogueState;
 import opendial.DialogueSystem;
+import opendial.bn.distribs.CategoricalTable;
+import opendial.bn.distribs.IndependentDistribution;
+import opendial.bn.distribs.ProbDistribution;
+import opendial.bn.nodes.ChanceNode;
+import opendial.bn.values.ValueFactory;
 import opendial.common.InferenceChecks;
+import opendial.common.NetworkExamples;
+import opendial.datastructs.Assignment;
 import opendial.domains.rules.effects.Effect;
 import opendial.modules.ForwardPlanner;
 import opendial.modules.StatePruner;
@@ -103,4 +116,97 @@ public class DialogueStateTest {
 
 	}
 
+	@Test
+	public void testQueryCache() {
+
+		DialogueState state =
+				new DialogueState(NetworkExamples.constructBasicNetwork());
+		long version = state.getVersion();
+
+		IndependentDistribution distrib = state.queryProb("JohnCalls");
+		assertEquals(0.0521, distrib.getProb(true), 0.001);
+		assertEquals(version, state.getVersion());
+		IndependentDistribution distrib2 = state.queryProb("JohnCalls");
+		assertNotSame(distrib, distrib2);
+		assertEquals(distrib.getProb(true), distrib2.getProb(true), 0.0001);
+		assertEquals(distrib.getProb(true),
+				state.queryMarginals(Arrays.asList("JohnCalls")).get("JohnCalls")
+						.getProb(true),
+				0.0001);
+
+		state.addEvidence(new Assignment("Alarm"));
+		assertTrue(state.getVersion() != version);
+		assertEquals(0.9, state.queryProb("JohnCalls").getProb(true), 0.001);
+		assertEquals(0.0521, state.queryProb("JohnCalls", false).getProb(true),
+				0.001);
+
+		state.clearEvidence(Arrays.asList("Alarm"));
+		version = state.getVersion();
+		assertEquals(0.0521, state.queryProb("JohnCalls").getProb(true), 0.001);
+		CategoricalTable.Builder builder =
+				new CategoricalTable.Builder("Earthquake");
+		builder.addRow(true, 1.0);
+		state.getChanceNode("Earthquake").setDistrib(builder.build());
+		assertTrue(state.getVersion() != version);
+		assertEquals(0.297, state.queryProb("JohnCalls").getProb(true), 0.001);
+
+		version = state.getVersion();
+		state.removeNode("MaryCalls");
+		assertTrue(state.getVersion() != version);
+		assertEquals(0.297, state.queryProb("JohnCalls").getProb(true), 0.001);
+	}
+
+	@Test
+	public void testCopyOnWrite() {
+
+		DialogueState state =
+				new DialogueState(NetworkExamples.constructBasicNetwork());
+		DialogueState copy = state.copy();
+		assertNotSame(state.getChanceNode("Burglary"),
+				copy.getChanceNode("Burglary"));
+		assertSame(state.getChanceNode("Burglary").peekDistrib(),
+				copy.getChanceNode("Burglary").peekDistrib());
+
+		copy.getChanceNode("Burglary").pruneValues(0.01);
+		assertEquals(1, copy.getChanceNode("Burglary").getValues().size());
+		assertEquals(2, state.getChanceNode("Burglary").getValues().size());
+		assertEquals(0.001, state.queryProb("Burglary").getProb(true), 0.0001);
+		assertEquals(0.0521, state.queryProb("JohnCalls").getProb(true), 0.001);
+
+		state.getChanceNode("Earthquake").pruneValues(0.01);
+		assertEquals(1, state.getChanceNode("Earthquake").getValues().size());
+		assertEquals(2, copy.getChanceNode("Earthquake").getValues().size());
+		assertEquals(0.002, copy.queryProb("Earthquake").getProb(true), 0.0001);
+
+		// distributions handed out by getDistrib can be modified in place
+		Assignment noAlarm = new Assignment("Alarm", false);
+		ProbDistribution distrib = copy.getChanceNode("MaryCalls").getDistrib();
+		assertNotSame(state.getChanceNode("MaryCalls").peekDistrib(), distrib);
+		assertSame(distrib, copy.getChanceNode("MaryCalls").peekDistrib());
+		distrib.pruneValues(0.05);
+		assertEquals(0.0, distrib.getProb(noAlarm, ValueFactory.create(true)),
+				0.0001);
+		assertEquals(0.01, state.getChanceNode("MaryCalls").getProb(noAlarm,
+				ValueFactory.create(true)), 0.0001);
+
+		// derived distributions are copied if the original was shared
+		ChanceNode johnCalls = copy.copy().getChanceNode("JohnCalls");
+		ProbDistribution derived =
+				johnCalls.peekDistrib().getProbDistrib(noAlarm);
+		johnCalls.setDerivedDistrib(derived);
+		assertSame(derived, johnCalls.peekDistrib());
+		assertNotSame(derived, johnCalls.getDistrib());
+
+		DialogueState copy2 = copy.copy();
+		Assignment input = new Assignment(new Assignment("Burglary", true),
+				"Action", ValueFactory.create("DoNothing"));
+		copy2.getUtilityNode("Util1").addUtility(input, -20);
+		assertSame(state.getChanceNode("Alarm").peekDistrib(),
+				copy2.getChanceNode("Alarm").peekDistrib());
+		assertNotSame(copy.getUtilityNode("Util1").peekFunction(),
+				copy2.getUtilityNode("Util1").peekFunction());
+		assertEquals(-20, copy2.getUtilityNode("Util1").getUtility(input), 0.001);
+		assertEquals(0, copy.getUtilityNode("Util1").getUtility(input), 0.001);
+	}
+
 }
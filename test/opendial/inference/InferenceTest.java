@@ -25,27 +25,54 @@ package opendial.inference;
 
 import java.util.logging.*;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 
+import opendial.DialogueState;
 import opendial.bn.BNetwork;
 import opendial.bn.distribs.CategoricalTable;
+import opendial.bn.distribs.ConditionalTable;
 import opendial.bn.distribs.ContinuousDistribution;
 import opendial.bn.distribs.EmpiricalDistribution;
+import opendial.bn.distribs.IndependentDistribution;
 import opendial.bn.distribs.MultivariateDistribution;
 import opendial.bn.distribs.MultivariateTable;
 import opendial.bn.distribs.densityfunctions.GaussianDensityFunction;
 import opendial.bn.distribs.densityfunctions.UniformDensityFunction;
+import opendial.bn.nodes.BNode;
 import opendial.bn.nodes.ChanceNode;
+import opendial.bn.values.Value;
 import opendial.bn.values.ValueFactory;
 import opendial.common.NetworkExamples;
 import opendial.datastructs.Assignment;
+import opendial.datastructs.Deadline;
+import opendial.inference.approximate.GibbsSampling;
+import opendial.inference.approximate.LikelihoodWeighting;
+import opendial.inference.approximate.LoopyBeliefPropagation;
+import opendial.inference.approximate.MiniBucketElimination;
+import opendial.inference.approximate.ParticleFilter;
+import opendial.inference.approximate.SampleBatch;
 import opendial.inference.approximate.SamplingAlgorithm;
+import opendial.inference.approximate.SamplingStatistics;
+import opendial.inference.exact.DoubleFactor;
+import opendial.inference.exact.EliminationOrder;
+import opendial.inference.exact.JunctionTree;
 import opendial.inference.exact.NaiveInference;
 import opendial.inference.exact.VariableElimination;
+import opendial.utils.RandomUtils;
 
 import org.junit.Test;
 
@@ -212,6 +239,456 @@ public class InferenceTest {
 				0.05f);
 	}
 
+	@Test
+	public void testAnytimeSampling() {
+
+		SamplingAlgorithm is = new SamplingAlgorithm(20000, 2000, 0.02);
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+
+		EmpiricalDistribution query = (EmpiricalDistribution) is.queryProb(bn,
+				Arrays.asList("Burglary"),
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+
+		assertEquals(0.362607f, query.getProb(new Assignment("Burglary", false)),
+				0.07f);
+		assertTrue(query.getErrorEstimate() <= 0.02);
+		assertTrue(query.getEffectiveSampleSize() > 0);
+		assertTrue(query.getSamples().size() < 20000);
+	}
+
+	@Test
+	public void testSamplingStatistics() {
+		SampleBatch batch = new SampleBatch(Arrays.asList("A"));
+		batch.setValue(batch.addRow(0.0, 1.0), 0, ValueFactory.create("a1"));
+		SamplingStatistics stats =
+				new SamplingStatistics(Arrays.asList("A"), true);
+		stats.addSamples(batch, 0);
+
+		// the weight of the first sample underflows after rescaling
+		int firstRow = batch.size();
+		for (int i = 0; i < 200; i++) {
+			batch.setValue(batch.addRow(2000.0, (i % 2 == 0) ? 2.0 : 3.0), 0,
+					ValueFactory.create("a2"));
+		}
+		stats.addSamples(batch, firstRow);
+		assertFalse(Double.isNaN(stats.getErrorEstimate()));
+		assertTrue(stats.hasConverged(0.1));
+	}
+
+	@Test
+	public void testSeededSampling() {
+
+		SamplingAlgorithm is = new SamplingAlgorithm(2000, 10000);
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		Assignment evidence =
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls"));
+
+		try {
+			RandomUtils.setSeed(42);
+			double prob1 = is.queryProb(bn, Arrays.asList("Burglary"), evidence)
+					.getProb(new Assignment("Burglary", true));
+			RandomUtils.setSeed(42);
+			SplittableRandom rng = RandomUtils.getGenerator();
+			double prob2 = is.queryProb(bn, Arrays.asList("Burglary"), evidence)
+					.getProb(new Assignment("Burglary", true));
+			assertEquals(prob1, prob2, 0.0);
+			assertEquals(0.637392, prob1, 0.06);
+
+			// the seeded draws do not affect the generator of the thread
+			assertSame(rng, RandomUtils.getGenerator());
+		}
+		finally {
+			RandomUtils.clearSeed();
+		}
+		assertNull(RandomUtils.getSeed());
+	}
+
+	@Test
+	public void testStratifiedResampling() {
+		LikelihoodWeighting.Resampling oldScheme = LikelihoodWeighting.RESAMPLING;
+		LikelihoodWeighting.RESAMPLING = LikelihoodWeighting.Resampling.STRATIFIED;
+		try {
+			SamplingAlgorithm is = new SamplingAlgorithm(5000, 300);
+			BNetwork bn = NetworkExamples.constructBasicNetwork2();
+			MultivariateDistribution query =
+					is.queryProb(bn, Arrays.asList("Burglary"),
+							new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+			assertEquals(0.362607f,
+					query.getProb(new Assignment("Burglary", false)), 0.06f);
+		}
+		finally {
+			LikelihoodWeighting.RESAMPLING = oldScheme;
+		}
+	}
+
+	@Test
+	public void testMarginals() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		List<String> queryVars = Arrays.asList("Burglary", "Alarm", "Earthquake");
+		Assignment evidence = new Assignment("JohnCalls");
+
+		Map<String, IndependentDistribution> exact =
+				new SwitchingAlgorithm().queryMarginals(bn, queryVars, evidence);
+		Map<String, IndependentDistribution> sampled =
+				new SamplingAlgorithm(5000, 300).queryMarginals(bn, queryVars,
+						evidence);
+		assertEquals(queryVars, new ArrayList<String>(exact.keySet()));
+		assertEquals(queryVars, new ArrayList<String>(sampled.keySet()));
+		VariableElimination ve = new VariableElimination();
+		for (String queryVar : queryVars) {
+			IndependentDistribution marginal = ve.queryProb(bn, queryVar, evidence);
+			assertEquals(marginal.getProb(true), exact.get(queryVar).getProb(true),
+					0.0001);
+			assertEquals(marginal.getProb(true), sampled.get(queryVar).getProb(true),
+					0.05);
+		}
+	}
+
+	@Test
+	public void testDeadline() {
+		Deadline turn = new Deadline(10000);
+		Deadline child = turn.withTimeout(Long.MAX_VALUE);
+		assertTrue(child.getRemainingTime() <= 10000);
+		assertFalse(child.isExpired());
+		turn.cancel();
+		assertTrue(child.isExpired());
+		assertFalse(Deadline.NONE.isExpired());
+
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		Deadline previous = Deadline.setCurrent(turn);
+		Query.ProbQuery query = new Query.ProbQuery(bn, Arrays.asList("Burglary"),
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+		Deadline.setCurrent(previous);
+		assertEquals(turn, query.getDeadline());
+		assertEquals(Deadline.NONE, Deadline.current());
+
+		LikelihoodWeighting lw = new LikelihoodWeighting(query, 5000, 10000);
+		assertTrue(lw.getSamples().size() <= LikelihoodWeighting.MIN_DRAWS);
+		assertTrue(lw.getSamples().size() > 0);
+		assertEquals(turn, query.getSubQuery(Arrays.asList("Alarm")).getDeadline());
+
+		// exact inference is interrupted, and falls back on sampling
+		for (InferenceAlgorithm algo : Arrays.asList(new VariableElimination(),
+				new JunctionTree(), new MiniBucketElimination())) {
+			try {
+				algo.queryProb(query);
+				fail(algo + " should have been interrupted");
+			}
+			catch (Deadline.ExpiredException e) {
+				// expected
+			}
+		}
+		MultivariateDistribution result = new SwitchingAlgorithm().queryProb(query);
+		assertTrue(result instanceof EmpiricalDistribution);
+
+		// without deadline, the inference is exact
+		Assignment evidence =
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls"));
+		assertEquals(
+				new VariableElimination().queryProb(bn, "Burglary", evidence)
+						.getProb(true),
+				new SwitchingAlgorithm().queryProb(bn, "Burglary", evidence)
+						.getProb(true),
+				0.0001);
+	}
+
+	@Test
+	public void testDenseFactors() {
+		DoubleFactor f1 = new DoubleFactor();
+		DoubleFactor f2 = new DoubleFactor();
+		for (String a : Arrays.asList("a1", "a2", "a3")) {
+			for (String b : Arrays.asList("b1", "b2")) {
+				Assignment assign = new Assignment(new Assignment("A", a), "B", b);
+				f1.addEntry(assign, (a + b).hashCode() % 7 / 7.0, a.length());
+			}
+		}
+		f2.addEntry(new Assignment(new Assignment("B", "b1"), "C", "c1"), 0.2, 1.0);
+		f2.addEntry(new Assignment(new Assignment("B", "b1"), "C", "c2"), 0.8, 0.0);
+		f2.addEntry(new Assignment(new Assignment("B", "b2"), "C", "c1"), 1.0, 2.0);
+		f2.addEntry(new Assignment(new Assignment("B", "b3"), "C", "c2"), 0.5, 0.0);
+		DoubleFactor dense1 = f1.copy();
+		DoubleFactor dense2 = f2.copy();
+		dense1.compact();
+		dense2.compact();
+		assertTrue(dense1.isDense());
+		assertTrue(dense2.isDense());
+		assertFalse(f1.isDense());
+
+		double oldDensity = DoubleFactor.MIN_DENSITY;
+		try {
+			DoubleFactor denseProduct = dense1.product(dense2);
+			DoubleFactor.MIN_DENSITY = 2.0;
+			DoubleFactor sparseProduct = f1.product(f2);
+			DoubleFactor sparseSum = sparseProduct.sumOut("B");
+			DoubleFactor.MIN_DENSITY = oldDensity;
+			assertTrue(denseProduct.isDense());
+			assertFalse(sparseProduct.isDense());
+			assertEquals(9, denseProduct.size());
+			assertEquals(sparseProduct.getAssignments(),
+					denseProduct.getAssignments());
+			for (Assignment a : sparseProduct.getAssignments()) {
+				assertEquals(sparseProduct.getProbEntry(a),
+						denseProduct.getProbEntry(a), 0.0001);
+				assertEquals(sparseProduct.getUtilityEntry(a),
+						denseProduct.getUtilityEntry(a), 0.0001);
+			}
+			DoubleFactor denseSum = denseProduct.sumOut("B");
+			assertEquals(sparseSum.getAssignments(), denseSum.getAssignments());
+			for (Assignment a : sparseSum.getAssignments()) {
+				assertEquals(sparseSum.getProbEntry(a), denseSum.getProbEntry(a),
+						0.0001);
+				assertEquals(sparseSum.getUtilityEntry(a),
+						denseSum.getUtilityEntry(a), 0.0001);
+			}
+
+			BNetwork bn = NetworkExamples.constructBasicNetwork2();
+			Assignment evidence = new Assignment("JohnCalls");
+			VariableElimination ve = new VariableElimination();
+			double denseProb = ve.queryProb(bn, "Burglary", evidence).getProb(true);
+			double denseUtil = ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+					.getUtil(new Assignment("Action", "CallPolice"));
+			DoubleFactor.MIN_DENSITY = 2.0;
+			assertEquals(denseProb,
+					ve.queryProb(bn, "Burglary", evidence).getProb(true), 0.0001);
+			assertEquals(denseUtil,
+					ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+							.getUtil(new Assignment("Action", "CallPolice")),
+					0.0001);
+		}
+		finally {
+			DoubleFactor.MIN_DENSITY = oldDensity;
+		}
+	}
+
+	@Test
+	public void testParallelFactors() {
+		DoubleFactor f1 = new DoubleFactor();
+		DoubleFactor f2 = new DoubleFactor();
+		for (int a = 0; a < 40; a++) {
+			for (int b = 0; b < 30; b++) {
+				Assignment ab = new Assignment(new Assignment("A", "a" + a), "B",
+						"b" + b);
+				Assignment bc = new Assignment(new Assignment("B", "b" + b), "C",
+						"c" + a);
+				f1.addEntry(ab, (a * b % 11) / 11.0, a % 3);
+				f2.addEntry(bc, ((a + b) % 7) / 7.0, b % 2);
+			}
+		}
+		f1.compact();
+		f2.compact();
+		DoubleFactor sequential;
+		DoubleFactor parallel;
+		int oldThreshold = DoubleFactor.PARALLEL_THRESHOLD;
+		try {
+			DoubleFactor.PARALLEL_THRESHOLD = Integer.MAX_VALUE;
+			sequential = f1.product(f2).sumOut("B");
+			sequential.normalise();
+			DoubleFactor.PARALLEL_THRESHOLD = 1000;
+			parallel = f1.product(f2).sumOut("B");
+			parallel.normalise();
+		}
+		finally {
+			DoubleFactor.PARALLEL_THRESHOLD = oldThreshold;
+		}
+		assertTrue(parallel.isDense());
+		assertEquals(sequential.getAssignments(), parallel.getAssignments());
+		for (Assignment a : sequential.getAssignments()) {
+			assertEquals(sequential.getProbEntry(a), parallel.getProbEntry(a),
+					0.000001);
+			assertEquals(sequential.getUtilityEntry(a),
+					parallel.getUtilityEntry(a), 0.000001);
+		}
+	}
+
+	@Test
+	public void testScaledFactors() {
+		// the product underflows without rescaling
+		DoubleFactor product = new DoubleFactor();
+		product.addEntry(new Assignment(), 1.0, 0.0);
+		for (int i = 0; i < 40; i++) {
+			DoubleFactor f = new DoubleFactor();
+			f.addEntry(new Assignment("X", "x"), 1E-10, 0.0);
+			f.addEntry(new Assignment("X", "y"), 3E-10, 0.0);
+			if (i % 2 == 0) {
+				f.compact();
+			}
+			product = product.product(f);
+		}
+		assertEquals(0.0, product.getProbEntry(new Assignment("X", "x")), 0.0);
+		product.normalise();
+		assertEquals(1.0, product.getProbEntry(new Assignment("X", "x"))
+				* (1 + Math.pow(3, 40)), 0.0001);
+		assertEquals(0.0, product.getPrecisionBound(), 0.0);
+
+		// the negligible entries are dropped, and their mass is tracked
+		DoubleFactor f1 = new DoubleFactor();
+		f1.addEntry(new Assignment("X", "x"), 0.001, 0.0);
+		f1.addEntry(new Assignment("X", "y"), 1.0, 0.0);
+		DoubleFactor f2 = new DoubleFactor();
+		f2.addEntry(new Assignment("Y", "a"), 0.5, 0.0);
+		f2.addEntry(new Assignment("Y", "b"), 0.5, 0.0);
+		DoubleFactor pruned;
+		double oldThreshold = DoubleFactor.PRUNING_THRESHOLD;
+		try {
+			DoubleFactor.PRUNING_THRESHOLD = 0.01;
+			pruned = f1.product(f2);
+		}
+		finally {
+			DoubleFactor.PRUNING_THRESHOLD = oldThreshold;
+		}
+		assertEquals(2, pruned.size());
+		assertEquals(0.001 / 1.001, pruned.getPrecisionBound(), 0.00001);
+		DoubleFactor exact = f1.product(f2);
+		assertEquals(4, exact.size());
+		pruned = pruned.sumOut("X");
+		exact = exact.sumOut("X");
+		pruned.normalise();
+		exact.normalise();
+		for (Assignment a : exact.getAssignments()) {
+			assertEquals(exact.getProbEntry(a), pruned.getProbEntry(a),
+					pruned.getPrecisionBound());
+		}
+	}
+
+	@Test
+	public void testEliminationOrder() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		Assignment evidence = new Assignment("JohnCalls");
+		VariableElimination topological =
+				new VariableElimination(EliminationOrder.Heuristic.TOPOLOGICAL);
+		double prob = topological.queryProb(bn, "Burglary", evidence).getProb(true);
+		double util = topological.queryUtil(bn, Arrays.asList("Action"), evidence)
+				.getUtil(new Assignment("Action", "CallPolice"));
+		for (EliminationOrder.Heuristic h : EliminationOrder.Heuristic.values()) {
+			VariableElimination ve = new VariableElimination(h);
+			assertEquals(prob, ve.queryProb(bn, "Burglary", evidence).getProb(true),
+					0.0001);
+			assertEquals(util, ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+					.getUtil(new Assignment("Action", "CallPolice")), 0.0001);
+		}
+
+		// on a chain A -> B -> C, eliminating B first creates a factor on A,B,C
+		BNetwork chain = new BNetwork();
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("A");
+		builder.addRow(true, 0.3);
+		builder.addRow(false, 0.7);
+		chain.addNode(new ChanceNode("A", builder.build()));
+		for (String[] pair : new String[][] { { "A", "B" }, { "B", "C" } }) {
+			Assignment pos = new Assignment(pair[0]);
+			Assignment neg = new Assignment("!" + pair[0]);
+			ConditionalTable.Builder builder2 =
+					new ConditionalTable.Builder(pair[1]);
+			builder2.addRow(pos, ValueFactory.create(true), 0.9);
+			builder2.addRow(pos, ValueFactory.create(false), 0.1);
+			builder2.addRow(neg, ValueFactory.create(true), 0.2);
+			builder2.addRow(neg, ValueFactory.create(false), 0.8);
+			ChanceNode node = new ChanceNode(pair[1], builder2.build());
+			node.addInputNode(chain.getNode(pair[0]));
+			chain.addNode(node);
+		}
+		Query query =
+				new Query.ProbQuery(chain, Arrays.asList("C"), new Assignment());
+		EliminationOrder order = topological.getEliminationOrder(query);
+		assertEquals(Arrays.asList("B", "A"), order.getOrder());
+		assertEquals(8, order.getMaxFactorSize());
+		order = new VariableElimination().getEliminationOrder(query);
+		assertEquals(Arrays.asList("A", "B"), order.getOrder());
+		assertEquals(4, order.getMaxFactorSize());
+		assertEquals(topological.queryProb(chain, "C").getProb(true),
+				new VariableElimination().queryProb(chain, "C").getProb(true),
+				0.0001);
+
+		// the order is cached until the network is modified
+		assertSame(order, new VariableElimination().getEliminationOrder(
+				new Query.ProbQuery(chain, Arrays.asList("C"), new Assignment())));
+		chain.getChanceNode("A").pruneValues(0.6);
+		assertNotSame(order, new VariableElimination().getEliminationOrder(query));
+
+		// the parents of Alarm are not in the node list, so their size is unknown
+		List<BNode> nodes = Arrays.asList(bn.getNode("JohnCalls"),
+				bn.getNode("MaryCalls"), bn.getNode("Alarm"));
+		order = new EliminationOrder(nodes, Arrays.asList("JohnCalls"),
+				new Assignment(), EliminationOrder.Heuristic.WEIGHTED_MIN_FILL);
+		assertEquals(Arrays.asList("Earthquake", "Burglary", "MaryCalls", "Alarm"),
+				order.getOrder());
+	}
+
+	@Test
+	public void testNetworkCache() {
+		NetworkCache<Object> cache = new NetworkCache<Object>(() -> 2);
+		BNetwork bn1 = NetworkExamples.constructBasicNetwork();
+		BNetwork bn2 = NetworkExamples.constructBasicNetwork2();
+		BNetwork bn3 = NetworkExamples.constructBasicNetwork3();
+		Object o1 = cache.get(bn1, 1, n -> new Object());
+		assertSame(o1, cache.get(bn1, 1, n -> new Object()));
+		Object o2 = cache.get(bn1, 2, n -> new Object());
+		assertNotSame(o1, o2);
+		assertSame(o2, cache.get(bn1, 2, n -> new Object()));
+
+		// the least recently used network is evicted
+		Object o3 = cache.get(bn2, 1, n -> new Object());
+		cache.get(bn3, 1, n -> new Object());
+		assertNotSame(o2, cache.get(bn1, 2, n -> new Object()));
+		assertNotSame(o3, cache.get(bn2, 1, n -> new Object()));
+	}
+
+	@Test
+	public void testJunctionTree() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		VariableElimination ve = new VariableElimination();
+		JunctionTree jt = new JunctionTree();
+		assertFalse(jt.getCliques(bn).isEmpty());
+
+		List<Assignment> evidences = Arrays.asList(new Assignment(),
+				new Assignment("JohnCalls"),
+				new Assignment(Arrays.asList("JohnCalls", "!MaryCalls")),
+				new Assignment("Alarm"));
+		for (Assignment evidence : evidences) {
+			for (String var : Arrays.asList("Burglary", "Alarm", "MaryCalls")) {
+				if (evidence.containsVar(var)) {
+					continue;
+				}
+				assertEquals(ve.queryProb(bn, var, evidence).getProb(true),
+						jt.queryProb(bn, var, evidence).getProb(true), 0.0001);
+			}
+			Map<String, IndependentDistribution> marginals = jt.queryMarginals(bn,
+					Arrays.asList("Burglary", "Earthquake"), evidence);
+			assertEquals(ve.queryProb(bn, "Earthquake", evidence).getProb(true),
+					marginals.get("Earthquake").getProb(true), 0.0001);
+			assertEquals(
+					ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+							.getUtil(new Assignment("Action", "CallPolice")),
+					jt.queryUtil(bn, Arrays.asList("Action"), evidence)
+							.getUtil(new Assignment("Action", "CallPolice")),
+					0.0001);
+		}
+
+		// queries spanning several cliques fall back to variable elimination
+		Assignment evidence = new Assignment("JohnCalls");
+		List<String> vars = Arrays.asList("Burglary", "MaryCalls");
+		Assignment values = new Assignment(vars);
+		assertEquals(ve.queryProb(bn, vars, evidence).getProb(values),
+				jt.queryProb(bn, vars, evidence).getProb(values), 0.0001);
+
+		// structural changes lead to a new compilation
+		CategoricalTable.Builder builder =
+				new CategoricalTable.Builder("Earthquake");
+		builder.addRow(true, 1.0);
+		bn.getChanceNode("Earthquake").setDistrib(builder.build());
+		assertEquals(ve.queryProb(bn, "Alarm", evidence).getProb(true),
+				jt.queryProb(bn, "Alarm", evidence).getProb(true), 0.0001);
+
+		// new evidence changes the state version, but not its structure
+		DialogueState state = new DialogueState(bn);
+		long version = state.getVersion();
+		long structureVersion = state.getStructureVersion();
+		state.addEvidence(new Assignment("JohnCalls"));
+		assertTrue(state.getVersion() != version);
+		assertEquals(structureVersion, state.getStructureVersion());
+		assertEquals(ve.queryProb(bn, "Alarm", evidence).getProb(true),
+				state.queryProb("Alarm").getProb(true), 0.0001);
+	}
+
 	@Test
 	public void testNetworkUtil() {
 		BNetwork network = NetworkExamples.constructBasicNetwork2();
@@ -287,58 +764,432 @@ public class InferenceTest {
 	@Test
 	public void testSwitching() {
 		int oldFactor = SwitchingAlgorithm.MAX_BRANCHING_FACTOR;
-		SwitchingAlgorithm.MAX_BRANCHING_FACTOR = 4;
-		BNetwork network = NetworkExamples.constructBasicNetwork2();
+		try {
+			SwitchingAlgorithm.MAX_BRANCHING_FACTOR = 4;
+			BNetwork network = NetworkExamples.constructBasicNetwork2();
+
+			MultivariateDistribution distrib = (new SwitchingAlgorithm()).queryProb(
+					network, Arrays.asList("Burglary"),
+					new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+			assertTrue(distrib instanceof MultivariateTable);
+
+			CategoricalTable.Builder builder = new CategoricalTable.Builder("n1");
+			builder.addRow(ValueFactory.create("aha"), 1.0);
+			ChanceNode n1 = new ChanceNode("n1", builder.build());
+			network.addNode(n1);
+			builder = new CategoricalTable.Builder("n2");
+			builder.addRow(ValueFactory.create("oho"), 0.7);
+			ChanceNode n2 = new ChanceNode("n2", builder.build());
+			network.addNode(n2);
+			builder = new CategoricalTable.Builder("n3");
+			builder.addRow(ValueFactory.create("ihi"), 0.7);
+			ChanceNode n3 = new ChanceNode("n3", builder.build());
+			network.addNode(n3);
+			network.getNode("Alarm").addInputNode(n1);
+			network.getNode("Alarm").addInputNode(n2);
+			network.getNode("Alarm").addInputNode(n3);
+
+			distrib = (new SwitchingAlgorithm()).queryProb(network,
+					Arrays.asList("Burglary"),
+					new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+			assertEquals(EmpiricalDistribution.class, distrib.getClass());
+
+			network.removeNode(n1.getId());
+			network.removeNode(n2.getId());
+
+			distrib = (new SwitchingAlgorithm()).queryProb(network,
+					Arrays.asList("Burglary"),
+					new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
+			assertTrue(distrib instanceof MultivariateTable);
+
+			n1 = new ChanceNode("n1", new ContinuousDistribution("n1",
+					new UniformDensityFunction(-2, 2)));
+			n2 = new ChanceNode("n2", new ContinuousDistribution("n2",
+					new GaussianDensityFunction(-1.0, 3.0)));
+			network.addNode(n1);
+			network.addNode(n2);
+			network.getNode("Earthquake").addInputNode(n1);
+			network.getNode("Earthquake").addInputNode(n2);
+
+			distrib = (new SwitchingAlgorithm().queryProb(network,
+					Arrays.asList("Burglary"),
+					new Assignment(Arrays.asList("JohnCalls", "MaryCalls"))));
+			assertTrue(distrib instanceof EmpiricalDistribution);
+
+		}
+		finally {
+			SwitchingAlgorithm.MAX_BRANCHING_FACTOR = oldFactor;
+		}
+	}
 
-		MultivariateDistribution distrib = (new SwitchingAlgorithm()).queryProb(
-				network, Arrays.asList("Burglary"),
-				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
-		assertTrue(distrib instanceof MultivariateTable);
-
-		CategoricalTable.Builder builder = new CategoricalTable.Builder("n1");
-		builder.addRow(ValueFactory.create("aha"), 1.0);
-		ChanceNode n1 = new ChanceNode("n1", builder.build());
-		network.addNode(n1);
-		builder = new CategoricalTable.Builder("n2");
-		builder.addRow(ValueFactory.create("oho"), 0.7);
-		ChanceNode n2 = new ChanceNode("n2", builder.build());
-		network.addNode(n2);
-		builder = new CategoricalTable.Builder("n3");
-		builder.addRow(ValueFactory.create("ihi"), 0.7);
-		ChanceNode n3 = new ChanceNode("n3", builder.build());
-		network.addNode(n3);
-		network.getNode("Alarm").addInputNode(n1);
-		network.getNode("Alarm").addInputNode(n2);
-		network.getNode("Alarm").addInputNode(n3);
-
-		distrib = (new SwitchingAlgorithm()).queryProb(network,
-				Arrays.asList("Burglary"),
-				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
-		assertEquals(EmpiricalDistribution.class, distrib.getClass());
+	@Test
+	public void testBeliefPropagation() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		VariableElimination ve = new VariableElimination();
+		LoopyBeliefPropagation bp = new LoopyBeliefPropagation();
+		List<Assignment> evidences = Arrays.asList(new Assignment(),
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")),
+				new Assignment("Alarm"));
+		for (Assignment evidence : evidences) {
+			Map<String, IndependentDistribution> marginals = bp.queryMarginals(bn,
+					Arrays.asList("Burglary", "Earthquake"), evidence);
+			for (String var : marginals.keySet()) {
+				assertEquals(ve.queryProb(bn, var, evidence).getProb(true),
+						marginals.get(var).getProb(true), 0.001);
+			}
+			assertEquals(
+					ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+							.getUtil(new Assignment("Action", "CallPolice")),
+					bp.queryUtil(bn, Arrays.asList("Action"), evidence)
+							.getUtil(new Assignment("Action", "CallPolice")),
+					0.01);
+		}
+
+		// the network A -> B, A -> C, (B,C) -> D contains a cycle
+		BNetwork loopy = new BNetwork();
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("A");
+		builder.addRow(true, 0.4);
+		builder.addRow(false, 0.6);
+		loopy.addNode(new ChanceNode("A", builder.build()));
+		for (String var : Arrays.asList("B", "C")) {
+			ConditionalTable.Builder builder2 = new ConditionalTable.Builder(var);
+			builder2.addRow(new Assignment("A"), ValueFactory.create(true), 0.8);
+			builder2.addRow(new Assignment("A"), ValueFactory.create(false), 0.2);
+			builder2.addRow(new Assignment("!A"), ValueFactory.create(true), 0.3);
+			builder2.addRow(new Assignment("!A"), ValueFactory.create(false), 0.7);
+			ChanceNode node = new ChanceNode(var, builder2.build());
+			node.addInputNode(loopy.getNode("A"));
+			loopy.addNode(node);
+		}
+		ConditionalTable.Builder builder3 = new ConditionalTable.Builder("D");
+		for (Assignment cond : Arrays.asList(
+				new Assignment(Arrays.asList("B", "C")),
+				new Assignment(Arrays.asList("B", "!C")),
+				new Assignment(Arrays.asList("!B", "C")))) {
+			builder3.addRow(cond, ValueFactory.create(true), 0.9);
+			builder3.addRow(cond, ValueFactory.create(false), 0.1);
+		}
+		builder3.addRow(new Assignment(Arrays.asList("!B", "!C")),
+				ValueFactory.create(false), 1.0);
+		ChanceNode d = new ChanceNode("D", builder3.build());
+		d.addInputNode(loopy.getNode("B"));
+		d.addInputNode(loopy.getNode("C"));
+		loopy.addNode(d);
+		assertEquals(ve.queryProb(loopy, "A", new Assignment("D")).getProb(true),
+				bp.queryProb(loopy, "A", new Assignment("D")).getProb(true), 0.05);
+
+		// belief propagation is selected if exact inference exceeds the sampling
+		// cost, as it requires fewer factor cells than the elimination
+		double oldCost = SwitchingAlgorithm.EXACT_COST_PER_CELL;
+		double oldCost2 = SwitchingAlgorithm.PROPAGATION_COST_PER_CELL;
+		try {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = 1;
+			SwitchingAlgorithm.PROPAGATION_COST_PER_CELL = 0;
+			Query query = new Query.ProbQuery(loopy, Arrays.asList("A"),
+					new Assignment("D"));
+			SwitchingAlgorithm switching = new SwitchingAlgorithm();
+			double exactCost = switching.getExactCost(query);
+			double propagationCost = switching.getPropagationCost(query);
+			assertTrue(propagationCost < exactCost);
+			SwitchingAlgorithm.EXACT_COST_PER_CELL =
+					2 * switching.getSamplingCost(query)
+							/ (exactCost + propagationCost);
+			InferenceAlgorithm algo = switching.selectBestAlgorithm(query);
+			assertTrue(algo instanceof LoopyBeliefPropagation);
+		}
+		finally {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = oldCost;
+			SwitchingAlgorithm.PROPAGATION_COST_PER_CELL = oldCost2;
+		}
+	}
 
-		network.removeNode(n1.getId());
-		network.removeNode(n2.getId());
+	@Test
+	public void testMiniBucket() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		VariableElimination ve = new VariableElimination();
+		MiniBucketElimination exact = new MiniBucketElimination(1000);
+		MiniBucketElimination mb = new MiniBucketElimination(2);
+		Assignment evidence =
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls"));
+		for (String var : Arrays.asList("Burglary", "Earthquake", "Alarm")) {
+			double prob = ve.queryProb(bn, var, evidence).getProb(true);
+			assertEquals(prob, exact.queryProb(bn, var, evidence).getProb(true),
+					0.0001);
+			MultivariateDistribution approx = mb.queryProb(bn, Arrays.asList(var),
+					evidence);
+			assertEquals(1.0, approx.getValues().stream()
+					.mapToDouble(v -> approx.getProb(v)).sum(), 0.0001);
+			Map<Assignment, double[]> bounds = mb.queryBounds(
+					new Query.ProbQuery(bn, Arrays.asList(var), evidence));
+			double[] bound = bounds.get(new Assignment(var));
+			assertTrue(bound[0] <= prob + 0.0001);
+			assertTrue(bound[1] >= prob - 0.0001);
+			assertTrue(bound[0] <= bound[1]);
+		}
+		assertEquals(
+				ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+						.getUtil(new Assignment("Action", "CallPolice")),
+				exact.queryUtil(bn, Arrays.asList("Action"), evidence)
+						.getUtil(new Assignment("Action", "CallPolice")),
+				0.0001);
+
+		// mini-bucket elimination is selected if exact inference exceeds the
+		// sampling cost, as it requires fewer factor cells than the elimination
+		double oldCost = SwitchingAlgorithm.EXACT_COST_PER_CELL;
+		boolean oldMiniBuckets = SwitchingAlgorithm.USE_MINI_BUCKETS;
+		boolean oldPropagation = SwitchingAlgorithm.USE_PROPAGATION;
+		try {
+			SwitchingAlgorithm.USE_MINI_BUCKETS = true;
+			SwitchingAlgorithm.USE_PROPAGATION = false;
+			Query query =
+					new Query.ProbQuery(bn, Arrays.asList("Burglary"), evidence);
+			SwitchingAlgorithm switching = new SwitchingAlgorithm();
+			double exactCost = switching.getExactCost(query);
+			double miniBucketCost = switching.getMiniBucketCost(query);
+			assertTrue(miniBucketCost < exactCost);
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = 2 * oldCost
+					* switching.getSamplingCost(query)
+					/ (exactCost + miniBucketCost);
+			InferenceAlgorithm algo = switching.selectBestAlgorithm(query);
+			assertTrue(algo instanceof MiniBucketElimination);
+		}
+		finally {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = oldCost;
+			SwitchingAlgorithm.USE_MINI_BUCKETS = oldMiniBuckets;
+			SwitchingAlgorithm.USE_PROPAGATION = oldPropagation;
+		}
+
+		// queries with continuous distributions cannot be bounded
+		bn.addNode(new ChanceNode("X", new ContinuousDistribution("X",
+				new UniformDensityFunction(-2, 2))));
+		assertTrue(mb.queryBounds(new Query.ProbQuery(bn, Arrays.asList("X"),
+				new Assignment())).isEmpty());
+	}
 
-		distrib = (new SwitchingAlgorithm()).queryProb(network,
-				Arrays.asList("Burglary"),
-				new Assignment(Arrays.asList("JohnCalls", "MaryCalls")));
-		assertTrue(distrib instanceof MultivariateTable);
-
-		n1 = new ChanceNode("n1",
-				new ContinuousDistribution("n1", new UniformDensityFunction(-2, 2)));
-		n2 = new ChanceNode("n2", new ContinuousDistribution("n2",
-				new GaussianDensityFunction(-1.0, 3.0)));
-		network.addNode(n1);
-		network.addNode(n2);
-		network.getNode("Earthquake").addInputNode(n1);
-		network.getNode("Earthquake").addInputNode(n2);
-
-		distrib = (new SwitchingAlgorithm().queryProb(network,
-				Arrays.asList("Burglary"),
-				new Assignment(Arrays.asList("JohnCalls", "MaryCalls"))));
-		assertTrue(distrib instanceof EmpiricalDistribution);
+	@Test
+	public void testGibbsSampling() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		VariableElimination ve = new VariableElimination();
+		GibbsSampling gibbs = new GibbsSampling(2000, 1000);
+		Assignment evidence =
+				new Assignment(Arrays.asList("JohnCalls", "MaryCalls"));
+		Map<String, IndependentDistribution> marginals = gibbs.queryMarginals(bn,
+				Arrays.asList("Burglary", "Earthquake"), evidence);
+		for (String var : marginals.keySet()) {
+			assertEquals(ve.queryProb(bn, var, evidence).getProb(true),
+					marginals.get(var).getProb(true), 0.05);
+		}
+		assertEquals(
+				ve.queryUtil(bn, Arrays.asList("Action"), evidence)
+						.getUtil(new Assignment("Action", "CallPolice")),
+				gibbs.queryUtil(bn, Arrays.asList("Action"), evidence)
+						.getUtil(new Assignment("Action", "CallPolice")),
+				0.5);
+
+		// Gibbs sampling is selected instead of likelihood weighting when the
+		// evidence is unlikely
+		Query query = new Query.ProbQuery(bn, Arrays.asList("Burglary"), evidence);
+		Query query2 = new Query.ProbQuery(bn, Arrays.asList("Burglary"),
+				new Assignment("!JohnCalls"));
+		assertEquals(0.094, GibbsSampling.estimateEvidenceLikelihood(query, 5000),
+				0.02);
+		assertEquals(0.82, GibbsSampling.estimateEvidenceLikelihood(query2, 5000),
+				0.05);
+		double oldCost = SwitchingAlgorithm.EXACT_COST_PER_CELL;
+		double oldLikelihood = SwitchingAlgorithm.MIN_EVIDENCE_LIKELIHOOD;
+		boolean oldPropagation = SwitchingAlgorithm.USE_PROPAGATION;
+		try {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = Double.MAX_VALUE;
+			SwitchingAlgorithm.MIN_EVIDENCE_LIKELIHOOD = 0.4;
+			SwitchingAlgorithm.USE_PROPAGATION = false;
+			SwitchingAlgorithm switching = new SwitchingAlgorithm();
+			InferenceAlgorithm algo = switching.selectBestAlgorithm(query);
+			InferenceAlgorithm algo2 = switching.selectBestAlgorithm(query2);
+			assertTrue(algo instanceof GibbsSampling);
+			assertTrue(algo2 instanceof SamplingAlgorithm);
+		}
+		finally {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = oldCost;
+			SwitchingAlgorithm.MIN_EVIDENCE_LIKELIHOOD = oldLikelihood;
+			SwitchingAlgorithm.USE_PROPAGATION = oldPropagation;
+		}
+	}
 
-		SwitchingAlgorithm.MAX_BRANCHING_FACTOR = oldFactor;
+	@Test
+	public void testParticleFilter() {
+		BNetwork bn = NetworkExamples.constructBasicNetwork2();
+		VariableElimination ve = new VariableElimination();
+		ParticleFilter filter = new ParticleFilter(5000, 2000);
+		List<String> stateVars = Arrays.asList("Burglary", "Earthquake", "Alarm");
+		BNetwork reduced = filter.reduce(
+				new Query.ReduceQuery(bn, stateVars, new Assignment()));
+		filter.update(reduced);
+		assertEquals(ve.queryProb(bn, "Alarm").getProb(true),
+				ve.queryProb(reduced, "Alarm").getProb(true), 0.03);
+
+		// the particles are propagated through the new node, and reweighted by
+		// the evidence
+		ChanceNode johnCalls = bn.getChanceNode("JohnCalls").copy();
+		johnCalls.addInputNode(reduced.getNode("Alarm"));
+		reduced.addNode(johnCalls);
+		Assignment evidence = new Assignment("JohnCalls");
+		BNetwork reduced2 = filter
+				.reduce(new Query.ReduceQuery(reduced, stateVars, evidence));
+		filter.update(reduced2);
+		assertEquals(ve.queryProb(bn, "Burglary", evidence).getProb(true),
+				ve.queryProb(reduced2, "Burglary").getProb(true), 0.05);
+		BNetwork exact = ve
+				.reduce(new Query.ReduceQuery(reduced, stateVars, evidence));
+		assertEquals(ve.queryProb(exact, "Alarm").getProb(true),
+				ve.queryProb(reduced2, "Alarm").getProb(true), 0.05);
+		assertTrue(filter.getParticles("Burglary") != null);
+
+		// without evidence, the distributions of the state variables are unchanged
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("Noise");
+		builder.addRow(true, 0.5);
+		builder.addRow(false, 0.5);
+		ChanceNode noise = new ChanceNode("Noise", builder.build());
+		reduced2.addNode(noise);
+		BNetwork reduced3 = filter.reduce(new Query.ReduceQuery(reduced2,
+				Arrays.asList("Burglary", "Earthquake", "Alarm", "Noise"),
+				new Assignment()));
+		for (String var : stateVars) {
+			assertTrue(reduced3.getChanceNode(var)
+					.peekDistrib() == reduced2.getChanceNode(var).peekDistrib());
+		}
+		assertEquals(0.5, reduced3.getChanceNode("Noise").getProb(
+				ValueFactory.create(true)), 0.05);
+	}
+
+	@Test
+	public void testParticleFilterRenaming() {
+		BNetwork bn = new BNetwork();
+		CategoricalTable.Builder builder = new CategoricalTable.Builder("A");
+		builder.addRow(true, 0.3);
+		builder.addRow(false, 0.7);
+		bn.addNode(new ChanceNode("A", builder.build()));
+		for (String[] pair : new String[][] { { "A", "B" }, { "B", "B'" } }) {
+			Assignment pos = new Assignment(pair[0]);
+			Assignment neg = new Assignment("!" + pair[0]);
+			ConditionalTable.Builder builder2 =
+					new ConditionalTable.Builder(pair[1]);
+			builder2.addRow(pos, ValueFactory.create(true), 0.2);
+			builder2.addRow(pos, ValueFactory.create(false), 0.8);
+			builder2.addRow(neg, ValueFactory.create(true), 0.9);
+			builder2.addRow(neg, ValueFactory.create(false), 0.1);
+			ChanceNode node = new ChanceNode(pair[1], builder2.build());
+			node.addInputNode(bn.getNode(pair[0]));
+			bn.addNode(node);
+		}
+		ParticleFilter filter = new ParticleFilter(1000, 2000);
+		BNetwork reduced = filter.reduce(new Query.ReduceQuery(bn,
+				Arrays.asList("A", "B", "B'"), new Assignment()));
+		filter.update(reduced);
+		SampleBatch particles = filter.getParticles("B'");
+		assertTrue(particles.getColumnIndex("B") < particles
+				.getColumnIndex("B'"));
+		Value[] valuesA = particles.getColumn("A");
+		Value[] valuesB = particles.getColumn("B'");
+
+		// the primed variable replaces the unprimed one (as in the state pruner)
+		reduced.removeNode("B");
+		reduced.getChanceNode("B'").setId("B");
+		filter.update(reduced);
+		assertSame(particles, filter.getParticles("B"));
+		assertSame(particles, filter.getParticles("A"));
+		assertEquals(2, particles.getVariables().size());
+		assertEquals(-1, particles.getColumnIndex("B'"));
+		assertArrayEquals(valuesA, particles.getColumn("A"));
+		assertArrayEquals(valuesB, particles.getColumn("B"));
+	}
+
+	@Test
+	public void testCostModel() {
+		BNetwork network = NetworkExamples.constructBasicNetwork2();
+		Query query = new Query.ProbQuery(network, Arrays.asList("Burglary"),
+				new Assignment("JohnCalls"));
+		EliminationOrder order =
+				new VariableElimination().getEliminationOrder(query);
+		assertTrue(order.getTotalFactorSize() >= order.getMaxFactorSize());
+		assertTrue(order.getInducedWidth() >= 1);
+
+		SwitchingAlgorithm switching = new SwitchingAlgorithm();
+		assertTrue(
+				switching.getExactCost(query) < switching.getSamplingCost(query));
+		InferenceAlgorithm algo = switching.selectBestAlgorithm(query);
+		assertFalse(algo instanceof SamplingAlgorithm);
+
+		double likelihood = switching.getEvidenceLikelihood(query);
+		assertTrue(likelihood > 0.0 && likelihood <= 1.0);
+		Query query2 = new Query.ProbQuery(network, Arrays.asList("Burglary"),
+				new Assignment("JohnCalls"));
+		assertEquals(likelihood,
+				new SwitchingAlgorithm().getEvidenceLikelihood(query2), 0.0);
+
+		double oldCost = SwitchingAlgorithm.EXACT_COST_PER_CELL;
+		long oldSize = SwitchingAlgorithm.MAX_FACTOR_SIZE;
+		try {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = 1000000000;
+			algo = switching.selectBestAlgorithm(query);
+			assertTrue(algo instanceof SamplingAlgorithm);
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = oldCost;
+
+			SwitchingAlgorithm.MAX_FACTOR_SIZE = 4;
+			assertEquals(Double.POSITIVE_INFINITY, switching.getExactCost(query),
+					0.0);
+		}
+		finally {
+			SwitchingAlgorithm.EXACT_COST_PER_CELL = oldCost;
+			SwitchingAlgorithm.MAX_FACTOR_SIZE = oldSize;
+		}
+	}
+
+	@Test
+	public void testRequisiteNodes() {
+		BNetwork network = NetworkExamples.constructBasicNetwork2();
+		Query query = new Query.ProbQuery(network, Arrays.asList("JohnCalls"),
+				new Assignment("Alarm"));
+		assertEquals(new HashSet<String>(Arrays.asList("JohnCalls")),
+				query.getRequisiteNodeIds());
+		query = new Query.ProbQuery(network, Arrays.asList("Burglary"),
+				new Assignment("Alarm"));
+		assertEquals(
+				new HashSet<String>(
+						Arrays.asList("Burglary", "Earthquake", "Alarm")),
+				query.getRequisiteNodeIds());
+		query = new Query.ProbQuery(network, Arrays.asList("Burglary"),
+				new Assignment());
+		assertEquals(new HashSet<String>(Arrays.asList("Burglary")),
+				query.getRequisiteNodeIds());
+		query = new Query.UtilQuery(network, Arrays.asList("Action"),
+				new Assignment());
+		assertEquals(
+				new HashSet<String>(Arrays.asList("Action", "Burglary", "Util1",
+						"Util2")),
+				query.getRequisiteNodeIds());
+
+		// the value of the pruned evidence is still used by its children
+		Assignment evidence = new Assignment(new Assignment("Alarm"),
+				new Assignment("JohnCalls", false));
+		query = new Query.ProbQuery(network, Arrays.asList("MaryCalls"),
+				evidence);
+		assertEquals(new HashSet<String>(Arrays.asList("MaryCalls")),
+				query.getRequisiteNodeIds());
+		double exact = new NaiveInference()
+				.queryProb(network, "MaryCalls", evidence).getProb(true);
+		assertEquals(exact, new VariableElimination()
+				.queryProb(network, "MaryCalls", evidence).getProb(true), 0.001);
+		assertEquals(exact, new SamplingAlgorithm(2000, 500)
+				.queryProb(network, "MaryCalls", evidence).getProb(true), 0.05);
+		assertEquals(exact, new LoopyBeliefPropagation()
+				.queryProb(network, "MaryCalls", evidence).getProb(true), 0.001);
+
+		// the requisite nodes are recomputed when the network changes
+		network.getNode("MaryCalls").addInputNode(network.getNode("Burglary"));
+		assertEquals(
+				new HashSet<String>(Arrays.asList("MaryCalls", "Burglary",
+						"Earthquake", "Alarm")),
+				query.getRequisiteNodeIds());
 	}
 
 	/**